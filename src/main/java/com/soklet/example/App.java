@@ -23,7 +23,13 @@ import com.google.inject.util.Modules;
 import com.pyranid.Database;
 import com.soklet.Soklet;
 import com.soklet.SokletConfiguration;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
 import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.service.PurchaseOutboxProcessor;
+import com.soklet.example.service.PurchaseWriter;
+import com.soklet.example.service.StockReservationEngine;
+import com.soklet.example.service.ToyCatalog;
+import com.soklet.example.util.ConnectionPool;
 import com.soklet.example.util.PasswordManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,7 +68,7 @@ public class App {
 
 		// Use Guice modules for DI.
 		// Also permit overrides for testing, e.g. swap in a mock credit card processor
-		Module module = new AppModule();
+		Module module = new AppModule(configuration);
 
 		if (testingModules != null)
 			module = Modules.override(module).with(testingModules);
@@ -73,12 +79,23 @@ public class App {
 
 		// Load up an example schema and data
 		initializeDatabase();
+
+		// Have the toy catalog in memory before the first request asks for it
+		getInjector().getInstance(ToyCatalog.class).refresh();
 	}
 
 	public void startServer() throws IOException, InterruptedException {
 		SokletConfiguration sokletConfiguration = getInjector().getInstance(SokletConfiguration.class);
 
-		try (Soklet soklet = new Soklet(sokletConfiguration)) {
+		// Resources close in reverse order, so the connection pool outlives everything that uses it
+		try (ConnectionPool connectionPool = getInjector().getInstance(ConnectionPool.class);
+				 PurchaseWriter purchaseWriter = getInjector().getInstance(PurchaseWriter.class);
+				 Soklet soklet = new Soklet(sokletConfiguration);
+				 StockReservationEngine stockReservationEngine = getInjector().getInstance(StockReservationEngine.class);
+				 PurchaseOutboxProcessor purchaseOutboxProcessor = getInjector().getInstance(PurchaseOutboxProcessor.class)) {
+			connectionPool.start();
+			stockReservationEngine.start();
+			purchaseOutboxProcessor.start();
 			soklet.start();
 
 			if (getConfiguration().getStopOnKeypress()) {
@@ -148,22 +165,76 @@ public class App {
 					name VARCHAR(255) NOT NULL,
 					price DECIMAL(10,2) NOT NULL,
 					currency VARCHAR(8) NOT NULL,
+					stock_quantity INTEGER, -- NULL means stock isn't tracked
 					created_at TIMESTAMP DEFAULT NOW() NOT NULL,
 					CONSTRAINT toy_name_unique_idx UNIQUE(name)
 				)
 				""");
 
+		database.execute("""
+				CREATE TABLE purchase_status (
+					purchase_status_id VARCHAR(255) PRIMARY KEY,
+					description VARCHAR(255) NOT NULL
+				)
+				""");
+
+		database.executeBatch("INSERT INTO purchase_status (purchase_status_id, description) VALUES (?,?)", List.of(
+				List.of(PurchaseStatusId.PENDING, "Pending"),
+				List.of(PurchaseStatusId.COMPLETED, "Completed"),
+				List.of(PurchaseStatusId.VOIDED, "Voided"),
+				List.of(PurchaseStatusId.NEEDS_REVIEW, "Needs review"))
+		);
+
+		// Credit card transaction ID is only known once a purchase is COMPLETED.
+		// Purchases paid for together share a charge ID; a single purchase's charge ID is its own purchase ID
 		database.execute("""
 				CREATE TABLE purchase (
 					purchase_id UUID PRIMARY KEY,
+					charge_id UUID NOT NULL,
 					account_id UUID NOT NULL REFERENCES account,
 					toy_id UUID NOT NULL REFERENCES toy,
+					purchase_status_id VARCHAR(255) NOT NULL REFERENCES purchase_status(purchase_status_id),
 					price DECIMAL(10,2) NOT NULL,
 					currency VARCHAR(8) NOT NULL,
-					credit_card_txn_id VARCHAR(255) NOT NULL,
+					credit_card_txn_id VARCHAR(255),
 					created_at TIMESTAMP DEFAULT NOW() NOT NULL
 				)
 				""");
+
+		database.execute("CREATE INDEX purchase_charge_idx ON purchase (charge_id)");
+
+		// Charges waiting to be made, one per charge ID: asynchronously-accepted purchases, and charges whose outcome we never learned.
+		// The amount is stored so every retry asks for exactly what the first attempt did.
+		// Card numbers are encrypted; a real system would store a token from its payment processor here instead
+		database.execute("""
+				CREATE TABLE purchase_outbox (
+					charge_id UUID PRIMARY KEY,
+					encrypted_credit_card_number VARCHAR(255) NOT NULL,
+					amount DECIMAL(10,2) NOT NULL,
+					currency VARCHAR(8) NOT NULL,
+					charge_attempted BOOLEAN DEFAULT FALSE NOT NULL,
+					attempt_count INTEGER DEFAULT 0 NOT NULL,
+					next_attempt_at TIMESTAMP DEFAULT NOW() NOT NULL,
+					locked_until TIMESTAMP,
+					last_error VARCHAR(1024),
+					created_at TIMESTAMP DEFAULT NOW() NOT NULL
+				)
+				""");
+
+		// Client-supplied Idempotency-Key values for purchases, scoped per account.
+		// A row without a purchase is a reservation held by a request that is still running
+		database.execute("""
+				CREATE TABLE purchase_idempotency_key (
+					account_id UUID NOT NULL REFERENCES account,
+					idempotency_key VARCHAR(255) NOT NULL,
+					request_fingerprint VARCHAR(64) NOT NULL,
+					purchase_id UUID REFERENCES purchase,
+					response_status_code INTEGER,
+					expires_at TIMESTAMP NOT NULL,
+					created_at TIMESTAMP DEFAULT NOW() NOT NULL,
+					CONSTRAINT purchase_idempotency_key_pk PRIMARY KEY (account_id, idempotency_key)
+				)
+				""");
 	}
 
 	@Nonnull
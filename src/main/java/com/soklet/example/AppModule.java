@@ -31,7 +31,10 @@ import com.lokalized.DefaultStrings;
 import com.lokalized.LocalizedStringLoader;
 import com.lokalized.Strings;
 import com.pyranid.Database;
+import com.pyranid.DatabaseException;
 import com.pyranid.DefaultInstanceProvider;
+import com.pyranid.DefaultPreparedStatementBinder;
+import com.pyranid.DefaultResultSetMapper;
 import com.pyranid.DefaultStatementLogger;
 import com.pyranid.StatementContext;
 import com.pyranid.StatementLog;
@@ -47,11 +50,12 @@ import com.soklet.core.Server;
 import com.soklet.core.impl.DefaultResponseMarshaler;
 import com.soklet.core.impl.DefaultServer;
 import com.soklet.core.impl.WhitelistedOriginsCorsAuthorizer;
-import com.soklet.example.annotation.AuthorizationRequired;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
 import com.soklet.example.exception.ApplicationException;
 import com.soklet.example.exception.AuthenticationException;
 import com.soklet.example.exception.AuthorizationException;
 import com.soklet.example.exception.NotFoundException;
+import com.soklet.example.exception.ServiceUnavailableException;
 import com.soklet.example.model.api.response.AccountResponse.AccountResponseFactory;
 import com.soklet.example.model.api.response.ErrorResponse;
 import com.soklet.example.model.api.response.PurchaseResponse.PurchaseResponseFactory;
@@ -61,12 +65,37 @@ import com.soklet.example.model.auth.AccountJwt.AccountJwtResult;
 import com.soklet.example.model.auth.AccountJwt.AccountJwtResult.Expired;
 import com.soklet.example.model.auth.AccountJwt.AccountJwtResult.SignatureMismatch;
 import com.soklet.example.model.auth.AccountJwt.AccountJwtResult.Succeeded;
+import com.soklet.example.model.auth.AccountPrincipal;
+import com.soklet.example.model.auth.AuthorizationPlan;
 import com.soklet.example.model.db.Account;
-import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.model.db.PurchaseIdempotencyKey;
+import com.soklet.example.resource.AccountResource;
+import com.soklet.example.resource.AdminResource;
+import com.soklet.example.resource.IndexResource;
+import com.soklet.example.resource.PurchaseResource;
+import com.soklet.example.resource.ToyResource;
 import com.soklet.example.service.AccountService;
+import com.soklet.example.service.PurchaseIdempotencyService;
+import com.soklet.example.service.PurchaseOutboxProcessor;
+import com.soklet.example.service.PurchaseWriter;
+import com.soklet.example.service.StockReservationEngine;
+import com.soklet.example.service.ToyCatalog;
+import com.soklet.example.util.AuthorizationPlanRegistry;
+import com.soklet.example.util.CompiledResultSetMapper;
+import com.soklet.example.util.ConnectionPool;
+import com.soklet.example.util.ConnectionPool.ConnectionPoolTimeoutException;
+import com.soklet.example.util.CreditCardNumberCipher;
 import com.soklet.example.util.CreditCardProcessor;
 import com.soklet.example.util.DefaultCreditCardProcessor;
+import com.soklet.example.util.DeferredResponseBody;
+import com.soklet.example.util.ExpiringCache;
+import com.soklet.example.util.JsonBodyWriter;
+import com.soklet.example.util.LoginThrottler;
+import com.soklet.example.util.PasswordHashingPool;
 import com.soklet.example.util.PasswordManager;
+import com.soklet.example.util.ResilientCreditCardProcessor;
+import com.soklet.example.util.TransactionPlanRegistry;
+import com.soklet.example.util.TransactionPlanRegistry.TransactionPlan;
 import com.soklet.exception.BadRequestException;
 import com.soklet.exception.IllegalQueryParameterException;
 import org.hsqldb.jdbc.JDBCDataSource;
@@ -79,14 +108,15 @@ import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.lang.reflect.Parameter;
 import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.YearMonth;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -94,6 +124,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -106,6 +137,28 @@ import static java.util.Objects.requireNonNull;
  */
 @ThreadSafe
 public class AppModule extends AbstractModule {
+	@Nonnull
+	private static final List<Class<?>> RESOURCE_CLASSES;
+
+	static {
+		// Resource methods on these classes have their annotations compiled into plans at startup
+		RESOURCE_CLASSES = List.of(
+				IndexResource.class,
+				AccountResource.class,
+				ToyResource.class,
+				PurchaseResource.class,
+				AdminResource.class
+		);
+	}
+
+	@Nonnull
+	private final Configuration configuration;
+
+	public AppModule(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+		this.configuration = configuration;
+	}
+
 	@Nonnull
 	@Provides
 	@Singleton
@@ -113,14 +166,20 @@ public class AppModule extends AbstractModule {
 																												@Nonnull Configuration configuration,
 																												@Nonnull Database database,
 																												@Nonnull AccountService accountService,
+																												@Nonnull AuthorizationPlanRegistry authorizationPlanRegistry,
+																												@Nonnull TransactionPlanRegistry transactionPlanRegistry,
 																												@Nonnull Strings strings,
-																												@Nonnull Gson gson) {
+																												@Nonnull Gson gson,
+																												@Nonnull JsonBodyWriter jsonBodyWriter) {
 		requireNonNull(injector);
 		requireNonNull(configuration);
 		requireNonNull(database);
 		requireNonNull(accountService);
+		requireNonNull(authorizationPlanRegistry);
+		requireNonNull(transactionPlanRegistry);
 		requireNonNull(strings);
 		requireNonNull(gson);
+		requireNonNull(jsonBodyWriter);
 
 		return SokletConfiguration.withServer(DefaultServer.withPort(configuration.getPort()).host("0.0.0.0").build())
 				.lifecycleInterceptor(new LifecycleInterceptor() {
@@ -161,7 +220,11 @@ public class AppModule extends AbstractModule {
 						requireNonNull(requestProcessor);
 
 						// Ensure a "current context" scope exists for all request-handling code
-						CurrentContext.withRequest(request).build().run(() -> {
+						CurrentContext currentContext = CurrentContext.withRequest(request)
+								.trustedProxyCount(configuration.getTrustedProxyCount())
+								.build();
+
+						currentContext.run(() -> {
 							requestProcessor.accept(request);
 						});
 					}
@@ -175,6 +238,7 @@ public class AppModule extends AbstractModule {
 						requireNonNull(responseGenerator);
 						requireNonNull(responseWriter);
 
+						AccountPrincipal accountPrincipal = null;
 						Account account = null;
 
 						// Try to pull authentication token from request headers...
@@ -182,11 +246,17 @@ public class AppModule extends AbstractModule {
 
 						// ...and if it exists, see if we can pull an account from it.
 						if (authenticationTokenAsString != null) {
-							AccountJwtResult accountJwtResult = AccountJwt.fromStringRepresentation(authenticationTokenAsString, configuration.getKeyPair().getPrivate());
+							AccountJwtResult accountJwtResult = accountService.verifyAccountJwt(authenticationTokenAsString);
 
 							switch (accountJwtResult) {
 								case Succeeded(@Nonnull AccountJwt accountJwt) -> {
-									account = accountService.findAccountById(accountJwt.accountId()).orElse(null);
+									// Tokens with claims tell us everything we need; older ones require an account lookup
+									accountPrincipal = accountJwt.toAccountPrincipal().orElse(null);
+
+									if (accountPrincipal == null) {
+										account = accountService.findAccountById(accountJwt.accountId()).orElse(null);
+										accountPrincipal = account == null ? null : AccountPrincipal.fromAccount(account);
+									}
 								}
 								case Expired(@Nonnull AccountJwt accountJwt, @Nonnull Instant expiredAt) -> {
 									logger.debug("JWT for account ID {} expired at {}", accountJwt.accountId(), expiredAt);
@@ -201,34 +271,66 @@ public class AppModule extends AbstractModule {
 						}
 
 						if (resourceMethod != null) {
-							// See if the resource method has an @AuthorizationRequired annotation...
-							AuthorizationRequired authorizationRequired = resourceMethod.getMethod().getAnnotation(AuthorizationRequired.class);
+							// @AuthorizationRequired is compiled into a plan up front, so this is just a lookup and a bit test
+							AuthorizationPlan authorizationPlan = authorizationPlanRegistry.authorizationPlanFor(resourceMethod.getMethod());
 
-							if (authorizationRequired != null) {
+							if (authorizationPlan.authenticationRequired()) {
 								// Ensure an account was found for the authentication token
-								if (account == null)
+								if (accountPrincipal == null)
 									throw new AuthenticationException();
 
-								Set<RoleId> requiredRoleIds = authorizationRequired.value() == null
-										? Set.of() : Arrays.stream(authorizationRequired.value()).collect(Collectors.toSet());
-
-								if (requiredRoleIds.size() > 0 && !requiredRoleIds.contains(account.roleId()))
+								if (!authorizationPlan.permits(accountPrincipal.roleId()))
 									throw new AuthorizationException();
 							}
 						}
 
-						// Create a new current context scope to apply the authenticated account (if present)
+						// Create a new current context scope to apply the authenticated account (if present).
+						// If we only have a principal, the full account is loaded on demand
+						UUID accountId = accountPrincipal == null ? null : accountPrincipal.accountId();
+
+						// No resource method means there's nothing to run (e.g. a 404), so don't bother with a transaction
+						TransactionPlan transactionPlan = resourceMethod == null
+								? TransactionPlan.NONE
+								: transactionPlanRegistry.transactionPlanFor(resourceMethod.getMethod());
+
 						CurrentContext currentContext = CurrentContext.withRequest(request)
+								.trustedProxyCount(configuration.getTrustedProxyCount())
 								.account(account)
+								.accountPrincipal(accountPrincipal)
+								.accountSupplier(accountId == null ? null : () -> accountService.findAccountById(accountId))
+								.transactionPlan(transactionPlan)
 								.build();
 
 						currentContext.run(() -> {
-							// Wrap the resource method execution (not including the writing of bytes over the wire) in a database transaction.
-							// If an exception occurs during this process, the transaction will roll back.
-							// This is the behavior you normally want.
-							MarshaledResponse marshaledResponse = database.transaction(() ->
-									Optional.of(responseGenerator.apply(request))
-							).get();
+							MarshaledResponse marshaledResponse;
+
+							if (transactionPlan.transactionMode() == TransactionMode.READ_WRITE) {
+								// Wrap the resource method execution (not including the writing of bytes over the wire) in a database transaction.
+								// If an exception occurs during this process, the transaction will roll back.
+								// This is the behavior you normally want.
+								// The happy-path response body is handed back to us rather than serialized in the transaction...
+								DeferredResponseBody deferredResponseBody = new DeferredResponseBody();
+
+								marshaledResponse = deferredResponseBody.run(() ->
+										database.transaction(transactionPlan.transactionIsolation(), () ->
+												Optional.of(responseGenerator.apply(request))
+										).get());
+
+								// ...so that by the time we spend time on JSON, the transaction has committed and its connection is released
+								Object body = deferredResponseBody.getBody().orElse(null);
+
+								if (body != null)
+									marshaledResponse = MarshaledResponse.withStatusCode(marshaledResponse.getStatusCode())
+											.headers(marshaledResponse.getHeaders())
+											.cookies(marshaledResponse.getCookies())
+											.body(jsonBodyWriter.toJsonBytes(body))
+											.build();
+							} else {
+								// NONE: the resource method manages its own transactions (if any), e.g. so it doesn't hold a connection
+								// while waiting on an external system.
+								// READ_ONLY: each statement autocommits on a read-only connection, see the statement binder in provideDatabase()
+								marshaledResponse = responseGenerator.apply(request);
+							}
 
 							responseWriter.accept(marshaledResponse);
 						});
@@ -264,9 +366,18 @@ public class AppModule extends AbstractModule {
 					public MarshaledResponse forHappyPath(@Nonnull Request request,
 																								@Nonnull Response response,
 																								@Nonnull ResourceMethod resourceMethod) {
-						// Use Gson to turn response objects into JSON to go over the wire
+						// Use Gson to turn response objects into JSON to go over the wire.
+						// If we're inside a transaction that prefers to do this after it commits, hand off the body instead
 						Object bodyObject = response.getBody().orElse(null);
-						byte[] body = bodyObject == null ? null : gson.toJson(bodyObject).getBytes(StandardCharsets.UTF_8);
+						DeferredResponseBody deferredResponseBody = DeferredResponseBody.getIfPresent().orElse(null);
+						byte[] body = null;
+
+						if (bodyObject != null) {
+							if (deferredResponseBody == null)
+								body = jsonBodyWriter.toJsonBytes(bodyObject);
+							else
+								deferredResponseBody.defer(bodyObject);
+						}
 
 						// Ensure content type header is set
 						Map<String, Set<String>> headers = new HashMap<>(response.getHeaders());
@@ -284,7 +395,7 @@ public class AppModule extends AbstractModule {
 					public MarshaledResponse forNotFound(@Nonnull Request request) {
 						// Use Gson to turn the error response into JSON
 						ErrorResponse errorResponse = ErrorResponse.withSummary(strings.get("The resource you requested was not found.")).build();
-						byte[] body = gson.toJson(errorResponse).getBytes(StandardCharsets.UTF_8);
+						byte[] body = jsonBodyWriter.toJsonBytes(errorResponse);
 
 						Map<String, Set<String>> headers = new HashMap<>();
 						headers.put("Content-Type", Set.of("application/json;charset=UTF-8"));
@@ -332,6 +443,15 @@ public class AppModule extends AbstractModule {
 								statusCode = 404;
 								generalErrors.add(strings.get("The resource you requested was not found."));
 							}
+							case ServiceUnavailableException ignored -> {
+								statusCode = 503;
+								generalErrors.add(strings.get("We are experiencing heavy load right now. Please try again shortly."));
+							}
+							case DatabaseException ex when ex.getCause() instanceof ConnectionPoolTimeoutException -> {
+								// Every database connection stayed busy for the whole acquisition timeout
+								statusCode = 503;
+								generalErrors.add(strings.get("We are experiencing heavy load right now. Please try again shortly."));
+							}
 							case ApplicationException applicationException -> {
 								statusCode = applicationException.getStatusCode();
 								generalErrors.addAll(applicationException.getGeneralErrors());
@@ -362,7 +482,7 @@ public class AppModule extends AbstractModule {
 								.build();
 
 						// Use Gson to turn the error response into JSON
-						byte[] body = gson.toJson(errorResponse).getBytes(StandardCharsets.UTF_8);
+						byte[] body = jsonBodyWriter.toJsonBytes(errorResponse);
 
 						Map<String, Set<String>> headers = new HashMap<>();
 						headers.put("Content-Type", Set.of("application/json;charset=UTF-8"));
@@ -404,8 +524,8 @@ public class AppModule extends AbstractModule {
 	@Nonnull
 	@Provides
 	@Singleton
-	public Database provideDatabase(@Nonnull Injector injector) {
-		requireNonNull(injector);
+	public ConnectionPool provideConnectionPool(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
 
 		// Example in-memory datasource for HSQLDB
 		JDBCDataSource dataSource = new JDBCDataSource();
@@ -413,8 +533,27 @@ public class AppModule extends AbstractModule {
 		dataSource.setUser("sa");
 		dataSource.setPassword("");
 
+		// It opens a new physical connection every time it's asked, so put a pool in front of it
+		return ConnectionPool.withDataSource(dataSource)
+				.minimumSize(configuration.getConnectionPoolMinimumSize())
+				.maximumSize(configuration.getConnectionPoolMaximumSize())
+				.acquisitionTimeout(configuration.getConnectionPoolAcquisitionTimeout())
+				.validationInterval(configuration.getConnectionPoolValidationInterval())
+				.leakDetectionThreshold(configuration.getConnectionPoolLeakDetectionThreshold().orElse(null))
+				.statementCacheSize(configuration.getConnectionPoolStatementCacheSize())
+				.build();
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public Database provideDatabase(@Nonnull Injector injector,
+																	@Nonnull ConnectionPool connectionPool) {
+		requireNonNull(injector);
+		requireNonNull(connectionPool);
+
 		// Use Pyranid to simplify JDBC operations
-		return Database.forDataSource(dataSource)
+		return Database.forDataSource(connectionPool)
 				// Use Google Guice when Pyranid needs to vend instances
 				.instanceProvider(new DefaultInstanceProvider() {
 					@Override
@@ -424,6 +563,37 @@ public class AppModule extends AbstractModule {
 						return injector.getInstance(instanceType);
 					}
 				})
+				// Map rows into records with mappers compiled on first use, rather than reflecting on every row
+				.resultSetMapper(new CompiledResultSetMapper(new DefaultResultSetMapper()))
+				// Applies the current route's TransactionPolicy to each statement before it runs
+				.preparedStatementBinder(new DefaultPreparedStatementBinder() {
+					@Override
+					public <T> void bind(@Nonnull StatementContext<T> statementContext,
+															 @Nonnull PreparedStatement preparedStatement,
+															 @Nonnull List<Object> parameters) {
+						TransactionPlan transactionPlan = CurrentContext.getIfPresent()
+								.flatMap(CurrentContext::getTransactionPlan)
+								.orElse(null);
+
+						if (transactionPlan != null) {
+							try {
+								if (transactionPlan.statementTimeout() != null)
+									preparedStatement.setQueryTimeout((int) Math.max(1, transactionPlan.statementTimeout().toSeconds()));
+
+								// Outside of a transaction, the connection is only used for this one statement.
+								// Inside of one (e.g. a service that opens its own), leave it alone
+								Connection connection = preparedStatement.getConnection();
+
+								if (transactionPlan.transactionMode() == TransactionMode.READ_ONLY && connection.getAutoCommit())
+									connection.setReadOnly(true);
+							} catch (SQLException e) {
+								throw new DatabaseException("Unable to apply transaction policy to statement", e);
+							}
+						}
+
+						super.bind(statementContext, preparedStatement, parameters);
+					}
+				})
 				.statementLogger(new DefaultStatementLogger() {
 					@Nonnull
 					private final Logger logger = LoggerFactory.getLogger("com.soklet.example.StatementLogger");
@@ -456,15 +626,186 @@ public class AppModule extends AbstractModule {
 	@Nonnull
 	@Provides
 	@Singleton
-	public PasswordManager providePasswordManager() {
+	public ExpiringCache<String, AccountJwt> provideAccountJwtCache(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+		return new ExpiringCache<>(configuration.getAccountJwtCacheMaximumSize());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public ExpiringCache<UUID, Account> provideAccountCache(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+		return new ExpiringCache<>(configuration.getAccountCacheMaximumSize());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public ExpiringCache<String, PurchaseIdempotencyKey> providePurchaseIdempotencyKeyCache(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+		return new ExpiringCache<>(configuration.getPurchaseIdempotencyKeyCacheMaximumSize());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public AuthorizationPlanRegistry provideAuthorizationPlanRegistry() {
+		AuthorizationPlanRegistry authorizationPlanRegistry = new AuthorizationPlanRegistry();
+
+		// Resolve @AuthorizationRequired for every resource method at startup instead of on each request
+		authorizationPlanRegistry.compile(RESOURCE_CLASSES);
+
+		return authorizationPlanRegistry;
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public TransactionPlanRegistry provideTransactionPlanRegistry() {
+		TransactionPlanRegistry transactionPlanRegistry = new TransactionPlanRegistry();
+		transactionPlanRegistry.compile(RESOURCE_CLASSES);
+		return transactionPlanRegistry;
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public PasswordManager providePasswordManager(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+
+		// Tune hashing cost to this host, so we trade CPU for security on purpose rather than by accident
+		if (configuration.getPasswordHashingCalibrationEnabled())
+			return PasswordManager.calibratedForTargetDuration(configuration.getPasswordHashingTargetDuration());
+
 		return PasswordManager.sharedInstance();
 	}
 
 	@Nonnull
 	@Provides
 	@Singleton
-	public CreditCardProcessor provideCreditCardProcessor() {
-		return new DefaultCreditCardProcessor();
+	public PasswordHashingPool providePasswordHashingPool(@Nonnull Configuration configuration,
+																												@Nonnull PasswordManager passwordManager) {
+		requireNonNull(configuration);
+		requireNonNull(passwordManager);
+
+		return new PasswordHashingPool(passwordManager, configuration.getPasswordHashingPermits(),
+				configuration.getPasswordHashingQueueTimeout());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public LoginThrottler provideLoginThrottler(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+
+		return new LoginThrottler(configuration.getLoginThrottleStripeCount(),
+				configuration.getLoginThrottleEmailAddressFreeFailures(),
+				configuration.getLoginThrottleIpAddressFreeFailures(),
+				configuration.getLoginThrottleBaseDelay(),
+				configuration.getLoginThrottleMaximumDelay());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public PurchaseOutboxProcessor providePurchaseOutboxProcessor(@Nonnull Database database,
+																																@Nonnull CreditCardProcessor creditCardProcessor,
+																																@Nonnull CreditCardNumberCipher creditCardNumberCipher,
+																																@Nonnull StockReservationEngine stockReservationEngine,
+																																@Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(creditCardProcessor);
+		requireNonNull(creditCardNumberCipher);
+		requireNonNull(stockReservationEngine);
+		requireNonNull(configuration);
+
+		return new PurchaseOutboxProcessor(database, creditCardProcessor, creditCardNumberCipher, stockReservationEngine, configuration);
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public CreditCardNumberCipher provideCreditCardNumberCipher(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+		return CreditCardNumberCipher.forPrivateKey(configuration.getKeyPair().getPrivate());
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public StockReservationEngine provideStockReservationEngine(@Nonnull Database database,
+																															@Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+
+		return new StockReservationEngine(database, configuration);
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public PurchaseWriter providePurchaseWriter(@Nonnull Database database,
+																							@Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+
+		// Must be a singleton so concurrent purchases can share group commits
+		return new PurchaseWriter(database, configuration);
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public ToyCatalog provideToyCatalog(@Nonnull Database database) {
+		requireNonNull(database);
+
+		// Must be a singleton so every reader shares the one snapshot
+		return new ToyCatalog(database);
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public PurchaseIdempotencyService providePurchaseIdempotencyService(@Nonnull Database database,
+																																			@Nonnull Configuration configuration,
+																																			@Nonnull Strings strings,
+																																			@Nonnull ExpiringCache<String, PurchaseIdempotencyKey> purchaseIdempotencyKeyCache) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+		requireNonNull(strings);
+		requireNonNull(purchaseIdempotencyKeyCache);
+
+		// Must be a singleton so concurrent duplicate requests find each other
+		return new PurchaseIdempotencyService(database, configuration, strings, purchaseIdempotencyKeyCache);
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public ResilientCreditCardProcessor provideResilientCreditCardProcessor(@Nonnull Configuration configuration) {
+		requireNonNull(configuration);
+
+		// A slow or failing processor should cost callers a fast 503, not a request thread
+		return ResilientCreditCardProcessor.withCreditCardProcessor(new DefaultCreditCardProcessor())
+				.maximumConcurrentCalls(configuration.getCreditCardProcessorMaximumConcurrentCalls())
+				.bulkheadTimeout(configuration.getCreditCardProcessorBulkheadTimeout())
+				.callTimeout(configuration.getCreditCardProcessorCallTimeout())
+				.slowCallThreshold(configuration.getCreditCardProcessorSlowCallThreshold())
+				.slidingWindowSize(configuration.getCreditCardProcessorSlidingWindowSize())
+				.minimumCalls(configuration.getCreditCardProcessorMinimumCalls())
+				.failureRateThreshold(configuration.getCreditCardProcessorFailureRateThreshold())
+				.slowCallRateThreshold(configuration.getCreditCardProcessorSlowCallRateThreshold())
+				.openDuration(configuration.getCreditCardProcessorOpenDuration())
+				.build();
+	}
+
+	@Nonnull
+	@Provides
+	@Singleton
+	public CreditCardProcessor provideCreditCardProcessor(@Nonnull ResilientCreditCardProcessor resilientCreditCardProcessor) {
+		requireNonNull(resilientCreditCardProcessor);
+		return resilientCreditCardProcessor;
 	}
 
 	@Nonnull
@@ -561,12 +902,30 @@ public class AppModule extends AbstractModule {
 		return gsonBuilder.create();
 	}
 
+	@Nonnull
+	@Provides
+	@Singleton
+	public JsonBodyWriter provideJsonBodyWriter(@Nonnull Gson gson) {
+		requireNonNull(gson);
+
+		// Must be a singleton so buffer size hints are shared across requests
+		return new JsonBodyWriter(gson);
+	}
+
 	@Override
 	protected void configure() {
+		// Everyone shares the same configuration instance that the app was created with
+		bind(Configuration.class).toInstance(getConfiguration());
+
 		// Tells Guice to set up assisted injection
 		// See https://github.com/google/guice/wiki/AssistedInject
 		install(new FactoryModuleBuilder().build(AccountResponseFactory.class));
 		install(new FactoryModuleBuilder().build(ToyResponseFactory.class));
 		install(new FactoryModuleBuilder().build(PurchaseResponseFactory.class));
 	}
+
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 package com.soklet.example;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
@@ -30,9 +31,11 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.time.ZoneId;
 import java.util.Base64;
 import java.util.Locale;
+import java.util.Optional;
 import java.util.Set;
 
 /**
@@ -60,6 +63,102 @@ public class Configuration {
 	private final KeyPair keyPair;
 	@Nonnull
 	private final Set<String> corsWhitelistedOrigins;
+	@Nonnull
+	private final Boolean accountJwtClaimsEnabled;
+	@Nonnull
+	private final Integer accountJwtCacheMaximumSize;
+	@Nonnull
+	private final Integer accountCacheMaximumSize;
+	@Nonnull
+	private final Duration accountCacheTimeToLive;
+	@Nonnull
+	private final Integer passwordHashingPermits;
+	@Nonnull
+	private final Duration passwordHashingQueueTimeout;
+	@Nonnull
+	private final Boolean passwordHashingCalibrationEnabled;
+	@Nonnull
+	private final Duration passwordHashingTargetDuration;
+	@Nonnull
+	private final Double passwordHashingRehashTolerance;
+	@Nonnull
+	private final Integer loginThrottleStripeCount;
+	@Nonnull
+	private final Integer loginThrottleEmailAddressFreeFailures;
+	@Nonnull
+	private final Integer loginThrottleIpAddressFreeFailures;
+	@Nonnull
+	private final Duration loginThrottleBaseDelay;
+	@Nonnull
+	private final Duration loginThrottleMaximumDelay;
+	@Nonnull
+	private final Integer purchaseWorkerConcurrency;
+	@Nonnull
+	private final Integer purchaseOutboxBatchSize;
+	@Nonnull
+	private final Duration purchaseOutboxPollInterval;
+	@Nonnull
+	private final Duration purchaseOutboxLeaseDuration;
+	@Nonnull
+	private final Integer purchaseOutboxMaximumAttempts;
+	@Nonnull
+	private final Duration purchaseOutboxRetryBaseDelay;
+	@Nonnull
+	private final Integer creditCardProcessorMaximumConcurrentCalls;
+	@Nonnull
+	private final Duration creditCardProcessorBulkheadTimeout;
+	@Nonnull
+	private final Duration creditCardProcessorCallTimeout;
+	@Nonnull
+	private final Duration creditCardProcessorSlowCallThreshold;
+	@Nonnull
+	private final Integer creditCardProcessorSlidingWindowSize;
+	@Nonnull
+	private final Integer creditCardProcessorMinimumCalls;
+	@Nonnull
+	private final Double creditCardProcessorFailureRateThreshold;
+	@Nonnull
+	private final Double creditCardProcessorSlowCallRateThreshold;
+	@Nonnull
+	private final Duration creditCardProcessorOpenDuration;
+	@Nonnull
+	private final Integer purchaseIdempotencyKeyCacheMaximumSize;
+	@Nonnull
+	private final Duration purchaseIdempotencyKeyTimeToLive;
+	@Nonnull
+	private final Duration purchaseIdempotencyKeyLeaseDuration;
+	@Nonnull
+	private final Integer checkoutMaximumQuantity;
+	@Nonnull
+	private final Integer stockReservationStripeCount;
+	@Nonnull
+	private final Duration stockReconciliationInterval;
+	@Nonnull
+	private final Boolean purchaseGroupCommitEnabled;
+	@Nonnull
+	private final Integer purchaseGroupCommitMaximumBatchSize;
+	@Nonnull
+	private final Duration purchaseGroupCommitMaximumDelay;
+	@Nonnull
+	private final Integer connectionPoolMinimumSize;
+	@Nonnull
+	private final Integer connectionPoolMaximumSize;
+	@Nonnull
+	private final Duration connectionPoolAcquisitionTimeout;
+	@Nonnull
+	private final Duration connectionPoolValidationInterval;
+	@Nullable
+	private final Duration connectionPoolLeakDetectionThreshold;
+	@Nonnull
+	private final Integer connectionPoolStatementCacheSize;
+	@Nonnull
+	private final Integer toyPageDefaultLimit;
+	@Nonnull
+	private final Integer toyPageMaximumLimit;
+	@Nonnull
+	private final Double toySearchMinimumSimilarity;
+	@Nonnull
+	private final Integer trustedProxyCount;
 
 	public Configuration() {
 		// TODO: this ctor could pull from env vars, or alternately pull from a file
@@ -68,6 +167,82 @@ public class Configuration {
 		this.port = 8080;
 		this.corsWhitelistedOrigins = Set.of();
 		this.keyPair = loadKeyPair();
+		// Embed role/name/locale/time zone in tokens so authentication doesn't need the database
+		this.accountJwtClaimsEnabled = true;
+		// Clients typically reuse a token for its whole lifetime, so remember the ones we have already verified
+		this.accountJwtCacheMaximumSize = 10_000;
+		// Accounts rarely change and are invalidated on write, so the TTL is only a safety net
+		this.accountCacheMaximumSize = 10_000;
+		this.accountCacheTimeToLive = Duration.ofMinutes(5);
+		// Leave at least half of the cores for everything else, and shed login load quickly when they're all busy
+		this.passwordHashingPermits = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		this.passwordHashingQueueTimeout = Duration.ofMillis(250);
+		// Pick a PBKDF2 cost at startup that takes about this long on this host.
+		// Stored hashes more than 50% cheaper or more expensive than that are rehashed on next login
+		this.passwordHashingCalibrationEnabled = true;
+		this.passwordHashingTargetDuration = Duration.ofMillis(100);
+		this.passwordHashingRehashTolerance = 0.5;
+		// After a handful of failed logins, back off exponentially from 1 second up to 15 minutes.
+		// IPs get more leeway than email addresses because many people can share one
+		this.loginThrottleStripeCount = 16_384;
+		this.loginThrottleEmailAddressFreeFailures = 5;
+		this.loginThrottleIpAddressFreeFailures = 25;
+		this.loginThrottleBaseDelay = Duration.ofSeconds(1);
+		this.loginThrottleMaximumDelay = Duration.ofMinutes(15);
+		// Asynchronous purchases: how many charges may be in flight, and how the outbox is polled and retried.
+		// A claimed row's lease must comfortably outlast a charge, or another worker could pick it up mid-flight
+		this.purchaseWorkerConcurrency = 16;
+		this.purchaseOutboxBatchSize = 64;
+		this.purchaseOutboxPollInterval = Duration.ofSeconds(1);
+		this.purchaseOutboxLeaseDuration = Duration.ofMinutes(2);
+		this.purchaseOutboxMaximumAttempts = 6;
+		this.purchaseOutboxRetryBaseDelay = Duration.ofSeconds(2);
+		// Don't let a sick credit card processor take the rest of the app down with it.
+		// Stop calling it for a while if half of recent calls fail, or most of them are slow
+		this.creditCardProcessorMaximumConcurrentCalls = 32;
+		this.creditCardProcessorBulkheadTimeout = Duration.ofMillis(100);
+		this.creditCardProcessorCallTimeout = Duration.ofSeconds(5);
+		this.creditCardProcessorSlowCallThreshold = Duration.ofSeconds(2);
+		this.creditCardProcessorSlidingWindowSize = 50;
+		this.creditCardProcessorMinimumCalls = 10;
+		this.creditCardProcessorFailureRateThreshold = 0.5;
+		this.creditCardProcessorSlowCallRateThreshold = 0.8;
+		this.creditCardProcessorOpenDuration = Duration.ofSeconds(30);
+		// Remember purchase results per Idempotency-Key for a day, so client retries replay instead of charging again.
+		// A key whose request never finished is reclaimed once its lease runs out
+		this.purchaseIdempotencyKeyCacheMaximumSize = 10_000;
+		this.purchaseIdempotencyKeyTimeToLive = Duration.ofHours(24);
+		this.purchaseIdempotencyKeyLeaseDuration = Duration.ofMinutes(2);
+		// Caps how many toys one checkout may buy, since they're all written and charged together
+		this.checkoutMaximumQuantity = 100;
+		// Stock is reserved in memory so buyers don't queue on one toy row's lock, and written back to the database this often.
+		// Each tracked toy's stock is spread over this many counters to keep CAS contention down during flash sales
+		this.stockReservationStripeCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+		this.stockReconciliationInterval = Duration.ofSeconds(1);
+		// Optionally group-commit single purchase writes: concurrent requests share one batch and one commit.
+		// Callers wait at most this long for company, and are released once their batch has committed
+		this.purchaseGroupCommitEnabled = false;
+		this.purchaseGroupCommitMaximumBatchSize = 64;
+		this.purchaseGroupCommitMaximumDelay = Duration.ofNanos(500_000);
+		// Database connections are pooled: at most this many exist at once, which caps database concurrency.
+		// Callers wait up to the acquisition timeout for one to free up, then get a 503
+		this.connectionPoolMinimumSize = 2;
+		this.connectionPoolMaximumSize = Math.max(10, Runtime.getRuntime().availableProcessors() * 2);
+		this.connectionPoolAcquisitionTimeout = Duration.ofSeconds(2);
+		this.connectionPoolValidationInterval = Duration.ofSeconds(5);
+		// Leak detection captures a stack trace on every acquisition, so it's off unless you're hunting a leak (e.g. 30 seconds)
+		this.connectionPoolLeakDetectionThreshold = null;
+		// Each pooled connection keeps up to this many prepared statements, so hot queries are parsed and planned once per connection
+		this.connectionPoolStatementCacheSize = 64;
+		// GET /toys pages through the catalog rather than returning all of it at once
+		this.toyPageDefaultLimit = 50;
+		this.toyPageMaximumLimit = 200;
+		// Fuzzy toy search only returns names sharing at least this fraction of trigrams with the query, as in pg_trgm
+		this.toySearchMinimumSimilarity = 0.3;
+		// How many reverse proxies we run behind, each appending the address it saw to X-Forwarded-For.
+		// Only entries added by those proxies can be trusted: anything further left was supplied by the client and may be forged.
+		// With none, the header is ignored entirely
+		this.trustedProxyCount = 0;
 
 		// Initialize Logback if not done already
 		if (System.getProperty("logback.configurationFile") == null)
@@ -128,4 +303,244 @@ public class Configuration {
 	public Set<String> getCorsWhitelistedOrigins() {
 		return this.corsWhitelistedOrigins;
 	}
+
+	@Nonnull
+	public Boolean getAccountJwtClaimsEnabled() {
+		return this.accountJwtClaimsEnabled;
+	}
+
+	@Nonnull
+	public Integer getAccountJwtCacheMaximumSize() {
+		return this.accountJwtCacheMaximumSize;
+	}
+
+	@Nonnull
+	public Integer getAccountCacheMaximumSize() {
+		return this.accountCacheMaximumSize;
+	}
+
+	@Nonnull
+	public Duration getAccountCacheTimeToLive() {
+		return this.accountCacheTimeToLive;
+	}
+
+	@Nonnull
+	public Integer getPasswordHashingPermits() {
+		return this.passwordHashingPermits;
+	}
+
+	@Nonnull
+	public Duration getPasswordHashingQueueTimeout() {
+		return this.passwordHashingQueueTimeout;
+	}
+
+	@Nonnull
+	public Boolean getPasswordHashingCalibrationEnabled() {
+		return this.passwordHashingCalibrationEnabled;
+	}
+
+	@Nonnull
+	public Duration getPasswordHashingTargetDuration() {
+		return this.passwordHashingTargetDuration;
+	}
+
+	@Nonnull
+	public Double getPasswordHashingRehashTolerance() {
+		return this.passwordHashingRehashTolerance;
+	}
+
+	@Nonnull
+	public Integer getLoginThrottleStripeCount() {
+		return this.loginThrottleStripeCount;
+	}
+
+	@Nonnull
+	public Integer getLoginThrottleEmailAddressFreeFailures() {
+		return this.loginThrottleEmailAddressFreeFailures;
+	}
+
+	@Nonnull
+	public Integer getLoginThrottleIpAddressFreeFailures() {
+		return this.loginThrottleIpAddressFreeFailures;
+	}
+
+	@Nonnull
+	public Duration getLoginThrottleBaseDelay() {
+		return this.loginThrottleBaseDelay;
+	}
+
+	@Nonnull
+	public Duration getLoginThrottleMaximumDelay() {
+		return this.loginThrottleMaximumDelay;
+	}
+
+	@Nonnull
+	public Integer getPurchaseWorkerConcurrency() {
+		return this.purchaseWorkerConcurrency;
+	}
+
+	@Nonnull
+	public Integer getPurchaseOutboxBatchSize() {
+		return this.purchaseOutboxBatchSize;
+	}
+
+	@Nonnull
+	public Duration getPurchaseOutboxPollInterval() {
+		return this.purchaseOutboxPollInterval;
+	}
+
+	@Nonnull
+	public Duration getPurchaseOutboxLeaseDuration() {
+		return this.purchaseOutboxLeaseDuration;
+	}
+
+	@Nonnull
+	public Integer getPurchaseOutboxMaximumAttempts() {
+		return this.purchaseOutboxMaximumAttempts;
+	}
+
+	@Nonnull
+	public Duration getPurchaseOutboxRetryBaseDelay() {
+		return this.purchaseOutboxRetryBaseDelay;
+	}
+
+	@Nonnull
+	public Integer getCreditCardProcessorMaximumConcurrentCalls() {
+		return this.creditCardProcessorMaximumConcurrentCalls;
+	}
+
+	@Nonnull
+	public Duration getCreditCardProcessorBulkheadTimeout() {
+		return this.creditCardProcessorBulkheadTimeout;
+	}
+
+	@Nonnull
+	public Duration getCreditCardProcessorCallTimeout() {
+		return this.creditCardProcessorCallTimeout;
+	}
+
+	@Nonnull
+	public Duration getCreditCardProcessorSlowCallThreshold() {
+		return this.creditCardProcessorSlowCallThreshold;
+	}
+
+	@Nonnull
+	public Integer getCreditCardProcessorSlidingWindowSize() {
+		return this.creditCardProcessorSlidingWindowSize;
+	}
+
+	@Nonnull
+	public Integer getCreditCardProcessorMinimumCalls() {
+		return this.creditCardProcessorMinimumCalls;
+	}
+
+	@Nonnull
+	public Double getCreditCardProcessorFailureRateThreshold() {
+		return this.creditCardProcessorFailureRateThreshold;
+	}
+
+	@Nonnull
+	public Double getCreditCardProcessorSlowCallRateThreshold() {
+		return this.creditCardProcessorSlowCallRateThreshold;
+	}
+
+	@Nonnull
+	public Duration getCreditCardProcessorOpenDuration() {
+		return this.creditCardProcessorOpenDuration;
+	}
+
+	@Nonnull
+	public Integer getPurchaseIdempotencyKeyCacheMaximumSize() {
+		return this.purchaseIdempotencyKeyCacheMaximumSize;
+	}
+
+	@Nonnull
+	public Duration getPurchaseIdempotencyKeyTimeToLive() {
+		return this.purchaseIdempotencyKeyTimeToLive;
+	}
+
+	@Nonnull
+	public Duration getPurchaseIdempotencyKeyLeaseDuration() {
+		return this.purchaseIdempotencyKeyLeaseDuration;
+	}
+
+	@Nonnull
+	public Integer getCheckoutMaximumQuantity() {
+		return this.checkoutMaximumQuantity;
+	}
+
+	@Nonnull
+	public Integer getStockReservationStripeCount() {
+		return this.stockReservationStripeCount;
+	}
+
+	@Nonnull
+	public Duration getStockReconciliationInterval() {
+		return this.stockReconciliationInterval;
+	}
+
+	@Nonnull
+	public Boolean getPurchaseGroupCommitEnabled() {
+		return this.purchaseGroupCommitEnabled;
+	}
+
+	@Nonnull
+	public Integer getPurchaseGroupCommitMaximumBatchSize() {
+		return this.purchaseGroupCommitMaximumBatchSize;
+	}
+
+	@Nonnull
+	public Duration getPurchaseGroupCommitMaximumDelay() {
+		return this.purchaseGroupCommitMaximumDelay;
+	}
+
+	@Nonnull
+	public Integer getConnectionPoolMinimumSize() {
+		return this.connectionPoolMinimumSize;
+	}
+
+	@Nonnull
+	public Integer getConnectionPoolMaximumSize() {
+		return this.connectionPoolMaximumSize;
+	}
+
+	@Nonnull
+	public Duration getConnectionPoolAcquisitionTimeout() {
+		return this.connectionPoolAcquisitionTimeout;
+	}
+
+	@Nonnull
+	public Duration getConnectionPoolValidationInterval() {
+		return this.connectionPoolValidationInterval;
+	}
+
+	@Nonnull
+	public Optional<Duration> getConnectionPoolLeakDetectionThreshold() {
+		return Optional.ofNullable(this.connectionPoolLeakDetectionThreshold);
+	}
+
+	@Nonnull
+	public Integer getConnectionPoolStatementCacheSize() {
+		return this.connectionPoolStatementCacheSize;
+	}
+
+	@Nonnull
+	public Integer getToyPageDefaultLimit() {
+		return this.toyPageDefaultLimit;
+	}
+
+	@Nonnull
+	public Integer getToyPageMaximumLimit() {
+		return this.toyPageMaximumLimit;
+	}
+
+	@Nonnull
+	public Double getToySearchMinimumSimilarity() {
+		return this.toySearchMinimumSimilarity;
+	}
+
+	@Nonnull
+	public Integer getTrustedProxyCount() {
+		return this.trustedProxyCount;
+	}
 }
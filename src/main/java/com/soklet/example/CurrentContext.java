@@ -17,7 +17,9 @@
 package com.soklet.example;
 
 import com.soklet.core.Request;
+import com.soklet.example.model.auth.AccountPrincipal;
 import com.soklet.example.model.db.Account;
+import com.soklet.example.util.TransactionPlanRegistry.TransactionPlan;
 import org.slf4j.MDC;
 
 import javax.annotation.Nonnull;
@@ -29,6 +31,7 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
@@ -48,11 +51,21 @@ public class CurrentContext {
 	@Nullable
 	private final Request request;
 	@Nullable
-	private final Account account;
+	private final AccountPrincipal accountPrincipal;
+	@Nullable
+	private final Supplier<Optional<Account>> accountSupplier;
+	@Nullable
+	private volatile Account account;
+	@Nonnull
+	private volatile Boolean accountResolved;
 	@Nonnull
 	private final Locale locale;
 	@Nonnull
 	private final ZoneId timeZone;
+	@Nullable
+	private final TransactionPlan transactionPlan;
+	@Nonnull
+	private final Integer trustedProxyCount;
 
 	@Nonnull
 	public static CurrentContext get() {
@@ -70,6 +83,15 @@ public class CurrentContext {
 		return currentContext;
 	}
 
+	// For shared code that might run outside of any scope, e.g. on a background thread
+	@Nonnull
+	public static Optional<CurrentContext> getIfPresent() {
+		if (!CURRENT_CONTEXT_STACK_SCOPED_VALUE.isBound())
+			return Optional.empty();
+
+		return Optional.ofNullable(CURRENT_CONTEXT_STACK_SCOPED_VALUE.get().peek());
+	}
+
 	@NotThreadSafe
 	public static class Builder {
 		@Nullable
@@ -80,6 +102,14 @@ public class CurrentContext {
 		private Request request;
 		@Nullable
 		private Account account;
+		@Nullable
+		private AccountPrincipal accountPrincipal;
+		@Nullable
+		private Supplier<Optional<Account>> accountSupplier;
+		@Nullable
+		private TransactionPlan transactionPlan;
+		@Nullable
+		private Integer trustedProxyCount;
 
 		private Builder() {}
 
@@ -107,6 +137,33 @@ public class CurrentContext {
 			return this;
 		}
 
+		// Use when only the principal is known up front; the full account is fetched via the supplier if someone asks for it
+		@Nonnull
+		public Builder accountPrincipal(@Nullable AccountPrincipal accountPrincipal) {
+			this.accountPrincipal = accountPrincipal;
+			return this;
+		}
+
+		@Nonnull
+		public Builder accountSupplier(@Nullable Supplier<Optional<Account>> accountSupplier) {
+			this.accountSupplier = accountSupplier;
+			return this;
+		}
+
+		// How the current resource method's database work should be run, see TransactionPolicy
+		@Nonnull
+		public Builder transactionPlan(@Nullable TransactionPlan transactionPlan) {
+			this.transactionPlan = transactionPlan;
+			return this;
+		}
+
+		// How many reverse proxies in front of us append to X-Forwarded-For, see Configuration
+		@Nonnull
+		public Builder trustedProxyCount(@Nullable Integer trustedProxyCount) {
+			this.trustedProxyCount = trustedProxyCount;
+			return this;
+		}
+
 		@Nonnull
 		public CurrentContext build() {
 			return new CurrentContext(this);
@@ -134,8 +191,13 @@ public class CurrentContext {
 
 		this.request = builder.request;
 		this.account = builder.account;
+		this.accountResolved = builder.account != null || builder.accountSupplier == null;
+		this.accountSupplier = builder.accountSupplier;
+		this.accountPrincipal = determineAccountPrincipal(builder);
 		this.timeZone = determineTimeZone(builder);
 		this.locale = determineLocale(builder);
+		this.transactionPlan = builder.transactionPlan;
+		this.trustedProxyCount = builder.trustedProxyCount == null ? 0 : builder.trustedProxyCount;
 	}
 
 	public void run(@Nonnull Runnable runnable) {
@@ -165,8 +227,43 @@ public class CurrentContext {
 		return Optional.ofNullable(this.request);
 	}
 
+	// Each trusted proxy appends the address it received the request from to X-Forwarded-For, so with N of them
+	// the client is the Nth entry from the right.  Entries further left came from the client itself and can't be trusted
+	@Nonnull
+	public Optional<String> getClientIpAddress() {
+		if (this.request == null || this.trustedProxyCount == 0)
+			return Optional.empty();
+
+		String forwardedFor = this.request.getHeader("X-Forwarded-For").orElse(null);
+
+		if (forwardedFor == null)
+			return Optional.empty();
+
+		String[] forwardedForAddresses = forwardedFor.split(",");
+
+		// Fewer entries than proxies means the request didn't come through all of them, so we can't say who sent it
+		if (forwardedForAddresses.length < this.trustedProxyCount)
+			return Optional.empty();
+
+		String clientIpAddress = forwardedForAddresses[forwardedForAddresses.length - this.trustedProxyCount].trim();
+
+		return clientIpAddress.length() == 0 ? Optional.empty() : Optional.of(clientIpAddress);
+	}
+
+	@Nonnull
+	public Optional<AccountPrincipal> getAccountPrincipal() {
+		return Optional.ofNullable(this.accountPrincipal);
+	}
+
+	// Prefer getAccountPrincipal() where possible: this may cost a cache or database lookup the first time it's called
 	@Nonnull
 	public Optional<Account> getAccount() {
+		if (!this.accountResolved) {
+			// Racing callers may both hit the supplier, which is harmless
+			this.account = this.accountSupplier.get().orElse(null);
+			this.accountResolved = true;
+		}
+
 		return Optional.ofNullable(this.account);
 	}
 
@@ -180,14 +277,19 @@ public class CurrentContext {
 		return this.locale;
 	}
 
+	@Nonnull
+	public Optional<TransactionPlan> getTransactionPlan() {
+		return Optional.ofNullable(this.transactionPlan);
+	}
+
 	@Nonnull
 	protected String determineLoggingDescription() {
 		CurrentContext currentContext = get();
 		Request request = currentContext.getRequest().orElse(null);
-		Account account = currentContext.getAccount().orElse(null);
+		AccountPrincipal accountPrincipal = currentContext.getAccountPrincipal().orElse(null);
 
 		String requestDescription = request == null ? "background thread" : request.getId().toString();
-		String accountDescription = account == null ? "unauthenticated" : account.name();
+		String accountDescription = accountPrincipal == null ? "unauthenticated" : accountPrincipal.name();
 
 		return format("%s (%s)", requestDescription, accountDescription);
 	}
@@ -216,10 +318,10 @@ public class CurrentContext {
 		}
 
 		// Next, if there's a signed-in account, use their configured locale
-		Account account = builder.account;
+		AccountPrincipal accountPrincipal = determineAccountPrincipal(builder);
 
-		if (account != null)
-			return account.locale();
+		if (accountPrincipal != null)
+			return accountPrincipal.locale();
 
 		// If that didn't work, and we're in the context of a web request, try its Accept-Language header
 		if (request != null && request.getLocales().size() > 0)
@@ -253,12 +355,22 @@ public class CurrentContext {
 		}
 
 		// Next, if there's a signed-in account, use their configured timezone
-		Account account = builder.account;
+		AccountPrincipal accountPrincipal = determineAccountPrincipal(builder);
 
-		if (account != null)
-			return account.timeZone();
+		if (accountPrincipal != null)
+			return accountPrincipal.timeZone();
 
 		// Still not sure?  Fall back to a safe default
 		return Configuration.getDefaultTimeZone();
 	}
+
+	@Nullable
+	protected AccountPrincipal determineAccountPrincipal(@Nonnull Builder builder) {
+		requireNonNull(builder);
+
+		if (builder.accountPrincipal != null)
+			return builder.accountPrincipal;
+
+		return builder.account == null ? null : AccountPrincipal.fromAccount(builder.account);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.annotation;
+
+import com.pyranid.TransactionIsolation;
+
+import javax.annotation.Nonnull;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Controls how a resource method is wrapped in a database transaction.
+ * <p>
+ * Resource methods without this annotation run inside of a single read-write transaction.
+ * Routes that never touch the database should use {@link TransactionMode#NONE}, and routes that only read should use
+ * {@link TransactionMode#READ_ONLY}, so they don't pay for transaction setup and commit.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface TransactionPolicy {
+	@Nonnull TransactionMode value() default TransactionMode.READ_WRITE;
+
+	// Only applies to READ_WRITE, since the other modes don't open a transaction
+	@Nonnull TransactionIsolation isolation() default TransactionIsolation.DEFAULT;
+
+	// Applied to every statement the resource method runs; 0 means no timeout
+	int statementTimeoutSeconds() default 0;
+
+	enum TransactionMode {
+		// The whole resource method runs in one transaction that commits on success and rolls back on exception
+		READ_WRITE,
+		// No transaction is opened, and statements run on read-only connections, so any attempted write fails.
+		// Each statement sees its own snapshot; use READ_WRITE if several reads must be consistent with each other
+		READ_ONLY,
+		// No transaction is opened for the resource method; it manages its own (if any).
+		// Use this for work that talks to slow external systems, so connections aren't held while we wait
+		NONE
+	}
+}
\ No newline at end of file
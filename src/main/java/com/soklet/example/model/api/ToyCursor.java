@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.model.api;
+
+import com.soklet.example.util.HmacSigner;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Position in the toy catalog's sort order, i.e. the last toy a client has already seen.
+ * <p>
+ * Clients get these as opaque strings of the form {@code <payload>.<signature>}, signed the same way as account JWTs.
+ * Keyset pagination trusts the position it's handed, so an unsigned cursor would let callers probe arbitrary positions.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record ToyCursor(
+		@Nonnull String name,
+		@Nonnull UUID toyId
+) {
+	@Nonnull
+	private static final ConcurrentHashMap<PrivateKey, HmacSigner> HMAC_SIGNERS_BY_PRIVATE_KEY;
+	@Nonnull
+	private static final Base64.Encoder BASE64_URL_ENCODER;
+	@Nonnull
+	private static final Base64.Decoder BASE64_URL_DECODER;
+	// String form of a UUID is always 36 characters, so the name simply follows it
+	@Nonnull
+	private static final Integer TOY_ID_LENGTH;
+
+	static {
+		HMAC_SIGNERS_BY_PRIVATE_KEY = new ConcurrentHashMap<>();
+		BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+		BASE64_URL_DECODER = Base64.getUrlDecoder();
+		TOY_ID_LENGTH = 36;
+	}
+
+	public ToyCursor {
+		requireNonNull(name);
+		requireNonNull(toyId);
+	}
+
+	@Nonnull
+	public String toStringRepresentation(@Nonnull PrivateKey privateKey) {
+		requireNonNull(privateKey);
+
+		byte[] encodedPayload = BASE64_URL_ENCODER.encode((toyId() + name()).getBytes(StandardCharsets.UTF_8));
+
+		// Assemble <payload>.<signature> in a single buffer
+		byte[] cursor = new byte[encodedPayload.length + 1 + HmacSigner.ENCODED_SIGNATURE_LENGTH];
+		System.arraycopy(encodedPayload, 0, cursor, 0, encodedPayload.length);
+		cursor[encodedPayload.length] = '.';
+
+		hmacSignerFor(privateKey).signAsBase64Url(cursor, 0, encodedPayload.length, cursor, encodedPayload.length + 1);
+
+		return new String(cursor, StandardCharsets.US_ASCII);
+	}
+
+	// Empty if the cursor is malformed or wasn't signed by us
+	@Nonnull
+	public static Optional<ToyCursor> fromStringRepresentation(@Nonnull String string,
+																														 @Nonnull PrivateKey privateKey) {
+		requireNonNull(string);
+		requireNonNull(privateKey);
+
+		String trimmed = string.trim();
+		int dotIndex = trimmed.indexOf('.');
+
+		if (dotIndex < 1 || dotIndex == trimmed.length() - 1 || trimmed.indexOf('.', dotIndex + 1) != -1)
+			return Optional.empty();
+
+		// Cursors are pure ASCII; anything else can't have a valid signature anyway
+		byte[] cursor = trimmed.getBytes(StandardCharsets.ISO_8859_1);
+
+		if (!hmacSignerFor(privateKey).verifyBase64Url(cursor, 0, dotIndex, cursor, dotIndex + 1, cursor.length - dotIndex - 1))
+			return Optional.empty();
+
+		try {
+			String payload = new String(BASE64_URL_DECODER.decode(trimmed.substring(0, dotIndex)), StandardCharsets.UTF_8);
+
+			if (payload.length() < TOY_ID_LENGTH)
+				return Optional.empty();
+
+			return Optional.of(new ToyCursor(payload.substring(TOY_ID_LENGTH), UUID.fromString(payload.substring(0, TOY_ID_LENGTH))));
+		} catch (IllegalArgumentException ignored) {
+			return Optional.empty();
+		}
+	}
+
+	@Nonnull
+	private static HmacSigner hmacSignerFor(@Nonnull PrivateKey privateKey) {
+		requireNonNull(privateKey);
+		return HMAC_SIGNERS_BY_PRIVATE_KEY.computeIfAbsent(privateKey, HmacSigner::forPrivateKey);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.api.request;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.YearMonth;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Purchases every toy in a cart with a single credit card charge.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record ToyCheckoutRequest(
+		@Nullable UUID accountId,
+		@Nullable List<CheckoutItem> items,
+		@Nullable String creditCardNumber,
+		@Nullable YearMonth creditCardExpiration
+) {
+	@Nonnull
+	public ToyCheckoutRequest withAccountId(@Nullable UUID accountId) {
+		return new ToyCheckoutRequest(accountId, items, creditCardNumber, creditCardExpiration);
+	}
+
+	public record CheckoutItem(
+			@Nullable UUID toyId,
+			@Nullable Integer quantity
+	) {}
+}
\ No newline at end of file
@@ -27,5 +27,13 @@ import java.util.Currency;
 public record ToyCreateRequest(
 		@Nullable String name,
 		@Nullable BigDecimal price,
-		@Nullable Currency currency
-) {}
\ No newline at end of file
+		@Nullable Currency currency,
+		@Nullable Integer stockQuantity
+) {
+	// Stock isn't tracked
+	public ToyCreateRequest(@Nullable String name,
+													@Nullable BigDecimal price,
+													@Nullable Currency currency) {
+		this(name, price, currency, null);
+	}
+}
\ No newline at end of file
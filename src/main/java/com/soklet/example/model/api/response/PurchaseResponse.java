@@ -21,6 +21,7 @@ import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import com.soklet.example.CurrentContext;
 import com.soklet.example.model.db.Purchase;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
 import com.soklet.example.model.db.Role.RoleId;
 
 import javax.annotation.Nonnull;
@@ -51,6 +52,8 @@ public class PurchaseResponse {
 	@Nonnull
 	private final UUID toyId;
 	@Nonnull
+	private final PurchaseStatusId purchaseStatusId;
+	@Nonnull
 	private final BigDecimal price;
 	@Nonnull
 	private final String priceDescription;
@@ -88,9 +91,10 @@ public class PurchaseResponse {
 		NumberFormat currencyFormatter = NumberFormat.getCurrencyInstance(currentLocale);
 		currencyFormatter.setCurrency(purchase.currency());
 
-		this.purchaseId = purchase.toyId();
+		this.purchaseId = purchase.purchaseId();
 		this.accountId = purchase.accountId();
 		this.toyId = purchase.toyId();
+		this.purchaseStatusId = purchase.purchaseStatusId();
 		this.price = purchase.price();
 		this.priceDescription = currencyFormatter.format(purchase.price());
 		this.currencyCode = purchase.currency().getCurrencyCode();
@@ -103,7 +107,7 @@ public class PurchaseResponse {
 				.format(purchase.createdAt());
 
 		// Only expose credit card transaction ID if caller is admin or employee
-		RoleId roleId = currentContext.getAccount().get().roleId();
+		RoleId roleId = currentContext.getAccountPrincipal().get().roleId();
 
 		if (Set.of(RoleId.ADMINISTRATOR, RoleId.EMPLOYEE).contains(roleId))
 			this.creditCardTransactionId = purchase.creditCardTransactionId();
@@ -126,6 +130,11 @@ public class PurchaseResponse {
 		return this.toyId;
 	}
 
+	@Nonnull
+	public PurchaseStatusId getPurchaseStatusId() {
+		return this.purchaseStatusId;
+	}
+
 	@Nonnull
 	public BigDecimal getPrice() {
 		return this.price;
@@ -21,8 +21,10 @@ import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 import com.soklet.example.CurrentContext;
 import com.soklet.example.model.db.Toy;
+import com.soklet.example.service.StockReservationEngine;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.math.BigDecimal;
 import java.text.NumberFormat;
@@ -31,6 +33,7 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.Locale;
+import java.util.Optional;
 import java.util.UUID;
 
 import static java.util.Objects.requireNonNull;
@@ -54,6 +57,8 @@ public class ToyResponse {
 	private final String currencySymbol;
 	@Nonnull
 	private final String currencyDescription;
+	@Nullable
+	private final Integer stockQuantity;
 	@Nonnull
 	private final Instant createdAt;
 	@Nonnull
@@ -67,8 +72,10 @@ public class ToyResponse {
 
 	@AssistedInject
 	public ToyResponse(@Nonnull Provider<CurrentContext> currentContextProvider,
+										 @Nonnull StockReservationEngine stockReservationEngine,
 										 @Assisted @Nonnull Toy toy) {
 		requireNonNull(currentContextProvider);
+		requireNonNull(stockReservationEngine);
 		requireNonNull(toy);
 
 		// Tailor our response based on current context
@@ -87,6 +94,8 @@ public class ToyResponse {
 		this.currencyCode = toy.currency().getCurrencyCode();
 		this.currencySymbol = toy.currency().getSymbol(currentLocale);
 		this.currencyDescription = toy.currency().getDisplayName(currentLocale);
+		// The database value can lag behind purchases, so ask the reservation engine
+		this.stockQuantity = stockReservationEngine.findAvailableQuantity(toy).orElse(null);
 		this.createdAt = toy.createdAt();
 		this.createdAtDescription = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM, FormatStyle.SHORT)
 				.localizedBy(currentLocale)
@@ -129,6 +138,11 @@ public class ToyResponse {
 		return this.currencyDescription;
 	}
 
+	@Nonnull
+	public Optional<Integer> getStockQuantity() {
+		return Optional.ofNullable(this.stockQuantity);
+	}
+
 	@Nonnull
 	public Instant getCreatedAt() {
 		return this.createdAt;
@@ -16,25 +16,19 @@
 
 package com.soklet.example.model.auth;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.soklet.example.model.db.Account;
+import com.soklet.example.model.db.Role.RoleId;
 
 import javax.annotation.Nonnull;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import javax.annotation.Nullable;
 import java.security.PrivateKey;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.HashSet;
-import java.util.Map;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 
-import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -42,13 +36,38 @@ import static java.util.Objects.requireNonNull;
  */
 public record AccountJwt(
 		@Nonnull UUID accountId,
-		@Nonnull Instant expiration
+		@Nonnull Instant expiration,
+		@Nullable Claims claims
 ) {
+	// Bump this whenever the shape of Claims changes.
+	// Tokens carrying any other version are still honored, but their claims are ignored in favor of the database
 	@Nonnull
-	private static final Gson GSON;
+	public static final Integer CLAIMS_VERSION;
 
 	static {
-		GSON = new GsonBuilder().disableHtmlEscaping().create();
+		CLAIMS_VERSION = 1;
+	}
+
+	// Signed account data that lets us identify the caller without touching the database.
+	// Trade-off: changes to these fields are not visible until the caller's token is reissued
+	public record Claims(
+			@Nonnull RoleId roleId,
+			@Nonnull String name,
+			@Nonnull Locale locale,
+			@Nonnull ZoneId timeZone
+	) {
+		public Claims {
+			requireNonNull(roleId);
+			requireNonNull(name);
+			requireNonNull(locale);
+			requireNonNull(timeZone);
+		}
+
+		@Nonnull
+		public static Claims fromAccount(@Nonnull Account account) {
+			requireNonNull(account);
+			return new Claims(account.roleId(), account.name(), account.locale(), account.timeZone());
+		}
 	}
 
 	public AccountJwt {
@@ -56,6 +75,21 @@ public record AccountJwt(
 		requireNonNull(expiration);
 	}
 
+	public AccountJwt(@Nonnull UUID accountId,
+										@Nonnull Instant expiration) {
+		this(accountId, expiration, null);
+	}
+
+	@Nonnull
+	public Optional<AccountPrincipal> toAccountPrincipal() {
+		Claims claims = claims();
+
+		if (claims == null)
+			return Optional.empty();
+
+		return Optional.of(new AccountPrincipal(accountId(), claims.roleId(), claims.name(), claims.locale(), claims.timeZone()));
+	}
+
 	@Nonnull
 	public Boolean isExpired() {
 		return expiration().isBefore(Instant.now());
@@ -64,7 +98,7 @@ public record AccountJwt(
 	@Nonnull
 	public String toStringRepresentation(@Nonnull PrivateKey privateKey) {
 		requireNonNull(privateKey);
-		return AccountJwt.toStringRepresentation(accountId(), expiration(), privateKey);
+		return AccountJwt.toStringRepresentation(accountId(), expiration(), claims(), privateKey);
 	}
 
 	// Parsing an AccountJwt can have many outcomes.
@@ -88,52 +122,7 @@ public record AccountJwt(
 		requireNonNull(string);
 		requireNonNull(privateKey);
 
-		String[] components = string.trim().split("\\.");
-
-		if (components.length != 3)
-			return new AccountJwtResult.InvalidStructure();
-
-		String encodedHeader = components[0];
-		String encodedPayload = components[1];
-		String encodedSignature = components[2];
-
-		String decodedPayload = new String(base64Decode(encodedPayload), StandardCharsets.UTF_8);
-		byte[] decodedSignature = base64Decode(encodedSignature);
-		byte[] expectedSignature = hmacSha256(format("%s.%s", encodedHeader, encodedPayload), privateKey);
-
-		if (!Arrays.equals(expectedSignature, decodedSignature))
-			return new AccountJwtResult.SignatureMismatch();
-
-		Map<String, Object> decodedPayloadAsMap = GSON.fromJson(decodedPayload, Map.class);
-		String subAsString = (String) decodedPayloadAsMap.get("sub");
-		Number iatAsNumber = (Number) decodedPayloadAsMap.get("iat");
-
-		Set<String> missingClaims = new HashSet<>();
-
-		if (subAsString == null)
-			missingClaims.add("sub");
-		if (iatAsNumber == null)
-			missingClaims.add("iat");
-
-		// Validation
-		if (missingClaims.size() > 0)
-			return new AccountJwtResult.MissingClaims(missingClaims);
-
-		try {
-			UUID.fromString(subAsString);
-		} catch (IllegalArgumentException ignored) {
-			return new AccountJwtResult.InvalidClaims(Set.of("sub"));
-		}
-
-		UUID sub = UUID.fromString(subAsString);
-		Instant iat = Instant.ofEpochMilli(iatAsNumber.longValue());
-
-		AccountJwt accountJwt = new AccountJwt(sub, iat);
-
-		if (iat.isBefore(Instant.now()))
-			return new AccountJwtResult.Expired(accountJwt, iat);
-
-		return new AccountJwtResult.Succeeded(accountJwt);
+		return AccountJwtCodec.forPrivateKey(privateKey).decode(string);
 	}
 
 	@Nonnull
@@ -144,50 +133,18 @@ public record AccountJwt(
 		requireNonNull(expiration);
 		requireNonNull(privateKey);
 
-		String header = GSON.toJson(Map.of(
-				"alg", "HS256",
-				"typ", "JWT"
-		));
-
-		String payload = GSON.toJson(Map.of(
-				"sub", accountId,
-				"iat", expiration.toEpochMilli()
-		));
-
-		String encodedHeader = base64Encode(header.getBytes(StandardCharsets.UTF_8));
-		String encodedPayload = base64Encode(payload.getBytes(StandardCharsets.UTF_8));
-
-		byte[] signature = hmacSha256(format("%s.%s", encodedHeader, encodedPayload), privateKey);
-		String encodedSignature = base64Encode(signature);
-
-		return format("%s.%s.%s", encodedHeader, encodedPayload, encodedSignature);
+		return toStringRepresentation(accountId, expiration, null, privateKey);
 	}
 
 	@Nonnull
-	private static byte[] hmacSha256(@Nonnull String string,
-																	 @Nonnull PrivateKey privateKey) {
-		requireNonNull(string);
+	public static String toStringRepresentation(@Nonnull UUID accountId,
+																							@Nonnull Instant expiration,
+																							@Nullable Claims claims,
+																							@Nonnull PrivateKey privateKey) {
+		requireNonNull(accountId);
+		requireNonNull(expiration);
 		requireNonNull(privateKey);
 
-		try {
-			Mac hmacSha256 = Mac.getInstance("HmacSHA256");
-			SecretKeySpec secretKeySpec = new SecretKeySpec(privateKey.getEncoded(), privateKey.getAlgorithm());
-			hmacSha256.init(secretKeySpec);
-			return hmacSha256.doFinal(string.getBytes(StandardCharsets.UTF_8));
-		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
-			throw new IllegalArgumentException(e);
-		}
-	}
-
-	@Nonnull
-	private static String base64Encode(@Nonnull byte[] bytes) {
-		requireNonNull(bytes);
-		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
-	}
-
-	@Nonnull
-	private static byte[] base64Decode(@Nonnull String string) {
-		requireNonNull(string);
-		return Base64.getUrlDecoder().decode(string);
+		return AccountJwtCodec.forPrivateKey(privateKey).encode(new AccountJwt(accountId, expiration, claims));
 	}
 }
\ No newline at end of file
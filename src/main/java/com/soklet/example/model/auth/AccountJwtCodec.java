@@ -0,0 +1,554 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.auth;
+
+import com.soklet.example.model.auth.AccountJwt.AccountJwtResult;
+import com.soklet.example.model.auth.AccountJwt.Claims;
+import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.util.HmacSigner;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivateKey;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Encodes and decodes {@link AccountJwt} string representations.
+ * <p>
+ * This sits on the authentication hot path, so it avoids general-purpose machinery: the header is a constant,
+ * payloads are written and read by hand (we control both ends and only ever see a flat JSON object),
+ * and HMAC work is delegated to a {@link HmacSigner} whose key is prepared once.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class AccountJwtCodec {
+	@Nonnull
+	private static final ConcurrentHashMap<PrivateKey, AccountJwtCodec> CODECS_BY_PRIVATE_KEY;
+	@Nonnull
+	private static final byte[] ENCODED_HEADER;
+	@Nonnull
+	private static final Base64.Encoder BASE64_URL_ENCODER;
+	@Nonnull
+	private static final Base64.Decoder BASE64_URL_DECODER;
+
+	static {
+		CODECS_BY_PRIVATE_KEY = new ConcurrentHashMap<>();
+		BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+		BASE64_URL_DECODER = Base64.getUrlDecoder();
+		// Every token has the same header, so encode it exactly once
+		ENCODED_HEADER = BASE64_URL_ENCODER.encode("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Nonnull
+	private final HmacSigner hmacSigner;
+
+	@Nonnull
+	public static AccountJwtCodec forPrivateKey(@Nonnull PrivateKey privateKey) {
+		requireNonNull(privateKey);
+		return CODECS_BY_PRIVATE_KEY.computeIfAbsent(privateKey, (ignored) -> new AccountJwtCodec(HmacSigner.forPrivateKey(privateKey)));
+	}
+
+	public AccountJwtCodec(@Nonnull HmacSigner hmacSigner) {
+		requireNonNull(hmacSigner);
+		this.hmacSigner = hmacSigner;
+	}
+
+	@Nonnull
+	public String encode(@Nonnull AccountJwt accountJwt) {
+		requireNonNull(accountJwt);
+
+		byte[] encodedPayload = BASE64_URL_ENCODER.encode(toPayloadJson(accountJwt).getBytes(StandardCharsets.UTF_8));
+		int signedLength = ENCODED_HEADER.length + 1 + encodedPayload.length;
+
+		// Assemble <header>.<payload>.<signature> in a single buffer
+		byte[] token = new byte[signedLength + 1 + HmacSigner.ENCODED_SIGNATURE_LENGTH];
+		System.arraycopy(ENCODED_HEADER, 0, token, 0, ENCODED_HEADER.length);
+		token[ENCODED_HEADER.length] = '.';
+		System.arraycopy(encodedPayload, 0, token, ENCODED_HEADER.length + 1, encodedPayload.length);
+		token[signedLength] = '.';
+
+		getHmacSigner().signAsBase64Url(token, 0, signedLength, token, signedLength + 1);
+
+		return new String(token, StandardCharsets.US_ASCII);
+	}
+
+	@Nonnull
+	public AccountJwtResult decode(@Nonnull String string) {
+		requireNonNull(string);
+
+		String trimmed = string.trim();
+		int firstDotIndex = trimmed.indexOf('.');
+		int secondDotIndex = firstDotIndex == -1 ? -1 : trimmed.indexOf('.', firstDotIndex + 1);
+
+		if (firstDotIndex < 1 || secondDotIndex == -1 || secondDotIndex == firstDotIndex + 1
+				|| secondDotIndex == trimmed.length() - 1 || trimmed.indexOf('.', secondDotIndex + 1) != -1)
+			return new AccountJwtResult.InvalidStructure();
+
+		// Tokens are pure ASCII; anything else can't have a valid signature anyway
+		byte[] token = trimmed.getBytes(StandardCharsets.ISO_8859_1);
+
+		if (!getHmacSigner().verifyBase64Url(token, 0, secondDotIndex, token, secondDotIndex + 1, token.length - secondDotIndex - 1))
+			return new AccountJwtResult.SignatureMismatch();
+
+		Payload payload;
+
+		try {
+			ByteBuffer payloadBytes = BASE64_URL_DECODER.decode(ByteBuffer.wrap(token, firstDotIndex + 1, secondDotIndex - firstDotIndex - 1));
+			payload = new PayloadReader(payloadBytes.array(), payloadBytes.arrayOffset() + payloadBytes.position(), payloadBytes.arrayOffset() + payloadBytes.limit()).read();
+		} catch (IllegalArgumentException ignored) {
+			return new AccountJwtResult.InvalidStructure();
+		}
+
+		return toAccountJwtResult(payload);
+	}
+
+	@Nonnull
+	protected AccountJwtResult toAccountJwtResult(@Nonnull Payload payload) {
+		requireNonNull(payload);
+
+		Set<String> missingClaims = new HashSet<>();
+
+		if (payload.sub == null)
+			missingClaims.add("sub");
+		if (payload.iat == null)
+			missingClaims.add("iat");
+
+		if (missingClaims.size() > 0)
+			return new AccountJwtResult.MissingClaims(missingClaims);
+
+		if (!(payload.sub instanceof String subAsString))
+			return new AccountJwtResult.InvalidClaims(Set.of("sub"));
+
+		if (!(payload.iat instanceof Long iat))
+			return new AccountJwtResult.InvalidClaims(Set.of("iat"));
+
+		UUID sub;
+
+		try {
+			sub = UUID.fromString(subAsString);
+		} catch (IllegalArgumentException ignored) {
+			return new AccountJwtResult.InvalidClaims(Set.of("sub"));
+		}
+
+		Instant expiration = Instant.ofEpochMilli(iat);
+		Claims claims = null;
+
+		// Only trust claims whose schema we understand
+		if (payload.ver instanceof Long ver && ver.intValue() == AccountJwt.CLAIMS_VERSION) {
+			if (payload.role == null)
+				missingClaims.add("role");
+			if (payload.name == null)
+				missingClaims.add("name");
+			if (payload.locale == null)
+				missingClaims.add("locale");
+			if (payload.tz == null)
+				missingClaims.add("tz");
+
+			if (missingClaims.size() > 0)
+				return new AccountJwtResult.MissingClaims(missingClaims);
+
+			Set<String> invalidClaims = new HashSet<>();
+			RoleId roleId = null;
+			ZoneId timeZone = null;
+
+			try {
+				if (payload.role instanceof String roleAsString)
+					roleId = RoleId.valueOf(roleAsString);
+				else
+					invalidClaims.add("role");
+			} catch (IllegalArgumentException ignored) {
+				invalidClaims.add("role");
+			}
+
+			try {
+				if (payload.tz instanceof String tzAsString)
+					timeZone = ZoneId.of(tzAsString);
+				else
+					invalidClaims.add("tz");
+			} catch (DateTimeException ignored) {
+				invalidClaims.add("tz");
+			}
+
+			if (!(payload.name instanceof String))
+				invalidClaims.add("name");
+			if (!(payload.locale instanceof String))
+				invalidClaims.add("locale");
+
+			if (invalidClaims.size() > 0)
+				return new AccountJwtResult.InvalidClaims(invalidClaims);
+
+			claims = new Claims(roleId, (String) payload.name, Locale.forLanguageTag((String) payload.locale), timeZone);
+		}
+
+		AccountJwt accountJwt = new AccountJwt(sub, expiration, claims);
+
+		if (expiration.isBefore(Instant.now()))
+			return new AccountJwtResult.Expired(accountJwt, expiration);
+
+		return new AccountJwtResult.Succeeded(accountJwt);
+	}
+
+	@Nonnull
+	protected String toPayloadJson(@Nonnull AccountJwt accountJwt) {
+		requireNonNull(accountJwt);
+
+		StringBuilder json = new StringBuilder(192);
+		json.append("{\"sub\":\"").append(accountJwt.accountId()).append("\",\"iat\":").append(accountJwt.expiration().toEpochMilli());
+
+		Claims claims = accountJwt.claims();
+
+		if (claims != null) {
+			json.append(",\"ver\":").append(AccountJwt.CLAIMS_VERSION);
+			json.append(",\"role\":");
+			appendJsonString(json, claims.roleId().name());
+			json.append(",\"name\":");
+			appendJsonString(json, claims.name());
+			json.append(",\"locale\":");
+			appendJsonString(json, claims.locale().toLanguageTag());
+			json.append(",\"tz\":");
+			appendJsonString(json, claims.timeZone().getId());
+		}
+
+		return json.append('}').toString();
+	}
+
+	protected void appendJsonString(@Nonnull StringBuilder json,
+																	@Nonnull String string) {
+		requireNonNull(json);
+		requireNonNull(string);
+
+		json.append('"');
+
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+
+			switch (c) {
+				case '"' -> json.append("\\\"");
+				case '\\' -> json.append("\\\\");
+				case '\n' -> json.append("\\n");
+				case '\r' -> json.append("\\r");
+				case '\t' -> json.append("\\t");
+				default -> {
+					if (c < 0x20)
+						json.append(String.format("\\u%04x", (int) c));
+					else
+						json.append(c);
+				}
+			}
+		}
+
+		json.append('"');
+	}
+
+	// The only payload fields we care about.  Values are String, Long, Boolean, or null if absent/JSON null.
+	// Anything else (nested objects, fractional numbers) is surfaced as a placeholder object so it fails type checks
+	@NotThreadSafe
+	protected static class Payload {
+		@Nullable
+		protected Object sub;
+		@Nullable
+		protected Object iat;
+		@Nullable
+		protected Object ver;
+		@Nullable
+		protected Object role;
+		@Nullable
+		protected Object name;
+		@Nullable
+		protected Object locale;
+		@Nullable
+		protected Object tz;
+	}
+
+	// Minimal reader for a flat JSON object, operating directly on the decoded payload bytes.
+	// Throws IllegalArgumentException on malformed input
+	@NotThreadSafe
+	protected static class PayloadReader {
+		@Nonnull
+		private static final Object UNSUPPORTED_VALUE;
+
+		static {
+			UNSUPPORTED_VALUE = new Object();
+		}
+
+		@Nonnull
+		private final byte[] bytes;
+		private final int end;
+		private int position;
+
+		public PayloadReader(@Nonnull byte[] bytes,
+												 int offset,
+												 int end) {
+			requireNonNull(bytes);
+
+			this.bytes = bytes;
+			this.position = offset;
+			this.end = end;
+		}
+
+		@Nonnull
+		public Payload read() {
+			Payload payload = new Payload();
+
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+
+			// An empty object still has to be the whole payload, so it falls through to the trailing content check
+			if (peek() == '}')
+				this.position++;
+			else
+				readMembers(payload);
+
+			skipWhitespace();
+
+			if (this.position != this.end)
+				throw new IllegalArgumentException("Unexpected trailing content");
+
+			return payload;
+		}
+
+		protected void readMembers(@Nonnull Payload payload) {
+			requireNonNull(payload);
+
+			while (true) {
+				skipWhitespace();
+				String key = readString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				Object value = readValue();
+
+				switch (key) {
+					case "sub" -> payload.sub = value;
+					case "iat" -> payload.iat = value;
+					case "ver" -> payload.ver = value;
+					case "role" -> payload.role = value;
+					case "name" -> payload.name = value;
+					case "locale" -> payload.locale = value;
+					case "tz" -> payload.tz = value;
+					default -> {
+						// Ignore claims we don't know about
+					}
+				}
+
+				skipWhitespace();
+				byte b = next();
+
+				if (b == '}')
+					return;
+				if (b != ',')
+					throw new IllegalArgumentException("Expected ',' or '}'");
+			}
+		}
+
+		@Nullable
+		protected Object readValue() {
+			byte b = peek();
+
+			if (b == '"')
+				return readString();
+			if (b == '-' || (b >= '0' && b <= '9'))
+				return readNumber();
+			if (b == '{' || b == '[') {
+				skipNested();
+				return UNSUPPORTED_VALUE;
+			}
+			if (matches("true"))
+				return Boolean.TRUE;
+			if (matches("false"))
+				return Boolean.FALSE;
+			if (matches("null"))
+				return null;
+
+			throw new IllegalArgumentException("Unexpected value");
+		}
+
+		@Nonnull
+		protected Object readNumber() {
+			int start = this.position;
+
+			while (this.position < this.end) {
+				byte b = this.bytes[this.position];
+
+				if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')
+					this.position++;
+				else
+					break;
+			}
+
+			String number = new String(this.bytes, start, this.position - start, StandardCharsets.US_ASCII);
+
+			try {
+				return Long.parseLong(number);
+			} catch (NumberFormatException e) {
+				// Generic JSON libraries are free to write integral values like 1.0 or 1e3
+				double numberAsDouble = Double.parseDouble(number);
+
+				if (numberAsDouble == Math.rint(numberAsDouble) && !Double.isInfinite(numberAsDouble))
+					return (long) numberAsDouble;
+
+				return UNSUPPORTED_VALUE;
+			}
+		}
+
+		@Nonnull
+		protected String readString() {
+			expect('"');
+
+			int start = this.position;
+			boolean escaped = false;
+
+			while (true) {
+				byte b = next();
+
+				if (b == '"')
+					break;
+
+				if (b == '\\') {
+					escaped = true;
+					next();
+				}
+			}
+
+			// Common case: no escapes, so we can decode the bytes directly
+			String raw = new String(this.bytes, start, this.position - start - 1, StandardCharsets.UTF_8);
+			return escaped ? unescape(raw) : raw;
+		}
+
+		@Nonnull
+		protected String unescape(@Nonnull String raw) {
+			requireNonNull(raw);
+
+			StringBuilder unescaped = new StringBuilder(raw.length());
+
+			for (int i = 0; i < raw.length(); i++) {
+				char c = raw.charAt(i);
+
+				if (c != '\\') {
+					unescaped.append(c);
+					continue;
+				}
+
+				char escape = raw.charAt(++i);
+
+				switch (escape) {
+					case '"', '\\', '/' -> unescaped.append(escape);
+					case 'b' -> unescaped.append('\b');
+					case 'f' -> unescaped.append('\f');
+					case 'n' -> unescaped.append('\n');
+					case 'r' -> unescaped.append('\r');
+					case 't' -> unescaped.append('\t');
+					case 'u' -> {
+						if (i + 4 >= raw.length())
+							throw new IllegalArgumentException("Truncated unicode escape");
+
+						unescaped.append((char) Integer.parseInt(raw, i + 1, i + 5, 16));
+						i += 4;
+					}
+					default -> throw new IllegalArgumentException("Illegal escape");
+				}
+			}
+
+			return unescaped.toString();
+		}
+
+		protected void skipNested() {
+			int depth = 0;
+
+			do {
+				byte b = peek();
+
+				if (b == '"') {
+					readString();
+					continue;
+				}
+
+				if (b == '{' || b == '[')
+					depth++;
+				else if (b == '}' || b == ']')
+					depth--;
+
+				this.position++;
+			} while (depth > 0);
+		}
+
+		@Nonnull
+		protected Boolean matches(@Nonnull String literal) {
+			requireNonNull(literal);
+
+			if (this.position + literal.length() > this.end)
+				return false;
+
+			for (int i = 0; i < literal.length(); i++)
+				if (this.bytes[this.position + i] != literal.charAt(i))
+					return false;
+
+			this.position += literal.length();
+			return true;
+		}
+
+		protected void skipWhitespace() {
+			while (this.position < this.end) {
+				byte b = this.bytes[this.position];
+
+				if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+					this.position++;
+				else
+					break;
+			}
+		}
+
+		protected void expect(char c) {
+			if (next() != c)
+				throw new IllegalArgumentException("Expected '" + c + "'");
+		}
+
+		protected byte peek() {
+			if (this.position >= this.end)
+				throw new IllegalArgumentException("Unexpected end of payload");
+
+			return this.bytes[this.position];
+		}
+
+		protected byte next() {
+			byte b = peek();
+			this.position++;
+			return b;
+		}
+	}
+
+	@Nonnull
+	protected HmacSigner getHmacSigner() {
+		return this.hmacSigner;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.auth;
+
+import com.soklet.example.model.db.Account;
+import com.soklet.example.model.db.Role.RoleId;
+
+import javax.annotation.Nonnull;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The authenticated caller: just enough to make authorization and localization decisions
+ * without loading the full {@link Account}.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record AccountPrincipal(
+		@Nonnull UUID accountId,
+		@Nonnull RoleId roleId,
+		@Nonnull String name,
+		@Nonnull Locale locale,
+		@Nonnull ZoneId timeZone
+) {
+	public AccountPrincipal {
+		requireNonNull(accountId);
+		requireNonNull(roleId);
+		requireNonNull(name);
+		requireNonNull(locale);
+		requireNonNull(timeZone);
+	}
+
+	@Nonnull
+	public static AccountPrincipal fromAccount(@Nonnull Account account) {
+		requireNonNull(account);
+		return new AccountPrincipal(account.accountId(), account.roleId(), account.name(), account.locale(), account.timeZone());
+	}
+}
\ No newline at end of file
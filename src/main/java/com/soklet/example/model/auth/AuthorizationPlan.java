@@ -0,0 +1,100 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.auth;
+
+import com.soklet.example.annotation.AuthorizationRequired;
+import com.soklet.example.model.db.Role.RoleId;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Precompiled form of a resource method's {@link AuthorizationRequired} annotation.
+ * <p>
+ * Permitted roles are stored as a bitmask of {@link RoleId} ordinals so checks on the request path are a single bit test.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record AuthorizationPlan(
+		@Nonnull Boolean authenticationRequired,
+		@Nonnull Set<RoleId> permittedRoleIds,
+		@Nonnull Integer permittedRoleIdMask
+) {
+	@Nonnull
+	public static final AuthorizationPlan UNRESTRICTED;
+	@Nonnull
+	private static final Integer ALL_ROLE_IDS_MASK;
+
+	static {
+		ALL_ROLE_IDS_MASK = toMask(EnumSet.allOf(RoleId.class));
+		UNRESTRICTED = new AuthorizationPlan(false, Collections.unmodifiableSet(EnumSet.allOf(RoleId.class)), ALL_ROLE_IDS_MASK);
+	}
+
+	public AuthorizationPlan {
+		requireNonNull(authenticationRequired);
+		requireNonNull(permittedRoleIds);
+		requireNonNull(permittedRoleIdMask);
+	}
+
+	@Nonnull
+	public static AuthorizationPlan forMethod(@Nonnull Method method) {
+		requireNonNull(method);
+
+		AuthorizationRequired authorizationRequired = method.getAnnotation(AuthorizationRequired.class);
+
+		if (authorizationRequired == null)
+			return UNRESTRICTED;
+
+		RoleId[] roleIds = authorizationRequired.value();
+
+		// No roles specified means any authenticated account is permitted
+		EnumSet<RoleId> permittedRoleIds = roleIds == null || roleIds.length == 0
+				? EnumSet.allOf(RoleId.class)
+				: EnumSet.noneOf(RoleId.class);
+
+		if (roleIds != null)
+			Collections.addAll(permittedRoleIds, roleIds);
+
+		return new AuthorizationPlan(true, Collections.unmodifiableSet(permittedRoleIds), toMask(permittedRoleIds));
+	}
+
+	@Nonnull
+	public Boolean permits(@Nullable RoleId roleId) {
+		if (roleId == null)
+			return !authenticationRequired();
+
+		return (permittedRoleIdMask() & (1 << roleId.ordinal())) != 0;
+	}
+
+	@Nonnull
+	private static Integer toMask(@Nonnull Set<RoleId> roleIds) {
+		requireNonNull(roleIds);
+
+		int mask = 0;
+
+		for (RoleId roleId : roleIds)
+			mask |= 1 << roleId.ordinal();
+
+		return mask;
+	}
+}
\ No newline at end of file
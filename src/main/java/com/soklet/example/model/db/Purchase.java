@@ -17,8 +17,10 @@
 package com.soklet.example.model.db;
 
 import com.pyranid.DatabaseColumn;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.Currency;
@@ -31,20 +33,23 @@ import static java.util.Objects.requireNonNull;
  */
 public record Purchase(
 		@Nonnull UUID purchaseId,
+		@Nonnull UUID chargeId,
 		@Nonnull UUID accountId,
 		@Nonnull UUID toyId,
+		@Nonnull PurchaseStatusId purchaseStatusId,
 		@Nonnull BigDecimal price,
 		@Nonnull Currency currency,
-		@Nonnull @DatabaseColumn("credit_card_txn_id") String creditCardTransactionId,
+		@Nullable @DatabaseColumn("credit_card_txn_id") String creditCardTransactionId,
 		@Nonnull Instant createdAt
 ) {
 	public Purchase {
 		requireNonNull(purchaseId);
+		requireNonNull(chargeId);
 		requireNonNull(accountId);
 		requireNonNull(toyId);
+		requireNonNull(purchaseStatusId);
 		requireNonNull(price);
 		requireNonNull(currency);
-		requireNonNull(creditCardTransactionId);
 		requireNonNull(createdAt);
 	}
 }
\ No newline at end of file
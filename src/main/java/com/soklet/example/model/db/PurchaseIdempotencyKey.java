@@ -0,0 +1,54 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.db;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A client-supplied key that ties retries of a purchase request to the outcome of the first attempt.
+ * <p>
+ * Until the first attempt finishes, {@code purchaseId} and {@code responseStatusCode} are null.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record PurchaseIdempotencyKey(
+		@Nonnull UUID accountId,
+		@Nonnull String idempotencyKey,
+		@Nonnull String requestFingerprint,
+		@Nullable UUID purchaseId,
+		@Nullable Integer responseStatusCode,
+		@Nonnull Instant expiresAt,
+		@Nonnull Instant createdAt
+) {
+	public PurchaseIdempotencyKey {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+		requireNonNull(requestFingerprint);
+		requireNonNull(expiresAt);
+		requireNonNull(createdAt);
+	}
+
+	@Nonnull
+	public Boolean isCompleted() {
+		return purchaseId() != null;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.db;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Currency;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A credit card charge that is waiting to be made (or retried) by a payment worker, on behalf of every purchase that shares its charge ID.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record PurchaseOutbox(
+		@Nonnull UUID chargeId,
+		@Nonnull String encryptedCreditCardNumber,
+		@Nonnull BigDecimal amount,
+		@Nonnull Currency currency,
+		@Nonnull Boolean chargeAttempted,
+		@Nonnull Integer attemptCount,
+		@Nonnull Instant nextAttemptAt,
+		@Nullable Instant lockedUntil,
+		@Nullable String lastError,
+		@Nonnull Instant createdAt
+) {
+	public PurchaseOutbox {
+		requireNonNull(chargeId);
+		requireNonNull(encryptedCreditCardNumber);
+		requireNonNull(amount);
+		requireNonNull(currency);
+		requireNonNull(chargeAttempted);
+		requireNonNull(attemptCount);
+		requireNonNull(nextAttemptAt);
+		requireNonNull(createdAt);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.model.db;
+
+import javax.annotation.Nonnull;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+public record PurchaseStatus(
+		@Nonnull PurchaseStatusId purchaseStatusId,
+		@Nonnull String description
+) {
+	public enum PurchaseStatusId {
+		// Recorded, but the credit card has not been successfully charged (yet)
+		PENDING,
+		// Credit card was charged
+		COMPLETED,
+		// Credit card charge failed; the purchase will never complete
+		VOIDED,
+		// We gave up trying to learn whether the credit card was charged; someone has to check with the processor
+		NEEDS_REVIEW
+	}
+
+	public PurchaseStatus {
+		requireNonNull(purchaseStatusId);
+		requireNonNull(description);
+	}
+}
\ No newline at end of file
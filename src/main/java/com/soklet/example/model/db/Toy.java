@@ -17,6 +17,7 @@
 package com.soklet.example.model.db;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.Currency;
@@ -32,6 +33,7 @@ public record Toy(
 		@Nonnull String name,
 		@Nonnull BigDecimal price,
 		@Nonnull Currency currency,
+		@Nullable Integer stockQuantity,
 		@Nonnull Instant createdAt
 ) {
 	public Toy {
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.resource;
+
+import com.google.inject.Inject;
+import com.soklet.annotation.GET;
+import com.soklet.annotation.Resource;
+import com.soklet.example.annotation.AuthorizationRequired;
+import com.soklet.example.annotation.TransactionPolicy;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
+import com.soklet.example.model.auth.AccountJwt;
+import com.soklet.example.model.auth.AuthorizationPlan;
+import com.soklet.example.model.db.Account;
+import com.soklet.example.model.db.PurchaseIdempotencyKey;
+import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.service.PurchaseWriter;
+import com.soklet.example.service.PurchaseWriter.PurchaseWriterMetrics;
+import com.soklet.example.service.StockReservationEngine;
+import com.soklet.example.service.StockReservationEngine.StockReservationEngineMetrics;
+import com.soklet.example.util.AuthorizationPlanRegistry;
+import com.soklet.example.util.ConnectionPool;
+import com.soklet.example.util.ConnectionPool.ConnectionPoolMetrics;
+import com.soklet.example.util.ExpiringCache;
+import com.soklet.example.util.ExpiringCache.ExpiringCacheMetrics;
+import com.soklet.example.util.LoginThrottler;
+import com.soklet.example.util.LoginThrottler.LoginThrottlerMetrics;
+import com.soklet.example.util.PasswordHashingPool;
+import com.soklet.example.util.PasswordHashingPool.PasswordHashingPoolMetrics;
+import com.soklet.example.util.ResilientCreditCardProcessor;
+import com.soklet.example.util.ResilientCreditCardProcessor.ResilientCreditCardProcessorMetrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.Method;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Operational endpoints for verifying how the system is configured at runtime.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@Resource
+@ThreadSafe
+public class AdminResource {
+	@Nonnull
+	private final AuthorizationPlanRegistry authorizationPlanRegistry;
+	@Nonnull
+	private final PasswordHashingPool passwordHashingPool;
+	@Nonnull
+	private final LoginThrottler loginThrottler;
+	@Nonnull
+	private final ResilientCreditCardProcessor resilientCreditCardProcessor;
+	@Nonnull
+	private final StockReservationEngine stockReservationEngine;
+	@Nonnull
+	private final PurchaseWriter purchaseWriter;
+	@Nonnull
+	private final ConnectionPool connectionPool;
+	@Nonnull
+	private final ExpiringCache<String, AccountJwt> accountJwtCache;
+	@Nonnull
+	private final ExpiringCache<UUID, Account> accountCache;
+	@Nonnull
+	private final ExpiringCache<String, PurchaseIdempotencyKey> purchaseIdempotencyKeyCache;
+
+	@Inject
+	public AdminResource(@Nonnull AuthorizationPlanRegistry authorizationPlanRegistry,
+											 @Nonnull PasswordHashingPool passwordHashingPool,
+											 @Nonnull LoginThrottler loginThrottler,
+											 @Nonnull ResilientCreditCardProcessor resilientCreditCardProcessor,
+											 @Nonnull StockReservationEngine stockReservationEngine,
+											 @Nonnull PurchaseWriter purchaseWriter,
+											 @Nonnull ConnectionPool connectionPool,
+											 @Nonnull ExpiringCache<String, AccountJwt> accountJwtCache,
+											 @Nonnull ExpiringCache<UUID, Account> accountCache,
+											 @Nonnull ExpiringCache<String, PurchaseIdempotencyKey> purchaseIdempotencyKeyCache) {
+		requireNonNull(authorizationPlanRegistry);
+		requireNonNull(passwordHashingPool);
+		requireNonNull(loginThrottler);
+		requireNonNull(resilientCreditCardProcessor);
+		requireNonNull(stockReservationEngine);
+		requireNonNull(purchaseWriter);
+		requireNonNull(connectionPool);
+		requireNonNull(accountJwtCache);
+		requireNonNull(accountCache);
+		requireNonNull(purchaseIdempotencyKeyCache);
+
+		this.authorizationPlanRegistry = authorizationPlanRegistry;
+		this.passwordHashingPool = passwordHashingPool;
+		this.loginThrottler = loginThrottler;
+		this.resilientCreditCardProcessor = resilientCreditCardProcessor;
+		this.stockReservationEngine = stockReservationEngine;
+		this.purchaseWriter = purchaseWriter;
+		this.connectionPool = connectionPool;
+		this.accountJwtCache = accountJwtCache;
+		this.accountCache = accountCache;
+		this.purchaseIdempotencyKeyCache = purchaseIdempotencyKeyCache;
+	}
+
+	@Nonnull
+	@AuthorizationRequired(RoleId.ADMINISTRATOR)
+	@TransactionPolicy(TransactionMode.NONE)
+	@GET("/admin/metrics")
+	public MetricsResponseHolder metrics() {
+		return new MetricsResponseHolder(getPasswordHashingPool().getMetrics(), getLoginThrottler().getMetrics(),
+				getResilientCreditCardProcessor().getMetrics(), getStockReservationEngine().getMetrics(),
+				getPurchaseWriter().getMetrics(), getConnectionPool().getMetrics(), getAccountJwtCache().getMetrics(),
+				getAccountCache().getMetrics(), getPurchaseIdempotencyKeyCache().getMetrics());
+	}
+
+	public record MetricsResponseHolder(
+			@Nonnull PasswordHashingPoolMetrics passwordHashingPool,
+			@Nonnull LoginThrottlerMetrics loginThrottler,
+			@Nonnull ResilientCreditCardProcessorMetrics creditCardProcessor,
+			@Nonnull StockReservationEngineMetrics stockReservationEngine,
+			@Nonnull PurchaseWriterMetrics purchaseWriter,
+			@Nonnull ConnectionPoolMetrics connectionPool,
+			@Nonnull ExpiringCacheMetrics accountJwtCache,
+			@Nonnull ExpiringCacheMetrics accountCache,
+			@Nonnull ExpiringCacheMetrics purchaseIdempotencyKeyCache
+	) {
+		public MetricsResponseHolder {
+			requireNonNull(passwordHashingPool);
+			requireNonNull(loginThrottler);
+			requireNonNull(creditCardProcessor);
+			requireNonNull(stockReservationEngine);
+			requireNonNull(purchaseWriter);
+			requireNonNull(connectionPool);
+			requireNonNull(accountJwtCache);
+			requireNonNull(accountCache);
+			requireNonNull(purchaseIdempotencyKeyCache);
+		}
+	}
+
+	@Nonnull
+	@AuthorizationRequired(RoleId.ADMINISTRATOR)
+	@TransactionPolicy(TransactionMode.NONE)
+	@GET("/admin/authorization-plans")
+	public AuthorizationPlansResponseHolder authorizationPlans() {
+		List<AuthorizationPlanResponse> authorizationPlans = getAuthorizationPlanRegistry().getAuthorizationPlans().entrySet().stream()
+				.map(entry -> {
+					Method method = entry.getKey();
+					AuthorizationPlan authorizationPlan = entry.getValue();
+
+					return new AuthorizationPlanResponse(format("%s.%s", method.getDeclaringClass().getSimpleName(), method.getName()),
+							authorizationPlan.authenticationRequired(), authorizationPlan.permittedRoleIds(), authorizationPlan.permittedRoleIdMask());
+				})
+				.sorted(Comparator.comparing(AuthorizationPlanResponse::resourceMethod))
+				.toList();
+
+		return new AuthorizationPlansResponseHolder(authorizationPlans);
+	}
+
+	public record AuthorizationPlansResponseHolder(
+			@Nonnull List<AuthorizationPlanResponse> authorizationPlans
+	) {
+		public AuthorizationPlansResponseHolder {
+			requireNonNull(authorizationPlans);
+		}
+	}
+
+	public record AuthorizationPlanResponse(
+			@Nonnull String resourceMethod,
+			@Nonnull Boolean authenticationRequired,
+			@Nonnull Set<RoleId> permittedRoleIds,
+			@Nonnull Integer permittedRoleIdMask
+	) {
+		public AuthorizationPlanResponse {
+			requireNonNull(resourceMethod);
+			requireNonNull(authenticationRequired);
+			requireNonNull(permittedRoleIds);
+			requireNonNull(permittedRoleIdMask);
+		}
+	}
+
+	@Nonnull
+	protected AuthorizationPlanRegistry getAuthorizationPlanRegistry() {
+		return this.authorizationPlanRegistry;
+	}
+
+	@Nonnull
+	protected PasswordHashingPool getPasswordHashingPool() {
+		return this.passwordHashingPool;
+	}
+
+	@Nonnull
+	protected LoginThrottler getLoginThrottler() {
+		return this.loginThrottler;
+	}
+
+	@Nonnull
+	protected ResilientCreditCardProcessor getResilientCreditCardProcessor() {
+		return this.resilientCreditCardProcessor;
+	}
+
+	@Nonnull
+	protected StockReservationEngine getStockReservationEngine() {
+		return this.stockReservationEngine;
+	}
+
+	@Nonnull
+	protected PurchaseWriter getPurchaseWriter() {
+		return this.purchaseWriter;
+	}
+
+	@Nonnull
+	protected ConnectionPool getConnectionPool() {
+		return this.connectionPool;
+	}
+
+	@Nonnull
+	protected ExpiringCache<String, AccountJwt> getAccountJwtCache() {
+		return this.accountJwtCache;
+	}
+
+	@Nonnull
+	protected ExpiringCache<UUID, Account> getAccountCache() {
+		return this.accountCache;
+	}
+
+	@Nonnull
+	protected ExpiringCache<String, PurchaseIdempotencyKey> getPurchaseIdempotencyKeyCache() {
+		return this.purchaseIdempotencyKeyCache;
+	}
+}
\ No newline at end of file
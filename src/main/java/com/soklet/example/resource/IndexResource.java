@@ -21,6 +21,8 @@ import com.lokalized.Strings;
 import com.soklet.annotation.GET;
 import com.soklet.annotation.Resource;
 import com.soklet.core.MarshaledResponse;
+import com.soklet.example.annotation.TransactionPolicy;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
@@ -46,6 +48,7 @@ public class IndexResource {
 	}
 
 	@Nonnull
+	@TransactionPolicy(TransactionMode.NONE)
 	@GET("/")
 	public MarshaledResponse helloWorld() {
 		// By returning MarshaledResponse instead of Response,
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.resource;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.soklet.annotation.GET;
+import com.soklet.annotation.PathParameter;
+import com.soklet.annotation.Resource;
+import com.soklet.example.CurrentContext;
+import com.soklet.example.annotation.AuthorizationRequired;
+import com.soklet.example.annotation.TransactionPolicy;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
+import com.soklet.example.exception.NotFoundException;
+import com.soklet.example.model.api.response.PurchaseResponse.PurchaseResponseFactory;
+import com.soklet.example.model.auth.AccountPrincipal;
+import com.soklet.example.model.db.Purchase;
+import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.resource.ToyResource.PurchaseResponseHolder;
+import com.soklet.example.service.ToyService;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@Resource
+@ThreadSafe
+public class PurchaseResource {
+	@Nonnull
+	private final ToyService toyService;
+	@Nonnull
+	private final PurchaseResponseFactory purchaseResponseFactory;
+	@Nonnull
+	private final Provider<CurrentContext> currentContextProvider;
+
+	@Inject
+	public PurchaseResource(@Nonnull ToyService toyService,
+													@Nonnull PurchaseResponseFactory purchaseResponseFactory,
+													@Nonnull Provider<CurrentContext> currentContextProvider) {
+		requireNonNull(toyService);
+		requireNonNull(purchaseResponseFactory);
+		requireNonNull(currentContextProvider);
+
+		this.toyService = toyService;
+		this.purchaseResponseFactory = purchaseResponseFactory;
+		this.currentContextProvider = currentContextProvider;
+	}
+
+	// Clients poll here for the outcome of purchases that were accepted asynchronously
+	@Nonnull
+	@AuthorizationRequired
+	@TransactionPolicy(TransactionMode.READ_ONLY)
+	@GET("/purchases/{purchaseId}")
+	public PurchaseResponseHolder purchase(@Nonnull @PathParameter UUID purchaseId) {
+		requireNonNull(purchaseId);
+
+		Purchase purchase = getToyService().findPurchaseById(purchaseId).orElse(null);
+
+		if (purchase == null)
+			throw new NotFoundException();
+
+		// Customers can only see their own purchases.
+		// Say "not found" rather than "forbidden" so purchase IDs can't be probed
+		AccountPrincipal accountPrincipal = getCurrentContext().getAccountPrincipal().get();
+		boolean staff = accountPrincipal.roleId() == RoleId.ADMINISTRATOR || accountPrincipal.roleId() == RoleId.EMPLOYEE;
+
+		if (!staff && !purchase.accountId().equals(accountPrincipal.accountId()))
+			throw new NotFoundException();
+
+		return new PurchaseResponseHolder(getPurchaseResponseFactory().create(purchase));
+	}
+
+	@Nonnull
+	protected ToyService getToyService() {
+		return this.toyService;
+	}
+
+	@Nonnull
+	protected PurchaseResponseFactory getPurchaseResponseFactory() {
+		return this.purchaseResponseFactory;
+	}
+
+	@Nonnull
+	protected CurrentContext getCurrentContext() {
+		return this.currentContextProvider.get();
+	}
+}
\ No newline at end of file
@@ -26,9 +26,14 @@ import com.soklet.annotation.PathParameter;
 import com.soklet.annotation.QueryParameter;
 import com.soklet.annotation.RequestBody;
 import com.soklet.annotation.Resource;
+import com.soklet.core.Request;
+import com.soklet.core.Response;
 import com.soklet.example.CurrentContext;
 import com.soklet.example.annotation.AuthorizationRequired;
+import com.soklet.example.annotation.TransactionPolicy;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
 import com.soklet.example.exception.NotFoundException;
+import com.soklet.example.model.api.request.ToyCheckoutRequest;
 import com.soklet.example.model.api.request.ToyCreateRequest;
 import com.soklet.example.model.api.request.ToyPurchaseRequest;
 import com.soklet.example.model.api.request.ToyUpdateRequest;
@@ -36,19 +41,27 @@ import com.soklet.example.model.api.response.PurchaseResponse;
 import com.soklet.example.model.api.response.PurchaseResponse.PurchaseResponseFactory;
 import com.soklet.example.model.api.response.ToyResponse;
 import com.soklet.example.model.api.response.ToyResponse.ToyResponseFactory;
-import com.soklet.example.model.db.Account;
+import com.soklet.example.model.auth.AccountPrincipal;
 import com.soklet.example.model.db.Purchase;
 import com.soklet.example.model.db.Role.RoleId;
 import com.soklet.example.model.db.Toy;
+import com.soklet.example.service.PurchaseIdempotencyService;
+import com.soklet.example.service.PurchaseIdempotencyService.PurchaseResult;
 import com.soklet.example.service.ToyService;
+import com.soklet.example.service.ToyService.ToyPage;
+import com.soklet.example.service.ToyService.ToySearchMode;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -60,6 +73,8 @@ public class ToyResource {
 	@Nonnull
 	private final ToyService toyService;
 	@Nonnull
+	private final PurchaseIdempotencyService purchaseIdempotencyService;
+	@Nonnull
 	private final ToyResponseFactory toyResponseFactory;
 	@Nonnull
 	private final PurchaseResponseFactory purchaseResponseFactory;
@@ -68,15 +83,18 @@ public class ToyResource {
 
 	@Inject
 	public ToyResource(@Nonnull ToyService toyService,
+										 @Nonnull PurchaseIdempotencyService purchaseIdempotencyService,
 										 @Nonnull ToyResponseFactory toyResponseFactory,
 										 @Nonnull PurchaseResponseFactory purchaseResponseFactory,
 										 @Nonnull Provider<CurrentContext> currentContextProvider) {
 		requireNonNull(toyService);
+		requireNonNull(purchaseIdempotencyService);
 		requireNonNull(toyResponseFactory);
 		requireNonNull(purchaseResponseFactory);
 		requireNonNull(currentContextProvider);
 
 		this.toyService = toyService;
+		this.purchaseIdempotencyService = purchaseIdempotencyService;
 		this.toyResponseFactory = toyResponseFactory;
 		this.purchaseResponseFactory = purchaseResponseFactory;
 		this.currentContextProvider = currentContextProvider;
@@ -84,17 +102,23 @@ public class ToyResource {
 
 	@Nonnull
 	@AuthorizationRequired
+	@TransactionPolicy(TransactionMode.READ_ONLY)
 	@GET("/toys")
-	public ToysResponseHolder findToys(@Nullable @QueryParameter(optional = true) String query) {
-		List<Toy> toys = query == null ? getToyService().findToys() : getToyService().searchToys(query);
+	public ToysResponseHolder findToys(@Nullable @QueryParameter(optional = true) String query,
+																		 @Nullable @QueryParameter(optional = true) String cursor,
+																		 @Nullable @QueryParameter(optional = true) Integer limit,
+																		 @Nullable @QueryParameter(optional = true) ToySearchMode searchMode) {
+		ToyPage toyPage = getToyService().findToyPage(query, cursor, limit, searchMode);
 
-		return new ToysResponseHolder(toys.stream()
+		return new ToysResponseHolder(toyPage.toys().stream()
 				.map(toy -> getToyResponseFactory().create(toy))
-				.collect(Collectors.toList()));
+				.collect(Collectors.toList()), toyPage.nextCursor());
 	}
 
+	// Absent nextCursor means this is the last page
 	public record ToysResponseHolder(
-			@Nonnull List<ToyResponse> toys
+			@Nonnull List<ToyResponse> toys,
+			@Nullable String nextCursor
 	) {
 		public ToysResponseHolder {
 			requireNonNull(toys);
@@ -156,11 +180,14 @@ public class ToyResource {
 		getToyService().deleteToy(toyId);
 	}
 
+	// Charging a card is slow, so don't hold a connection or transaction open for the duration of this method.
+	// ToyService manages its own short transactions around the charge
 	@Nonnull
 	@AuthorizationRequired
+	@TransactionPolicy(TransactionMode.NONE)
 	@POST("/toys/{toyId}/purchase")
-	public PurchaseResponseHolder purchaseToy(@Nonnull @PathParameter UUID toyId,
-																						@Nonnull @RequestBody ToyPurchaseRequest request) {
+	public Response purchaseToy(@Nonnull @PathParameter UUID toyId,
+															@Nonnull @RequestBody ToyPurchaseRequest request) {
 		requireNonNull(toyId);
 		requireNonNull(request);
 
@@ -170,13 +197,47 @@ public class ToyResource {
 			throw new NotFoundException();
 
 		// Apply path parameter and current account to the record
-		Account account = getCurrentContext().getAccount().get();
-		request = request.withToyId(toyId).withAccountId(account.accountId());
+		AccountPrincipal accountPrincipal = getCurrentContext().getAccountPrincipal().get();
+		ToyPurchaseRequest purchaseRequest = request.withToyId(toyId).withAccountId(accountPrincipal.accountId());
+		Boolean respondAsync = prefersRespondAsync();
+		String idempotencyKey = getCurrentContext().getRequest()
+				.flatMap(currentRequest -> currentRequest.getHeader("Idempotency-Key"))
+				.orElse(null);
+
+		// Clients that retry on timeout send an Idempotency-Key, so a retry gets the first attempt's result
+		// instead of charging the card again
+		PurchaseResult purchaseResult = idempotencyKey == null
+				? performPurchase(purchaseRequest, respondAsync)
+				: getPurchaseIdempotencyService().purchaseIdempotently(accountPrincipal.accountId(), idempotencyKey, purchaseRequest,
+				() -> performPurchase(purchaseRequest, respondAsync));
+
+		Purchase purchase = getToyService().findPurchaseById(purchaseResult.purchaseId()).get();
+		Map<String, Set<String>> headers = new LinkedHashMap<>();
+
+		if (purchaseResult.statusCode() == 202)
+			headers.put("Location", Set.of(format("/purchases/%s", purchase.purchaseId())));
+
+		if (purchaseResult.replayed())
+			headers.put("Idempotent-Replayed", Set.of("true"));
+
+		return Response.withStatusCode(purchaseResult.statusCode())
+				.headers(headers)
+				.body(new PurchaseResponseHolder(getPurchaseResponseFactory().create(purchase)))
+				.build();
+	}
+
+	@Nonnull
+	protected PurchaseResult performPurchase(@Nonnull ToyPurchaseRequest request,
+																					 @Nonnull Boolean respondAsync) {
+		requireNonNull(request);
+		requireNonNull(respondAsync);
 
-		UUID purchaseId = getToyService().purchaseToy(request);
-		Purchase purchase = getToyService().findPurchaseById(purchaseId).get();
+		// Clients can opt in to asynchronous processing (RFC 7240).
+		// We accept the purchase immediately and charge the card in the background; clients poll for the outcome
+		if (respondAsync)
+			return new PurchaseResult(getToyService().enqueuePurchaseToy(request), 202, false);
 
-		return new PurchaseResponseHolder(getPurchaseResponseFactory().create(purchase));
+		return new PurchaseResult(getToyService().purchaseToy(request), 200, false);
 	}
 
 	public record PurchaseResponseHolder(
@@ -187,11 +248,59 @@ public class ToyResource {
 		}
 	}
 
+	// Like purchasing a single toy, this manages its own short transactions around the charge
+	@Nonnull
+	@AuthorizationRequired
+	@TransactionPolicy(TransactionMode.NONE)
+	@POST("/toys/checkout")
+	public PurchasesResponseHolder checkout(@Nonnull @RequestBody ToyCheckoutRequest request) {
+		requireNonNull(request);
+
+		AccountPrincipal accountPrincipal = getCurrentContext().getAccountPrincipal().get();
+		List<UUID> purchaseIds = getToyService().checkout(request.withAccountId(accountPrincipal.accountId()));
+
+		return new PurchasesResponseHolder(getToyService().findPurchasesByIds(purchaseIds).stream()
+				.map(purchase -> getPurchaseResponseFactory().create(purchase))
+				.collect(Collectors.toList()));
+	}
+
+	public record PurchasesResponseHolder(
+			@Nonnull List<PurchaseResponse> purchases
+	) {
+		public PurchasesResponseHolder {
+			requireNonNull(purchases);
+		}
+	}
+
+	@Nonnull
+	protected Boolean prefersRespondAsync() {
+		Request request = getCurrentContext().getRequest().orElse(null);
+
+		if (request == null)
+			return false;
+
+		String prefer = request.getHeader("Prefer").orElse(null);
+
+		if (prefer == null)
+			return false;
+
+		for (String preference : prefer.split(","))
+			if (preference.trim().equalsIgnoreCase("respond-async"))
+				return true;
+
+		return false;
+	}
+
 	@Nonnull
 	protected ToyService getToyService() {
 		return this.toyService;
 	}
 
+	@Nonnull
+	protected PurchaseIdempotencyService getPurchaseIdempotencyService() {
+		return this.purchaseIdempotencyService;
+	}
+
 	@Nonnull
 	protected ToyResponseFactory getToyResponseFactory() {
 		return this.toyResponseFactory;
@@ -17,12 +17,24 @@
 package com.soklet.example.service;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.lokalized.Strings;
 import com.pyranid.Database;
+import com.pyranid.Transaction;
+import com.pyranid.TransactionResult;
+import com.soklet.example.Configuration;
+import com.soklet.example.CurrentContext;
 import com.soklet.example.exception.ApplicationException;
+import com.soklet.example.exception.ServiceUnavailableException;
 import com.soklet.example.model.api.request.AccountAuthenticateRequest;
 import com.soklet.example.model.auth.AccountJwt;
+import com.soklet.example.model.auth.AccountJwt.AccountJwtResult;
+import com.soklet.example.model.auth.AccountJwt.Claims;
+import com.soklet.example.model.auth.AccountJwt.AccountJwtResult.Succeeded;
 import com.soklet.example.model.db.Account;
+import com.soklet.example.util.ExpiringCache;
+import com.soklet.example.util.LoginThrottler;
+import com.soklet.example.util.PasswordHashingPool;
 import com.soklet.example.util.PasswordManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,14 +42,21 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -48,23 +67,53 @@ public class AccountService {
 	@Nonnull
 	private final PasswordManager passwordManager;
 	@Nonnull
+	private final PasswordHashingPool passwordHashingPool;
+	@Nonnull
 	private final Database database;
 	@Nonnull
 	private final Strings strings;
 	@Nonnull
+	private final Configuration configuration;
+	@Nonnull
+	private final ExpiringCache<String, AccountJwt> accountJwtCache;
+	@Nonnull
+	private final ExpiringCache<UUID, Account> accountCache;
+	@Nonnull
+	private final LoginThrottler loginThrottler;
+	@Nonnull
+	private final Provider<CurrentContext> currentContextProvider;
+	@Nonnull
 	private final Logger logger;
 
 	@Inject
 	public AccountService(@Nonnull PasswordManager passwordManager,
+												@Nonnull PasswordHashingPool passwordHashingPool,
 												@Nonnull Database database,
-												@Nonnull Strings strings) {
+												@Nonnull Strings strings,
+												@Nonnull Configuration configuration,
+												@Nonnull ExpiringCache<String, AccountJwt> accountJwtCache,
+												@Nonnull ExpiringCache<UUID, Account> accountCache,
+												@Nonnull LoginThrottler loginThrottler,
+												@Nonnull Provider<CurrentContext> currentContextProvider) {
 		requireNonNull(passwordManager);
+		requireNonNull(passwordHashingPool);
 		requireNonNull(database);
 		requireNonNull(strings);
+		requireNonNull(configuration);
+		requireNonNull(accountJwtCache);
+		requireNonNull(accountCache);
+		requireNonNull(loginThrottler);
+		requireNonNull(currentContextProvider);
 
 		this.passwordManager = passwordManager;
+		this.passwordHashingPool = passwordHashingPool;
 		this.database = database;
 		this.strings = strings;
+		this.configuration = configuration;
+		this.accountJwtCache = accountJwtCache;
+		this.accountCache = accountCache;
+		this.loginThrottler = loginThrottler;
+		this.currentContextProvider = currentContextProvider;
 		this.logger = LoggerFactory.getLogger(getClass());
 	}
 
@@ -73,11 +122,99 @@ public class AccountService {
 		if (accountId == null)
 			return Optional.empty();
 
-		return getDatabase().queryForObject("""
+		Account cachedAccount = getAccountCache().get(accountId).orElse(null);
+
+		if (cachedAccount != null)
+			return Optional.of(cachedAccount);
+
+		Account account = getDatabase().queryForObject("""
 				SELECT *
 				FROM account
 				WHERE account_id=?
-				""", Account.class, accountId);
+				""", Account.class, accountId).orElse(null);
+
+		if (account == null)
+			return Optional.empty();
+
+		cacheAccount(account);
+
+		return Optional.of(account);
+	}
+
+	@Nonnull
+	public Map<UUID, Account> findAccountsByIds(@Nullable Collection<UUID> accountIds) {
+		if (accountIds == null || accountIds.size() == 0)
+			return Map.of();
+
+		Map<UUID, Account> accountsById = new LinkedHashMap<>(accountIds.size());
+		List<UUID> uncachedAccountIds = new ArrayList<>(accountIds.size());
+
+		for (UUID accountId : new LinkedHashSet<>(accountIds)) {
+			if (accountId == null)
+				continue;
+
+			Account cachedAccount = getAccountCache().get(accountId).orElse(null);
+
+			if (cachedAccount == null)
+				uncachedAccountIds.add(accountId);
+			else
+				accountsById.put(accountId, cachedAccount);
+		}
+
+		if (uncachedAccountIds.size() == 0)
+			return accountsById;
+
+		// Pick up everything we don't already have in a single round trip
+		String placeholders = uncachedAccountIds.stream().map(accountId -> "?").collect(Collectors.joining(","));
+
+		List<Account> accounts = getDatabase().queryForList(format("""
+				SELECT *
+				FROM account
+				WHERE account_id IN (%s)
+				""", placeholders), Account.class, uncachedAccountIds.toArray());
+
+		for (Account account : accounts) {
+			cacheAccount(account);
+			accountsById.put(account.accountId(), account);
+		}
+
+		return accountsById;
+	}
+
+	// Anything that changes an account row must call this.
+	// We evict right away and again once the transaction finishes, so a reader can't re-cache the old row in between
+	public void invalidateCachedAccount(@Nonnull UUID accountId) {
+		requireNonNull(accountId);
+
+		getAccountCache().invalidate(accountId);
+
+		getDatabase().currentTransaction().ifPresent(transaction ->
+				transaction.addPostTransactionOperation(transactionResult -> getAccountCache().invalidate(accountId)));
+	}
+
+	protected void cacheAccount(@Nonnull Account account) {
+		requireNonNull(account);
+		getAccountCache().put(account.accountId(), account, Instant.now().plus(getConfiguration().getAccountCacheTimeToLive()));
+	}
+
+	@Nonnull
+	public AccountJwtResult verifyAccountJwt(@Nonnull String accountJwtAsString) {
+		requireNonNull(accountJwtAsString);
+
+		// Clients reuse the same token for many requests, so skip signature checking and JSON parsing if we've seen it before.
+		// The cache drops entries once their token expires, at which point we fall through and report expiration as usual
+		AccountJwt cachedAccountJwt = getAccountJwtCache().get(accountJwtAsString).orElse(null);
+
+		if (cachedAccountJwt != null)
+			return new Succeeded(cachedAccountJwt);
+
+		AccountJwtResult accountJwtResult = AccountJwt.fromStringRepresentation(accountJwtAsString, getConfiguration().getKeyPair().getPrivate());
+
+		// Only verified tokens are cached, so junk tokens can't push out good ones
+		if (accountJwtResult instanceof Succeeded(AccountJwt accountJwt))
+			getAccountJwtCache().put(accountJwtAsString, accountJwt, accountJwt.expiration());
+
+		return accountJwtResult;
 	}
 
 	@Nonnull
@@ -99,21 +236,89 @@ public class AccountService {
 					.fieldErrors(fieldErrors)
 					.build();
 
+		String normalizedEmailAddress = emailAddress.toLowerCase(Locale.US);
+		String clientIpAddress = getCurrentContext().getClientIpAddress().orElse(null);
+
+		// Turn away repeat offenders before touching the database or spending any CPU on hashing
+		Duration retryAfter = getLoginThrottler().retryAfter(normalizedEmailAddress, clientIpAddress).orElse(null);
+
+		if (retryAfter != null) {
+			long retryAfterSeconds = Math.max(1, (retryAfter.toMillis() + 999) / 1000);
+
+			throw ApplicationException.withStatusCode(429)
+					.generalError(getStrings().get("Too many failed attempts. Please try again in {{retryAfterSeconds}} seconds.",
+							Map.of("retryAfterSeconds", retryAfterSeconds)))
+					.metadata(Map.of("retryAfterSeconds", retryAfterSeconds))
+					.build();
+		}
+
 		Account account = getDatabase().executeForObject("""
 				SELECT *
 				FROM account
 				WHERE email_address=LOWER(?)
-				""", Account.class, emailAddress.toLowerCase(Locale.US)).orElse(null);
+				""", Account.class, normalizedEmailAddress).orElse(null);
+
+		// Reject if no account, or account's hashed password does not match.
+		// Verification runs on the bounded hashing pool and fails fast with a 503 if the pool is saturated
+		if (account == null || !getPasswordHashingPool().verifyPassword(password, account.password())) {
+			getLoginThrottler().recordFailure(normalizedEmailAddress, clientIpAddress);
 
-		// Reject if no account, or account's hashed password does not match
-		if (account == null || !getPasswordManager().verifyPassword(password, account.password()))
 			throw ApplicationException.withStatusCode(401)
 					.generalError(getStrings().get("Sorry, we could not authenticate you."))
 					.build();
+		}
+
+		getLoginThrottler().recordSuccess(normalizedEmailAddress);
 
-		// Generate a JWT
+		// Bring the stored hash's cost in line with what we currently want.
+		// Hashing is slow, so wait until our transaction has committed rather than holding its connection and locks meanwhile
+		if (getPasswordManager().needsRehash(account.password(), getConfiguration().getPasswordHashingRehashTolerance())) {
+			Transaction transaction = getDatabase().currentTransaction().orElse(null);
+
+			if (transaction == null)
+				rehashPassword(account, password);
+			else
+				transaction.addPostTransactionOperation(transactionResult -> {
+					if (transactionResult == TransactionResult.COMMITTED)
+						rehashPassword(account, password);
+				});
+		}
+
+		// Generate a JWT, optionally carrying enough signed account data that later requests can skip the account lookup
 		Instant expiration = Instant.now().plus(60, ChronoUnit.MINUTES);
-		return new AccountJwt(account.accountId(), expiration);
+		Claims claims = getConfiguration().getAccountJwtClaimsEnabled() ? Claims.fromAccount(account) : null;
+
+		return new AccountJwt(account.accountId(), expiration, claims);
+	}
+
+	protected void rehashPassword(@Nonnull Account account,
+																@Nonnull String plaintextPassword) {
+		requireNonNull(account);
+		requireNonNull(plaintextPassword);
+
+		String hashedPassword;
+
+		try {
+			hashedPassword = getPasswordHashingPool().hashPassword(plaintextPassword);
+		} catch (ServiceUnavailableException e) {
+			// Not worth failing a login over; we'll try again next time
+			getLogger().debug("Skipping password rehash for account ID {} because hashing is saturated", account.accountId());
+			return;
+		}
+
+		try {
+			getDatabase().execute("""
+					UPDATE account
+					SET password=?
+					WHERE account_id=?
+					""", hashedPassword, account.accountId());
+		} catch (RuntimeException e) {
+			// The login already succeeded, so don't fail it now; the old hash still works and we'll try again next time
+			getLogger().warn(format("Unable to rehash password for account ID %s", account.accountId()), e);
+			return;
+		}
+
+		invalidateCachedAccount(account.accountId());
 	}
 
 	@Nonnull
@@ -121,6 +326,11 @@ public class AccountService {
 		return this.passwordManager;
 	}
 
+	@Nonnull
+	protected PasswordHashingPool getPasswordHashingPool() {
+		return this.passwordHashingPool;
+	}
+
 	@Nonnull
 	protected Database getDatabase() {
 		return this.database;
@@ -131,6 +341,31 @@ public class AccountService {
 		return this.strings;
 	}
 
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	@Nonnull
+	protected ExpiringCache<String, AccountJwt> getAccountJwtCache() {
+		return this.accountJwtCache;
+	}
+
+	@Nonnull
+	protected ExpiringCache<UUID, Account> getAccountCache() {
+		return this.accountCache;
+	}
+
+	@Nonnull
+	protected LoginThrottler getLoginThrottler() {
+		return this.loginThrottler;
+	}
+
+	@Nonnull
+	protected CurrentContext getCurrentContext() {
+		return this.currentContextProvider.get();
+	}
+
 	@Nonnull
 	protected Logger getLogger() {
 		return this.logger;
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.service;
+
+import com.google.inject.Inject;
+import com.lokalized.Strings;
+import com.pyranid.Database;
+import com.pyranid.DatabaseException;
+import com.soklet.example.Configuration;
+import com.soklet.example.exception.ApplicationException;
+import com.soklet.example.model.api.request.ToyPurchaseRequest;
+import com.soklet.example.model.db.PurchaseIdempotencyKey;
+import com.soklet.example.service.ToyService.PurchaseOutcomeUnknownException;
+import com.soklet.example.util.ExpiringCache;
+import com.soklet.example.util.HmacSigner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Makes purchase requests that carry an {@code Idempotency-Key} header safe to retry.
+ * <p>
+ * The first request for a key reserves it in the database and performs the purchase.
+ * Concurrent duplicates on this instance wait for that result instead of starting their own, and later retries are
+ * answered from a bounded in-memory cache (or the database, on a cache miss) without charging the card again.
+ * Only successful purchases are remembered; if the first attempt fails, its reservation is released so the client can try again.
+ * The exception is a charge with an unknown outcome: its still-PENDING purchase is remembered as a 202, so retries poll
+ * that purchase while the outbox worker settles it, rather than charging the card again.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class PurchaseIdempotencyService {
+	@Nonnull
+	private static final Integer MAXIMUM_IDEMPOTENCY_KEY_LENGTH;
+
+	@Nonnull
+	private final Database database;
+	@Nonnull
+	private final Configuration configuration;
+	@Nonnull
+	private final Strings strings;
+	@Nonnull
+	private final ExpiringCache<String, PurchaseIdempotencyKey> purchaseIdempotencyKeyCache;
+	@Nonnull
+	private final ConcurrentHashMap<String, CompletableFuture<PurchaseIdempotencyKey>> inFlightPurchasesByCacheKey;
+	@Nonnull
+	private final HmacSigner fingerprintSigner;
+	@Nonnull
+	private final Logger logger;
+
+	static {
+		MAXIMUM_IDEMPOTENCY_KEY_LENGTH = 255;
+	}
+
+	@Inject
+	public PurchaseIdempotencyService(@Nonnull Database database,
+																		@Nonnull Configuration configuration,
+																		@Nonnull Strings strings,
+																		@Nonnull ExpiringCache<String, PurchaseIdempotencyKey> purchaseIdempotencyKeyCache) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+		requireNonNull(strings);
+		requireNonNull(purchaseIdempotencyKeyCache);
+
+		this.database = database;
+		this.configuration = configuration;
+		this.strings = strings;
+		this.purchaseIdempotencyKeyCache = purchaseIdempotencyKeyCache;
+		this.inFlightPurchasesByCacheKey = new ConcurrentHashMap<>();
+		this.fingerprintSigner = HmacSigner.forPrivateKey(configuration.getKeyPair().getPrivate());
+		this.logger = LoggerFactory.getLogger(getClass());
+	}
+
+	// Runs the purchase at most once per account and key, or replays the outcome of the run that already happened
+	@Nonnull
+	public PurchaseResult purchaseIdempotently(@Nonnull UUID accountId,
+																						 @Nonnull String idempotencyKey,
+																						 @Nonnull ToyPurchaseRequest request,
+																						 @Nonnull Supplier<PurchaseResult> purchaser) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+		requireNonNull(request);
+		requireNonNull(purchaser);
+
+		idempotencyKey = idempotencyKey.trim();
+
+		if (idempotencyKey.length() == 0 || idempotencyKey.length() > MAXIMUM_IDEMPOTENCY_KEY_LENGTH)
+			throw ApplicationException.withStatusCode(422)
+					.generalError(getStrings().get("Idempotency-Key must be between 1 and {{maximumLength}} characters.",
+							Map.of("maximumLength", MAXIMUM_IDEMPOTENCY_KEY_LENGTH)))
+					.build();
+
+		String requestFingerprint = fingerprint(request);
+		String cacheKey = cacheKey(accountId, idempotencyKey);
+
+		// Fast path: this is a retry of something that already finished
+		PurchaseIdempotencyKey completedPurchaseIdempotencyKey = findCompletedPurchaseIdempotencyKey(accountId, idempotencyKey).orElse(null);
+
+		if (completedPurchaseIdempotencyKey != null)
+			return replay(completedPurchaseIdempotencyKey, requestFingerprint);
+
+		// If someone on this instance is already working on this key, wait for them instead of doing the work twice
+		CompletableFuture<PurchaseIdempotencyKey> inFlightPurchase = new CompletableFuture<>();
+		CompletableFuture<PurchaseIdempotencyKey> existingInFlightPurchase = getInFlightPurchasesByCacheKey().putIfAbsent(cacheKey, inFlightPurchase);
+
+		if (existingInFlightPurchase != null) {
+			try {
+				return replay(existingInFlightPurchase.join(), requestFingerprint);
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException runtimeException)
+					throw runtimeException;
+
+				throw e;
+			}
+		}
+
+		try {
+			// The previous in-flight request might have finished between our lookup and our registration
+			completedPurchaseIdempotencyKey = findCompletedPurchaseIdempotencyKey(accountId, idempotencyKey).orElse(null);
+
+			// Another instance might have finished too, which we only find out when trying to reserve the key
+			if (completedPurchaseIdempotencyKey == null)
+				completedPurchaseIdempotencyKey = reserveOrFindCompleted(accountId, idempotencyKey, requestFingerprint).orElse(null);
+
+			if (completedPurchaseIdempotencyKey != null) {
+				inFlightPurchase.complete(completedPurchaseIdempotencyKey);
+				return replay(completedPurchaseIdempotencyKey, requestFingerprint);
+			}
+
+			PurchaseResult purchaseResult;
+
+			try {
+				purchaseResult = purchaser.get();
+			} catch (PurchaseOutcomeUnknownException e) {
+				// This request still fails, but retries are answered with the pending purchase
+				try {
+					inFlightPurchase.complete(completeReservation(accountId, idempotencyKey, new PurchaseResult(e.getPurchaseId(), 202, false)));
+				} catch (RuntimeException completionException) {
+					// The reservation lapses with its lease; by then the worker should have settled the purchase
+					getLogger().error(format("Unable to record pending purchase ID %s for its Idempotency-Key", e.getPurchaseId()), completionException);
+				}
+
+				throw e;
+			} catch (RuntimeException e) {
+				releaseReservation(accountId, idempotencyKey);
+				throw e;
+			}
+
+			inFlightPurchase.complete(completeReservation(accountId, idempotencyKey, purchaseResult));
+			return purchaseResult;
+		} catch (RuntimeException e) {
+			inFlightPurchase.completeExceptionally(e);
+			throw e;
+		} finally {
+			getInFlightPurchasesByCacheKey().remove(cacheKey, inFlightPurchase);
+		}
+	}
+
+	@Nonnull
+	protected Optional<PurchaseIdempotencyKey> findCompletedPurchaseIdempotencyKey(@Nonnull UUID accountId,
+																																								 @Nonnull String idempotencyKey) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+
+		String cacheKey = cacheKey(accountId, idempotencyKey);
+		PurchaseIdempotencyKey cachedPurchaseIdempotencyKey = getPurchaseIdempotencyKeyCache().get(cacheKey).orElse(null);
+
+		if (cachedPurchaseIdempotencyKey != null)
+			return Optional.of(cachedPurchaseIdempotencyKey);
+
+		PurchaseIdempotencyKey purchaseIdempotencyKey = getDatabase().queryForObject("""
+				SELECT *
+				FROM purchase_idempotency_key
+				WHERE account_id=?
+				AND idempotency_key=?
+				AND expires_at > ?
+				""", PurchaseIdempotencyKey.class, accountId, idempotencyKey, Instant.now()).orElse(null);
+
+		if (purchaseIdempotencyKey == null || !purchaseIdempotencyKey.isCompleted())
+			return Optional.empty();
+
+		getPurchaseIdempotencyKeyCache().put(cacheKey, purchaseIdempotencyKey, purchaseIdempotencyKey.expiresAt());
+
+		return Optional.of(purchaseIdempotencyKey);
+	}
+
+	// Claims the key for this request.  Returns the completed key if another instance beat us to it,
+	// and fails with a 409 if another instance is still working on it
+	@Nonnull
+	protected Optional<PurchaseIdempotencyKey> reserveOrFindCompleted(@Nonnull UUID accountId,
+																																		@Nonnull String idempotencyKey,
+																																		@Nonnull String requestFingerprint) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+		requireNonNull(requestFingerprint);
+
+		Instant now = Instant.now();
+
+		try {
+			getDatabase().transaction(() -> {
+				// Reclaim the key if it has expired, or was abandoned by a request that never finished
+				getDatabase().execute("""
+						DELETE FROM purchase_idempotency_key
+						WHERE account_id=?
+						AND idempotency_key=?
+						AND expires_at <= ?
+						""", accountId, idempotencyKey, now);
+
+				getDatabase().execute("""
+						INSERT INTO purchase_idempotency_key (
+							account_id,
+							idempotency_key,
+							request_fingerprint,
+							expires_at
+						) VALUES (?,?,?,?)
+						""", accountId, idempotencyKey, requestFingerprint, now.plus(getConfiguration().getPurchaseIdempotencyKeyLeaseDuration()));
+			});
+
+			return Optional.empty();
+		} catch (DatabaseException e) {
+			if (!e.getMessage().contains("PURCHASE_IDEMPOTENCY_KEY_PK"))
+				throw e;
+		}
+
+		PurchaseIdempotencyKey completedPurchaseIdempotencyKey = findCompletedPurchaseIdempotencyKey(accountId, idempotencyKey).orElse(null);
+
+		if (completedPurchaseIdempotencyKey != null)
+			return Optional.of(completedPurchaseIdempotencyKey);
+
+		throw ApplicationException.withStatusCode(409)
+				.generalError(getStrings().get("A request with this Idempotency-Key is already in progress. Please try again shortly."))
+				.build();
+	}
+
+	@Nonnull
+	protected PurchaseIdempotencyKey completeReservation(@Nonnull UUID accountId,
+																											 @Nonnull String idempotencyKey,
+																											 @Nonnull PurchaseResult purchaseResult) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+		requireNonNull(purchaseResult);
+
+		Instant expiresAt = Instant.now().plus(getConfiguration().getPurchaseIdempotencyKeyTimeToLive());
+
+		getDatabase().transaction(() -> {
+			getDatabase().execute("""
+					UPDATE purchase_idempotency_key
+					SET purchase_id=?, response_status_code=?, expires_at=?
+					WHERE account_id=?
+					AND idempotency_key=?
+					""", purchaseResult.purchaseId(), purchaseResult.statusCode(), expiresAt, accountId, idempotencyKey);
+		});
+
+		PurchaseIdempotencyKey purchaseIdempotencyKey = getDatabase().queryForObject("""
+				SELECT *
+				FROM purchase_idempotency_key
+				WHERE account_id=?
+				AND idempotency_key=?
+				""", PurchaseIdempotencyKey.class, accountId, idempotencyKey).get();
+
+		getPurchaseIdempotencyKeyCache().put(cacheKey(accountId, idempotencyKey), purchaseIdempotencyKey, expiresAt);
+
+		return purchaseIdempotencyKey;
+	}
+
+	protected void releaseReservation(@Nonnull UUID accountId,
+																		@Nonnull String idempotencyKey) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+
+		try {
+			getDatabase().transaction(() -> {
+				getDatabase().execute("""
+						DELETE FROM purchase_idempotency_key
+						WHERE account_id=?
+						AND idempotency_key=?
+						AND purchase_id IS NULL
+						""", accountId, idempotencyKey);
+			});
+		} catch (Exception e) {
+			// Not fatal; the reservation lapses with its lease
+			getLogger().warn(format("Unable to release Idempotency-Key reservation for account ID %s", accountId), e);
+		}
+	}
+
+	@Nonnull
+	protected PurchaseResult replay(@Nonnull PurchaseIdempotencyKey purchaseIdempotencyKey,
+																	@Nonnull String requestFingerprint) {
+		requireNonNull(purchaseIdempotencyKey);
+		requireNonNull(requestFingerprint);
+
+		// Reusing a key for a different purchase is a client bug; don't silently hand back the wrong purchase
+		if (!purchaseIdempotencyKey.requestFingerprint().equals(requestFingerprint))
+			throw ApplicationException.withStatusCode(422)
+					.generalError(getStrings().get("This Idempotency-Key was already used for a different request."))
+					.build();
+
+		return new PurchaseResult(purchaseIdempotencyKey.purchaseId(), purchaseIdempotencyKey.responseStatusCode(), true);
+	}
+
+	// Identifies "the same request" without storing the card number.
+	// Card numbers are few and structured enough that a plain hash could be brute-forced from a leaked row,
+	// so it's keyed with a secret that never leaves the server
+	@Nonnull
+	protected String fingerprint(@Nonnull ToyPurchaseRequest request) {
+		requireNonNull(request);
+
+		byte[] fingerprintInput = format("purchase-fingerprint|%s|%s|%s", request.toyId(), request.creditCardNumber(),
+				request.creditCardExpiration()).getBytes(StandardCharsets.UTF_8);
+
+		return HexFormat.of().formatHex(getFingerprintSigner().sign(fingerprintInput, 0, fingerprintInput.length));
+	}
+
+	@Nonnull
+	protected String cacheKey(@Nonnull UUID accountId,
+														@Nonnull String idempotencyKey) {
+		requireNonNull(accountId);
+		requireNonNull(idempotencyKey);
+
+		return format("%s:%s", accountId, idempotencyKey);
+	}
+
+	public record PurchaseResult(
+			@Nonnull UUID purchaseId,
+			@Nonnull Integer statusCode,
+			@Nonnull Boolean replayed
+	) {
+		public PurchaseResult {
+			requireNonNull(purchaseId);
+			requireNonNull(statusCode);
+			requireNonNull(replayed);
+		}
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	@Nonnull
+	protected Strings getStrings() {
+		return this.strings;
+	}
+
+	@Nonnull
+	protected ExpiringCache<String, PurchaseIdempotencyKey> getPurchaseIdempotencyKeyCache() {
+		return this.purchaseIdempotencyKeyCache;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<String, CompletableFuture<PurchaseIdempotencyKey>> getInFlightPurchasesByCacheKey() {
+		return this.inFlightPurchasesByCacheKey;
+	}
+
+	@Nonnull
+	protected HmacSigner getFingerprintSigner() {
+		return this.fingerprintSigner;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.service;
+
+import com.google.inject.Inject;
+import com.pyranid.Database;
+import com.soklet.example.Configuration;
+import com.soklet.example.CurrentContext;
+import com.soklet.example.model.db.Purchase;
+import com.soklet.example.model.db.PurchaseOutbox;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
+import com.soklet.example.util.CreditCardNumberCipher;
+import com.soklet.example.util.CreditCardProcessor;
+import com.soklet.example.util.CreditCardProcessor.CreditCardPaymentException;
+import com.soklet.example.util.ResilientCreditCardProcessor.CreditCardProcessorUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Drains the {@code purchase_outbox} table, charging credit cards for purchases that were accepted asynchronously
+ * and settling charges whose outcome a synchronous purchase or checkout never learned.
+ * <p>
+ * Each row is one charge, identified by the charge ID its purchases share, so a checkout is settled with one charge
+ * rather than one per purchase.  Asynchronous rows are written in the same transaction as their PENDING purchase,
+ * so an accepted purchase can't be lost.
+ * A poller claims due rows by leasing them (so several app instances can share the table) and hands each one
+ * to a virtual thread; a semaphore caps how many charges are in flight at once.
+ * No connection is held while a charge is in progress.
+ * Card numbers are stored encrypted and only decrypted just before the charge.
+ * Failures are retried with exponential backoff, always with the charge ID as the idempotency key, so a retry
+ * can't charge the card twice.  Only a failure that never reached the processor is known not to have charged the card;
+ * anything else (a timeout, a processor error, an unexpected exception) is treated as a possible charge.
+ * Declines void the purchases.  Once retries run out, purchases whose card was never
+ * charged are voided, but those whose charge may have gone through are marked {@code NEEDS_REVIEW} and keep their stock
+ * until someone checks with the processor; we never guess.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class PurchaseOutboxProcessor implements AutoCloseable {
+	@Nonnull
+	private final Database database;
+	@Nonnull
+	private final CreditCardProcessor creditCardProcessor;
+	@Nonnull
+	private final CreditCardNumberCipher creditCardNumberCipher;
+	@Nonnull
+	private final StockReservationEngine stockReservationEngine;
+	@Nonnull
+	private final Configuration configuration;
+	@Nonnull
+	private final Semaphore concurrencySemaphore;
+	@Nonnull
+	private final Semaphore wakeUpSemaphore;
+	@Nonnull
+	private final AtomicBoolean started;
+	@Nonnull
+	private final Logger logger;
+	@Nullable
+	private volatile ExecutorService executorService;
+
+	@Inject
+	public PurchaseOutboxProcessor(@Nonnull Database database,
+																 @Nonnull CreditCardProcessor creditCardProcessor,
+																 @Nonnull CreditCardNumberCipher creditCardNumberCipher,
+																 @Nonnull StockReservationEngine stockReservationEngine,
+																 @Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(creditCardProcessor);
+		requireNonNull(creditCardNumberCipher);
+		requireNonNull(stockReservationEngine);
+		requireNonNull(configuration);
+
+		this.database = database;
+		this.creditCardProcessor = creditCardProcessor;
+		this.creditCardNumberCipher = creditCardNumberCipher;
+		this.stockReservationEngine = stockReservationEngine;
+		this.configuration = configuration;
+		this.concurrencySemaphore = new Semaphore(configuration.getPurchaseWorkerConcurrency());
+		this.wakeUpSemaphore = new Semaphore(0);
+		this.started = new AtomicBoolean(false);
+		this.logger = LoggerFactory.getLogger(getClass());
+	}
+
+	public void start() {
+		if (!getStarted().compareAndSet(false, true))
+			return;
+
+		ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+		this.executorService = executorService;
+
+		executorService.submit(() -> {
+			while (getStarted().get()) {
+				try {
+					List<PurchaseOutbox> claimedPurchaseOutboxes = claimDuePurchaseOutboxes();
+
+					for (PurchaseOutbox purchaseOutbox : claimedPurchaseOutboxes) {
+						getConcurrencySemaphore().acquire();
+
+						executorService.submit(() -> {
+							try {
+								processPurchaseOutbox(purchaseOutbox);
+							} finally {
+								getConcurrencySemaphore().release();
+							}
+						});
+					}
+
+					// Nothing to do; sleep until the next poll or until someone enqueues a purchase
+					if (claimedPurchaseOutboxes.size() == 0)
+						getWakeUpSemaphore().tryAcquire(getConfiguration().getPurchaseOutboxPollInterval().toMillis(), TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				} catch (Exception e) {
+					getLogger().warn("Unable to poll purchase outbox", e);
+					Thread.sleep(getConfiguration().getPurchaseOutboxPollInterval());
+				}
+			}
+
+			return null;
+		});
+	}
+
+	@Override
+	public void close() {
+		if (!getStarted().compareAndSet(true, false))
+			return;
+
+		ExecutorService executorService = this.executorService;
+
+		if (executorService != null)
+			executorService.shutdownNow();
+	}
+
+	// Lets the poller know there is work right now, rather than waiting for its next poll
+	public void signal() {
+		getWakeUpSemaphore().release();
+	}
+
+	// Synchronously processes everything that's due.  Useful for tests and for draining before shutdown
+	public void processDuePurchaseOutboxes() {
+		List<PurchaseOutbox> claimedPurchaseOutboxes;
+
+		do {
+			claimedPurchaseOutboxes = claimDuePurchaseOutboxes();
+
+			for (PurchaseOutbox purchaseOutbox : claimedPurchaseOutboxes)
+				processPurchaseOutbox(purchaseOutbox);
+		} while (claimedPurchaseOutboxes.size() > 0);
+	}
+
+	@Nonnull
+	protected List<PurchaseOutbox> claimDuePurchaseOutboxes() {
+		Instant now = Instant.now();
+		Instant lockedUntil = now.plus(getConfiguration().getPurchaseOutboxLeaseDuration());
+
+		List<PurchaseOutbox> candidatePurchaseOutboxes = getDatabase().queryForList("""
+				SELECT *
+				FROM purchase_outbox
+				WHERE next_attempt_at <= ?
+				AND (locked_until IS NULL OR locked_until < ?)
+				ORDER BY next_attempt_at
+				LIMIT ?
+				""", PurchaseOutbox.class, now, now, getConfiguration().getPurchaseOutboxBatchSize());
+
+		List<PurchaseOutbox> claimedPurchaseOutboxes = new ArrayList<>(candidatePurchaseOutboxes.size());
+
+		// Another worker may have beaten us to a row; the conditional update makes sure only one of us wins
+		for (PurchaseOutbox purchaseOutbox : candidatePurchaseOutboxes) {
+			boolean claimed = getDatabase().execute("""
+					UPDATE purchase_outbox
+					SET locked_until=?
+					WHERE charge_id=?
+					AND (locked_until IS NULL OR locked_until < ?)
+					""", lockedUntil, purchaseOutbox.chargeId(), now) > 0;
+
+			if (claimed)
+				claimedPurchaseOutboxes.add(purchaseOutbox);
+		}
+
+		return claimedPurchaseOutboxes;
+	}
+
+	protected void processPurchaseOutbox(@Nonnull PurchaseOutbox purchaseOutbox) {
+		requireNonNull(purchaseOutbox);
+
+		// Workers aren't tied to a request, so give them a default context
+		CurrentContext.with(Configuration.getDefaultLocale(), Configuration.getDefaultTimeZone()).build().run(() -> {
+			UUID chargeId = purchaseOutbox.chargeId();
+			List<Purchase> purchases = getDatabase().queryForList("""
+					SELECT *
+					FROM purchase
+					WHERE charge_id=?
+					AND purchase_status_id=?
+					""", Purchase.class, chargeId, PurchaseStatusId.PENDING);
+
+			if (purchases.size() == 0) {
+				getLogger().warn("Discarding outbox entry for charge ID {}, which has no pending purchases", chargeId);
+				getDatabase().transaction(() -> deletePurchaseOutbox(chargeId));
+				return;
+			}
+
+			String creditCardNumber;
+
+			try {
+				creditCardNumber = getCreditCardNumberCipher().decrypt(purchaseOutbox.encryptedCreditCardNumber());
+			} catch (RuntimeException e) {
+				// We didn't get as far as the processor this time
+				scheduleRetry(purchases, purchaseOutbox, e, purchaseOutbox.chargeAttempted());
+				return;
+			}
+
+			String creditCardTransactionId;
+
+			try {
+				creditCardTransactionId = getCreditCardProcessor().makePayment(chargeId.toString(), creditCardNumber,
+						purchaseOutbox.amount(), purchaseOutbox.currency());
+			} catch (CreditCardPaymentException e) {
+				getLogger().info("Credit card for charge ID {} was declined ({}), voiding its purchases", chargeId, e.getFailureReason());
+				finalizePurchases(purchases, PurchaseStatusId.VOIDED, null);
+				return;
+			} catch (CreditCardProcessorUnavailableException e) {
+				// Only a call that never reached the processor is known not to have charged the card
+				scheduleRetry(purchases, purchaseOutbox, e, purchaseOutbox.chargeAttempted() || e.getChargeAttempted());
+				return;
+			} catch (Exception e) {
+				// Anything else may have happened after the processor took the charge, so from here on we can't void
+				scheduleRetry(purchases, purchaseOutbox, e, true);
+				return;
+			}
+
+			finalizePurchases(purchases, PurchaseStatusId.COMPLETED, creditCardTransactionId);
+		});
+	}
+
+	// Settles every purchase paid for by the charge at once, and retires its outbox entry
+	protected void finalizePurchases(@Nonnull List<Purchase> purchases,
+																	 @Nonnull PurchaseStatusId purchaseStatusId,
+																	 @Nullable String creditCardTransactionId) {
+		requireNonNull(purchases);
+		requireNonNull(purchaseStatusId);
+
+		UUID chargeId = purchases.get(0).chargeId();
+
+		AtomicBoolean finalized = new AtomicBoolean(false);
+
+		getDatabase().transaction(() -> {
+			finalized.set(getDatabase().execute("""
+					UPDATE purchase
+					SET purchase_status_id=?, credit_card_txn_id=?
+					WHERE charge_id=?
+					AND purchase_status_id=?
+					""", purchaseStatusId, creditCardTransactionId, chargeId, PurchaseStatusId.PENDING) > 0);
+
+			deletePurchaseOutbox(chargeId);
+		});
+
+		// Only the worker that actually voided the purchases gives their stock back, so it can't be released twice
+		if (finalized.get() && purchaseStatusId == PurchaseStatusId.VOIDED) {
+			Map<UUID, Integer> quantitiesByToyId = new LinkedHashMap<>();
+
+			for (Purchase purchase : purchases)
+				quantitiesByToyId.merge(purchase.toyId(), 1, Integer::sum);
+
+			for (Map.Entry<UUID, Integer> entry : quantitiesByToyId.entrySet())
+				getStockReservationEngine().release(entry.getKey(), entry.getValue());
+		}
+	}
+
+	protected void scheduleRetry(@Nonnull List<Purchase> purchases,
+															 @Nonnull PurchaseOutbox purchaseOutbox,
+															 @Nonnull Exception exception,
+															 @Nonnull Boolean chargeAttempted) {
+		requireNonNull(purchases);
+		requireNonNull(purchaseOutbox);
+		requireNonNull(exception);
+		requireNonNull(chargeAttempted);
+
+		UUID chargeId = purchaseOutbox.chargeId();
+		int attemptCount = purchaseOutbox.attemptCount() + 1;
+
+		if (attemptCount >= getConfiguration().getPurchaseOutboxMaximumAttempts()) {
+			if (chargeAttempted) {
+				// The card may have been charged, so voiding could give away paid-for toys.  Leave it to a human
+				getLogger().error("Giving up on charge ID {} after {} attempts, its outcome is unknown and its purchases need review",
+						chargeId, attemptCount, exception);
+				finalizePurchases(purchases, PurchaseStatusId.NEEDS_REVIEW, null);
+			} else {
+				getLogger().error("Giving up on charge ID {} after {} attempts, voiding its purchases", chargeId, attemptCount, exception);
+				finalizePurchases(purchases, PurchaseStatusId.VOIDED, null);
+			}
+
+			return;
+		}
+
+		// Exponential backoff with jitter, so a processor outage doesn't end in a synchronized retry storm
+		long baseDelayMillis = getConfiguration().getPurchaseOutboxRetryBaseDelay().toMillis() << Math.min(20, attemptCount - 1);
+		long delayMillis = baseDelayMillis / 2 + ThreadLocalRandom.current().nextLong(baseDelayMillis / 2 + 1);
+		Instant nextAttemptAt = Instant.now().plus(Duration.ofMillis(delayMillis));
+
+		getLogger().warn("Payment attempt {} for charge ID {} failed, retrying at {}", attemptCount, chargeId, nextAttemptAt, exception);
+
+		String lastError = String.valueOf(exception.getMessage());
+
+		if (lastError.length() > 1_024)
+			lastError = lastError.substring(0, 1_024);
+
+		String finalLastError = lastError;
+
+		getDatabase().transaction(() -> {
+			getDatabase().execute("""
+					UPDATE purchase_outbox
+					SET attempt_count=?, next_attempt_at=?, locked_until=NULL, last_error=?, charge_attempted=?
+					WHERE charge_id=?
+					""", attemptCount, nextAttemptAt, finalLastError, chargeAttempted, chargeId);
+		});
+	}
+
+	protected void deletePurchaseOutbox(@Nonnull UUID chargeId) {
+		requireNonNull(chargeId);
+		getDatabase().execute("DELETE FROM purchase_outbox WHERE charge_id=?", chargeId);
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nonnull
+	protected CreditCardProcessor getCreditCardProcessor() {
+		return this.creditCardProcessor;
+	}
+
+	@Nonnull
+	protected CreditCardNumberCipher getCreditCardNumberCipher() {
+		return this.creditCardNumberCipher;
+	}
+
+	@Nonnull
+	protected StockReservationEngine getStockReservationEngine() {
+		return this.stockReservationEngine;
+	}
+
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	@Nonnull
+	protected Semaphore getConcurrencySemaphore() {
+		return this.concurrencySemaphore;
+	}
+
+	@Nonnull
+	protected Semaphore getWakeUpSemaphore() {
+		return this.wakeUpSemaphore;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getStarted() {
+		return this.started;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
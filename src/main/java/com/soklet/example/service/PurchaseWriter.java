@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.service;
+
+import com.pyranid.Database;
+import com.soklet.example.Configuration;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
+import com.soklet.example.model.db.Toy;
+import com.soklet.example.util.GroupCommitBuffer;
+import com.soklet.example.util.GroupCommitBuffer.GroupCommitBufferMetrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Commits the single-purchase writes that happen on either side of a credit card charge.
+ * <p>
+ * By default, each write is its own short transaction.  With group commit enabled, concurrent writes of the same kind
+ * are funneled through a {@link GroupCommitBuffer} and share a batch and a commit, trading up to
+ * {@link Configuration#getPurchaseGroupCommitMaximumDelay()} of latency for far fewer commits under load.
+ * Either way, a write has committed by the time its method returns.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class PurchaseWriter implements AutoCloseable {
+	@Nonnull
+	private static final String INSERT_PENDING_PURCHASE_SQL;
+	@Nonnull
+	private static final String UPDATE_PURCHASE_STATUS_SQL;
+
+	static {
+		INSERT_PENDING_PURCHASE_SQL = """
+				INSERT INTO purchase (
+					purchase_id,
+					charge_id,
+					account_id,
+					toy_id,
+					purchase_status_id,
+					price,
+					currency
+				) VALUES (?,?,?,?,?,?,?)
+				""";
+
+		UPDATE_PURCHASE_STATUS_SQL = """
+				UPDATE purchase
+				SET purchase_status_id=?, credit_card_txn_id=?
+				WHERE purchase_id=?
+				""";
+	}
+
+	@Nonnull
+	private final Database database;
+	@Nullable
+	private final GroupCommitBuffer insertBuffer;
+	@Nullable
+	private final GroupCommitBuffer updateBuffer;
+
+	public PurchaseWriter(@Nonnull Database database,
+												@Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+
+		this.database = database;
+
+		if (configuration.getPurchaseGroupCommitEnabled()) {
+			this.insertBuffer = new GroupCommitBuffer(database, INSERT_PENDING_PURCHASE_SQL,
+					configuration.getPurchaseGroupCommitMaximumBatchSize(), configuration.getPurchaseGroupCommitMaximumDelay());
+			this.updateBuffer = new GroupCommitBuffer(database, UPDATE_PURCHASE_STATUS_SQL,
+					configuration.getPurchaseGroupCommitMaximumBatchSize(), configuration.getPurchaseGroupCommitMaximumDelay());
+		} else {
+			this.insertBuffer = null;
+			this.updateBuffer = null;
+		}
+	}
+
+	public void insertPendingPurchase(@Nonnull UUID purchaseId,
+																		@Nonnull UUID accountId,
+																		@Nonnull Toy toy) {
+		requireNonNull(purchaseId);
+		requireNonNull(accountId);
+		requireNonNull(toy);
+
+		write(getInsertBuffer(), INSERT_PENDING_PURCHASE_SQL,
+				// A single purchase is paid for by its own charge
+				List.of(purchaseId, purchaseId, accountId, toy.toyId(), PurchaseStatusId.PENDING, toy.price(), toy.currency()));
+	}
+
+	public void updatePurchaseStatus(@Nonnull UUID purchaseId,
+																	 @Nonnull PurchaseStatusId purchaseStatusId,
+																	 @Nullable String creditCardTransactionId) {
+		requireNonNull(purchaseId);
+		requireNonNull(purchaseStatusId);
+
+		// List.of() doesn't permit nulls, and the transaction ID is null for voided purchases
+		write(getUpdateBuffer(), UPDATE_PURCHASE_STATUS_SQL,
+				Arrays.asList(purchaseStatusId, creditCardTransactionId, purchaseId));
+	}
+
+	protected void write(@Nullable GroupCommitBuffer groupCommitBuffer,
+											 @Nonnull String sql,
+											 @Nonnull List<Object> parameters) {
+		requireNonNull(sql);
+		requireNonNull(parameters);
+
+		if (groupCommitBuffer != null) {
+			groupCommitBuffer.write(parameters);
+			return;
+		}
+
+		getDatabase().transaction(() -> {
+			getDatabase().execute(sql, parameters.toArray());
+		});
+	}
+
+	@Override
+	public void close() {
+		if (getInsertBuffer() != null)
+			getInsertBuffer().close();
+
+		if (getUpdateBuffer() != null)
+			getUpdateBuffer().close();
+	}
+
+	@Nonnull
+	public PurchaseWriterMetrics getMetrics() {
+		return new PurchaseWriterMetrics(
+				getInsertBuffer() != null,
+				getInsertBuffer() == null ? null : getInsertBuffer().getMetrics(),
+				getUpdateBuffer() == null ? null : getUpdateBuffer().getMetrics()
+		);
+	}
+
+	public record PurchaseWriterMetrics(
+			@Nonnull Boolean groupCommitEnabled,
+			@Nullable GroupCommitBufferMetrics insert,
+			@Nullable GroupCommitBufferMetrics update
+	) {
+		public PurchaseWriterMetrics {
+			requireNonNull(groupCommitEnabled);
+		}
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nullable
+	protected GroupCommitBuffer getInsertBuffer() {
+		return this.insertBuffer;
+	}
+
+	@Nullable
+	protected GroupCommitBuffer getUpdateBuffer() {
+		return this.updateBuffer;
+	}
+}
\ No newline at end of file
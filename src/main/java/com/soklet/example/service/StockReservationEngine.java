@@ -0,0 +1,415 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.service;
+
+import com.google.inject.Inject;
+import com.pyranid.Database;
+import com.soklet.example.Configuration;
+import com.soklet.example.model.db.Toy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Reserves toy stock in memory so that buyers of a popular toy don't serialize on its {@code toy} row lock.
+ * <p>
+ * A toy's stock is loaded from the database the first time it's needed and spread across several striped counters.
+ * Buyers take units from the stripes with compare-and-set, starting at a random stripe, so they rarely contend
+ * and can never drive stock below zero.  Units sold (net of releases) accumulate per toy and are written back to
+ * the database in a single batch on a schedule, so the database sees one {@code UPDATE} per toy per interval
+ * instead of one per buyer.
+ * <p>
+ * The in-memory counts are authoritative while the app is running, which assumes a single instance owns the stock.
+ * Toys with a {@code NULL} stock quantity are not tracked and never run out.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class StockReservationEngine implements AutoCloseable {
+	@Nonnull
+	private final Database database;
+	@Nonnull
+	private final Configuration configuration;
+	@Nonnull
+	private final ConcurrentHashMap<UUID, ToyStock> toyStocksByToyId;
+	@Nonnull
+	private final AtomicBoolean started;
+	@Nonnull
+	private final LongAdder reservedCount;
+	@Nonnull
+	private final LongAdder rejectedCount;
+	@Nonnull
+	private final LongAdder releasedCount;
+	@Nonnull
+	private final LongAdder reconciliationCount;
+	@Nonnull
+	private final Logger logger;
+	@Nullable
+	private volatile ScheduledExecutorService scheduledExecutorService;
+
+	@Inject
+	public StockReservationEngine(@Nonnull Database database,
+																@Nonnull Configuration configuration) {
+		requireNonNull(database);
+		requireNonNull(configuration);
+
+		this.database = database;
+		this.configuration = configuration;
+		this.toyStocksByToyId = new ConcurrentHashMap<>();
+		this.started = new AtomicBoolean(false);
+		this.reservedCount = new LongAdder();
+		this.rejectedCount = new LongAdder();
+		this.releasedCount = new LongAdder();
+		this.reconciliationCount = new LongAdder();
+		this.logger = LoggerFactory.getLogger(getClass());
+	}
+
+	public void start() {
+		if (!getStarted().compareAndSet(false, true))
+			return;
+
+		ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+		this.scheduledExecutorService = scheduledExecutorService;
+
+		long intervalMillis = getConfiguration().getStockReconciliationInterval().toMillis();
+
+		scheduledExecutorService.scheduleWithFixedDelay(() -> {
+			try {
+				reconcile();
+			} catch (Exception e) {
+				getLogger().warn("Unable to reconcile toy stock", e);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		if (!getStarted().compareAndSet(true, false))
+			return;
+
+		ScheduledExecutorService scheduledExecutorService = this.scheduledExecutorService;
+
+		if (scheduledExecutorService != null)
+			scheduledExecutorService.shutdownNow();
+
+		// Don't lose whatever was sold since the last reconciliation
+		reconcile();
+	}
+
+	// Takes the given number of units, or none at all if there aren't enough
+	@Nonnull
+	public Boolean reserve(@Nonnull UUID toyId,
+												 @Nonnull Integer quantity) {
+		requireNonNull(toyId);
+		requireNonNull(quantity);
+
+		if (quantity < 1)
+			throw new IllegalArgumentException("Quantity must be > 0");
+
+		ToyStock toyStock = toyStockForToyId(toyId);
+
+		if (!toyStock.isTracked())
+			return true;
+
+		AtomicInteger[] stripes = toyStock.getStripes();
+		int[] takenByStripe = new int[stripes.length];
+		int remaining = quantity;
+		int start = ThreadLocalRandom.current().nextInt(stripes.length);
+
+		for (int i = 0; i < stripes.length && remaining > 0; ++i) {
+			int stripeIndex = (start + i) % stripes.length;
+			AtomicInteger stripe = stripes[stripeIndex];
+
+			while (remaining > 0) {
+				int available = stripe.get();
+
+				if (available == 0)
+					break;
+
+				int taken = Math.min(available, remaining);
+
+				if (stripe.compareAndSet(available, available - taken)) {
+					takenByStripe[stripeIndex] += taken;
+					remaining -= taken;
+				}
+			}
+		}
+
+		// Not enough to go around; put back what we took
+		if (remaining > 0) {
+			for (int i = 0; i < stripes.length; ++i)
+				if (takenByStripe[i] > 0)
+					stripes[i].addAndGet(takenByStripe[i]);
+
+			getRejectedCount().increment();
+			return false;
+		}
+
+		toyStock.getPendingDecrement().addAndGet(quantity);
+		getReservedCount().add(quantity);
+		return true;
+	}
+
+	// Gives back units whose purchase didn't go through
+	public void release(@Nonnull UUID toyId,
+											@Nonnull Integer quantity) {
+		requireNonNull(toyId);
+		requireNonNull(quantity);
+
+		if (quantity < 1)
+			throw new IllegalArgumentException("Quantity must be > 0");
+
+		ToyStock toyStock = toyStockForToyId(toyId);
+
+		if (!toyStock.isTracked())
+			return;
+
+		AtomicInteger[] stripes = toyStock.getStripes();
+		stripes[ThreadLocalRandom.current().nextInt(stripes.length)].addAndGet(quantity);
+		toyStock.getPendingDecrement().addAndGet(-quantity);
+		getReleasedCount().add(quantity);
+	}
+
+	// Live stock for display.  Falls back to the database value for toys nobody has bought since startup, so listing toys costs no extra queries
+	@Nonnull
+	public Optional<Integer> findAvailableQuantity(@Nonnull Toy toy) {
+		requireNonNull(toy);
+
+		ToyStock toyStock = getToyStocksByToyId().get(toy.toyId());
+
+		if (toyStock == null)
+			return Optional.ofNullable(toy.stockQuantity());
+
+		if (!toyStock.isTracked())
+			return Optional.empty();
+
+		int availableQuantity = 0;
+
+		for (AtomicInteger stripe : toyStock.getStripes())
+			availableQuantity += stripe.get();
+
+		return Optional.of(availableQuantity);
+	}
+
+	// Call when a toy is deleted or its stock is changed directly in the database
+	public void forget(@Nonnull UUID toyId) {
+		requireNonNull(toyId);
+		getToyStocksByToyId().remove(toyId);
+	}
+
+	// Writes units sold since the last reconciliation back to the database in one batch
+	public void reconcile() {
+		List<UUID> toyIds = new ArrayList<>();
+		List<Integer> decrements = new ArrayList<>();
+		List<List<Object>> parameterGroups = new ArrayList<>();
+
+		for (Map.Entry<UUID, ToyStock> entry : getToyStocksByToyId().entrySet()) {
+			if (!entry.getValue().isTracked())
+				continue;
+
+			int decrement = entry.getValue().getPendingDecrement().getAndSet(0);
+
+			if (decrement == 0)
+				continue;
+
+			toyIds.add(entry.getKey());
+			decrements.add(decrement);
+			parameterGroups.add(List.of(decrement, entry.getKey()));
+		}
+
+		if (parameterGroups.size() == 0)
+			return;
+
+		try {
+			getDatabase().transaction(() -> {
+				getDatabase().executeBatch("""
+						UPDATE toy
+						SET stock_quantity=stock_quantity-?
+						WHERE toy_id=?
+						AND stock_quantity IS NOT NULL
+						""", parameterGroups);
+			});
+
+			getReconciliationCount().increment();
+		} catch (RuntimeException e) {
+			// Try again next time
+			for (int i = 0; i < toyIds.size(); ++i) {
+				ToyStock toyStock = getToyStocksByToyId().get(toyIds.get(i));
+
+				if (toyStock != null)
+					toyStock.getPendingDecrement().addAndGet(decrements.get(i));
+			}
+
+			throw e;
+		}
+	}
+
+	@Nonnull
+	protected ToyStock toyStockForToyId(@Nonnull UUID toyId) {
+		requireNonNull(toyId);
+
+		ToyStock toyStock = getToyStocksByToyId().get(toyId);
+
+		if (toyStock != null)
+			return toyStock;
+
+		// Load outside of the map so we don't hold a bin lock during I/O.
+		// If another thread loads the same toy concurrently, the first one in wins
+		Toy toy = getDatabase().queryForObject("""
+				SELECT *
+				FROM toy
+				WHERE toy_id=?
+				""", Toy.class, toyId).orElse(null);
+
+		ToyStock loadedToyStock = new ToyStock(toy == null ? null : toy.stockQuantity(), getConfiguration().getStockReservationStripeCount());
+		toyStock = getToyStocksByToyId().putIfAbsent(toyId, loadedToyStock);
+
+		return toyStock == null ? loadedToyStock : toyStock;
+	}
+
+	@Nonnull
+	public StockReservationEngineMetrics getMetrics() {
+		return new StockReservationEngineMetrics(
+				getToyStocksByToyId().size(),
+				getReservedCount().sum(),
+				getRejectedCount().sum(),
+				getReleasedCount().sum(),
+				getReconciliationCount().sum()
+		);
+	}
+
+	public record StockReservationEngineMetrics(
+			@Nonnull Integer loadedToyCount,
+			@Nonnull Long reservedCount,
+			@Nonnull Long rejectedCount,
+			@Nonnull Long releasedCount,
+			@Nonnull Long reconciliationCount
+	) {
+		public StockReservationEngineMetrics {
+			requireNonNull(loadedToyCount);
+			requireNonNull(reservedCount);
+			requireNonNull(rejectedCount);
+			requireNonNull(releasedCount);
+			requireNonNull(reconciliationCount);
+		}
+	}
+
+	@ThreadSafe
+	protected static class ToyStock {
+		@Nullable
+		private final AtomicInteger[] stripes;
+		@Nonnull
+		private final AtomicInteger pendingDecrement;
+
+		public ToyStock(@Nullable Integer stockQuantity,
+										@Nonnull Integer maximumStripeCount) {
+			requireNonNull(maximumStripeCount);
+
+			this.pendingDecrement = new AtomicInteger();
+
+			if (stockQuantity == null) {
+				this.stripes = null;
+				return;
+			}
+
+			// No point in more stripes than units
+			int stripeCount = Math.max(1, Math.min(maximumStripeCount, stockQuantity));
+			this.stripes = new AtomicInteger[stripeCount];
+
+			for (int i = 0; i < stripeCount; ++i)
+				this.stripes[i] = new AtomicInteger(stockQuantity / stripeCount + (i < stockQuantity % stripeCount ? 1 : 0));
+		}
+
+		@Nonnull
+		public Boolean isTracked() {
+			return this.stripes != null;
+		}
+
+		@Nullable
+		public AtomicInteger[] getStripes() {
+			return this.stripes;
+		}
+
+		@Nonnull
+		public AtomicInteger getPendingDecrement() {
+			return this.pendingDecrement;
+		}
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<UUID, ToyStock> getToyStocksByToyId() {
+		return this.toyStocksByToyId;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getStarted() {
+		return this.started;
+	}
+
+	@Nonnull
+	protected LongAdder getReservedCount() {
+		return this.reservedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getRejectedCount() {
+		return this.rejectedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getReleasedCount() {
+		return this.releasedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getReconciliationCount() {
+		return this.reconciliationCount;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,626 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.service;
+
+import com.pyranid.Database;
+import com.pyranid.Transaction;
+import com.pyranid.TransactionResult;
+import com.soklet.example.model.api.ToyCursor;
+import com.soklet.example.model.db.Toy;
+import com.soklet.example.util.TrigramIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.text.Normalizer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Serves toy catalog reads from an immutable, pre-sorted snapshot held in memory.
+ * <p>
+ * The catalog changes a few times a day but is read constantly, so reads shouldn't need a connection.
+ * Anything that writes to a {@code toy} row must call {@link #invalidate(UUID)}.  Once the writing transaction commits,
+ * just the changed rows are re-read and a new snapshot is derived from the old one, then swapped in atomically;
+ * readers only ever see a whole snapshot, old or new.
+ * <p>
+ * A transaction that has written to the catalog needs to see its own uncommitted changes.  Lookups by ID go straight to the
+ * database, and everything else overlays the rows it changed, read through the transaction, on the shared snapshot.
+ * <p>
+ * Toys are ordered by case- and accent-folded name (then exact name, then toy ID), so the toys matching any search prefix
+ * sit in one contiguous run that binary search finds in {@code O(log n)}.  The same order drives keyset pagination.
+ * Each snapshot also carries a {@link TrigramIndex} over the folded names for typo-tolerant search.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ToyCatalog {
+	@Nonnull
+	private static final Pattern COMBINING_MARKS_PATTERN;
+
+	// Past this many changed rows, re-reading the whole table is cheaper than an enormous IN clause
+	@Nonnull
+	private static final Integer MAXIMUM_INCREMENTAL_CHANGE_COUNT;
+
+	static {
+		COMBINING_MARKS_PATTERN = Pattern.compile("\\p{M}+");
+		MAXIMUM_INCREMENTAL_CHANGE_COUNT = 1_000;
+	}
+
+	@Nonnull
+	private final Database database;
+	// Open transactions that have written to the catalog, and which toys each changed
+	@Nonnull
+	private final ConcurrentHashMap<Transaction, Set<UUID>> changedToyIdsByTransaction;
+	// Toys changed by committed transactions that the snapshot doesn't reflect yet
+	@Nonnull
+	private final Set<UUID> pendingToyIds;
+	@Nonnull
+	private final ReentrantLock reloadLock;
+	@Nonnull
+	private final Logger logger;
+	@Nonnull
+	private volatile ToyCatalogSnapshot snapshot;
+	@Nonnull
+	private volatile Boolean stale;
+
+	public ToyCatalog(@Nonnull Database database) {
+		requireNonNull(database);
+
+		this.database = database;
+		this.changedToyIdsByTransaction = new ConcurrentHashMap<>();
+		this.pendingToyIds = ConcurrentHashMap.newKeySet();
+		this.reloadLock = new ReentrantLock();
+		this.logger = LoggerFactory.getLogger(getClass());
+		this.snapshot = ToyCatalogSnapshot.fromToys(List.of());
+		// Nothing is loaded until the first read (or refresh)
+		this.stale = true;
+	}
+
+	// Loads the catalog now, e.g. at startup, so the first reader doesn't have to
+	public void refresh() {
+		this.stale = true;
+		currentSnapshot();
+	}
+
+	// Call after inserting, updating or deleting the toy's row
+	public void invalidate(@Nonnull UUID toyId) {
+		requireNonNull(toyId);
+
+		Transaction transaction = getDatabase().currentTransaction().orElse(null);
+
+		if (transaction == null) {
+			getPendingToyIds().add(toyId);
+			reloadInBackground();
+			return;
+		}
+
+		Set<UUID> changedToyIds = getChangedToyIdsByTransaction().get(transaction);
+
+		// Transactions are confined to one thread, so nobody else can be registering this one
+		if (changedToyIds == null) {
+			changedToyIds = ConcurrentHashMap.newKeySet();
+			getChangedToyIdsByTransaction().put(transaction, changedToyIds);
+
+			transaction.addPostTransactionOperation(transactionResult -> {
+				Set<UUID> committedToyIds = getChangedToyIdsByTransaction().remove(transaction);
+
+				if (transactionResult == TransactionResult.COMMITTED && committedToyIds != null) {
+					// Readers from here on apply the changes themselves if the background reload hasn't finished yet
+					getPendingToyIds().addAll(committedToyIds);
+					reloadInBackground();
+				}
+			});
+		}
+
+		changedToyIds.add(toyId);
+	}
+
+	@Nonnull
+	public List<Toy> findToys() {
+		return currentSnapshot().toys();
+	}
+
+	@Nonnull
+	public Optional<Toy> findToyById(@Nullable UUID toyId) {
+		if (toyId == null)
+			return Optional.empty();
+
+		if (changedToyIdsForCurrentTransaction() != null)
+			return loadToysByIds(Set.of(toyId)).stream().findFirst();
+
+		return Optional.ofNullable(currentSnapshot().toysById().get(toyId));
+	}
+
+	@Nonnull
+	public List<Toy> findToysByIds(@Nullable Collection<UUID> toyIds) {
+		if (toyIds == null || toyIds.size() == 0)
+			return List.of();
+
+		Map<UUID, Toy> toysById;
+
+		if (changedToyIdsForCurrentTransaction() == null) {
+			toysById = currentSnapshot().toysById();
+		} else {
+			toysById = new HashMap<>(toyIds.size() * 2);
+
+			for (Toy toy : loadToysByIds(new HashSet<>(toyIds)))
+				toysById.put(toy.toyId(), toy);
+		}
+
+		List<Toy> toys = new ArrayList<>(toyIds.size());
+
+		for (UUID toyId : toyIds) {
+			Toy toy = toysById.get(toyId);
+
+			if (toy != null)
+				toys.add(toy);
+		}
+
+		return Collections.unmodifiableList(toys);
+	}
+
+	// Case- and accent-insensitive name prefix match, in catalog order
+	@Nonnull
+	public List<Toy> searchToys(@Nonnull String prefix) {
+		requireNonNull(prefix);
+
+		ToyCatalogSnapshot snapshot = currentSnapshot();
+		String foldedPrefix = fold(prefix);
+
+		return snapshot.toys().subList(prefixStartIndex(snapshot, foldedPrefix), prefixEndIndex(snapshot, foldedPrefix));
+	}
+
+	// Typo-tolerant search: up to limit toys whose folded names are at least minimumSimilarity similar to the query, best first
+	@Nonnull
+	public List<Toy> fuzzySearchToys(@Nonnull String query,
+																	 @Nonnull Double minimumSimilarity,
+																	 @Nonnull Integer limit) {
+		requireNonNull(query);
+		requireNonNull(minimumSimilarity);
+		requireNonNull(limit);
+
+		ToyCatalogSnapshot snapshot = currentSnapshot();
+		int[] toyIndexes = snapshot.searchIndex().search(fold(query), minimumSimilarity, limit);
+		List<Toy> toys = new ArrayList<>(toyIndexes.length);
+
+		for (int toyIndex : toyIndexes)
+			toys.add(snapshot.toys().get(toyIndex));
+
+		return Collections.unmodifiableList(toys);
+	}
+
+	// Up to limit toys that sort after the cursor, optionally restricted to a name prefix as in searchToys().
+	// Binary search finds where the page starts and where the prefix's run ends, so a deep page costs the same as the first one
+	@Nonnull
+	public ToyCatalogPage findToyPage(@Nullable String prefix,
+																		@Nullable ToyCursor after,
+																		@Nonnull Integer limit) {
+		requireNonNull(limit);
+
+		if (limit < 1)
+			throw new IllegalArgumentException("Limit must be at least 1");
+
+		ToyCatalogSnapshot snapshot = currentSnapshot();
+		String foldedPrefix = prefix == null ? "" : fold(prefix);
+		int startIndex = prefixStartIndex(snapshot, foldedPrefix);
+		int endIndex = prefixEndIndex(snapshot, foldedPrefix);
+
+		if (after != null)
+			startIndex = Math.max(startIndex, indexAfter(snapshot, after));
+
+		if (startIndex >= endIndex)
+			return new ToyCatalogPage(List.of(), false);
+
+		int pageEndIndex = (int) Math.min((long) startIndex + limit, endIndex);
+
+		return new ToyCatalogPage(snapshot.toys().subList(startIndex, pageEndIndex), pageEndIndex < endIndex);
+	}
+
+	public record ToyCatalogPage(
+			@Nonnull List<Toy> toys,
+			@Nonnull Boolean hasMore
+	) {
+		public ToyCatalogPage {
+			requireNonNull(toys);
+			requireNonNull(hasMore);
+		}
+	}
+
+	// Index of the first toy that sorts strictly after the cursor.
+	// The cursor's toy needn't still exist; paging simply resumes where it would have been
+	@Nonnull
+	protected Integer indexAfter(@Nonnull ToyCatalogSnapshot snapshot,
+															 @Nonnull ToyCursor after) {
+		requireNonNull(snapshot);
+		requireNonNull(after);
+
+		String foldedName = fold(after.name());
+		int low = 0;
+		int high = snapshot.toys().size();
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			Toy toy = snapshot.toys().get(middle);
+
+			if (compare(snapshot.foldedNames().get(middle), toy.name(), toy.toyId(), foldedName, after.name(), after.toyId()) <= 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	// Index of the first toy whose folded name is at or after the prefix
+	@Nonnull
+	protected Integer prefixStartIndex(@Nonnull ToyCatalogSnapshot snapshot,
+																		 @Nonnull String foldedPrefix) {
+		requireNonNull(snapshot);
+		requireNonNull(foldedPrefix);
+
+		int low = 0;
+		int high = snapshot.foldedNames().size();
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (snapshot.foldedNames().get(middle).compareTo(foldedPrefix) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	// Index just past the last toy whose folded name starts with the prefix.
+	// Names sharing a prefix are contiguous in sorted order, so everything before this either sorts lower or matches
+	@Nonnull
+	protected Integer prefixEndIndex(@Nonnull ToyCatalogSnapshot snapshot,
+																	 @Nonnull String foldedPrefix) {
+		requireNonNull(snapshot);
+		requireNonNull(foldedPrefix);
+
+		int low = 0;
+		int high = snapshot.foldedNames().size();
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			String foldedName = snapshot.foldedNames().get(middle);
+
+			if (foldedName.startsWith(foldedPrefix) || foldedName.compareTo(foldedPrefix) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low;
+	}
+
+	// Lowercases and strips accents, e.g. "Élan Vital" -> "elan vital", so searches needn't match either exactly
+	@Nonnull
+	public static String fold(@Nonnull String string) {
+		requireNonNull(string);
+
+		String decomposed = Normalizer.normalize(string, Normalizer.Form.NFD);
+		return COMBINING_MARKS_PATTERN.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+
+	// Catalog order: folded name, then exact name, then toy ID.
+	// Names are unique, but the toy ID makes ties impossible regardless
+	protected static int compare(@Nonnull String foldedName,
+															 @Nonnull String name,
+															 @Nonnull UUID toyId,
+															 @Nonnull String otherFoldedName,
+															 @Nonnull String otherName,
+															 @Nonnull UUID otherToyId) {
+		int comparison = foldedName.compareTo(otherFoldedName);
+
+		if (comparison == 0)
+			comparison = name.compareTo(otherName);
+
+		if (comparison == 0)
+			comparison = toyId.compareTo(otherToyId);
+
+		return comparison;
+	}
+
+	@Nonnull
+	protected ToyCatalogSnapshot currentSnapshot() {
+		// Our own transaction has uncommitted catalog changes that the shared snapshot can't see
+		Set<UUID> transactionChangedToyIds = changedToyIdsForCurrentTransaction();
+
+		if (transactionChangedToyIds != null)
+			return transactionSnapshot(transactionChangedToyIds);
+
+		if (!this.stale && getPendingToyIds().isEmpty())
+			return this.snapshot;
+
+		getReloadLock().lock();
+
+		try {
+			if (this.stale || getPendingToyIds().size() > MAXIMUM_INCREMENTAL_CHANGE_COUNT) {
+				// Clear these before loading, so a commit that lands mid-load leaves its changes pending instead of being lost
+				this.stale = false;
+				getPendingToyIds().clear();
+
+				try {
+					this.snapshot = ToyCatalogSnapshot.fromToys(loadToys());
+				} catch (RuntimeException e) {
+					this.stale = true;
+					throw e;
+				}
+
+				return this.snapshot;
+			}
+
+			Set<UUID> pendingToyIds = new HashSet<>(getPendingToyIds());
+
+			if (pendingToyIds.size() == 0)
+				return this.snapshot;
+
+			// Same as above: a commit that lands mid-load puts its toys back for the next reader
+			getPendingToyIds().removeAll(pendingToyIds);
+
+			try {
+				this.snapshot = this.snapshot.withChanges(pendingToyIds, loadToysByIds(pendingToyIds));
+			} catch (RuntimeException e) {
+				getPendingToyIds().addAll(pendingToyIds);
+				throw e;
+			}
+
+			return this.snapshot;
+		} finally {
+			getReloadLock().unlock();
+		}
+	}
+
+	// What our writing transaction sees: the shared snapshot with every row it changed (and any committed changes
+	// the shared snapshot hasn't caught up with) re-read through the transaction.  It's ours alone, so it isn't kept
+	@Nonnull
+	protected ToyCatalogSnapshot transactionSnapshot(@Nonnull Set<UUID> transactionChangedToyIds) {
+		requireNonNull(transactionChangedToyIds);
+
+		ToyCatalogSnapshot snapshot = this.snapshot;
+
+		if (this.stale)
+			return ToyCatalogSnapshot.fromToys(loadToys());
+
+		Set<UUID> changedToyIds = new HashSet<>(transactionChangedToyIds);
+		changedToyIds.addAll(getPendingToyIds());
+
+		if (changedToyIds.size() > MAXIMUM_INCREMENTAL_CHANGE_COUNT)
+			return ToyCatalogSnapshot.fromToys(loadToys());
+
+		return snapshot.withChanges(changedToyIds, loadToysByIds(changedToyIds));
+	}
+
+	// Null if the current transaction (if any) hasn't written to the catalog
+	@Nullable
+	protected Set<UUID> changedToyIdsForCurrentTransaction() {
+		Transaction transaction = getDatabase().currentTransaction().orElse(null);
+		return transaction == null ? null : getChangedToyIdsByTransaction().get(transaction);
+	}
+
+	protected void reloadInBackground() {
+		// A fresh thread, so the load can't get caught up in whatever transaction we're finishing
+		Thread.ofVirtual().name("toy-catalog-reload").start(() -> {
+			try {
+				currentSnapshot();
+			} catch (Exception e) {
+				getLogger().warn("Unable to reload toy catalog; readers will retry", e);
+			}
+		});
+	}
+
+	@Nonnull
+	protected List<Toy> loadToys() {
+		return getDatabase().queryForList("""
+				  SELECT *
+				  FROM toy
+				  ORDER BY name, toy_id
+				""", Toy.class);
+	}
+
+	// Toys that no longer exist are simply missing from the results
+	@Nonnull
+	protected List<Toy> loadToysByIds(@Nonnull Set<UUID> toyIds) {
+		requireNonNull(toyIds);
+
+		if (toyIds.size() == 0)
+			return List.of();
+
+		return getDatabase().queryForList(format("""
+				  SELECT *
+				  FROM toy
+				  WHERE toy_id IN (%s)
+				""", String.join(",", Collections.nCopies(toyIds.size(), "?"))), Toy.class, toyIds.toArray());
+	}
+
+	public record ToyCatalogSnapshot(
+			@Nonnull List<Toy> toys,
+			@Nonnull Map<UUID, Toy> toysById,
+			@Nonnull List<String> foldedNames,
+			@Nonnull TrigramIndex searchIndex,
+			@Nonnull Instant loadedAt
+	) {
+		public ToyCatalogSnapshot {
+			requireNonNull(toys);
+			requireNonNull(toysById);
+			requireNonNull(foldedNames);
+			requireNonNull(searchIndex);
+			requireNonNull(loadedAt);
+		}
+
+		// Sorts here rather than trusting the database's collation, so searching, pagination and the snapshot always agree on order
+		@Nonnull
+		public static ToyCatalogSnapshot fromToys(@Nonnull List<Toy> toys) {
+			requireNonNull(toys);
+
+			// Fold each name once up front instead of on every comparison
+			List<FoldedToy> foldedToys = new ArrayList<>(toys.size());
+
+			for (Toy toy : toys)
+				foldedToys.add(new FoldedToy(fold(toy.name()), toy));
+
+			Collections.sort(foldedToys);
+
+			List<Toy> sortedToys = new ArrayList<>(foldedToys.size());
+			Map<UUID, Toy> toysById = new HashMap<>(foldedToys.size() * 2);
+			List<String> foldedNames = new ArrayList<>(foldedToys.size());
+
+			for (FoldedToy foldedToy : foldedToys) {
+				sortedToys.add(foldedToy.toy());
+				toysById.put(foldedToy.toy().toyId(), foldedToy.toy());
+				foldedNames.add(foldedToy.foldedName());
+			}
+
+			// Search results are positions in the sorted toy list
+			return new ToyCatalogSnapshot(List.copyOf(sortedToys), Collections.unmodifiableMap(toysById),
+					List.copyOf(foldedNames), TrigramIndex.forDocuments(foldedNames), Instant.now());
+		}
+
+		// The snapshot after replacing the changed toys, in O(n + k log k) for k changes: only the changed toys are folded
+		// and sorted, then merged into the existing order, and the search index is derived from this one's.
+		// Toys among changedToyIds but missing from changedToys have been deleted
+		@Nonnull
+		public ToyCatalogSnapshot withChanges(@Nonnull Set<UUID> changedToyIds,
+																					@Nonnull Collection<Toy> changedToys) {
+			requireNonNull(changedToyIds);
+			requireNonNull(changedToys);
+
+			if (changedToyIds.size() == 0)
+				return this;
+
+			List<FoldedToy> addedFoldedToys = new ArrayList<>(changedToys.size());
+
+			for (Toy toy : changedToys)
+				addedFoldedToys.add(new FoldedToy(fold(toy.name()), toy));
+
+			Collections.sort(addedFoldedToys);
+
+			int maximumToyCount = toys().size() + addedFoldedToys.size();
+			List<Toy> mergedToys = new ArrayList<>(maximumToyCount);
+			List<String> mergedFoldedNames = new ArrayList<>(maximumToyCount);
+			int[] documentIdMapping = new int[toys().size()];
+			int[] addedDocumentIds = new int[addedFoldedToys.size()];
+			List<String> addedFoldedNames = new ArrayList<>(addedFoldedToys.size());
+			int addedIndex = 0;
+
+			for (int index = 0; index < toys().size(); ++index) {
+				Toy toy = toys().get(index);
+				String foldedName = foldedNames().get(index);
+
+				// Changed toys are dropped here and re-inserted at their new position below (if they still exist)
+				if (changedToyIds.contains(toy.toyId())) {
+					documentIdMapping[index] = -1;
+					continue;
+				}
+
+				while (addedIndex < addedFoldedToys.size() && addedFoldedToys.get(addedIndex).compareTo(foldedName, toy) < 0) {
+					FoldedToy addedFoldedToy = addedFoldedToys.get(addedIndex);
+					addedDocumentIds[addedIndex++] = mergedToys.size();
+					addedFoldedNames.add(addedFoldedToy.foldedName());
+					mergedToys.add(addedFoldedToy.toy());
+					mergedFoldedNames.add(addedFoldedToy.foldedName());
+				}
+
+				documentIdMapping[index] = mergedToys.size();
+				mergedToys.add(toy);
+				mergedFoldedNames.add(foldedName);
+			}
+
+			for (; addedIndex < addedFoldedToys.size(); ++addedIndex) {
+				FoldedToy addedFoldedToy = addedFoldedToys.get(addedIndex);
+				addedDocumentIds[addedIndex] = mergedToys.size();
+				addedFoldedNames.add(addedFoldedToy.foldedName());
+				mergedToys.add(addedFoldedToy.toy());
+				mergedFoldedNames.add(addedFoldedToy.foldedName());
+			}
+
+			Map<UUID, Toy> mergedToysById = new HashMap<>(toysById());
+			mergedToysById.keySet().removeAll(changedToyIds);
+
+			for (FoldedToy addedFoldedToy : addedFoldedToys)
+				mergedToysById.put(addedFoldedToy.toy().toyId(), addedFoldedToy.toy());
+
+			TrigramIndex searchIndex = searchIndex().withChanges(documentIdMapping, mergedToys.size(), addedDocumentIds, addedFoldedNames);
+
+			return new ToyCatalogSnapshot(List.copyOf(mergedToys), Collections.unmodifiableMap(mergedToysById),
+					List.copyOf(mergedFoldedNames), searchIndex, Instant.now());
+		}
+
+		private record FoldedToy(
+				@Nonnull String foldedName,
+				@Nonnull Toy toy
+		) implements Comparable<FoldedToy> {
+			@Override
+			public int compareTo(@Nonnull FoldedToy foldedToy) {
+				return compareTo(foldedToy.foldedName(), foldedToy.toy());
+			}
+
+			public int compareTo(@Nonnull String otherFoldedName,
+													 @Nonnull Toy otherToy) {
+				return compare(foldedName(), toy().name(), toy().toyId(), otherFoldedName, otherToy.name(), otherToy.toyId());
+			}
+		}
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<Transaction, Set<UUID>> getChangedToyIdsByTransaction() {
+		return this.changedToyIdsByTransaction;
+	}
+
+	@Nonnull
+	protected Set<UUID> getPendingToyIds() {
+		return this.pendingToyIds;
+	}
+
+	@Nonnull
+	protected ReentrantLock getReloadLock() {
+		return this.reloadLock;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
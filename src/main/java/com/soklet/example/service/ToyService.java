@@ -22,15 +22,24 @@ import com.lokalized.Strings;
 import com.pyranid.Database;
 import com.pyranid.DatabaseException;
 import com.pyranid.Transaction;
+import com.soklet.example.Configuration;
 import com.soklet.example.CurrentContext;
 import com.soklet.example.exception.ApplicationException;
+import com.soklet.example.exception.ServiceUnavailableException;
+import com.soklet.example.model.api.ToyCursor;
+import com.soklet.example.model.api.request.ToyCheckoutRequest;
+import com.soklet.example.model.api.request.ToyCheckoutRequest.CheckoutItem;
 import com.soklet.example.model.api.request.ToyCreateRequest;
 import com.soklet.example.model.api.request.ToyPurchaseRequest;
 import com.soklet.example.model.api.request.ToyUpdateRequest;
 import com.soklet.example.model.db.Purchase;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
 import com.soklet.example.model.db.Toy;
+import com.soklet.example.service.ToyCatalog.ToyCatalogPage;
+import com.soklet.example.util.CreditCardNumberCipher;
 import com.soklet.example.util.CreditCardProcessor;
 import com.soklet.example.util.CreditCardProcessor.CreditCardPaymentException;
+import com.soklet.example.util.ResilientCreditCardProcessor.CreditCardProcessorUnavailableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,9 +47,16 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.math.BigDecimal;
+import java.security.PrivateKey;
 import java.sql.Savepoint;
 import java.text.NumberFormat;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Currency;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -48,6 +64,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
+import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 
 /**
@@ -60,36 +77,63 @@ public class ToyService {
 	@Nonnull
 	private final CreditCardProcessor creditCardProcessor;
 	@Nonnull
+	private final CreditCardNumberCipher creditCardNumberCipher;
+	@Nonnull
+	private final PurchaseOutboxProcessor purchaseOutboxProcessor;
+	@Nonnull
+	private final StockReservationEngine stockReservationEngine;
+	@Nonnull
+	private final PurchaseWriter purchaseWriter;
+	@Nonnull
+	private final ToyCatalog toyCatalog;
+	@Nonnull
 	private final Database database;
 	@Nonnull
 	private final Strings strings;
 	@Nonnull
+	private final Configuration configuration;
+	@Nonnull
 	private final Logger logger;
 
 	@Inject
 	public ToyService(@Nonnull Provider<CurrentContext> currentContextProvider,
 										@Nonnull CreditCardProcessor creditCardProcessor,
+										@Nonnull CreditCardNumberCipher creditCardNumberCipher,
+										@Nonnull PurchaseOutboxProcessor purchaseOutboxProcessor,
+										@Nonnull StockReservationEngine stockReservationEngine,
+										@Nonnull PurchaseWriter purchaseWriter,
+										@Nonnull ToyCatalog toyCatalog,
 										@Nonnull Database database,
-										@Nonnull Strings strings) {
+										@Nonnull Strings strings,
+										@Nonnull Configuration configuration) {
 		requireNonNull(currentContextProvider);
 		requireNonNull(creditCardProcessor);
+		requireNonNull(creditCardNumberCipher);
+		requireNonNull(purchaseOutboxProcessor);
+		requireNonNull(stockReservationEngine);
+		requireNonNull(purchaseWriter);
+		requireNonNull(toyCatalog);
 		requireNonNull(database);
 		requireNonNull(strings);
+		requireNonNull(configuration);
 
 		this.currentContextProvider = currentContextProvider;
 		this.creditCardProcessor = creditCardProcessor;
+		this.creditCardNumberCipher = creditCardNumberCipher;
+		this.purchaseOutboxProcessor = purchaseOutboxProcessor;
+		this.stockReservationEngine = stockReservationEngine;
+		this.purchaseWriter = purchaseWriter;
+		this.toyCatalog = toyCatalog;
 		this.database = database;
 		this.strings = strings;
+		this.configuration = configuration;
 		this.logger = LoggerFactory.getLogger(getClass());
 	}
 
+	// Catalog reads are served from memory, see ToyCatalog
 	@Nonnull
 	public List<Toy> findToys() {
-		return getDatabase().queryForList("""
-				  SELECT *
-				  FROM toy
-				  ORDER BY name
-				""", Toy.class);
+		return getToyCatalog().findToys();
 	}
 
 	@Nonnull
@@ -99,25 +143,87 @@ public class ToyService {
 		if (query.length() == 0)
 			return findToys();
 
-		// Naïve "LIKE" search
-		return getDatabase().queryForList("""
-				  SELECT *
-				  FROM toy
-				  WHERE LOWER(name) LIKE CONCAT(LOWER(?), '%')
-				  ORDER BY name
-				""", Toy.class, query);
+		return getToyCatalog().searchToys(query);
+	}
+
+	// Keyset pagination in catalog order: the cursor names the last toy of the previous page.
+	// Fuzzy search is ranked rather than ordered, so its results are a single page
+	@Nonnull
+	public ToyPage findToyPage(@Nullable String query,
+														 @Nullable String cursor,
+														 @Nullable Integer limit,
+														 @Nullable ToySearchMode searchMode) {
+		query = query == null ? "" : query.trim();
+		cursor = cursor == null ? "" : cursor.trim();
+
+		if (searchMode == null)
+			searchMode = ToySearchMode.PREFIX;
+
+		if (limit == null)
+			limit = getConfiguration().getToyPageDefaultLimit();
+
+		if (limit < 1 || limit > getConfiguration().getToyPageMaximumLimit())
+			throw ApplicationException.withStatusCode(400)
+					.generalError(getStrings().get("Limit must be between 1 and {{maximumLimit}}.",
+							Map.of("maximumLimit", getConfiguration().getToyPageMaximumLimit())))
+					.build();
+
+		if (searchMode == ToySearchMode.FUZZY && query.length() > 0) {
+			if (cursor.length() > 0)
+				throw ApplicationException.withStatusCode(400)
+						.generalError(getStrings().get("Fuzzy search results can't be paged."))
+						.build();
+
+			return new ToyPage(getToyCatalog().fuzzySearchToys(query, getConfiguration().getToySearchMinimumSimilarity(), limit), null);
+		}
+
+		PrivateKey privateKey = getConfiguration().getKeyPair().getPrivate();
+		ToyCursor after = null;
+
+		if (cursor.length() > 0) {
+			after = ToyCursor.fromStringRepresentation(cursor, privateKey).orElse(null);
+
+			if (after == null)
+				throw ApplicationException.withStatusCode(400)
+						.generalError(getStrings().get("This cursor is invalid. Please start again from the first page."))
+						.build();
+		}
+
+		ToyCatalogPage toyCatalogPage = getToyCatalog().findToyPage(query.length() == 0 ? null : query, after, limit);
+		String nextCursor = null;
+
+		if (toyCatalogPage.hasMore()) {
+			Toy lastToy = toyCatalogPage.toys().get(toyCatalogPage.toys().size() - 1);
+			nextCursor = new ToyCursor(lastToy.name(), lastToy.toyId()).toStringRepresentation(privateKey);
+		}
+
+		return new ToyPage(toyCatalogPage.toys(), nextCursor);
+	}
+
+	public enum ToySearchMode {
+		// Names starting with the query, ignoring case and accents
+		PREFIX,
+		// Names similar to the query, tolerating typos, best match first
+		FUZZY
+	}
+
+	public record ToyPage(
+			@Nonnull List<Toy> toys,
+			@Nullable String nextCursor
+	) {
+		public ToyPage {
+			requireNonNull(toys);
+		}
 	}
 
 	@Nonnull
 	public Optional<Toy> findToyById(@Nullable UUID toyId) {
-		if (toyId == null)
-			return Optional.empty();
+		return getToyCatalog().findToyById(toyId);
+	}
 
-		return getDatabase().queryForObject("""
-				SELECT *
-				FROM toy
-				WHERE toy_id=?
-				""", Toy.class, toyId);
+	@Nonnull
+	public List<Toy> findToysByIds(@Nullable Collection<UUID> toyIds) {
+		return getToyCatalog().findToysByIds(toyIds);
 	}
 
 	@Nonnull
@@ -128,6 +234,7 @@ public class ToyService {
 		String name = request.name() == null ? "" : request.name().trim();
 		BigDecimal price = request.price();
 		Currency currency = request.currency();
+		Integer stockQuantity = request.stockQuantity();
 		Map<String, String> fieldErrors = new LinkedHashMap<>();
 
 		if (name.length() == 0)
@@ -141,6 +248,9 @@ public class ToyService {
 		if (currency == null)
 			fieldErrors.put("currency", getStrings().get("Currency is required."));
 
+		if (stockQuantity != null && stockQuantity < 0)
+			fieldErrors.put("stockQuantity", getStrings().get("Stock quantity cannot be negative."));
+
 		if (fieldErrors.size() > 0)
 			throw ApplicationException.withStatusCode(422)
 					.fieldErrors(fieldErrors)
@@ -159,9 +269,10 @@ public class ToyService {
 						toy_id,
 						name,
 						price,
-						currency
-					) VALUES (?,?,?,?)
-					""", toyId, name, price, currency);
+						currency,
+						stock_quantity
+					) VALUES (?,?,?,?,?)
+					""", toyId, name, price, currency, stockQuantity);
 		} catch (DatabaseException e) {
 			// If this is a unique constraint violation on the 'name' field, handle it specially:
 			// roll the transaction back to a known-good state and expose some details to the caller
@@ -176,6 +287,8 @@ public class ToyService {
 			}
 		}
 
+		getToyCatalog().invalidate(toyId);
+
 		return toyId;
 	}
 
@@ -185,71 +298,422 @@ public class ToyService {
 
 		// TODO: validation
 
-		return getDatabase().execute("""
+		boolean updated = getDatabase().execute("""
 				UPDATE toy
 				SET name=?, price=?, currency=?
 				WHERE toy_id=?
 				""", request.name(), request.price(), request.currency(), request.toyId()) > 0;
+
+		if (updated)
+			getToyCatalog().invalidate(request.toyId());
+
+		return updated;
 	}
 
 	@Nonnull
 	public Boolean deleteToy(@Nonnull UUID toyId) {
 		requireNonNull(toyId);
-		return getDatabase().execute("DELETE FROM toy WHERE toy_id=?", toyId) > 0;
+
+		boolean deleted = getDatabase().execute("DELETE FROM toy WHERE toy_id=?", toyId) > 0;
+		getStockReservationEngine().forget(toyId);
+
+		if (deleted)
+			getToyCatalog().invalidate(toyId);
+
+		return deleted;
 	}
 
+	// Purchases happen in phases so we never hold a connection or open transaction while waiting on the credit card processor:
+	//
+	// 0. A unit of stock is reserved in memory (see StockReservationEngine), so buyers don't queue on the toy's row lock
+	// 1. A short transaction records the purchase as PENDING
+	// 2. The card is charged with no connection held
+	// 3. A second short transaction marks the purchase COMPLETED (or VOIDED, if the charge failed).
+	//    If we can't tell whether the charge went through, the purchase is queued in the outbox for a worker to settle
+	//
+	// Phases 1 and 3 go through PurchaseWriter, which can group-commit them with other in-flight purchases
+	//
+	// Callers should not already be in a transaction (see TransactionMode.NONE), otherwise these phases join it
+	// and the connection is held for the whole charge anyway
 	@Nonnull
 	public UUID purchaseToy(@Nonnull ToyPurchaseRequest request) {
 		requireNonNull(request);
 
+		validatePurchaseRequest(request);
+
+		UUID accountId = request.accountId();
+		Toy toy = findToyById(request.toyId()).orElse(null);
+		String creditCardTransactionId;
+		UUID purchaseId = UUID.randomUUID();
+
+		// Phase 0: claim the stock
+		reserveStock(Map.of(toy, 1));
+
+		// Phase 1: record our intent to purchase
+		try {
+			getPurchaseWriter().insertPendingPurchase(purchaseId, accountId, toy);
+		} catch (RuntimeException e) {
+			releaseStock(Map.of(toy, 1));
+			throw e;
+		}
+
+		// Phase 2: talk to the outside world, holding no database resources
+		try {
+			creditCardTransactionId = getCreditCardProcessor().makePayment(purchaseId.toString(), request.creditCardNumber(), toy.price(), toy.currency());
+		} catch (CreditCardPaymentException e) {
+			// Phase 3 (failure): the charge definitely did not go through, so the purchase can never complete
+			getPurchaseWriter().updatePurchaseStatus(purchaseId, PurchaseStatusId.VOIDED, null);
+
+			releaseStock(Map.of(toy, 1));
+
+			throw ApplicationException.withStatusCode(422)
+					.generalError(getStrings().get("We were unable to charge {{amount}} to your credit card.",
+							Map.of("amount", formatPriceForDisplay(toy.price(), toy.currency()))))
+					.metadata(Map.of("failureReason", e.getFailureReason()))
+					.build();
+		} catch (CreditCardProcessorUnavailableException e) {
+			// We never reached the processor, so the card wasn't charged and the purchase can be voided.
+			// Otherwise the charge may have happened, so hand the still-PENDING purchase to the outbox worker.
+			// It retries with the same idempotency key, so the processor won't charge the card a second time
+			if (e.getChargeAttempted()) {
+				enqueuePurchaseOutbox(purchaseId, request.creditCardNumber(), toy.price(), toy.currency(), getConfiguration().getPurchaseOutboxRetryBaseDelay());
+				throw new PurchaseOutcomeUnknownException(purchaseId, e);
+			}
+
+			getPurchaseWriter().updatePurchaseStatus(purchaseId, PurchaseStatusId.VOIDED, null);
+
+			releaseStock(Map.of(toy, 1));
+
+			throw e;
+		}
+
+		// Phase 3 (success): record the charge.
+		// The card has been charged at this point, so a retry would be wrong; make sure someone can find the transaction
+		try {
+			getPurchaseWriter().updatePurchaseStatus(purchaseId, PurchaseStatusId.COMPLETED, creditCardTransactionId);
+		} catch (RuntimeException e) {
+			getLogger().error(format("Charged credit card transaction ID %s but could not complete purchase ID %s",
+					creditCardTransactionId, purchaseId), e);
+			throw e;
+		}
+
+		return purchaseId;
+	}
+
+	// Accepts the purchase without charging the card: the PENDING purchase and its outbox entry are written in the same
+	// transaction, and a PurchaseOutboxProcessor worker makes the charge later.  Callers poll the purchase for its outcome
+	@Nonnull
+	public UUID enqueuePurchaseToy(@Nonnull ToyPurchaseRequest request) {
+		requireNonNull(request);
+
+		validatePurchaseRequest(request);
+
 		UUID accountId = request.accountId();
-		String creditCardNumber = request.creditCardNumber();
-		YearMonth creditCardExpiration = request.creditCardExpiration();
 		Toy toy = findToyById(request.toyId()).orElse(null);
-		String creditCardTransactionId = null;
+		UUID purchaseId = UUID.randomUUID();
+
+		// The worker gives the stock back if the purchase ends up voided
+		reserveStock(Map.of(toy, 1));
+
+		try {
+			getDatabase().transaction(() -> {
+				getDatabase().execute("""
+						INSERT INTO purchase (
+							purchase_id,
+							charge_id,
+							account_id,
+							toy_id,
+							purchase_status_id,
+							price,
+							currency
+						) VALUES (?,?,?,?,?,?,?)
+						""", purchaseId, purchaseId, accountId, toy.toyId(), PurchaseStatusId.PENDING, toy.price(), toy.currency());
+
+				insertPurchaseOutbox(purchaseId, request.creditCardNumber(), toy.price(), toy.currency(), false, Instant.now());
+			});
+		} catch (RuntimeException e) {
+			releaseStock(Map.of(toy, 1));
+			throw e;
+		}
+
+		// Committed, so workers can see it now
+		getPurchaseOutboxProcessor().signal();
+
+		return purchaseId;
+	}
+
+	// Lets the outbox worker finish the purchases paid for by a charge whose outcome is unknown.
+	// If even this fails, they stay PENDING and hold their stock; we log loudly so they can be settled by hand
+	protected void enqueuePurchaseOutbox(@Nonnull UUID chargeId,
+																			 @Nonnull String creditCardNumber,
+																			 @Nonnull BigDecimal amount,
+																			 @Nonnull Currency currency,
+																			 @Nonnull Duration delay) {
+		requireNonNull(chargeId);
+		requireNonNull(creditCardNumber);
+		requireNonNull(amount);
+		requireNonNull(currency);
+		requireNonNull(delay);
+
+		try {
+			getDatabase().transaction(() -> {
+				insertPurchaseOutbox(chargeId, creditCardNumber, amount, currency, true, Instant.now().plus(delay));
+			});
+		} catch (RuntimeException e) {
+			getLogger().error(format("Unable to queue charge ID %s for reconciliation, its purchases will stay pending", chargeId), e);
+		}
+	}
+
+	protected void insertPurchaseOutbox(@Nonnull UUID chargeId,
+																			@Nonnull String creditCardNumber,
+																			@Nonnull BigDecimal amount,
+																			@Nonnull Currency currency,
+																			@Nonnull Boolean chargeAttempted,
+																			@Nonnull Instant nextAttemptAt) {
+		requireNonNull(chargeId);
+		requireNonNull(creditCardNumber);
+		requireNonNull(amount);
+		requireNonNull(currency);
+		requireNonNull(chargeAttempted);
+		requireNonNull(nextAttemptAt);
+
+		getDatabase().execute("""
+				INSERT INTO purchase_outbox (
+					charge_id,
+					encrypted_credit_card_number,
+					amount,
+					currency,
+					charge_attempted,
+					next_attempt_at
+				) VALUES (?,?,?,?,?,?)
+				""", chargeId, getCreditCardNumberCipher().encrypt(creditCardNumber), amount, currency, chargeAttempted, nextAttemptAt);
+	}
+
+	// Buys every toy in the cart with one charge for the total.
+	// Follows the same phases as purchaseToy, but each phase handles the whole cart in a single batch.
+	// Every unit gets its own purchase row; all of them share one charge ID and, once charged, its credit card transaction ID
+	@Nonnull
+	public List<UUID> checkout(@Nonnull ToyCheckoutRequest request) {
+		requireNonNull(request);
 
 		Map<String, String> fieldErrors = new LinkedHashMap<>();
+		validatePaymentFields(request.accountId(), request.creditCardNumber(), request.creditCardExpiration(), fieldErrors);
+
+		// Combine repeated toys so we load each one only once
+		Map<UUID, Integer> quantitiesByToyId = new LinkedHashMap<>();
+		List<CheckoutItem> items = request.items() == null ? List.of() : request.items();
+		int maximumQuantity = getConfiguration().getCheckoutMaximumQuantity();
+		// A long, and every item capped, so no combination of quantities can overflow into something that passes the check
+		long totalQuantity = 0;
+
+		for (CheckoutItem item : items) {
+			if (item == null || item.toyId() == null) {
+				fieldErrors.put("items", getStrings().get("Every item must specify a toy."));
+				break;
+			}
 
-		if (accountId == null)
-			fieldErrors.put("accountId", getStrings().get("Account ID is required."));
+			if (item.quantity() == null || item.quantity() < 1) {
+				fieldErrors.put("items", getStrings().get("Every item must have a quantity of at least 1."));
+				break;
+			}
 
-		if (creditCardNumber == null)
-			fieldErrors.put("creditCardNumber", getStrings().get("Credit card number is required."));
+			totalQuantity += item.quantity();
 
-		if (creditCardExpiration == null)
-			fieldErrors.put("creditCardExpiration", getStrings().get("Credit card expiration is required."));
-		else if (creditCardExpiration.isBefore(YearMonth.now(getCurrentContext().getTimeZone())))
-			fieldErrors.put("creditCardExpiration", getStrings().get("Credit card is expired."));
+			if (totalQuantity > maximumQuantity) {
+				fieldErrors.put("items", getStrings().get("You can buy at most {{maximumQuantity}} toys at once.",
+						Map.of("maximumQuantity", maximumQuantity)));
+				break;
+			}
+
+			// Can't overflow: the running total, which includes this toy's merged quantity, is within the maximum
+			quantitiesByToyId.merge(item.toyId(), item.quantity(), Integer::sum);
+		}
+
+		if (!fieldErrors.containsKey("items") && quantitiesByToyId.size() == 0)
+			fieldErrors.put("items", getStrings().get("Your cart is empty."));
 
 		if (fieldErrors.size() > 0)
 			throw ApplicationException.withStatusCode(422)
 					.fieldErrors(fieldErrors)
 					.build();
 
+		List<Toy> toys = findToysByIds(quantitiesByToyId.keySet());
+
+		if (toys.size() != quantitiesByToyId.size())
+			throw ApplicationException.withStatusCode(422)
+					.fieldErrors(Map.of("items", getStrings().get("Some of the toys in your cart are no longer available.")))
+					.build();
+
+		// A single charge can only be made in a single currency
+		Currency currency = toys.get(0).currency();
+
+		for (Toy toy : toys)
+			if (!toy.currency().equals(currency))
+				throw ApplicationException.withStatusCode(422)
+						.generalError(getStrings().get("All toys in your cart must be priced in the same currency."))
+						.build();
+
+		Map<Toy, Integer> quantitiesByToy = new LinkedHashMap<>();
+
+		for (Toy toy : toys)
+			quantitiesByToy.put(toy, quantitiesByToyId.get(toy.toyId()));
+
+		UUID accountId = request.accountId();
+		UUID chargeId = UUID.randomUUID();
+		BigDecimal total = BigDecimal.ZERO;
+		List<UUID> purchaseIds = new ArrayList<>((int) totalQuantity);
+		List<List<Object>> purchaseParameterGroups = new ArrayList<>((int) totalQuantity);
+
+		for (Toy toy : toys) {
+			int quantity = quantitiesByToyId.get(toy.toyId());
+			total = total.add(toy.price().multiply(BigDecimal.valueOf(quantity)));
+
+			for (int i = 0; i < quantity; ++i) {
+				UUID purchaseId = UUID.randomUUID();
+				purchaseIds.add(purchaseId);
+				purchaseParameterGroups.add(List.of(purchaseId, chargeId, accountId, toy.toyId(), PurchaseStatusId.PENDING, toy.price(), toy.currency()));
+			}
+		}
+
+		// Phase 0: claim stock for the whole cart, or none of it
+		reserveStock(quantitiesByToy);
+
+		// Phase 1: record our intent to purchase, all rows in one batch
 		try {
-			creditCardTransactionId = getCreditCardProcessor().makePayment(request.creditCardNumber(), toy.price(), toy.currency());
+			getDatabase().transaction(() -> {
+				getDatabase().executeBatch("""
+						INSERT INTO purchase (
+							purchase_id,
+							charge_id,
+							account_id,
+							toy_id,
+							purchase_status_id,
+							price,
+							currency
+						) VALUES (?,?,?,?,?,?,?)
+						""", purchaseParameterGroups);
+			});
+		} catch (RuntimeException e) {
+			releaseStock(quantitiesByToy);
+			throw e;
+		}
+
+		// Phase 2: one charge for the whole cart, holding no database resources
+		String creditCardTransactionId;
+
+		try {
+			creditCardTransactionId = getCreditCardProcessor().makePayment(chargeId.toString(), request.creditCardNumber(), total, currency);
 		} catch (CreditCardPaymentException e) {
+			getDatabase().transaction(() -> {
+				updatePurchaseStatuses(purchaseIds, PurchaseStatusId.VOIDED, null);
+			});
+
+			releaseStock(quantitiesByToy);
+
 			throw ApplicationException.withStatusCode(422)
 					.generalError(getStrings().get("We were unable to charge {{amount}} to your credit card.",
-							Map.of("amount", formatPriceForDisplay(toy.price(), toy.currency()))))
+							Map.of("amount", formatPriceForDisplay(total, currency))))
 					.metadata(Map.of("failureReason", e.getFailureReason()))
 					.build();
+		} catch (CreditCardProcessorUnavailableException e) {
+			// As with a single purchase, an uncertain charge goes to the outbox worker, which settles every row that shares it
+			if (e.getChargeAttempted()) {
+				enqueuePurchaseOutbox(chargeId, request.creditCardNumber(), total, currency, getConfiguration().getPurchaseOutboxRetryBaseDelay());
+			} else {
+				getDatabase().transaction(() -> {
+					updatePurchaseStatuses(purchaseIds, PurchaseStatusId.VOIDED, null);
+				});
+
+				releaseStock(quantitiesByToy);
+			}
+
+			throw e;
 		}
 
-		UUID purchaseId = UUID.randomUUID();
+		// Phase 3: record the charge against every row
+		getDatabase().transaction(() -> {
+			updatePurchaseStatuses(purchaseIds, PurchaseStatusId.COMPLETED, creditCardTransactionId);
+		});
 
-		getDatabase().execute("""
-				INSERT INTO purchase (
-					purchase_id,
-					account_id,
-					toy_id,
-					price,
-					currency,
-					credit_card_txn_id
-				) VALUES (?,?,?,?,?,?)
-				""", purchaseId, accountId, toy.toyId(), toy.price(), toy.currency(), creditCardTransactionId);
+		return purchaseIds;
+	}
 
-		return purchaseId;
+	// All-or-nothing: if any toy is short, whatever was already reserved is given back
+	protected void reserveStock(@Nonnull Map<Toy, Integer> quantitiesByToy) {
+		requireNonNull(quantitiesByToy);
+
+		Map<Toy, Integer> reservedQuantitiesByToy = new LinkedHashMap<>();
+
+		for (Map.Entry<Toy, Integer> entry : quantitiesByToy.entrySet()) {
+			Toy toy = entry.getKey();
+			Integer quantity = entry.getValue();
+
+			if (!getStockReservationEngine().reserve(toy.toyId(), quantity)) {
+				releaseStock(reservedQuantitiesByToy);
+
+				throw ApplicationException.withStatusCode(422)
+						.generalError(getStrings().get("Sorry, there isn't enough '{{name}}' in stock.", Map.of("name", toy.name())))
+						.build();
+			}
+
+			reservedQuantitiesByToy.put(toy, quantity);
+		}
+	}
+
+	protected void releaseStock(@Nonnull Map<Toy, Integer> quantitiesByToy) {
+		requireNonNull(quantitiesByToy);
+
+		for (Map.Entry<Toy, Integer> entry : quantitiesByToy.entrySet())
+			getStockReservationEngine().release(entry.getKey().toyId(), entry.getValue());
+	}
+
+	protected void validatePurchaseRequest(@Nonnull ToyPurchaseRequest request) {
+		requireNonNull(request);
+
+		Map<String, String> fieldErrors = new LinkedHashMap<>();
+		validatePaymentFields(request.accountId(), request.creditCardNumber(), request.creditCardExpiration(), fieldErrors);
+
+		if (fieldErrors.size() > 0)
+			throw ApplicationException.withStatusCode(422)
+					.fieldErrors(fieldErrors)
+					.build();
+	}
+
+	protected void validatePaymentFields(@Nullable UUID accountId,
+																			 @Nullable String creditCardNumber,
+																			 @Nullable YearMonth creditCardExpiration,
+																			 @Nonnull Map<String, String> fieldErrors) {
+		requireNonNull(fieldErrors);
+
+		if (accountId == null)
+			fieldErrors.put("accountId", getStrings().get("Account ID is required."));
+
+		if (creditCardNumber == null)
+			fieldErrors.put("creditCardNumber", getStrings().get("Credit card number is required."));
+
+		if (creditCardExpiration == null)
+			fieldErrors.put("creditCardExpiration", getStrings().get("Credit card expiration is required."));
+		else if (creditCardExpiration.isBefore(YearMonth.now(getCurrentContext().getTimeZone())))
+			fieldErrors.put("creditCardExpiration", getStrings().get("Credit card is expired."));
+	}
+
+	protected void updatePurchaseStatuses(@Nonnull List<UUID> purchaseIds,
+																				@Nonnull PurchaseStatusId purchaseStatusId,
+																				@Nullable String creditCardTransactionId) {
+		requireNonNull(purchaseIds);
+		requireNonNull(purchaseStatusId);
+
+		List<List<Object>> parameterGroups = new ArrayList<>(purchaseIds.size());
+
+		// List.of() doesn't permit nulls, and the transaction ID is null for voided purchases
+		for (UUID purchaseId : purchaseIds)
+			parameterGroups.add(Arrays.asList(purchaseStatusId, creditCardTransactionId, purchaseId));
+
+		getDatabase().executeBatch("""
+				UPDATE purchase
+				SET purchase_status_id=?, credit_card_txn_id=?
+				WHERE purchase_id=?
+				""", parameterGroups);
 	}
 
 	@Nonnull
@@ -264,6 +728,26 @@ public class ToyService {
 				""", Purchase.class, purchaseId);
 	}
 
+	@Nonnull
+	public List<Purchase> findPurchasesByIds(@Nullable Collection<UUID> purchaseIds) {
+		if (purchaseIds == null || purchaseIds.size() == 0)
+			return List.of();
+
+		return getDatabase().queryForList(format("""
+				SELECT *
+				FROM purchase
+				WHERE purchase_id IN (%s)
+				ORDER BY created_at, purchase_id
+				""", placeholders(purchaseIds.size())), Purchase.class, purchaseIds.toArray());
+	}
+
+	// e.g. "?,?,?" for an IN clause with 3 values
+	@Nonnull
+	protected String placeholders(@Nonnull Integer count) {
+		requireNonNull(count);
+		return String.join(",", Collections.nCopies(count, "?"));
+	}
+
 	@Nonnull
 	protected String formatPriceForDisplay(@Nonnull BigDecimal price,
 																				 @Nonnull Currency currency) {
@@ -275,6 +759,25 @@ public class ToyService {
 		return currencyFormatter.format(price);
 	}
 
+	// The charge may or may not have gone through, and the purchase stays PENDING until the outbox worker finds out.
+	// Still a 503 to the caller, but it carries the purchase so idempotent retries can be pointed at it
+	public static class PurchaseOutcomeUnknownException extends ServiceUnavailableException {
+		@Nonnull
+		private final UUID purchaseId;
+
+		public PurchaseOutcomeUnknownException(@Nonnull UUID purchaseId,
+																					 @Nullable Throwable cause) {
+			super(format("Outcome of the charge for purchase ID %s is unknown", purchaseId), cause);
+			requireNonNull(purchaseId);
+			this.purchaseId = purchaseId;
+		}
+
+		@Nonnull
+		public UUID getPurchaseId() {
+			return this.purchaseId;
+		}
+	}
+
 	@Nonnull
 	protected CurrentContext getCurrentContext() {
 		return this.currentContextProvider.get();
@@ -285,6 +788,31 @@ public class ToyService {
 		return this.creditCardProcessor;
 	}
 
+	@Nonnull
+	protected CreditCardNumberCipher getCreditCardNumberCipher() {
+		return this.creditCardNumberCipher;
+	}
+
+	@Nonnull
+	protected PurchaseOutboxProcessor getPurchaseOutboxProcessor() {
+		return this.purchaseOutboxProcessor;
+	}
+
+	@Nonnull
+	protected StockReservationEngine getStockReservationEngine() {
+		return this.stockReservationEngine;
+	}
+
+	@Nonnull
+	protected PurchaseWriter getPurchaseWriter() {
+		return this.purchaseWriter;
+	}
+
+	@Nonnull
+	protected ToyCatalog getToyCatalog() {
+		return this.toyCatalog;
+	}
+
 	@Nonnull
 	protected Database getDatabase() {
 		return this.database;
@@ -295,6 +823,11 @@ public class ToyService {
 		return this.strings;
 	}
 
+	@Nonnull
+	protected Configuration getConfiguration() {
+		return this.configuration;
+	}
+
 	@Nonnull
 	protected Logger getLogger() {
 		return this.logger;
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.soklet.example.model.auth.AuthorizationPlan;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds an {@link AuthorizationPlan} for each resource method so annotations are only reflected on once.
+ * <p>
+ * Resource classes are compiled eagerly at startup; anything not registered is compiled the first time it's seen.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class AuthorizationPlanRegistry {
+	@Nonnull
+	private final ConcurrentHashMap<Method, AuthorizationPlan> authorizationPlansByMethod;
+
+	public AuthorizationPlanRegistry() {
+		this.authorizationPlansByMethod = new ConcurrentHashMap<>();
+	}
+
+	public void compile(@Nonnull Collection<Class<?>> resourceClasses) {
+		requireNonNull(resourceClasses);
+
+		for (Class<?> resourceClass : resourceClasses)
+			for (Method method : resourceClass.getDeclaredMethods())
+				if (Modifier.isPublic(method.getModifiers()) && !method.isSynthetic())
+					getAuthorizationPlansByMethod().computeIfAbsent(method, AuthorizationPlan::forMethod);
+	}
+
+	@Nonnull
+	public AuthorizationPlan authorizationPlanFor(@Nonnull Method method) {
+		requireNonNull(method);
+
+		// Fast path: plain get() avoids computeIfAbsent's locking when the plan already exists
+		AuthorizationPlan authorizationPlan = getAuthorizationPlansByMethod().get(method);
+
+		if (authorizationPlan != null)
+			return authorizationPlan;
+
+		return getAuthorizationPlansByMethod().computeIfAbsent(method, AuthorizationPlan::forMethod);
+	}
+
+	@Nonnull
+	public Map<Method, AuthorizationPlan> getAuthorizationPlans() {
+		return Collections.unmodifiableMap(getAuthorizationPlansByMethod());
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<Method, AuthorizationPlan> getAuthorizationPlansByMethod() {
+		return this.authorizationPlansByMethod;
+	}
+}
\ No newline at end of file
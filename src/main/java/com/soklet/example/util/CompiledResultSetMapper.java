@@ -0,0 +1,383 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.pyranid.DatabaseColumn;
+import com.pyranid.DatabaseException;
+import com.pyranid.InstanceProvider;
+import com.pyranid.ResultSetMapper;
+import com.pyranid.StatementContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Maps rows into records with a mapper compiled once per record type and query shape, instead of reflecting per row.
+ * <p>
+ * The first time a record type is seen with a given set of columns, each record component is bound to a column index
+ * and a type-specific reader, and the canonical constructor is resolved to a {@link MethodHandle}.  After that, mapping
+ * a row is a fixed sequence of {@code ResultSet} getters and one constructor call.
+ * Column names follow the same rules as Pyranid's: {@code camelCase} components match {@code snake_case} columns,
+ * and {@link DatabaseColumn} overrides the name.
+ * <p>
+ * Anything we can't compile (non-records, scalars, unsupported component types) goes to the fallback mapper.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class CompiledResultSetMapper implements ResultSetMapper {
+	@Nonnull
+	private final ResultSetMapper fallbackResultSetMapper;
+	// Empty means "can't compile this one, use the fallback"
+	@Nonnull
+	private final ConcurrentHashMap<RowMapperKey, Optional<RowMapper>> rowMappersByKey;
+	// Pyranid maps a result set one row at a time, so remember the last one to skip re-reading its metadata per row.
+	// The result set is only weakly held, so a long-lived pool thread doesn't pin its last query's results in memory
+	@Nonnull
+	private final ThreadLocal<ResolvedRowMapper> lastResolvedRowMapper;
+	// These come from small, fixed sets of values, so parsing each once is enough
+	@Nonnull
+	private final ConcurrentHashMap<String, Currency> currenciesByCode;
+	@Nonnull
+	private final ConcurrentHashMap<String, ZoneId> timeZonesById;
+	@Nonnull
+	private final ConcurrentHashMap<String, Locale> localesByLanguageTag;
+
+	public CompiledResultSetMapper(@Nonnull ResultSetMapper fallbackResultSetMapper) {
+		requireNonNull(fallbackResultSetMapper);
+
+		this.fallbackResultSetMapper = fallbackResultSetMapper;
+		this.rowMappersByKey = new ConcurrentHashMap<>();
+		this.lastResolvedRowMapper = new ThreadLocal<>();
+		this.currenciesByCode = new ConcurrentHashMap<>();
+		this.timeZonesById = new ConcurrentHashMap<>();
+		this.localesByLanguageTag = new ConcurrentHashMap<>();
+	}
+
+	@Nonnull
+	@Override
+	public <T> Optional<T> map(@Nonnull StatementContext<T> statementContext,
+														 @Nonnull ResultSet resultSet,
+														 @Nonnull Class<T> resultSetRowType,
+														 @Nonnull InstanceProvider instanceProvider) {
+		requireNonNull(statementContext);
+		requireNonNull(resultSet);
+		requireNonNull(resultSetRowType);
+		requireNonNull(instanceProvider);
+
+		if (!resultSetRowType.isRecord())
+			return getFallbackResultSetMapper().map(statementContext, resultSet, resultSetRowType, instanceProvider);
+
+		try {
+			RowMapper rowMapper = rowMapperFor(resultSet, resultSetRowType);
+
+			if (rowMapper == null)
+				return getFallbackResultSetMapper().map(statementContext, resultSet, resultSetRowType, instanceProvider);
+
+			return Optional.of(resultSetRowType.cast(rowMapper.map(resultSet)));
+		} catch (SQLException e) {
+			throw new DatabaseException(format("Unable to map row to %s", resultSetRowType.getSimpleName()), e);
+		}
+	}
+
+	@Nullable
+	protected RowMapper rowMapperFor(@Nonnull ResultSet resultSet,
+																	 @Nonnull Class<?> recordType) throws SQLException {
+		requireNonNull(resultSet);
+		requireNonNull(recordType);
+
+		ResolvedRowMapper resolvedRowMapper = getLastResolvedRowMapper().get();
+
+		if (resolvedRowMapper != null && resolvedRowMapper.resultSetReference().get() == resultSet && resolvedRowMapper.recordType() == recordType)
+			return resolvedRowMapper.rowMapper();
+
+		ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+		List<String> columnLabels = new ArrayList<>(resultSetMetaData.getColumnCount());
+
+		for (int i = 1; i <= resultSetMetaData.getColumnCount(); ++i)
+			columnLabels.add(resultSetMetaData.getColumnLabel(i).toLowerCase(Locale.ROOT));
+
+		RowMapper rowMapper = getRowMappersByKey().computeIfAbsent(new RowMapperKey(recordType, columnLabels),
+				rowMapperKey -> compile(rowMapperKey.recordType(), rowMapperKey.columnLabels())).orElse(null);
+
+		getLastResolvedRowMapper().set(new ResolvedRowMapper(new WeakReference<>(resultSet), recordType, rowMapper));
+
+		return rowMapper;
+	}
+
+	@Nonnull
+	protected Optional<RowMapper> compile(@Nonnull Class<?> recordType,
+																				@Nonnull List<String> columnLabels) {
+		requireNonNull(recordType);
+		requireNonNull(columnLabels);
+
+		RecordComponent[] recordComponents = recordType.getRecordComponents();
+		int[] columnIndexes = new int[recordComponents.length];
+		ColumnReader[] columnReaders = new ColumnReader[recordComponents.length];
+
+		for (int i = 0; i < recordComponents.length; ++i) {
+			RecordComponent recordComponent = recordComponents[i];
+			ColumnReader columnReader = columnReaderFor(recordComponent.getType());
+
+			if (columnReader == null)
+				return Optional.empty();
+
+			// 0 means the query didn't select this column, so the component is null
+			columnIndexes[i] = columnLabels.indexOf(columnNameFor(recordComponent)) + 1;
+			columnReaders[i] = columnReader;
+		}
+
+		try {
+			Class<?>[] parameterTypes = Arrays.stream(recordComponents).map(RecordComponent::getType).toArray(Class<?>[]::new);
+			Constructor<?> constructor = recordType.getDeclaredConstructor(parameterTypes);
+			constructor.setAccessible(true);
+
+			MethodHandle constructorMethodHandle = MethodHandles.lookup().unreflectConstructor(constructor)
+					.asSpreader(Object[].class, recordComponents.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+
+			return Optional.of(new RowMapper(constructorMethodHandle, columnIndexes, columnReaders));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return Optional.empty();
+		}
+	}
+
+	@Nonnull
+	protected String columnNameFor(@Nonnull RecordComponent recordComponent) {
+		requireNonNull(recordComponent);
+
+		DatabaseColumn databaseColumn = recordComponent.getAnnotation(DatabaseColumn.class);
+
+		if (databaseColumn != null)
+			return databaseColumn.value().toLowerCase(Locale.ROOT);
+
+		// e.g. "createdAt" -> "created_at"
+		String name = recordComponent.getName();
+		StringBuilder columnName = new StringBuilder(name.length() + 4);
+
+		for (int i = 0; i < name.length(); ++i) {
+			char c = name.charAt(i);
+
+			if (Character.isUpperCase(c)) {
+				if (i > 0)
+					columnName.append('_');
+
+				columnName.append(Character.toLowerCase(c));
+			} else {
+				columnName.append(c);
+			}
+		}
+
+		return columnName.toString();
+	}
+
+	// Null means unsupported.  Primitives are unsupported on purpose, since a null column has no sensible value for them
+	@Nullable
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	protected ColumnReader columnReaderFor(@Nonnull Class<?> type) {
+		requireNonNull(type);
+
+		if (type == String.class)
+			return ResultSet::getString;
+		if (type == UUID.class)
+			return this::readUuid;
+		if (type == BigDecimal.class)
+			return ResultSet::getBigDecimal;
+		if (type == Instant.class)
+			return (resultSet, columnIndex) -> {
+				Timestamp timestamp = resultSet.getTimestamp(columnIndex);
+				return timestamp == null ? null : timestamp.toInstant();
+			};
+		if (type == LocalDateTime.class || type == LocalDate.class)
+			return (resultSet, columnIndex) -> resultSet.getObject(columnIndex, type);
+		if (type == Integer.class)
+			return (resultSet, columnIndex) -> {
+				int value = resultSet.getInt(columnIndex);
+				return resultSet.wasNull() ? null : value;
+			};
+		if (type == Long.class)
+			return (resultSet, columnIndex) -> {
+				long value = resultSet.getLong(columnIndex);
+				return resultSet.wasNull() ? null : value;
+			};
+		if (type == Boolean.class)
+			return (resultSet, columnIndex) -> {
+				boolean value = resultSet.getBoolean(columnIndex);
+				return resultSet.wasNull() ? null : value;
+			};
+		if (type == Currency.class)
+			return (resultSet, columnIndex) -> {
+				String currencyCode = resultSet.getString(columnIndex);
+				return currencyCode == null ? null : getCurrenciesByCode().computeIfAbsent(currencyCode, Currency::getInstance);
+			};
+		if (type == ZoneId.class)
+			return (resultSet, columnIndex) -> {
+				String timeZoneId = resultSet.getString(columnIndex);
+				return timeZoneId == null ? null : getTimeZonesById().computeIfAbsent(timeZoneId, ZoneId::of);
+			};
+		if (type == Locale.class)
+			return (resultSet, columnIndex) -> {
+				String languageTag = resultSet.getString(columnIndex);
+				return languageTag == null ? null : getLocalesByLanguageTag().computeIfAbsent(languageTag, Locale::forLanguageTag);
+			};
+		if (type.isEnum())
+			return (resultSet, columnIndex) -> {
+				String name = resultSet.getString(columnIndex);
+				return name == null ? null : Enum.valueOf((Class<? extends Enum>) type, name);
+			};
+
+		return null;
+	}
+
+	@Nullable
+	protected UUID readUuid(@Nonnull ResultSet resultSet,
+													int columnIndex) throws SQLException {
+		requireNonNull(resultSet);
+
+		Object value = resultSet.getObject(columnIndex);
+
+		// Drivers with a native UUID type (HSQLDB included) hand these back directly
+		return switch (value) {
+			case null -> null;
+			case UUID uuid -> uuid;
+			case String string -> UUID.fromString(string);
+			case byte[] bytes when bytes.length == 16 -> {
+				ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+				yield new UUID(byteBuffer.getLong(), byteBuffer.getLong());
+			}
+			default -> throw new SQLException(format("Unable to convert %s to a UUID", value.getClass().getName()));
+		};
+	}
+
+	@FunctionalInterface
+	protected interface ColumnReader {
+		@Nullable
+		Object read(@Nonnull ResultSet resultSet,
+								int columnIndex) throws SQLException;
+	}
+
+	protected record RowMapper(
+			@Nonnull MethodHandle constructorMethodHandle,
+			@Nonnull int[] columnIndexes,
+			@Nonnull ColumnReader[] columnReaders
+	) {
+		protected RowMapper {
+			requireNonNull(constructorMethodHandle);
+			requireNonNull(columnIndexes);
+			requireNonNull(columnReaders);
+		}
+
+		@Nonnull
+		public Object map(@Nonnull ResultSet resultSet) throws SQLException {
+			requireNonNull(resultSet);
+
+			Object[] arguments = new Object[columnIndexes().length];
+
+			for (int i = 0; i < arguments.length; ++i) {
+				int columnIndex = columnIndexes()[i];
+				arguments[i] = columnIndex == 0 ? null : columnReaders()[i].read(resultSet, columnIndex);
+			}
+
+			try {
+				return (Object) constructorMethodHandle().invokeExact(arguments);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+	}
+
+	protected record RowMapperKey(
+			@Nonnull Class<?> recordType,
+			@Nonnull List<String> columnLabels
+	) {
+		protected RowMapperKey {
+			requireNonNull(recordType);
+			requireNonNull(columnLabels);
+		}
+	}
+
+	protected record ResolvedRowMapper(
+			@Nonnull WeakReference<ResultSet> resultSetReference,
+			@Nonnull Class<?> recordType,
+			@Nullable RowMapper rowMapper
+	) {
+		protected ResolvedRowMapper {
+			requireNonNull(resultSetReference);
+			requireNonNull(recordType);
+		}
+	}
+
+	@Nonnull
+	protected ResultSetMapper getFallbackResultSetMapper() {
+		return this.fallbackResultSetMapper;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<RowMapperKey, Optional<RowMapper>> getRowMappersByKey() {
+		return this.rowMappersByKey;
+	}
+
+	@Nonnull
+	protected ThreadLocal<ResolvedRowMapper> getLastResolvedRowMapper() {
+		return this.lastResolvedRowMapper;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<String, Currency> getCurrenciesByCode() {
+		return this.currenciesByCode;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<String, ZoneId> getTimeZonesById() {
+		return this.timeZonesById;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<String, Locale> getLocalesByLanguageTag() {
+		return this.localesByLanguageTag;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,1068 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A {@link DataSource} that keeps physical connections from another {@link DataSource} open and lends them out.
+ * <p>
+ * At most {@code maximumSize} connections exist at once, which puts a hard cap on database concurrency.  Callers that
+ * find none free wait up to {@code acquisitionTimeout} and then fail with a {@link ConnectionPoolTimeoutException}
+ * rather than queueing forever.  Connections that have sat idle are validated before being lent out, and returned
+ * connections are reset (rolled back, auto-commit on, writable, original isolation) so no state leaks between borrowers.
+ * <p>
+ * Once started, a background task keeps at least {@code minimumSize} connections open so creating them stays off the
+ * request path, and logs the acquisition site of any connection held longer than {@code leakDetectionThreshold}.
+ * <p>
+ * Since connections live a long time, each keeps an LRU cache of up to {@code statementCacheSize} prepared statements
+ * keyed by SQL.  Closing a cached statement returns it to its connection's cache, so hot queries are only parsed and
+ * planned once per connection.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ConnectionPool implements DataSource, AutoCloseable {
+	@Nonnull
+	private static final long[] WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS;
+	@Nonnull
+	private static final Duration MAINTENANCE_INTERVAL;
+
+	static {
+		// Last bucket catches everything slower
+		WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS = new long[]{10, 100, 1_000, 10_000, 100_000, 1_000_000, Long.MAX_VALUE};
+		MAINTENANCE_INTERVAL = Duration.ofSeconds(1);
+	}
+
+	@Nonnull
+	private final DataSource dataSource;
+	@Nonnull
+	private final Integer minimumSize;
+	@Nonnull
+	private final Integer maximumSize;
+	@Nonnull
+	private final Duration acquisitionTimeout;
+	@Nonnull
+	private final Duration validationInterval;
+	@Nonnull
+	private final Duration validationTimeout;
+	@Nullable
+	private final Duration leakDetectionThreshold;
+	@Nonnull
+	private final Integer statementCacheSize;
+	// Held by each lent-out or being-created connection, so its available permits are our remaining capacity
+	@Nonnull
+	private final Semaphore permits;
+	// Most recently returned first, so a few hot connections do most of the work and the rest can stay quiet
+	@Nonnull
+	private final LinkedBlockingDeque<PooledConnection> idleConnections;
+	@Nonnull
+	private final ConcurrentHashMap<PooledConnection, Lease> leasesByConnection;
+	@Nonnull
+	private final AtomicInteger totalCount;
+	@Nonnull
+	private final AtomicInteger waitingCount;
+	@Nonnull
+	private final AtomicBoolean started;
+	@Nonnull
+	private final AtomicBoolean closed;
+	@Nonnull
+	private final LongAdder acquiredCount;
+	@Nonnull
+	private final LongAdder createdCount;
+	@Nonnull
+	private final LongAdder timeoutCount;
+	@Nonnull
+	private final LongAdder validationFailureCount;
+	@Nonnull
+	private final LongAdder leakCount;
+	@Nonnull
+	private final LongAdder statementCacheHitCount;
+	@Nonnull
+	private final LongAdder statementCacheMissCount;
+	@Nonnull
+	private final LongAdder statementCacheEvictionCount;
+	@Nonnull
+	private final LongAdder[] waitTimeHistogram;
+	@Nonnull
+	private final LongAccumulator waitNanosMaximum;
+	@Nonnull
+	private final Logger logger;
+	@Nullable
+	private volatile ScheduledExecutorService scheduledExecutorService;
+
+	@NotThreadSafe
+	public static class Builder {
+		@Nonnull
+		private final DataSource dataSource;
+		@Nullable
+		private Integer minimumSize;
+		@Nullable
+		private Integer maximumSize;
+		@Nullable
+		private Duration acquisitionTimeout;
+		@Nullable
+		private Duration validationInterval;
+		@Nullable
+		private Duration validationTimeout;
+		@Nullable
+		private Duration leakDetectionThreshold;
+		@Nullable
+		private Integer statementCacheSize;
+
+		private Builder(@Nonnull DataSource dataSource) {
+			requireNonNull(dataSource);
+			this.dataSource = dataSource;
+		}
+
+		@Nonnull
+		public Builder minimumSize(@Nullable Integer minimumSize) {
+			this.minimumSize = minimumSize;
+			return this;
+		}
+
+		@Nonnull
+		public Builder maximumSize(@Nullable Integer maximumSize) {
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		@Nonnull
+		public Builder acquisitionTimeout(@Nullable Duration acquisitionTimeout) {
+			this.acquisitionTimeout = acquisitionTimeout;
+			return this;
+		}
+
+		// Connections idle for at least this long are validated before being lent out
+		@Nonnull
+		public Builder validationInterval(@Nullable Duration validationInterval) {
+			this.validationInterval = validationInterval;
+			return this;
+		}
+
+		@Nonnull
+		public Builder validationTimeout(@Nullable Duration validationTimeout) {
+			this.validationTimeout = validationTimeout;
+			return this;
+		}
+
+		// Null disables leak detection, which also skips capturing a stack trace on every acquisition
+		@Nonnull
+		public Builder leakDetectionThreshold(@Nullable Duration leakDetectionThreshold) {
+			this.leakDetectionThreshold = leakDetectionThreshold;
+			return this;
+		}
+
+		// Per connection; 0 disables statement caching
+		@Nonnull
+		public Builder statementCacheSize(@Nullable Integer statementCacheSize) {
+			this.statementCacheSize = statementCacheSize;
+			return this;
+		}
+
+		@Nonnull
+		public ConnectionPool build() {
+			return new ConnectionPool(this);
+		}
+	}
+
+	@Nonnull
+	public static Builder withDataSource(@Nonnull DataSource dataSource) {
+		requireNonNull(dataSource);
+		return new Builder(dataSource);
+	}
+
+	private ConnectionPool(@Nonnull Builder builder) {
+		requireNonNull(builder);
+
+		this.dataSource = builder.dataSource;
+		this.minimumSize = builder.minimumSize == null ? 2 : builder.minimumSize;
+		this.maximumSize = builder.maximumSize == null ? 10 : builder.maximumSize;
+		this.acquisitionTimeout = builder.acquisitionTimeout == null ? Duration.ofSeconds(2) : builder.acquisitionTimeout;
+		this.validationInterval = builder.validationInterval == null ? Duration.ofSeconds(5) : builder.validationInterval;
+		this.validationTimeout = builder.validationTimeout == null ? Duration.ofSeconds(1) : builder.validationTimeout;
+		this.leakDetectionThreshold = builder.leakDetectionThreshold;
+		this.statementCacheSize = builder.statementCacheSize == null ? 64 : builder.statementCacheSize;
+
+		if (this.maximumSize < 1)
+			throw new IllegalArgumentException("Maximum size must be > 0");
+
+		if (this.minimumSize < 0 || this.minimumSize > this.maximumSize)
+			throw new IllegalArgumentException("Minimum size must be between 0 and the maximum size");
+
+		if (this.statementCacheSize < 0)
+			throw new IllegalArgumentException("Statement cache size cannot be negative");
+
+		this.permits = new Semaphore(this.maximumSize, true);
+		this.idleConnections = new LinkedBlockingDeque<>();
+		this.leasesByConnection = new ConcurrentHashMap<>();
+		this.totalCount = new AtomicInteger(0);
+		this.waitingCount = new AtomicInteger(0);
+		this.started = new AtomicBoolean(false);
+		this.closed = new AtomicBoolean(false);
+		this.acquiredCount = new LongAdder();
+		this.createdCount = new LongAdder();
+		this.timeoutCount = new LongAdder();
+		this.validationFailureCount = new LongAdder();
+		this.leakCount = new LongAdder();
+		this.statementCacheHitCount = new LongAdder();
+		this.statementCacheMissCount = new LongAdder();
+		this.statementCacheEvictionCount = new LongAdder();
+		this.waitTimeHistogram = new LongAdder[WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS.length];
+
+		for (int i = 0; i < this.waitTimeHistogram.length; ++i)
+			this.waitTimeHistogram[i] = new LongAdder();
+
+		this.waitNanosMaximum = new LongAccumulator(Math::max, 0);
+		this.logger = LoggerFactory.getLogger(getClass());
+	}
+
+	public void start() {
+		if (!getStarted().compareAndSet(false, true))
+			return;
+
+		// Open the minimum up front, so the first requests don't pay for it
+		fillToMinimumSize();
+
+		ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().factory());
+		this.scheduledExecutorService = scheduledExecutorService;
+
+		long intervalMillis = MAINTENANCE_INTERVAL.toMillis();
+
+		scheduledExecutorService.scheduleWithFixedDelay(() -> {
+			try {
+				detectLeaks();
+				fillToMinimumSize();
+			} catch (Exception e) {
+				getLogger().warn("Unable to perform connection pool maintenance", e);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// Idle connections are closed right away; lent-out ones are closed as they come back
+	@Override
+	public void close() {
+		if (!getClosed().compareAndSet(false, true))
+			return;
+
+		ScheduledExecutorService scheduledExecutorService = this.scheduledExecutorService;
+
+		if (scheduledExecutorService != null)
+			scheduledExecutorService.shutdownNow();
+
+		PooledConnection pooledConnection;
+
+		while ((pooledConnection = getIdleConnections().pollFirst()) != null)
+			discard(pooledConnection);
+	}
+
+	@Nonnull
+	@Override
+	public Connection getConnection() throws SQLException {
+		if (getClosed().get())
+			throw new SQLException("Connection pool is closed");
+
+		long waitStartedAt = System.nanoTime();
+		boolean acquired;
+
+		getWaitingCount().incrementAndGet();
+
+		try {
+			acquired = getPermits().tryAcquire(getAcquisitionTimeout().toNanos(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		} finally {
+			getWaitingCount().decrementAndGet();
+		}
+
+		recordWaitTime(System.nanoTime() - waitStartedAt);
+
+		if (!acquired) {
+			getTimeoutCount().increment();
+			throw new ConnectionPoolTimeoutException(format("Timed out after %dms waiting for one of %d database connections",
+					getAcquisitionTimeout().toMillis(), getMaximumSize()));
+		}
+
+		try {
+			PooledConnection pooledConnection = takeIdleOrCreateConnection();
+			Lease lease = new Lease(System.nanoTime(),
+					getLeakDetectionThreshold() == null ? null : new Throwable("Database connection was acquired here"),
+					new AtomicBoolean(false));
+
+			getLeasesByConnection().put(pooledConnection, lease);
+			getAcquiredCount().increment();
+
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+					new LeasedConnectionInvocationHandler(pooledConnection));
+		} catch (SQLException | RuntimeException e) {
+			getPermits().release();
+			throw e;
+		}
+	}
+
+	@Nonnull
+	@Override
+	public Connection getConnection(@Nullable String username,
+																	@Nullable String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Pooled connections all use the underlying data source's credentials");
+	}
+
+	@Nonnull
+	protected PooledConnection takeIdleOrCreateConnection() throws SQLException {
+		PooledConnection pooledConnection;
+
+		while ((pooledConnection = getIdleConnections().pollFirst()) != null) {
+			if (System.nanoTime() - pooledConnection.lastReturnedAt() < getValidationInterval().toNanos())
+				return pooledConnection;
+
+			if (isValid(pooledConnection))
+				return pooledConnection;
+
+			getValidationFailureCount().increment();
+			discard(pooledConnection);
+		}
+
+		return createConnection();
+	}
+
+	@Nonnull
+	protected PooledConnection createConnection() throws SQLException {
+		Connection connection = getDataSource().getConnection();
+
+		getTotalCount().incrementAndGet();
+		getCreatedCount().increment();
+
+		return new PooledConnection(connection, connection.getTransactionIsolation(), new StatementCache(connection), System.nanoTime());
+	}
+
+	protected void release(@Nonnull PooledConnection pooledConnection) {
+		requireNonNull(pooledConnection);
+
+		getLeasesByConnection().remove(pooledConnection);
+
+		try {
+			if (getClosed().get() || !reset(pooledConnection)) {
+				discard(pooledConnection);
+				return;
+			}
+
+			getIdleConnections().offerFirst(new PooledConnection(pooledConnection.connection(),
+					pooledConnection.defaultTransactionIsolation(), pooledConnection.statementCache(), System.nanoTime()));
+		} finally {
+			getPermits().release();
+		}
+	}
+
+	// Undoes anything a borrower may have changed; false means the connection can't be trusted and should be discarded
+	@Nonnull
+	protected Boolean reset(@Nonnull PooledConnection pooledConnection) {
+		requireNonNull(pooledConnection);
+
+		Connection connection = pooledConnection.connection();
+
+		try {
+			if (connection.isClosed())
+				return false;
+
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+
+			if (connection.isReadOnly())
+				connection.setReadOnly(false);
+
+			if (connection.getTransactionIsolation() != pooledConnection.defaultTransactionIsolation())
+				connection.setTransactionIsolation(pooledConnection.defaultTransactionIsolation());
+
+			connection.clearWarnings();
+
+			return true;
+		} catch (SQLException e) {
+			getLogger().warn("Unable to reset database connection, discarding it", e);
+			return false;
+		}
+	}
+
+	@Nonnull
+	protected Boolean isValid(@Nonnull PooledConnection pooledConnection) {
+		requireNonNull(pooledConnection);
+
+		try {
+			return pooledConnection.connection().isValid((int) Math.max(1, getValidationTimeout().toSeconds()));
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	protected void discard(@Nonnull PooledConnection pooledConnection) {
+		requireNonNull(pooledConnection);
+
+		getTotalCount().decrementAndGet();
+
+		try {
+			pooledConnection.connection().close();
+		} catch (SQLException e) {
+			getLogger().debug("Unable to close discarded database connection", e);
+		}
+	}
+
+	protected void fillToMinimumSize() {
+		while (!getClosed().get() && getTotalCount().get() < getMinimumSize()) {
+			// Take a permit so filling can never push us over the maximum
+			if (!getPermits().tryAcquire())
+				return;
+
+			try {
+				getIdleConnections().offerLast(createConnection());
+			} catch (SQLException e) {
+				getLogger().warn("Unable to open database connection", e);
+				return;
+			} finally {
+				getPermits().release();
+			}
+		}
+	}
+
+	protected void detectLeaks() {
+		Duration leakDetectionThreshold = getLeakDetectionThreshold();
+
+		if (leakDetectionThreshold == null)
+			return;
+
+		long now = System.nanoTime();
+
+		for (Lease lease : getLeasesByConnection().values()) {
+			if (now - lease.acquiredAt() >= leakDetectionThreshold.toNanos() && lease.reported().compareAndSet(false, true)) {
+				getLeakCount().increment();
+				getLogger().warn("Database connection has been held for over {}ms, possible leak",
+						leakDetectionThreshold.toMillis(), lease.acquisitionSite());
+			}
+		}
+	}
+
+	protected void recordWaitTime(long waitNanos) {
+		getWaitNanosMaximum().accumulate(waitNanos);
+
+		long waitMicros = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+
+		for (int i = 0; i < WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS.length; ++i) {
+			if (waitMicros <= WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS[i]) {
+				getWaitTimeHistogram()[i].increment();
+				return;
+			}
+		}
+	}
+
+	@Nonnull
+	public ConnectionPoolMetrics getMetrics() {
+		Map<String, Long> waitTimeHistogram = new LinkedHashMap<>();
+
+		for (int i = 0; i < WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS.length; ++i) {
+			long upperBound = WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS[i];
+			String label = upperBound == Long.MAX_VALUE
+					? format(">%dus", WAIT_TIME_HISTOGRAM_BUCKET_UPPER_BOUNDS_IN_MICROS[i - 1])
+					: format("<=%dus", upperBound);
+
+			waitTimeHistogram.put(label, getWaitTimeHistogram()[i].sum());
+		}
+
+		int activeCount = getLeasesByConnection().size();
+		long statementCacheHitCount = getStatementCacheHitCount().sum();
+		long statementCacheLookupCount = statementCacheHitCount + getStatementCacheMissCount().sum();
+
+		return new ConnectionPoolMetrics(
+				activeCount,
+				getIdleConnections().size(),
+				getTotalCount().get(),
+				getMaximumSize(),
+				getWaitingCount().get(),
+				getAcquiredCount().sum(),
+				getCreatedCount().sum(),
+				getTimeoutCount().sum(),
+				getValidationFailureCount().sum(),
+				getLeakCount().sum(),
+				statementCacheHitCount,
+				getStatementCacheMissCount().sum(),
+				getStatementCacheEvictionCount().sum(),
+				statementCacheLookupCount == 0 ? 0D : statementCacheHitCount / (double) statementCacheLookupCount,
+				getWaitNanosMaximum().get() / 1000000.0,
+				Collections.unmodifiableMap(waitTimeHistogram)
+		);
+	}
+
+	public record ConnectionPoolMetrics(
+			@Nonnull Integer activeCount,
+			@Nonnull Integer idleCount,
+			@Nonnull Integer totalCount,
+			@Nonnull Integer maximumSize,
+			@Nonnull Integer waitingCount,
+			@Nonnull Long acquiredCount,
+			@Nonnull Long createdCount,
+			@Nonnull Long timeoutCount,
+			@Nonnull Long validationFailureCount,
+			@Nonnull Long leakCount,
+			@Nonnull Long statementCacheHitCount,
+			@Nonnull Long statementCacheMissCount,
+			@Nonnull Long statementCacheEvictionCount,
+			@Nonnull Double statementCacheHitRate,
+			@Nonnull Double waitMillisMaximum,
+			@Nonnull Map<String, Long> waitTimeHistogram
+	) {
+		public ConnectionPoolMetrics {
+			requireNonNull(activeCount);
+			requireNonNull(idleCount);
+			requireNonNull(totalCount);
+			requireNonNull(maximumSize);
+			requireNonNull(waitingCount);
+			requireNonNull(acquiredCount);
+			requireNonNull(createdCount);
+			requireNonNull(timeoutCount);
+			requireNonNull(validationFailureCount);
+			requireNonNull(leakCount);
+			requireNonNull(statementCacheHitCount);
+			requireNonNull(statementCacheMissCount);
+			requireNonNull(statementCacheEvictionCount);
+			requireNonNull(statementCacheHitRate);
+			requireNonNull(waitMillisMaximum);
+			requireNonNull(waitTimeHistogram);
+		}
+	}
+
+	// Thrown when every connection stays busy for the whole acquisition timeout
+	@NotThreadSafe
+	public static class ConnectionPoolTimeoutException extends SQLTransientConnectionException {
+		public ConnectionPoolTimeoutException(@Nullable String message) {
+			super(message);
+		}
+	}
+
+	// A physical connection, plus what we need to hand it out again safely
+	protected record PooledConnection(
+			@Nonnull Connection connection,
+			int defaultTransactionIsolation,
+			@Nonnull StatementCache statementCache,
+			long lastReturnedAt
+	) {
+		protected PooledConnection {
+			requireNonNull(connection);
+			requireNonNull(statementCache);
+		}
+
+		// Identity semantics, since the same physical connection is re-wrapped each time it's returned
+		@Override
+		public boolean equals(@Nullable Object object) {
+			return object instanceof PooledConnection pooledConnection && pooledConnection.connection() == connection();
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(connection());
+		}
+	}
+
+	// A connection's prepared statements, least recently used first.  Connections are lent to one borrower at a time,
+	// so contention here is rare; the lock is for correctness, not throughput
+	@ThreadSafe
+	protected class StatementCache {
+		@Nonnull
+		private final Connection connection;
+		@Nonnull
+		private final LinkedHashMap<String, CachedStatement> cachedStatementsBySql;
+
+		protected StatementCache(@Nonnull Connection connection) {
+			requireNonNull(connection);
+
+			this.connection = connection;
+			this.cachedStatementsBySql = new LinkedHashMap<>(16, 0.75F, true) {
+				@Override
+				protected boolean removeEldestEntry(@Nonnull Map.Entry<String, CachedStatement> eldestEntry) {
+					if (size() <= getStatementCacheSize())
+						return false;
+
+					getStatementCacheEvictionCount().increment();
+					eldestEntry.getValue().evict();
+					return true;
+				}
+			};
+		}
+
+		@Nonnull
+		public PreparedStatement prepareStatement(@Nonnull String sql,
+																							@Nonnull Connection leasedConnection) throws SQLException {
+			requireNonNull(sql);
+			requireNonNull(leasedConnection);
+
+			if (getStatementCacheSize() == 0)
+				return this.connection.prepareStatement(sql);
+
+			synchronized (this) {
+				CachedStatement cachedStatement = this.cachedStatementsBySql.get(sql);
+
+				// Discarded after a failed reset; make room for a fresh one
+				if (cachedStatement != null && cachedStatement.isEvicted()) {
+					this.cachedStatementsBySql.remove(sql);
+					cachedStatement = null;
+				}
+
+				if (cachedStatement != null && cachedStatement.borrow()) {
+					getStatementCacheHitCount().increment();
+					return cachedStatement.createProxy(leasedConnection);
+				}
+			}
+
+			getStatementCacheMissCount().increment();
+
+			PreparedStatement preparedStatement = this.connection.prepareStatement(sql);
+
+			synchronized (this) {
+				// Already cached, but in use by someone else (e.g. a statement prepared while iterating another's results).
+				// This one is a one-off and is really closed when its borrower closes it
+				if (this.cachedStatementsBySql.containsKey(sql))
+					return preparedStatement;
+
+				CachedStatement cachedStatement;
+
+				try {
+					cachedStatement = new CachedStatement(preparedStatement);
+				} catch (SQLException e) {
+					preparedStatement.close();
+					throw e;
+				}
+
+				cachedStatement.borrow();
+				this.cachedStatementsBySql.put(sql, cachedStatement);
+
+				return cachedStatement.createProxy(leasedConnection);
+			}
+		}
+	}
+
+	@ThreadSafe
+	protected class CachedStatement {
+		@Nonnull
+		private final PreparedStatement preparedStatement;
+		@Nonnull
+		private final AtomicBoolean borrowed;
+		@Nonnull
+		private final AtomicBoolean evicted;
+		private final int defaultMaxRows;
+		private final int defaultMaxFieldSize;
+		private final int defaultFetchSize;
+		private final int defaultFetchDirection;
+
+		protected CachedStatement(@Nonnull PreparedStatement preparedStatement) throws SQLException {
+			requireNonNull(preparedStatement);
+
+			this.preparedStatement = preparedStatement;
+			this.borrowed = new AtomicBoolean(false);
+			this.evicted = new AtomicBoolean(false);
+			this.defaultMaxRows = preparedStatement.getMaxRows();
+			this.defaultMaxFieldSize = preparedStatement.getMaxFieldSize();
+			this.defaultFetchSize = preparedStatement.getFetchSize();
+			this.defaultFetchDirection = preparedStatement.getFetchDirection();
+		}
+
+		@Nonnull
+		protected Boolean borrow() {
+			return !this.evicted.get() && this.borrowed.compareAndSet(false, true);
+		}
+
+		@Nonnull
+		protected Boolean isEvicted() {
+			return this.evicted.get();
+		}
+
+		// Each borrower gets its own proxy, so closing it twice or using it after closing can't affect the next borrower
+		@Nonnull
+		protected PreparedStatement createProxy(@Nonnull Connection leasedConnection) {
+			requireNonNull(leasedConnection);
+
+			AtomicBoolean closed = new AtomicBoolean(false);
+
+			return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+							case "close" -> {
+								if (closed.compareAndSet(false, true))
+									giveBack();
+
+								return null;
+							}
+							case "isClosed" -> {
+								return closed.get() || this.preparedStatement.isClosed();
+							}
+							case "getConnection" -> {
+								return leasedConnection;
+							}
+							case "equals" -> {
+								return proxy == args[0];
+							}
+							case "hashCode" -> {
+								return System.identityHashCode(proxy);
+							}
+							case "toString" -> {
+								return this.preparedStatement.toString();
+							}
+							default -> {
+								if (closed.get())
+									throw new SQLException("Statement is closed");
+
+								try {
+									return method.invoke(this.preparedStatement, args);
+								} catch (InvocationTargetException e) {
+									throw e.getCause();
+								}
+							}
+						}
+					});
+		}
+
+		// Undo everything a borrower may have changed so the next one starts clean.  Anything we can't undo means we
+		// can't vouch for the statement, so it's discarded rather than lent out again
+		protected void giveBack() {
+			try {
+				if (!this.evicted.get()) {
+					ResultSet resultSet = this.preparedStatement.getResultSet();
+
+					if (resultSet != null)
+						resultSet.close();
+
+					this.preparedStatement.clearParameters();
+					this.preparedStatement.clearBatch();
+					this.preparedStatement.clearWarnings();
+
+					if (this.preparedStatement.getQueryTimeout() != 0)
+						this.preparedStatement.setQueryTimeout(0);
+
+					if (this.preparedStatement.getMaxRows() != this.defaultMaxRows)
+						this.preparedStatement.setMaxRows(this.defaultMaxRows);
+
+					if (this.preparedStatement.getMaxFieldSize() != this.defaultMaxFieldSize)
+						this.preparedStatement.setMaxFieldSize(this.defaultMaxFieldSize);
+
+					if (this.preparedStatement.getFetchSize() != this.defaultFetchSize)
+						this.preparedStatement.setFetchSize(this.defaultFetchSize);
+
+					if (this.preparedStatement.getFetchDirection() != this.defaultFetchDirection)
+						this.preparedStatement.setFetchDirection(this.defaultFetchDirection);
+				}
+			} catch (SQLException | RuntimeException e) {
+				getLogger().debug("Unable to reset cached statement, discarding it", e);
+				evict();
+			} finally {
+				this.borrowed.set(false);
+			}
+
+			// Evicted while in use
+			if (this.evicted.get())
+				closeQuietly();
+		}
+
+		protected void evict() {
+			this.evicted.set(true);
+
+			if (!this.borrowed.get())
+				closeQuietly();
+		}
+
+		protected void closeQuietly() {
+			try {
+				this.preparedStatement.close();
+			} catch (SQLException e) {
+				getLogger().debug("Unable to close cached statement", e);
+			}
+		}
+	}
+
+	protected record Lease(
+			long acquiredAt,
+			@Nullable Throwable acquisitionSite,
+			@Nonnull AtomicBoolean reported
+	) {
+		protected Lease {
+			requireNonNull(reported);
+		}
+	}
+
+	// What borrowers actually hold: closing it returns the physical connection to the pool instead of closing it
+	@ThreadSafe
+	protected class LeasedConnectionInvocationHandler implements InvocationHandler {
+		@Nonnull
+		private final PooledConnection pooledConnection;
+		@Nonnull
+		private final AtomicBoolean closed;
+
+		protected LeasedConnectionInvocationHandler(@Nonnull PooledConnection pooledConnection) {
+			requireNonNull(pooledConnection);
+			this.pooledConnection = pooledConnection;
+			this.closed = new AtomicBoolean(false);
+		}
+
+		@Nullable
+		@Override
+		public Object invoke(@Nonnull Object proxy,
+												 @Nonnull Method method,
+												 @Nullable Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "close" -> {
+					// Closing twice is a no-op, per the Connection contract
+					if (this.closed.compareAndSet(false, true))
+						release(this.pooledConnection);
+
+					return null;
+				}
+				case "isClosed" -> {
+					return this.closed.get() || this.pooledConnection.connection().isClosed();
+				}
+				case "equals" -> {
+					return proxy == args[0];
+				}
+				case "hashCode" -> {
+					return System.identityHashCode(proxy);
+				}
+				case "toString" -> {
+					return format("%s[%s]", ConnectionPool.class.getSimpleName(), this.pooledConnection.connection());
+				}
+				default -> {
+					if (this.closed.get())
+						throw new SQLException("Connection has already been returned to the pool");
+
+					// Only the plain form is cached; variants with result set or key options are rare enough not to bother
+					if (method.getName().equals("prepareStatement") && args != null && args.length == 1 && args[0] instanceof String sql)
+						return this.pooledConnection.statementCache().prepareStatement(sql, (Connection) proxy);
+
+					try {
+						return method.invoke(this.pooledConnection.connection(), args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			}
+		}
+	}
+
+	@Nullable
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return getDataSource().getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(@Nullable PrintWriter printWriter) throws SQLException {
+		getDataSource().setLogWriter(printWriter);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		getDataSource().setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return getDataSource().getLoginTimeout();
+	}
+
+	@Nonnull
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return getDataSource().getParentLogger();
+	}
+
+	@Nonnull
+	@Override
+	public <T> T unwrap(@Nonnull Class<T> type) throws SQLException {
+		requireNonNull(type);
+
+		if (type.isInstance(this))
+			return type.cast(this);
+
+		return getDataSource().unwrap(type);
+	}
+
+	@Override
+	public boolean isWrapperFor(@Nonnull Class<?> type) throws SQLException {
+		requireNonNull(type);
+		return type.isInstance(this) || getDataSource().isWrapperFor(type);
+	}
+
+	@Nonnull
+	protected DataSource getDataSource() {
+		return this.dataSource;
+	}
+
+	@Nonnull
+	public Integer getMinimumSize() {
+		return this.minimumSize;
+	}
+
+	@Nonnull
+	public Integer getMaximumSize() {
+		return this.maximumSize;
+	}
+
+	@Nonnull
+	public Duration getAcquisitionTimeout() {
+		return this.acquisitionTimeout;
+	}
+
+	@Nonnull
+	public Duration getValidationInterval() {
+		return this.validationInterval;
+	}
+
+	@Nonnull
+	public Duration getValidationTimeout() {
+		return this.validationTimeout;
+	}
+
+	@Nullable
+	public Duration getLeakDetectionThreshold() {
+		return this.leakDetectionThreshold;
+	}
+
+	@Nonnull
+	public Integer getStatementCacheSize() {
+		return this.statementCacheSize;
+	}
+
+	@Nonnull
+	protected Semaphore getPermits() {
+		return this.permits;
+	}
+
+	@Nonnull
+	protected LinkedBlockingDeque<PooledConnection> getIdleConnections() {
+		return this.idleConnections;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<PooledConnection, Lease> getLeasesByConnection() {
+		return this.leasesByConnection;
+	}
+
+	@Nonnull
+	protected AtomicInteger getTotalCount() {
+		return this.totalCount;
+	}
+
+	@Nonnull
+	protected AtomicInteger getWaitingCount() {
+		return this.waitingCount;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getStarted() {
+		return this.started;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getClosed() {
+		return this.closed;
+	}
+
+	@Nonnull
+	protected LongAdder getAcquiredCount() {
+		return this.acquiredCount;
+	}
+
+	@Nonnull
+	protected LongAdder getCreatedCount() {
+		return this.createdCount;
+	}
+
+	@Nonnull
+	protected LongAdder getTimeoutCount() {
+		return this.timeoutCount;
+	}
+
+	@Nonnull
+	protected LongAdder getValidationFailureCount() {
+		return this.validationFailureCount;
+	}
+
+	@Nonnull
+	protected LongAdder getLeakCount() {
+		return this.leakCount;
+	}
+
+	@Nonnull
+	protected LongAdder getStatementCacheHitCount() {
+		return this.statementCacheHitCount;
+	}
+
+	@Nonnull
+	protected LongAdder getStatementCacheMissCount() {
+		return this.statementCacheMissCount;
+	}
+
+	@Nonnull
+	protected LongAdder getStatementCacheEvictionCount() {
+		return this.statementCacheEvictionCount;
+	}
+
+	@Nonnull
+	protected LongAdder[] getWaitTimeHistogram() {
+		return this.waitTimeHistogram;
+	}
+
+	@Nonnull
+	protected LongAccumulator getWaitNanosMaximum() {
+		return this.waitNanosMaximum;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Encrypts credit card numbers that have to sit in the database until a payment worker can charge them.
+ * <p>
+ * Uses AES-256-GCM, so a tampered-with value fails to decrypt instead of turning into a different card number.
+ * Each value gets its own random IV, which is stored in front of the ciphertext.
+ * The AES key is derived from our private key with HMAC-SHA256 rather than being the private key itself, so the
+ * signing and encryption keys can't be confused with one another.
+ * <p>
+ * A real system would keep the card number out of its database entirely and store a token from its payment processor.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class CreditCardNumberCipher {
+	@Nonnull
+	private static final String ALGORITHM;
+	@Nonnull
+	private static final String TRANSFORMATION;
+	@Nonnull
+	private static final byte[] KEY_DERIVATION_LABEL;
+	@Nonnull
+	private static final Integer IV_LENGTH;
+	@Nonnull
+	private static final Integer TAG_LENGTH_IN_BITS;
+
+	static {
+		ALGORITHM = "AES";
+		TRANSFORMATION = "AES/GCM/NoPadding";
+		KEY_DERIVATION_LABEL = "credit-card-number-encryption".getBytes(StandardCharsets.UTF_8);
+		// The size GCM is designed for
+		IV_LENGTH = 12;
+		TAG_LENGTH_IN_BITS = 128;
+	}
+
+	@Nonnull
+	private final SecretKeySpec secretKeySpec;
+	@Nonnull
+	private final SecureRandom secureRandom;
+
+	@Nonnull
+	public static CreditCardNumberCipher forPrivateKey(@Nonnull PrivateKey privateKey) {
+		requireNonNull(privateKey);
+
+		// A 32-byte HMAC-SHA256 output is exactly an AES-256 key
+		byte[] key = HmacSigner.forPrivateKey(privateKey).sign(KEY_DERIVATION_LABEL, 0, KEY_DERIVATION_LABEL.length);
+		return new CreditCardNumberCipher(new SecretKeySpec(key, ALGORITHM));
+	}
+
+	public CreditCardNumberCipher(@Nonnull SecretKeySpec secretKeySpec) {
+		requireNonNull(secretKeySpec);
+
+		this.secretKeySpec = secretKeySpec;
+		this.secureRandom = new SecureRandom();
+
+		// Fail fast on a bad key rather than on the first purchase
+		decrypt(encrypt("0"));
+	}
+
+	// Returns Base64 of the IV followed by the ciphertext and its authentication tag
+	@Nonnull
+	public String encrypt(@Nonnull String creditCardNumber) {
+		requireNonNull(creditCardNumber);
+
+		byte[] iv = new byte[IV_LENGTH];
+		getSecureRandom().nextBytes(iv);
+
+		try {
+			// Cipher instances aren't threadsafe, and we encrypt only once per purchase, so there's no need to pool them
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.ENCRYPT_MODE, getSecretKeySpec(), new GCMParameterSpec(TAG_LENGTH_IN_BITS, iv));
+
+			byte[] ciphertext = cipher.doFinal(creditCardNumber.getBytes(StandardCharsets.UTF_8));
+
+			return Base64.getEncoder().encodeToString(ByteBuffer.allocate(iv.length + ciphertext.length)
+					.put(iv)
+					.put(ciphertext)
+					.array());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt credit card number", e);
+		}
+	}
+
+	@Nonnull
+	public String decrypt(@Nonnull String encryptedCreditCardNumber) {
+		requireNonNull(encryptedCreditCardNumber);
+
+		byte[] bytes = Base64.getDecoder().decode(encryptedCreditCardNumber);
+
+		if (bytes.length < IV_LENGTH + TAG_LENGTH_IN_BITS / 8)
+			throw new IllegalArgumentException("Encrypted credit card number is too short");
+
+		try {
+			Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+			cipher.init(Cipher.DECRYPT_MODE, getSecretKeySpec(), new GCMParameterSpec(TAG_LENGTH_IN_BITS, bytes, 0, IV_LENGTH));
+
+			return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+		} catch (GeneralSecurityException e) {
+			// Includes a failed authentication tag check, i.e. the value was tampered with or encrypted with another key
+			throw new IllegalArgumentException("Unable to decrypt credit card number", e);
+		}
+	}
+
+	@Nonnull
+	protected SecretKeySpec getSecretKeySpec() {
+		return this.secretKeySpec;
+	}
+
+	@Nonnull
+	protected SecureRandom getSecureRandom() {
+		return this.secureRandom;
+	}
+}
\ No newline at end of file
@@ -27,8 +27,12 @@ import static java.util.Objects.requireNonNull;
  * @author <a href="https://www.revetkn.com">Mark Allen</a>
  */
 public interface CreditCardProcessor {
+	// Calls with the same idempotency key are the same charge: once one has gone through, repeating it returns
+	// the original transaction ID instead of charging the card again.  That's what makes it safe to retry a call
+	// whose outcome we never learned (a timeout, a dropped connection), as long as the retry reuses the key
 	@Nonnull
-	String makePayment(@Nonnull String creditCardNumber,
+	String makePayment(@Nonnull String idempotencyKey,
+										 @Nonnull String creditCardNumber,
 										 @Nonnull BigDecimal amount,
 										 @Nonnull Currency currency) throws CreditCardPaymentException;
 
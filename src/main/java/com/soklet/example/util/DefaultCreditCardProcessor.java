@@ -19,6 +19,7 @@ package com.soklet.example.util;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.Currency;
 import java.util.UUID;
 
@@ -31,9 +32,11 @@ import static java.util.Objects.requireNonNull;
 public class DefaultCreditCardProcessor implements CreditCardProcessor {
 	@Nonnull
 	@Override
-	public String makePayment(@Nonnull String creditCardNumber,
+	public String makePayment(@Nonnull String idempotencyKey,
+														@Nonnull String creditCardNumber,
 														@Nonnull BigDecimal amount,
 														@Nonnull Currency currency) throws CreditCardPaymentException {
+		requireNonNull(idempotencyKey);
 		requireNonNull(creditCardNumber);
 		requireNonNull(amount);
 		requireNonNull(currency);
@@ -45,6 +48,7 @@ public class DefaultCreditCardProcessor implements CreditCardProcessor {
 			// Don't care
 		}
 
-		return UUID.randomUUID().toString();
+		// Same key, same charge
+		return UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8)).toString();
 	}
 }
\ No newline at end of file
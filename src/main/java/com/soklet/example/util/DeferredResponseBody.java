@@ -0,0 +1,71 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Lets the response marshaler hand a response body back to the request pipeline instead of serializing it on the spot.
+ * <p>
+ * Resource methods run inside the request's database transaction, and so does marshaling their responses.
+ * By deferring the body, the transaction can commit and release its connection before any JSON is written.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class DeferredResponseBody {
+	@Nonnull
+	private static final ScopedValue<DeferredResponseBody> DEFERRED_RESPONSE_BODY_SCOPED_VALUE;
+
+	static {
+		DEFERRED_RESPONSE_BODY_SCOPED_VALUE = ScopedValue.newInstance();
+	}
+
+	@Nullable
+	private volatile Object body;
+
+	// The marshaler calls this to find out whether it should defer
+	@Nonnull
+	public static Optional<DeferredResponseBody> getIfPresent() {
+		return DEFERRED_RESPONSE_BODY_SCOPED_VALUE.isBound()
+				? Optional.of(DEFERRED_RESPONSE_BODY_SCOPED_VALUE.get())
+				: Optional.empty();
+	}
+
+	// Any body deferred while the supplier runs is available from getBody() afterwards
+	@Nullable
+	public <T> T run(@Nonnull Supplier<T> supplier) {
+		requireNonNull(supplier);
+		return ScopedValue.where(DEFERRED_RESPONSE_BODY_SCOPED_VALUE, this).get(supplier);
+	}
+
+	public void defer(@Nonnull Object body) {
+		requireNonNull(body);
+		this.body = body;
+	}
+
+	@Nonnull
+	public Optional<Object> getBody() {
+		return Optional.ofNullable(this.body);
+	}
+}
\ No newline at end of file
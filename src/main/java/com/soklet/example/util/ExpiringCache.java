@@ -0,0 +1,299 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A bounded, concurrent cache whose entries each carry their own expiration.
+ * <p>
+ * Intentionally simple: no background threads, expired entries are dropped when they are read
+ * or when the cache fills up.  Making room looks at a small sample of entries rather than the whole map,
+ * so a full cache costs the same per put as an empty one.
+ * <p>
+ * The size bound is soft.  Puts of new keys that race each other can all see room before any of them inserts,
+ * so {@link #size()} can briefly exceed {@code maximumSize} by up to the number of threads doing so at once;
+ * the next puts of new keys evict until the cache is back under its maximum.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ExpiringCache<K, V> {
+	// How many entries we look at to pick an eviction victim
+	@Nonnull
+	private static final Integer EVICTION_SAMPLE_SIZE;
+
+	// How many times a put keeps making room before giving up and inserting anyway
+	@Nonnull
+	private static final Integer MAXIMUM_EVICTION_ATTEMPTS;
+
+	static {
+		EVICTION_SAMPLE_SIZE = 8;
+		MAXIMUM_EVICTION_ATTEMPTS = 4;
+	}
+
+	@Nonnull
+	private final Integer maximumSize;
+	@Nonnull
+	private final ConcurrentHashMap<K, Entry<V>> entriesByKey;
+	@Nonnull
+	private final LongAdder hitCount;
+	@Nonnull
+	private final LongAdder missCount;
+	@Nonnull
+	private final LongAdder evictionCount;
+	@Nonnull
+	private final ReentrantLock evictionLock;
+	// Where the last eviction sample stopped, so the next one picks up from there.  Guarded by evictionLock
+	@Nullable
+	private Iterator<Map.Entry<K, Entry<V>>> evictionIterator;
+
+	public ExpiringCache(@Nonnull Integer maximumSize) {
+		requireNonNull(maximumSize);
+
+		if (maximumSize < 1)
+			throw new IllegalArgumentException("Maximum size must be > 0");
+
+		this.maximumSize = maximumSize;
+		this.entriesByKey = new ConcurrentHashMap<>(Math.min(maximumSize, 1_024));
+		this.hitCount = new LongAdder();
+		this.missCount = new LongAdder();
+		this.evictionCount = new LongAdder();
+		this.evictionLock = new ReentrantLock();
+	}
+
+	@Nonnull
+	public Optional<V> get(@Nullable K key) {
+		if (key == null)
+			return Optional.empty();
+
+		Entry<V> entry = getEntriesByKey().get(key);
+
+		if (entry == null) {
+			getMissCount().increment();
+			return Optional.empty();
+		}
+
+		if (entry.isExpired(Instant.now())) {
+			// Only remove if nobody has replaced the entry in the meantime
+			if (getEntriesByKey().remove(key, entry))
+				getEvictionCount().increment();
+
+			getMissCount().increment();
+			return Optional.empty();
+		}
+
+		getHitCount().increment();
+		return Optional.of(entry.value());
+	}
+
+	public void put(@Nonnull K key,
+									@Nonnull V value,
+									@Nonnull Instant expiration) {
+		requireNonNull(key);
+		requireNonNull(value);
+		requireNonNull(expiration);
+
+		Instant now = Instant.now();
+
+		// No point in caching something that is already dead
+		if (!expiration.isAfter(now))
+			return;
+
+		// Bounded, so a put stays constant-time even if other threads keep refilling the cache underneath us
+		if (!getEntriesByKey().containsKey(key))
+			for (int i = 0; i < MAXIMUM_EVICTION_ATTEMPTS && getEntriesByKey().size() >= getMaximumSize(); ++i)
+				makeRoom(now);
+
+		getEntriesByKey().put(key, new Entry<>(value, expiration));
+	}
+
+	public void invalidate(@Nullable K key) {
+		if (key == null)
+			return;
+
+		getEntriesByKey().remove(key);
+	}
+
+	public void invalidateAll() {
+		getEntriesByKey().clear();
+	}
+
+	@Nonnull
+	public Integer size() {
+		return getEntriesByKey().size();
+	}
+
+	@Nonnull
+	public Long getHits() {
+		return getHitCount().sum();
+	}
+
+	@Nonnull
+	public Long getMisses() {
+		return getMissCount().sum();
+	}
+
+	@Nonnull
+	public Long getEvictions() {
+		return getEvictionCount().sum();
+	}
+
+	@Nonnull
+	public ExpiringCacheMetrics getMetrics() {
+		long hits = getHits();
+		long misses = getMisses();
+
+		return new ExpiringCacheMetrics(size(), getMaximumSize(), hits, misses, getEvictions(),
+				hits + misses == 0 ? 0D : (double) hits / (hits + misses));
+	}
+
+	public record ExpiringCacheMetrics(
+			@Nonnull Integer size,
+			@Nonnull Integer maximumSize,
+			@Nonnull Long hitCount,
+			@Nonnull Long missCount,
+			@Nonnull Long evictionCount,
+			@Nonnull Double hitRate
+	) {
+		public ExpiringCacheMetrics {
+			requireNonNull(size);
+			requireNonNull(maximumSize);
+			requireNonNull(hitCount);
+			requireNonNull(missCount);
+			requireNonNull(evictionCount);
+			requireNonNull(hitRate);
+		}
+	}
+
+	// Samples a few entries instead of scanning them all.
+	// Any expired ones in the sample go; failing that, whichever sampled entry would expire soonest.
+	// Like a clock hand, each sample starts where the last one stopped, so over time every entry gets looked at
+	// rather than only the handful at the front of the map.
+	// Not LRU, but constant-time and good enough for hot-key workloads
+	protected void makeRoom(@Nonnull Instant now) {
+		requireNonNull(now);
+
+		K victimKey = null;
+		Entry<V> victimEntry = null;
+		boolean removedExpiredEntry = false;
+
+		getEvictionLock().lock();
+
+		try {
+			for (int i = 0; i < EVICTION_SAMPLE_SIZE; ++i) {
+				Map.Entry<K, Entry<V>> mapEntry = nextEvictionCandidate();
+
+				if (mapEntry == null)
+					break;
+
+				Entry<V> entry = mapEntry.getValue();
+
+				if (entry.isExpired(now)) {
+					// Only remove if nobody has replaced the entry in the meantime
+					if (getEntriesByKey().remove(mapEntry.getKey(), entry)) {
+						getEvictionCount().increment();
+						removedExpiredEntry = true;
+					}
+				} else if (victimEntry == null || entry.expiration().isBefore(victimEntry.expiration())) {
+					victimKey = mapEntry.getKey();
+					victimEntry = entry;
+				}
+			}
+		} finally {
+			getEvictionLock().unlock();
+		}
+
+		if (!removedExpiredEntry && victimKey != null && getEntriesByKey().remove(victimKey, victimEntry))
+			getEvictionCount().increment();
+	}
+
+	// The map's iterators are weakly consistent, so one can safely outlive changes to the map.
+	// When it runs out, the hand wraps around to the start.  Caller must hold evictionLock
+	@Nullable
+	protected Map.Entry<K, Entry<V>> nextEvictionCandidate() {
+		Iterator<Map.Entry<K, Entry<V>>> evictionIterator = this.evictionIterator;
+
+		if (evictionIterator == null || !evictionIterator.hasNext()) {
+			evictionIterator = getEntriesByKey().entrySet().iterator();
+			this.evictionIterator = evictionIterator;
+
+			// Empty map
+			if (!evictionIterator.hasNext())
+				return null;
+		}
+
+		return evictionIterator.next();
+	}
+
+	protected record Entry<V>(
+			@Nonnull V value,
+			@Nonnull Instant expiration
+	) {
+		protected Entry {
+			requireNonNull(value);
+			requireNonNull(expiration);
+		}
+
+		@Nonnull
+		public Boolean isExpired(@Nonnull Instant now) {
+			requireNonNull(now);
+			return !expiration().isAfter(now);
+		}
+	}
+
+	@Nonnull
+	public Integer getMaximumSize() {
+		return this.maximumSize;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<K, Entry<V>> getEntriesByKey() {
+		return this.entriesByKey;
+	}
+
+	@Nonnull
+	protected LongAdder getHitCount() {
+		return this.hitCount;
+	}
+
+	@Nonnull
+	protected LongAdder getMissCount() {
+		return this.missCount;
+	}
+
+	@Nonnull
+	protected LongAdder getEvictionCount() {
+		return this.evictionCount;
+	}
+
+	@Nonnull
+	protected ReentrantLock getEvictionLock() {
+		return this.evictionLock;
+	}
+}
\ No newline at end of file
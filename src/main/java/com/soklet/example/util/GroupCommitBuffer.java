@@ -0,0 +1,352 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.pyranid.Database;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Write-behind buffer that commits one SQL statement for many concurrent callers at once.
+ * <p>
+ * Callers hand over their statement parameters and block.  A single flusher thread collects writes into
+ * micro-batches of up to {@code maximumBatchSize} rows, waiting at most {@code maximumDelay} after the first one,
+ * and writes each batch with one {@code executeBatch} in one transaction.  Callers are released only once their batch
+ * has committed, so a write that returns is as durable as one that committed on its own.
+ * <p>
+ * If a batch fails, its rows are retried one at a time so that a single bad row only fails its own caller.
+ * Callers must not be in a transaction of their own; the write commits independently of it.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class GroupCommitBuffer implements AutoCloseable {
+	// How long the flusher blocks at a time while waiting for a batch to fill, so it notices close() promptly
+	private static final long MAXIMUM_POLL_NANOS;
+
+	static {
+		MAXIMUM_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	}
+
+	@Nonnull
+	private final Database database;
+	@Nonnull
+	private final String sql;
+	@Nonnull
+	private final Integer maximumBatchSize;
+	@Nonnull
+	private final Duration maximumDelay;
+	@Nonnull
+	private final LinkedBlockingQueue<PendingWrite> pendingWrites;
+	@Nonnull
+	private final AtomicBoolean started;
+	@Nonnull
+	private final AtomicBoolean closed;
+	@Nonnull
+	private final LongAdder writeCount;
+	@Nonnull
+	private final LongAdder commitCount;
+	@Nonnull
+	private final LongAdder failedBatchCount;
+	@Nonnull
+	private final Logger logger;
+	@Nullable
+	private volatile Thread flusherThread;
+
+	public GroupCommitBuffer(@Nonnull Database database,
+													 @Nonnull String sql,
+													 @Nonnull Integer maximumBatchSize,
+													 @Nonnull Duration maximumDelay) {
+		requireNonNull(database);
+		requireNonNull(sql);
+		requireNonNull(maximumBatchSize);
+		requireNonNull(maximumDelay);
+
+		if (maximumBatchSize < 1)
+			throw new IllegalArgumentException("Maximum batch size must be > 0");
+
+		if (maximumDelay.isNegative())
+			throw new IllegalArgumentException("Maximum delay cannot be negative");
+
+		this.database = database;
+		this.sql = sql;
+		this.maximumBatchSize = maximumBatchSize;
+		this.maximumDelay = maximumDelay;
+		this.pendingWrites = new LinkedBlockingQueue<>();
+		this.started = new AtomicBoolean(false);
+		this.closed = new AtomicBoolean(false);
+		this.writeCount = new LongAdder();
+		this.commitCount = new LongAdder();
+		this.failedBatchCount = new LongAdder();
+		this.logger = LoggerFactory.getLogger(getClass());
+	}
+
+	// Blocks until the write has committed
+	public void write(@Nonnull List<Object> parameters) {
+		requireNonNull(parameters);
+
+		getWriteCount().increment();
+
+		// Nobody left to flush for us
+		if (getClosed().get()) {
+			writeIndividually(parameters);
+			return;
+		}
+
+		// Start lazily, so nothing runs unless someone actually writes
+		if (getStarted().compareAndSet(false, true))
+			this.flusherThread = Thread.ofVirtual().name("group-commit-flusher").start(this::flushContinuously);
+
+		PendingWrite pendingWrite = new PendingWrite(parameters, new CompletableFuture<>());
+		getPendingWrites().add(pendingWrite);
+
+		// close() may have drained the queue for the last time between our check above and our add.
+		// If our write is still queued, nobody is coming for it, so take it back and write it ourselves.
+		// If it's gone, the flusher or close() has it and will complete it
+		if (getClosed().get() && getPendingWrites().remove(pendingWrite)) {
+			writeIndividually(parameters);
+			return;
+		}
+
+		try {
+			pendingWrite.committed().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for group commit; the write may or may not have committed", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException)
+				throw runtimeException;
+
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// Stops accepting batched writes, and flushes whatever is already queued
+	@Override
+	public void close() {
+		if (!getClosed().compareAndSet(false, true))
+			return;
+
+		Thread flusherThread = this.flusherThread;
+
+		if (flusherThread != null) {
+			try {
+				flusherThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Anything that raced in after the flusher exited
+		List<PendingWrite> remainingWrites = new ArrayList<>();
+		getPendingWrites().drainTo(remainingWrites);
+
+		if (remainingWrites.size() > 0)
+			flush(remainingWrites);
+	}
+
+	protected void flushContinuously() {
+		List<PendingWrite> batch = new ArrayList<>(getMaximumBatchSize());
+
+		while (!getClosed().get() || getPendingWrites().size() > 0) {
+			try {
+				PendingWrite firstPendingWrite = getPendingWrites().poll(100, TimeUnit.MILLISECONDS);
+
+				if (firstPendingWrite == null)
+					continue;
+
+				batch.add(firstPendingWrite);
+
+				// Whatever's already waiting goes in for free; then give stragglers a brief chance to join
+				getPendingWrites().drainTo(batch, getMaximumBatchSize() - batch.size());
+
+				long deadline = System.nanoTime() + getMaximumDelay().toNanos();
+
+				// Once closed, stop waiting for stragglers so close() isn't held up by a long maximum delay
+				while (batch.size() < getMaximumBatchSize() && !getClosed().get()) {
+					long remainingNanos = deadline - System.nanoTime();
+
+					if (remainingNanos <= 0)
+						break;
+
+					PendingWrite pendingWrite = getPendingWrites().poll(Math.min(remainingNanos, MAXIMUM_POLL_NANOS), TimeUnit.NANOSECONDS);
+
+					if (pendingWrite != null)
+						batch.add(pendingWrite);
+				}
+
+				flush(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				flush(batch);
+				return;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	protected void flush(@Nonnull List<PendingWrite> batch) {
+		requireNonNull(batch);
+
+		if (batch.size() == 0)
+			return;
+
+		List<List<Object>> parameterGroups = new ArrayList<>(batch.size());
+
+		for (PendingWrite pendingWrite : batch)
+			parameterGroups.add(pendingWrite.parameters());
+
+		try {
+			getDatabase().transaction(() -> {
+				getDatabase().executeBatch(getSql(), parameterGroups);
+			});
+
+			getCommitCount().increment();
+
+			for (PendingWrite pendingWrite : batch)
+				pendingWrite.committed().complete(null);
+		} catch (Exception e) {
+			getFailedBatchCount().increment();
+			getLogger().warn("Group commit of {} rows failed, retrying them individually", batch.size(), e);
+
+			// Isolate the bad row(s) so everyone else still succeeds
+			for (PendingWrite pendingWrite : batch) {
+				try {
+					writeIndividually(pendingWrite.parameters());
+					pendingWrite.committed().complete(null);
+				} catch (Exception individualException) {
+					pendingWrite.committed().completeExceptionally(individualException);
+				}
+			}
+		}
+	}
+
+	protected void writeIndividually(@Nonnull List<Object> parameters) {
+		requireNonNull(parameters);
+
+		getDatabase().transaction(() -> {
+			getDatabase().execute(getSql(), parameters.toArray());
+		});
+
+		getCommitCount().increment();
+	}
+
+	@Nonnull
+	public GroupCommitBufferMetrics getMetrics() {
+		return new GroupCommitBufferMetrics(
+				getPendingWrites().size(),
+				getWriteCount().sum(),
+				getCommitCount().sum(),
+				getFailedBatchCount().sum()
+		);
+	}
+
+	public record GroupCommitBufferMetrics(
+			@Nonnull Integer pendingWriteCount,
+			@Nonnull Long writeCount,
+			@Nonnull Long commitCount,
+			@Nonnull Long failedBatchCount
+	) {
+		public GroupCommitBufferMetrics {
+			requireNonNull(pendingWriteCount);
+			requireNonNull(writeCount);
+			requireNonNull(commitCount);
+			requireNonNull(failedBatchCount);
+		}
+	}
+
+	protected record PendingWrite(
+			@Nonnull List<Object> parameters,
+			@Nonnull CompletableFuture<Void> committed
+	) {
+		protected PendingWrite {
+			requireNonNull(parameters);
+			requireNonNull(committed);
+		}
+	}
+
+	@Nonnull
+	protected Database getDatabase() {
+		return this.database;
+	}
+
+	@Nonnull
+	public String getSql() {
+		return this.sql;
+	}
+
+	@Nonnull
+	public Integer getMaximumBatchSize() {
+		return this.maximumBatchSize;
+	}
+
+	@Nonnull
+	public Duration getMaximumDelay() {
+		return this.maximumDelay;
+	}
+
+	@Nonnull
+	protected LinkedBlockingQueue<PendingWrite> getPendingWrites() {
+		return this.pendingWrites;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getStarted() {
+		return this.started;
+	}
+
+	@Nonnull
+	protected AtomicBoolean getClosed() {
+		return this.closed;
+	}
+
+	@Nonnull
+	protected LongAdder getWriteCount() {
+		return this.writeCount;
+	}
+
+	@Nonnull
+	protected LongAdder getCommitCount() {
+		return this.commitCount;
+	}
+
+	@Nonnull
+	protected LongAdder getFailedBatchCount() {
+		return this.failedBatchCount;
+	}
+
+	@Nonnull
+	protected Logger getLogger() {
+		return this.logger;
+	}
+}
\ No newline at end of file
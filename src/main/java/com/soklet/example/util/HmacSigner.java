@@ -0,0 +1,212 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * HMAC-SHA256 signing and verification with the key prepared once up front.
+ * <p>
+ * {@link Mac} instances are expensive to create and not threadsafe.  We can't lean on {@link ThreadLocal}
+ * because each request runs on its own short-lived virtual thread, so instead we keep a small lock-free pool.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class HmacSigner {
+	@Nonnull
+	public static final Integer SIGNATURE_LENGTH;
+	@Nonnull
+	public static final Integer ENCODED_SIGNATURE_LENGTH;
+
+	@Nonnull
+	private static final String ALGORITHM;
+	@Nonnull
+	private static final Base64.Encoder BASE64_URL_ENCODER;
+
+	static {
+		ALGORITHM = "HmacSHA256";
+		SIGNATURE_LENGTH = 32;
+		// Unpadded Base64 of 32 bytes
+		ENCODED_SIGNATURE_LENGTH = 43;
+		BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+	}
+
+	@Nonnull
+	private final SecretKeySpec secretKeySpec;
+	@Nonnull
+	private final ConcurrentLinkedQueue<Mac> macPool;
+	@Nonnull
+	private final AtomicInteger macPoolSize;
+	@Nonnull
+	private final Integer maximumMacPoolSize;
+
+	@Nonnull
+	public static HmacSigner forPrivateKey(@Nonnull PrivateKey privateKey) {
+		requireNonNull(privateKey);
+		// Matches how tokens have always been signed, so existing tokens remain valid
+		return new HmacSigner(new SecretKeySpec(privateKey.getEncoded(), privateKey.getAlgorithm()));
+	}
+
+	public HmacSigner(@Nonnull SecretKeySpec secretKeySpec) {
+		requireNonNull(secretKeySpec);
+
+		this.secretKeySpec = secretKeySpec;
+		this.macPool = new ConcurrentLinkedQueue<>();
+		this.macPoolSize = new AtomicInteger(0);
+		// Enough for every core to be signing at once, with some slack
+		this.maximumMacPoolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+		// Fail fast on a bad key rather than on the first request
+		releaseMac(createMac());
+	}
+
+	@Nonnull
+	public byte[] sign(@Nonnull byte[] bytes,
+										 int offset,
+										 int length) {
+		requireNonNull(bytes);
+
+		byte[] signature = new byte[SIGNATURE_LENGTH];
+		sign(bytes, offset, length, signature);
+		return signature;
+	}
+
+	// Writes the Base64URL (unpadded) signature of the given range into the destination at the given offset
+	public void signAsBase64Url(@Nonnull byte[] bytes,
+															int offset,
+															int length,
+															@Nonnull byte[] destination,
+															int destinationOffset) {
+		requireNonNull(bytes);
+		requireNonNull(destination);
+
+		byte[] encodedSignature = BASE64_URL_ENCODER.encode(sign(bytes, offset, length));
+		System.arraycopy(encodedSignature, 0, destination, destinationOffset, encodedSignature.length);
+	}
+
+	// Constant-time check of a Base64URL (unpadded) signature that lives inside of a larger byte array, e.g. a token.
+	// We compare encoded forms so the caller's signature never needs to be decoded or copied out
+	@Nonnull
+	public Boolean verifyBase64Url(@Nonnull byte[] bytes,
+																 int offset,
+																 int length,
+																 @Nonnull byte[] encodedSignature,
+																 int encodedSignatureOffset,
+																 int encodedSignatureLength) {
+		requireNonNull(bytes);
+		requireNonNull(encodedSignature);
+
+		byte[] expectedEncodedSignature = BASE64_URL_ENCODER.encode(sign(bytes, offset, length));
+
+		int difference = expectedEncodedSignature.length ^ encodedSignatureLength;
+
+		for (int i = 0; i < expectedEncodedSignature.length && i < encodedSignatureLength; i++)
+			difference |= expectedEncodedSignature[i] ^ encodedSignature[encodedSignatureOffset + i];
+
+		return difference == 0;
+	}
+
+	protected void sign(@Nonnull byte[] bytes,
+											int offset,
+											int length,
+											@Nonnull byte[] signature) {
+		requireNonNull(bytes);
+		requireNonNull(signature);
+
+		Mac mac = acquireMac();
+
+		try {
+			mac.update(bytes, offset, length);
+			mac.doFinal(signature, 0);
+		} catch (ShortBufferException e) {
+			// Indicates programmer error
+			throw new IllegalStateException(e);
+		} finally {
+			// doFinal() leaves the Mac reset and ready for reuse.
+			// If something blew up mid-update, start clean to be safe
+			mac.reset();
+			releaseMac(mac);
+		}
+	}
+
+	@Nonnull
+	protected Mac acquireMac() {
+		Mac mac = getMacPool().poll();
+
+		if (mac == null)
+			return createMac();
+
+		getMacPoolSize().decrementAndGet();
+		return mac;
+	}
+
+	protected void releaseMac(@Nonnull Mac mac) {
+		requireNonNull(mac);
+
+		// Let the garbage collector have any extras created during a burst
+		if (getMacPoolSize().incrementAndGet() > getMaximumMacPoolSize()) {
+			getMacPoolSize().decrementAndGet();
+			return;
+		}
+
+		getMacPool().offer(mac);
+	}
+
+	@Nonnull
+	protected Mac createMac() {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(getSecretKeySpec());
+			return mac;
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	@Nonnull
+	protected SecretKeySpec getSecretKeySpec() {
+		return this.secretKeySpec;
+	}
+
+	@Nonnull
+	protected ConcurrentLinkedQueue<Mac> getMacPool() {
+		return this.macPool;
+	}
+
+	@Nonnull
+	protected AtomicInteger getMacPoolSize() {
+		return this.macPoolSize;
+	}
+
+	@Nonnull
+	protected Integer getMaximumMacPoolSize() {
+		return this.maximumMacPoolSize;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Serializes response bodies to UTF-8 JSON bytes in a single pass.
+ * <p>
+ * {@code gson.toJson(object).getBytes(UTF_8)} builds the document in a {@link StringBuilder}, copies it into a
+ * {@link String}, then encodes that into a third buffer.  Here the {@link JsonWriter} encodes straight into a byte buffer,
+ * so a large body is held roughly once instead of three times.
+ * <p>
+ * Buffers start at the size of the last body of the same type, so steady-state responses don't repeatedly grow and copy.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class JsonBodyWriter {
+	@Nonnull
+	private static final Integer DEFAULT_INITIAL_CAPACITY;
+	// Keeps one unusually large response from pinning big buffers for every response of its type afterwards
+	@Nonnull
+	private static final Integer MAXIMUM_INITIAL_CAPACITY;
+
+	static {
+		DEFAULT_INITIAL_CAPACITY = 512;
+		MAXIMUM_INITIAL_CAPACITY = 1024 * 1024;
+	}
+
+	@Nonnull
+	private final Gson gson;
+	// Response types are a small, fixed set, so this stays tiny
+	@Nonnull
+	private final ConcurrentHashMap<Class<?>, Integer> sizeHintsByType;
+
+	public JsonBodyWriter(@Nonnull Gson gson) {
+		requireNonNull(gson);
+
+		this.gson = gson;
+		this.sizeHintsByType = new ConcurrentHashMap<>();
+	}
+
+	@Nonnull
+	public byte[] toJsonBytes(@Nonnull Object object) {
+		requireNonNull(object);
+
+		Class<?> type = object.getClass();
+		ExposedByteArrayOutputStream outputStream = new ExposedByteArrayOutputStream(getSizeHintsByType().getOrDefault(type, DEFAULT_INITIAL_CAPACITY));
+
+		// Gson's own writer factory, so pretty printing, HTML escaping etc. match gson.toJson()
+		try (JsonWriter jsonWriter = getGson().newJsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
+			getGson().toJson(object, type, jsonWriter);
+		} catch (IOException e) {
+			// Writing to memory can't actually fail
+			throw new UncheckedIOException(e);
+		}
+
+		getSizeHintsByType().put(type, Math.min(Math.max(outputStream.size(), DEFAULT_INITIAL_CAPACITY), MAXIMUM_INITIAL_CAPACITY));
+
+		return outputStream.toExactByteArray();
+	}
+
+	@NotThreadSafe
+	protected static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		public ExposedByteArrayOutputStream(int initialCapacity) {
+			super(initialCapacity);
+		}
+
+		// Hands over the buffer itself when it happens to be exactly full, otherwise trims it
+		@Nonnull
+		public byte[] toExactByteArray() {
+			return this.count == this.buf.length ? this.buf : Arrays.copyOf(this.buf, this.count);
+		}
+	}
+
+	@Nonnull
+	protected Gson getGson() {
+		return this.gson;
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<Class<?>, Integer> getSizeHintsByType() {
+		return this.sizeHintsByType;
+	}
+}
\ No newline at end of file
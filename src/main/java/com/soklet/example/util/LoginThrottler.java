@@ -0,0 +1,317 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tracks failed logins per email address and per client IP so repeat offenders can be turned away
+ * before we spend any CPU on password hashing.
+ * <p>
+ * Counters live in fixed-size, lock-free striped arrays: memory use is constant no matter how many distinct
+ * keys an attacker sprays at us, at the cost of the occasional collision between unrelated keys.
+ * Once a key exceeds its free failures, each further failure doubles the time it must wait, up to a maximum.
+ * Counters decay back to zero after a quiet period of the maximum delay.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class LoginThrottler {
+	@Nonnull
+	private final StripedFailureCounter emailAddressFailureCounter;
+	@Nonnull
+	private final StripedFailureCounter ipAddressFailureCounter;
+	@Nonnull
+	private final Duration baseDelay;
+	@Nonnull
+	private final Duration maximumDelay;
+	@Nonnull
+	private final LongAdder throttledCount;
+
+	public LoginThrottler(@Nonnull Integer stripeCount,
+												@Nonnull Integer emailAddressFreeFailures,
+												@Nonnull Integer ipAddressFreeFailures,
+												@Nonnull Duration baseDelay,
+												@Nonnull Duration maximumDelay) {
+		requireNonNull(stripeCount);
+		requireNonNull(emailAddressFreeFailures);
+		requireNonNull(ipAddressFreeFailures);
+		requireNonNull(baseDelay);
+		requireNonNull(maximumDelay);
+
+		if (stripeCount < 1 || Integer.bitCount(stripeCount) != 1)
+			throw new IllegalArgumentException("Stripe count must be a positive power of 2");
+
+		this.emailAddressFailureCounter = new StripedFailureCounter(stripeCount, emailAddressFreeFailures);
+		this.ipAddressFailureCounter = new StripedFailureCounter(stripeCount, ipAddressFreeFailures);
+		this.baseDelay = baseDelay;
+		this.maximumDelay = maximumDelay;
+		this.throttledCount = new LongAdder();
+	}
+
+	// How long the caller must wait before trying again, or empty if they may proceed now
+	@Nonnull
+	public Optional<Duration> retryAfter(@Nonnull String emailAddress,
+																			 @Nullable String ipAddress) {
+		requireNonNull(emailAddress);
+
+		long now = System.currentTimeMillis();
+		long retryAfterMillis = getEmailAddressFailureCounter().retryAfterMillis(emailAddress, now);
+
+		if (ipAddress != null)
+			retryAfterMillis = Math.max(retryAfterMillis, getIpAddressFailureCounter().retryAfterMillis(ipAddress, now));
+
+		if (retryAfterMillis <= 0)
+			return Optional.empty();
+
+		getThrottledCount().increment();
+		return Optional.of(Duration.ofMillis(retryAfterMillis));
+	}
+
+	public void recordFailure(@Nonnull String emailAddress,
+														@Nullable String ipAddress) {
+		requireNonNull(emailAddress);
+
+		long now = System.currentTimeMillis();
+
+		getEmailAddressFailureCounter().recordFailure(emailAddress, now);
+
+		if (ipAddress != null)
+			getIpAddressFailureCounter().recordFailure(ipAddress, now);
+	}
+
+	// Clear the email address only.  Many clients can share an IP (e.g. behind a NAT), so one success doesn't vouch for them all
+	public void recordSuccess(@Nonnull String emailAddress) {
+		requireNonNull(emailAddress);
+		getEmailAddressFailureCounter().reset(emailAddress);
+	}
+
+	@Nonnull
+	public LoginThrottlerMetrics getMetrics() {
+		return new LoginThrottlerMetrics(getThrottledCount().sum(),
+				getEmailAddressFailureCounter().getFailureCount().sum(),
+				getIpAddressFailureCounter().getFailureCount().sum());
+	}
+
+	public record LoginThrottlerMetrics(
+			@Nonnull Long throttledCount,
+			@Nonnull Long emailAddressFailureCount,
+			@Nonnull Long ipAddressFailureCount
+	) {
+		public LoginThrottlerMetrics {
+			requireNonNull(throttledCount);
+			requireNonNull(emailAddressFailureCount);
+			requireNonNull(ipAddressFailureCount);
+		}
+	}
+
+	// Each slot packs a failure count (high 16 bits) and the time of the most recent failure in epoch millis (low 48 bits)
+	@ThreadSafe
+	protected class StripedFailureCounter {
+		private static final int TIMESTAMP_BITS = 48;
+		private static final long TIMESTAMP_MASK = (1L << TIMESTAMP_BITS) - 1;
+		private static final long MAXIMUM_FAILURES = 0xFFFF;
+
+		@Nonnull
+		private final AtomicLongArray slots;
+		@Nonnull
+		private final Integer freeFailures;
+		// SipHash key: keeps stripe assignment unpredictable, so attackers can't aim collisions at a particular victim
+		private final long hashKey0;
+		private final long hashKey1;
+		@Nonnull
+		private final LongAdder failureCount;
+
+		public StripedFailureCounter(@Nonnull Integer stripeCount,
+																 @Nonnull Integer freeFailures) {
+			requireNonNull(stripeCount);
+			requireNonNull(freeFailures);
+
+			this.slots = new AtomicLongArray(stripeCount);
+			this.freeFailures = freeFailures;
+			SecureRandom secureRandom = new SecureRandom();
+			this.hashKey0 = secureRandom.nextLong();
+			this.hashKey1 = secureRandom.nextLong();
+			this.failureCount = new LongAdder();
+		}
+
+		public long retryAfterMillis(@Nonnull String key,
+																 long now) {
+			requireNonNull(key);
+
+			long slot = getSlots().get(indexFor(key));
+			long failures = failuresAt(slot, now);
+
+			if (failures < getFreeFailures())
+				return 0;
+
+			return lastFailureAt(slot) + delayMillisFor(failures) - now;
+		}
+
+		public void recordFailure(@Nonnull String key,
+															long now) {
+			requireNonNull(key);
+
+			int index = indexFor(key);
+			long slot;
+			long updatedSlot;
+
+			do {
+				slot = getSlots().get(index);
+				long failures = Math.min(MAXIMUM_FAILURES, failuresAt(slot, now) + 1);
+				updatedSlot = (failures << TIMESTAMP_BITS) | (now & TIMESTAMP_MASK);
+			} while (!getSlots().compareAndSet(index, slot, updatedSlot));
+
+			getFailureCount().increment();
+		}
+
+		public void reset(@Nonnull String key) {
+			requireNonNull(key);
+			getSlots().set(indexFor(key), 0);
+		}
+
+		// Failures that are older than the maximum delay no longer count against the key
+		protected long failuresAt(long slot,
+															long now) {
+			if (now - lastFailureAt(slot) >= getMaximumDelay().toMillis())
+				return 0;
+
+			return slot >>> TIMESTAMP_BITS;
+		}
+
+		protected long lastFailureAt(long slot) {
+			return slot & TIMESTAMP_MASK;
+		}
+
+		protected long delayMillisFor(long failures) {
+			long doublings = Math.min(30, failures - getFreeFailures());
+			long delayMillis = getBaseDelay().toMillis() << doublings;
+
+			return Math.min(delayMillis, getMaximumDelay().toMillis());
+		}
+
+		// SipHash-2-4 over the key's UTF-16 code units, 4 per word.
+		// Hashing the characters themselves (rather than mixing String.hashCode()) matters: strings with equal hash codes
+		// are trivial to generate, and would otherwise land in the same stripe whatever the secret key
+		protected int indexFor(@Nonnull String key) {
+			requireNonNull(key);
+
+			long[] v = {
+					this.hashKey0 ^ 0x736F6D6570736575L,
+					this.hashKey1 ^ 0x646F72616E646F6DL,
+					this.hashKey0 ^ 0x6C7967656E657261L,
+					this.hashKey1 ^ 0x7465646279746573L
+			};
+
+			int length = key.length();
+			int fullWordsEnd = length & ~3;
+
+			for (int i = 0; i < fullWordsEnd; i += 4)
+				compress(v, key.charAt(i)
+						| ((long) key.charAt(i + 1) << 16)
+						| ((long) key.charAt(i + 2) << 32)
+						| ((long) key.charAt(i + 3) << 48));
+
+			// The last word carries any leftover characters and, in its top byte, the length in bytes
+			long lastWord = ((long) (length * 2) & 0xFF) << 56;
+
+			for (int i = fullWordsEnd; i < length; i++)
+				lastWord |= (long) key.charAt(i) << (16 * (i - fullWordsEnd));
+
+			compress(v, lastWord);
+
+			v[2] ^= 0xFF;
+
+			for (int i = 0; i < 4; i++)
+				sipRound(v);
+
+			long hash = v[0] ^ v[1] ^ v[2] ^ v[3];
+
+			return (int) hash & (getSlots().length() - 1);
+		}
+
+		protected void compress(@Nonnull long[] v,
+														long word) {
+			v[3] ^= word;
+			sipRound(v);
+			sipRound(v);
+			v[0] ^= word;
+		}
+
+		protected void sipRound(@Nonnull long[] v) {
+			v[0] += v[1];
+			v[1] = Long.rotateLeft(v[1], 13) ^ v[0];
+			v[0] = Long.rotateLeft(v[0], 32);
+			v[2] += v[3];
+			v[3] = Long.rotateLeft(v[3], 16) ^ v[2];
+			v[0] += v[3];
+			v[3] = Long.rotateLeft(v[3], 21) ^ v[0];
+			v[2] += v[1];
+			v[1] = Long.rotateLeft(v[1], 17) ^ v[2];
+			v[2] = Long.rotateLeft(v[2], 32);
+		}
+
+		@Nonnull
+		protected AtomicLongArray getSlots() {
+			return this.slots;
+		}
+
+		@Nonnull
+		protected Integer getFreeFailures() {
+			return this.freeFailures;
+		}
+
+		@Nonnull
+		protected LongAdder getFailureCount() {
+			return this.failureCount;
+		}
+	}
+
+	@Nonnull
+	protected StripedFailureCounter getEmailAddressFailureCounter() {
+		return this.emailAddressFailureCounter;
+	}
+
+	@Nonnull
+	protected StripedFailureCounter getIpAddressFailureCounter() {
+		return this.ipAddressFailureCounter;
+	}
+
+	@Nonnull
+	public Duration getBaseDelay() {
+		return this.baseDelay;
+	}
+
+	@Nonnull
+	public Duration getMaximumDelay() {
+		return this.maximumDelay;
+	}
+
+	@Nonnull
+	protected LongAdder getThrottledCount() {
+		return this.throttledCount;
+	}
+}
\ No newline at end of file
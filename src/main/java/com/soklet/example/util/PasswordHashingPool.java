@@ -0,0 +1,272 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.soklet.example.exception.ServiceUnavailableException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Runs {@link PasswordManager} work on a small, dedicated set of platform threads.
+ * <p>
+ * PBKDF2 is deliberately CPU-hungry.  Without a bound, a burst of logins can occupy every core and starve
+ * unrelated requests.  Callers wait a short time for a permit; if none frees up, they fail fast with a
+ * {@link ServiceUnavailableException} rather than piling up behind each other.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class PasswordHashingPool {
+	@Nonnull
+	private final PasswordManager passwordManager;
+	@Nonnull
+	private final Integer permits;
+	@Nonnull
+	private final Duration queueTimeout;
+	@Nonnull
+	private final Semaphore semaphore;
+	@Nonnull
+	private final ExecutorService executorService;
+	@Nonnull
+	private final AtomicInteger queueDepth;
+	@Nonnull
+	private final LongAdder completedCount;
+	@Nonnull
+	private final LongAdder rejectedCount;
+	@Nonnull
+	private final LongAdder waitNanosTotal;
+	@Nonnull
+	private final LongAccumulator waitNanosMaximum;
+
+	public PasswordHashingPool(@Nonnull PasswordManager passwordManager,
+														 @Nonnull Integer permits,
+														 @Nonnull Duration queueTimeout) {
+		requireNonNull(passwordManager);
+		requireNonNull(permits);
+		requireNonNull(queueTimeout);
+
+		if (permits < 1)
+			throw new IllegalArgumentException("Permits must be > 0");
+
+		AtomicInteger threadCount = new AtomicInteger(0);
+
+		this.passwordManager = passwordManager;
+		this.permits = permits;
+		this.queueTimeout = queueTimeout;
+		// Fair, so a steady stream of new arrivals can't starve a caller that has been waiting
+		this.semaphore = new Semaphore(permits, true);
+		// The semaphore guarantees we never submit more tasks than there are threads
+		this.executorService = Executors.newFixedThreadPool(permits, runnable -> {
+			Thread thread = new Thread(runnable, format("password-hashing-%d", threadCount.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.queueDepth = new AtomicInteger(0);
+		this.completedCount = new LongAdder();
+		this.rejectedCount = new LongAdder();
+		this.waitNanosTotal = new LongAdder();
+		this.waitNanosMaximum = new LongAccumulator(Math::max, 0);
+	}
+
+	@Nonnull
+	public String hashPassword(@Nonnull String plaintextPassword) {
+		requireNonNull(plaintextPassword);
+		return execute(() -> getPasswordManager().hashPassword(plaintextPassword));
+	}
+
+	@Nonnull
+	public Boolean verifyPassword(@Nonnull String plaintextPassword,
+																@Nonnull String hashedPassword) {
+		requireNonNull(plaintextPassword);
+		requireNonNull(hashedPassword);
+
+		return execute(() -> getPasswordManager().verifyPassword(plaintextPassword, hashedPassword));
+	}
+
+	@Nonnull
+	protected <T> T execute(@Nonnull Callable<T> callable) {
+		requireNonNull(callable);
+
+		long waitStarted = System.nanoTime();
+		boolean acquired;
+
+		getQueueDepth().incrementAndGet();
+
+		try {
+			acquired = getSemaphore().tryAcquire(getQueueTimeout().toNanos(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted while waiting for a password hashing permit", e);
+		} finally {
+			getQueueDepth().decrementAndGet();
+		}
+
+		long waitNanos = System.nanoTime() - waitStarted;
+		getWaitNanosTotal().add(waitNanos);
+		getWaitNanosMaximum().accumulate(waitNanos);
+
+		if (!acquired) {
+			getRejectedCount().increment();
+			throw new ServiceUnavailableException(format("No password hashing permit available after %dms", getQueueTimeout().toMillis()));
+		}
+
+		Future<T> future;
+		// Whoever claims the task first owns the permit: the task itself once it starts,
+		// or the caller if it gives up before the task ever ran
+		AtomicBoolean claimed = new AtomicBoolean(false);
+
+		// The task gives the permit back itself when it finishes.
+		// PBKDF2 doesn't stop when interrupted, so if we released it here after cancelling,
+		// more hashes could be running than there are permits
+		try {
+			future = getExecutorService().submit(() -> {
+				if (!claimed.compareAndSet(false, true))
+					return null;
+
+				try {
+					return callable.call();
+				} finally {
+					getCompletedCount().increment();
+					getSemaphore().release();
+				}
+			});
+		} catch (RuntimeException e) {
+			getSemaphore().release();
+			throw e;
+		}
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+
+			if (claimed.compareAndSet(false, true))
+				getSemaphore().release();
+
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted while waiting for password hashing to complete", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException)
+				throw runtimeException;
+
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	@Nonnull
+	public PasswordHashingPoolMetrics getMetrics() {
+		long completedCount = getCompletedCount().sum();
+		long rejectedCount = getRejectedCount().sum();
+		long attemptCount = completedCount + rejectedCount;
+
+		return new PasswordHashingPoolMetrics(
+				getPermits(),
+				getPermits() - getSemaphore().availablePermits(),
+				getQueueDepth().get(),
+				completedCount,
+				rejectedCount,
+				attemptCount == 0 ? 0D : getWaitNanosTotal().sum() / (double) attemptCount / 1_000_000D,
+				getWaitNanosMaximum().get() / 1_000_000D
+		);
+	}
+
+	public record PasswordHashingPoolMetrics(
+			@Nonnull Integer permits,
+			@Nonnull Integer activeCount,
+			@Nonnull Integer queueDepth,
+			@Nonnull Long completedCount,
+			@Nonnull Long rejectedCount,
+			@Nonnull Double averageWaitMillis,
+			@Nonnull Double maximumWaitMillis
+	) {
+		public PasswordHashingPoolMetrics {
+			requireNonNull(permits);
+			requireNonNull(activeCount);
+			requireNonNull(queueDepth);
+			requireNonNull(completedCount);
+			requireNonNull(rejectedCount);
+			requireNonNull(averageWaitMillis);
+			requireNonNull(maximumWaitMillis);
+		}
+	}
+
+	@Nonnull
+	protected PasswordManager getPasswordManager() {
+		return this.passwordManager;
+	}
+
+	@Nonnull
+	public Integer getPermits() {
+		return this.permits;
+	}
+
+	@Nonnull
+	public Duration getQueueTimeout() {
+		return this.queueTimeout;
+	}
+
+	@Nonnull
+	protected Semaphore getSemaphore() {
+		return this.semaphore;
+	}
+
+	@Nonnull
+	protected ExecutorService getExecutorService() {
+		return this.executorService;
+	}
+
+	@Nonnull
+	protected AtomicInteger getQueueDepth() {
+		return this.queueDepth;
+	}
+
+	@Nonnull
+	protected LongAdder getCompletedCount() {
+		return this.completedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getRejectedCount() {
+		return this.rejectedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getWaitNanosTotal() {
+		return this.waitNanosTotal;
+	}
+
+	@Nonnull
+	protected LongAccumulator getWaitNanosMaximum() {
+		return this.waitNanosMaximum;
+	}
+}
\ No newline at end of file
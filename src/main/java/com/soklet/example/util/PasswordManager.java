@@ -16,6 +16,8 @@
 
 package com.soklet.example.util;
 
+import org.slf4j.LoggerFactory;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
@@ -24,7 +26,10 @@ import javax.crypto.spec.PBEKeySpec;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
@@ -36,15 +41,42 @@ import static java.util.Objects.requireNonNull;
 public class PasswordManager {
 	@Nonnull
 	private static final PasswordManager SHARED_INSTANCE;
+	@Nonnull
+	private static final String DEFAULT_RNG_ALGORITHM;
+	@Nonnull
+	private static final String DEFAULT_HASH_ALGORITHM;
+	@Nonnull
+	private static final Integer DEFAULT_ITERATIONS;
+	@Nonnull
+	private static final Integer DEFAULT_SALT_LENGTH;
+	@Nonnull
+	private static final Integer DEFAULT_KEY_LENGTH;
+	@Nonnull
+	private static final Integer MINIMUM_CALIBRATED_ITERATIONS;
+	@Nonnull
+	private static final Integer MAXIMUM_CALIBRATED_ITERATIONS;
+	@Nonnull
+	private static final Integer CALIBRATION_PROBE_ITERATIONS;
+	@Nonnull
+	private static final Integer CALIBRATION_PROBE_COUNT;
+	@Nonnull
+	private static final ConcurrentMap<Duration, PasswordManager> CALIBRATED_INSTANCES_BY_TARGET_DURATION;
 
 	static {
-		String rngAlgorithm = "SHA1PRNG";
-		String hashAlgorithm = "PBKDF2WithHmacSHA512";
-		int iterations = 5_000;
-		int saltLength = 16;
-		int keyLength = 128 * 8;
+		DEFAULT_RNG_ALGORITHM = "DRBG";
+		DEFAULT_HASH_ALGORITHM = "PBKDF2WithHmacSHA512";
+		DEFAULT_ITERATIONS = 5_000;
+		DEFAULT_SALT_LENGTH = 16;
+		DEFAULT_KEY_LENGTH = 128 * 8;
+
+		// Calibration never goes below what we have always used, and never so high that a login takes seconds
+		MINIMUM_CALIBRATED_ITERATIONS = DEFAULT_ITERATIONS;
+		MAXIMUM_CALIBRATED_ITERATIONS = 2_000_000;
+		CALIBRATION_PROBE_ITERATIONS = 2_000;
+		CALIBRATION_PROBE_COUNT = 5;
+		CALIBRATED_INSTANCES_BY_TARGET_DURATION = new ConcurrentHashMap<>();
 
-		SHARED_INSTANCE = new PasswordManager(rngAlgorithm, hashAlgorithm, iterations, saltLength, keyLength);
+		SHARED_INSTANCE = new PasswordManager(DEFAULT_RNG_ALGORITHM, DEFAULT_HASH_ALGORITHM, DEFAULT_ITERATIONS, DEFAULT_SALT_LENGTH, DEFAULT_KEY_LENGTH);
 	}
 
 	@Nonnull
@@ -52,6 +84,50 @@ public class PasswordManager {
 		return SHARED_INSTANCE;
 	}
 
+	// Benchmarks PBKDF2 on this host and picks an iteration count whose verification takes roughly the target duration.
+	// The host doesn't get faster between calls, so each target is only measured once per JVM (e.g. not once per test)
+	@Nonnull
+	public static PasswordManager calibratedForTargetDuration(@Nonnull Duration targetDuration) {
+		requireNonNull(targetDuration);
+
+		if (targetDuration.isNegative() || targetDuration.isZero())
+			throw new IllegalArgumentException("Target duration must be > 0");
+
+		return CALIBRATED_INSTANCES_BY_TARGET_DURATION.computeIfAbsent(targetDuration, PasswordManager::calibrate);
+	}
+
+	@Nonnull
+	private static PasswordManager calibrate(@Nonnull Duration targetDuration) {
+		requireNonNull(targetDuration);
+
+		PasswordManager probePasswordManager = new PasswordManager(DEFAULT_RNG_ALGORITHM, DEFAULT_HASH_ALGORITHM,
+				CALIBRATION_PROBE_ITERATIONS, DEFAULT_SALT_LENGTH, DEFAULT_KEY_LENGTH);
+
+		// First run warms up the JIT and provider lookups, so it doesn't count
+		probePasswordManager.hashPassword("calibration");
+
+		// Take the fastest probe: anything slower is noise from other work on the machine, not the cost of hashing
+		long fastestProbeNanos = Long.MAX_VALUE;
+
+		for (int i = 0; i < CALIBRATION_PROBE_COUNT; i++) {
+			long probeStarted = System.nanoTime();
+			probePasswordManager.hashPassword("calibration");
+			fastestProbeNanos = Math.min(fastestProbeNanos, System.nanoTime() - probeStarted);
+		}
+
+		double nanosPerIteration = Math.max(1D, fastestProbeNanos / (double) CALIBRATION_PROBE_ITERATIONS);
+		long iterations = Math.round(targetDuration.toNanos() / nanosPerIteration);
+
+		// Round to a friendlier number so hashes from similar hosts don't all differ slightly
+		iterations = Math.round(iterations / 1_000D) * 1_000L;
+		iterations = Math.max(MINIMUM_CALIBRATED_ITERATIONS, Math.min(MAXIMUM_CALIBRATED_ITERATIONS, iterations));
+
+		LoggerFactory.getLogger(PasswordManager.class).info("Calibrated password hashing to {} iterations (~{}ms per hash, target {}ms)",
+				iterations, Math.round(iterations * nanosPerIteration / 1_000_000D), targetDuration.toMillis());
+
+		return new PasswordManager(DEFAULT_RNG_ALGORITHM, DEFAULT_HASH_ALGORITHM, (int) iterations, DEFAULT_SALT_LENGTH, DEFAULT_KEY_LENGTH);
+	}
+
 	@Nullable
 	private final String rngAlgorithm;
 	@Nullable
@@ -62,6 +138,10 @@ public class PasswordManager {
 	private final Integer saltLength;
 	@Nonnull
 	private final Integer keyLength;
+	@Nonnull
+	private final SecureRandom secureRandom;
+	@Nonnull
+	private final ThreadLocal<SecretKeyFactory> secretKeyFactoryHolder;
 
 	public PasswordManager(@Nonnull String rngAlgorithm,
 												 @Nonnull String hashAlgorithm,
@@ -73,27 +153,39 @@ public class PasswordManager {
 		this.iterations = requireNonNull(iterations);
 		this.saltLength = requireNonNull(saltLength);
 		this.keyLength = requireNonNull(keyLength);
+
+		try {
+			// SecureRandom is threadsafe and expensive to seed, so share one
+			this.secureRandom = SecureRandom.getInstance(rngAlgorithm);
+			// Fail fast if the algorithm is unavailable
+			SecretKeyFactory.getInstance(hashAlgorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		// SecretKeyFactory is not threadsafe.  Hashing runs on a small, long-lived set of platform threads
+		// (see PasswordHashingPool), so one instance per thread is reused rather than churned
+		this.secretKeyFactoryHolder = ThreadLocal.withInitial(() -> {
+			try {
+				return SecretKeyFactory.getInstance(hashAlgorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
 	}
 
 	@Nonnull
 	public String hashPassword(@Nonnull String plaintextPassword) {
 		requireNonNull(plaintextPassword);
 
-		try {
-			SecureRandom secureRandom = SecureRandom.getInstance(getRngAlgorithm());
-			byte[] salt = new byte[getSaltLength()];
-			secureRandom.nextBytes(salt);
-
-			PBEKeySpec keySpec = new PBEKeySpec(plaintextPassword.toCharArray(), salt, getIterations(), getKeyLength());
-			SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(getHashAlgorithm());
-			byte[] hashedPassword = secretKeyFactory.generateSecret(keySpec).getEncoded();
-
-			// Generates a string of the form:
-			// <iterations>:<salt>:<hashed password>
-			return format("%d:%s:%s", getIterations(), base64Encode(salt), base64Encode(hashedPassword));
-		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-			throw new RuntimeException(e);
-		}
+		byte[] salt = new byte[getSaltLength()];
+		getSecureRandom().nextBytes(salt);
+
+		byte[] hashedPassword = hash(plaintextPassword, salt, getIterations());
+
+		// Generates a string of the form:
+		// <iterations>:<salt>:<hashed password>
+		return format("%d:%s:%s", getIterations(), base64Encode(salt), base64Encode(hashedPassword));
 	}
 
 	@Nonnull
@@ -107,19 +199,56 @@ public class PasswordManager {
 		byte[] saltComponent = base64Decode(components[1]);
 		byte[] hashedPasswordComponent = base64Decode(components[2]);
 
+		byte[] comparisonHash = hash(plaintextPassword, saltComponent, iterationComponent);
+
+		int difference = hashedPasswordComponent.length ^ comparisonHash.length;
+
+		for (int i = 0; i < hashedPasswordComponent.length && i < comparisonHash.length; i++)
+			difference |= hashedPasswordComponent[i] ^ comparisonHash[i];
+
+		return difference == 0;
+	}
+
+	// Is the stored hash's cost outside of [iterations * (1 - tolerance), iterations * (1 + tolerance)]?
+	// Too cheap is a security problem, too expensive is a capacity problem
+	@Nonnull
+	public Boolean needsRehash(@Nonnull String hashedPassword,
+														 @Nonnull Double tolerance) {
+		requireNonNull(hashedPassword);
+		requireNonNull(tolerance);
+
+		int separatorIndex = hashedPassword.indexOf(':');
+
+		if (separatorIndex < 1)
+			return true;
+
+		int hashedIterations;
+
 		try {
-			PBEKeySpec keySpec = new PBEKeySpec(plaintextPassword.toCharArray(), saltComponent, iterationComponent, getKeyLength());
-			SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(getHashAlgorithm());
-			byte[] comparisonHash = secretKeyFactory.generateSecret(keySpec).getEncoded();
+			hashedIterations = Integer.parseInt(hashedPassword, 0, separatorIndex, 10);
+		} catch (NumberFormatException ignored) {
+			return true;
+		}
 
-			int difference = hashedPasswordComponent.length ^ comparisonHash.length;
+		return hashedIterations < getIterations() * (1D - tolerance)
+				|| hashedIterations > getIterations() * (1D + tolerance);
+	}
+
+	@Nonnull
+	protected byte[] hash(@Nonnull String plaintextPassword,
+												@Nonnull byte[] salt,
+												int iterations) {
+		requireNonNull(plaintextPassword);
+		requireNonNull(salt);
 
-			for (int i = 0; i < hashedPasswordComponent.length && i < comparisonHash.length; i++)
-				difference |= hashedPasswordComponent[i] ^ comparisonHash[i];
+		PBEKeySpec keySpec = new PBEKeySpec(plaintextPassword.toCharArray(), salt, iterations, getKeyLength());
 
-			return difference == 0;
-		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+		try {
+			return getSecretKeyFactoryHolder().get().generateSecret(keySpec).getEncoded();
+		} catch (InvalidKeySpecException e) {
 			throw new RuntimeException(e);
+		} finally {
+			keySpec.clearPassword();
 		}
 	}
 
@@ -159,4 +288,14 @@ public class PasswordManager {
 	public Integer getKeyLength() {
 		return this.keyLength;
 	}
+
+	@Nonnull
+	protected SecureRandom getSecureRandom() {
+		return this.secureRandom;
+	}
+
+	@Nonnull
+	protected ThreadLocal<SecretKeyFactory> getSecretKeyFactoryHolder() {
+		return this.secretKeyFactoryHolder;
+	}
 }
\ No newline at end of file
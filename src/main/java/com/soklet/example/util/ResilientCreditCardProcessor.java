@@ -0,0 +1,645 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import com.soklet.example.exception.ServiceUnavailableException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Currency;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Protects callers from a slow or failing {@link CreditCardProcessor}.
+ * <p>
+ * A bulkhead caps how many calls may be in flight, each call gets a deadline, and a circuit breaker watches
+ * the most recent calls.  If too many of them failed or were slow, the breaker opens and calls fail fast with a
+ * {@link CreditCardProcessorUnavailableException} until a single probe call succeeds.
+ * Declines are normal business outcomes and never count against the processor.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ResilientCreditCardProcessor implements CreditCardProcessor {
+	@Nonnull
+	private final CreditCardProcessor creditCardProcessor;
+	@Nonnull
+	private final Integer maximumConcurrentCalls;
+	@Nonnull
+	private final Duration bulkheadTimeout;
+	@Nonnull
+	private final Duration callTimeout;
+	@Nonnull
+	private final Duration slowCallThreshold;
+	@Nonnull
+	private final Integer minimumCalls;
+	@Nonnull
+	private final Double failureRateThreshold;
+	@Nonnull
+	private final Double slowCallRateThreshold;
+	@Nonnull
+	private final Duration openDuration;
+	@Nonnull
+	private final Semaphore bulkhead;
+	@Nonnull
+	private final ExecutorService executorService;
+	@Nonnull
+	private final ReentrantLock lock;
+	@Nonnull
+	private final CallOutcome[] slidingWindow;
+	@Nonnull
+	private final LongAdder successCount;
+	@Nonnull
+	private final LongAdder declinedCount;
+	@Nonnull
+	private final LongAdder failureCount;
+	@Nonnull
+	private final LongAdder timeoutCount;
+	@Nonnull
+	private final LongAdder slowCallCount;
+	@Nonnull
+	private final LongAdder bulkheadRejectedCount;
+	@Nonnull
+	private final LongAdder shortCircuitedCount;
+
+	// Circuit breaker state, guarded by lock
+	@Nonnull
+	private CircuitState circuitState;
+	private long openedAtNanos;
+	private boolean probeInFlight;
+	private int slidingWindowIndex;
+	private int slidingWindowCount;
+	private int slidingWindowFailureCount;
+	private int slidingWindowSlowCallCount;
+
+	public enum CircuitState {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	protected enum CallOutcome {
+		SUCCESS,
+		SLOW_SUCCESS,
+		FAILURE
+	}
+
+	@NotThreadSafe
+	public static class Builder {
+		@Nonnull
+		private final CreditCardProcessor creditCardProcessor;
+		@Nullable
+		private Integer maximumConcurrentCalls;
+		@Nullable
+		private Duration bulkheadTimeout;
+		@Nullable
+		private Duration callTimeout;
+		@Nullable
+		private Duration slowCallThreshold;
+		@Nullable
+		private Integer slidingWindowSize;
+		@Nullable
+		private Integer minimumCalls;
+		@Nullable
+		private Double failureRateThreshold;
+		@Nullable
+		private Double slowCallRateThreshold;
+		@Nullable
+		private Duration openDuration;
+
+		private Builder(@Nonnull CreditCardProcessor creditCardProcessor) {
+			requireNonNull(creditCardProcessor);
+			this.creditCardProcessor = creditCardProcessor;
+		}
+
+		@Nonnull
+		public Builder maximumConcurrentCalls(@Nullable Integer maximumConcurrentCalls) {
+			this.maximumConcurrentCalls = maximumConcurrentCalls;
+			return this;
+		}
+
+		@Nonnull
+		public Builder bulkheadTimeout(@Nullable Duration bulkheadTimeout) {
+			this.bulkheadTimeout = bulkheadTimeout;
+			return this;
+		}
+
+		@Nonnull
+		public Builder callTimeout(@Nullable Duration callTimeout) {
+			this.callTimeout = callTimeout;
+			return this;
+		}
+
+		@Nonnull
+		public Builder slowCallThreshold(@Nullable Duration slowCallThreshold) {
+			this.slowCallThreshold = slowCallThreshold;
+			return this;
+		}
+
+		@Nonnull
+		public Builder slidingWindowSize(@Nullable Integer slidingWindowSize) {
+			this.slidingWindowSize = slidingWindowSize;
+			return this;
+		}
+
+		@Nonnull
+		public Builder minimumCalls(@Nullable Integer minimumCalls) {
+			this.minimumCalls = minimumCalls;
+			return this;
+		}
+
+		@Nonnull
+		public Builder failureRateThreshold(@Nullable Double failureRateThreshold) {
+			this.failureRateThreshold = failureRateThreshold;
+			return this;
+		}
+
+		@Nonnull
+		public Builder slowCallRateThreshold(@Nullable Double slowCallRateThreshold) {
+			this.slowCallRateThreshold = slowCallRateThreshold;
+			return this;
+		}
+
+		@Nonnull
+		public Builder openDuration(@Nullable Duration openDuration) {
+			this.openDuration = openDuration;
+			return this;
+		}
+
+		@Nonnull
+		public ResilientCreditCardProcessor build() {
+			return new ResilientCreditCardProcessor(this);
+		}
+	}
+
+	@Nonnull
+	public static Builder withCreditCardProcessor(@Nonnull CreditCardProcessor creditCardProcessor) {
+		requireNonNull(creditCardProcessor);
+		return new Builder(creditCardProcessor);
+	}
+
+	private ResilientCreditCardProcessor(@Nonnull Builder builder) {
+		requireNonNull(builder);
+
+		this.creditCardProcessor = builder.creditCardProcessor;
+		this.maximumConcurrentCalls = builder.maximumConcurrentCalls == null ? 32 : builder.maximumConcurrentCalls;
+		this.bulkheadTimeout = builder.bulkheadTimeout == null ? Duration.ofMillis(100) : builder.bulkheadTimeout;
+		this.callTimeout = builder.callTimeout == null ? Duration.ofSeconds(5) : builder.callTimeout;
+		this.slowCallThreshold = builder.slowCallThreshold == null ? Duration.ofSeconds(2) : builder.slowCallThreshold;
+		this.minimumCalls = builder.minimumCalls == null ? 10 : builder.minimumCalls;
+		this.failureRateThreshold = builder.failureRateThreshold == null ? 0.5 : builder.failureRateThreshold;
+		this.slowCallRateThreshold = builder.slowCallRateThreshold == null ? 0.8 : builder.slowCallRateThreshold;
+		this.openDuration = builder.openDuration == null ? Duration.ofSeconds(30) : builder.openDuration;
+
+		int slidingWindowSize = builder.slidingWindowSize == null ? 50 : builder.slidingWindowSize;
+
+		if (this.maximumConcurrentCalls < 1)
+			throw new IllegalArgumentException("Maximum concurrent calls must be > 0");
+
+		if (slidingWindowSize < 1)
+			throw new IllegalArgumentException("Sliding window size must be > 0");
+
+		if (this.minimumCalls < 1 || this.minimumCalls > slidingWindowSize)
+			throw new IllegalArgumentException("Minimum calls must be between 1 and the sliding window size");
+
+		this.bulkhead = new Semaphore(this.maximumConcurrentCalls);
+		// Calls are I/O-bound, so a virtual thread per call is cheap; it lets us walk away from a call that overruns its deadline
+		this.executorService = Executors.newVirtualThreadPerTaskExecutor();
+		this.lock = new ReentrantLock();
+		this.slidingWindow = new CallOutcome[slidingWindowSize];
+		this.successCount = new LongAdder();
+		this.declinedCount = new LongAdder();
+		this.failureCount = new LongAdder();
+		this.timeoutCount = new LongAdder();
+		this.slowCallCount = new LongAdder();
+		this.bulkheadRejectedCount = new LongAdder();
+		this.shortCircuitedCount = new LongAdder();
+		this.circuitState = CircuitState.CLOSED;
+	}
+
+	@Nonnull
+	@Override
+	public String makePayment(@Nonnull String idempotencyKey,
+														@Nonnull String creditCardNumber,
+														@Nonnull BigDecimal amount,
+														@Nonnull Currency currency) throws CreditCardPaymentException {
+		requireNonNull(idempotencyKey);
+		requireNonNull(creditCardNumber);
+		requireNonNull(amount);
+		requireNonNull(currency);
+
+		if (!acquirePermission()) {
+			getShortCircuitedCount().increment();
+			throw new CreditCardProcessorUnavailableException("Credit card processor circuit is open", false, null);
+		}
+
+		boolean bulkheadAcquired;
+
+		try {
+			bulkheadAcquired = getBulkhead().tryAcquire(getBulkheadTimeout().toNanos(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			releasePermission();
+			throw new CreditCardProcessorUnavailableException("Interrupted while waiting for a credit card processor permit", false, e);
+		}
+
+		if (!bulkheadAcquired) {
+			getBulkheadRejectedCount().increment();
+			releasePermission();
+			throw new CreditCardProcessorUnavailableException(format("Too many concurrent credit card processor calls (maximum is %d)",
+					getMaximumConcurrentCalls()), false, null);
+		}
+
+		long startedAt = System.nanoTime();
+		Future<String> future;
+		// Whoever claims the call first owns the bulkhead permit: the task itself once it starts,
+		// or the caller if it gives up before the task ever ran
+		AtomicBoolean claimed = new AtomicBoolean(false);
+
+		// The task gives the permit back itself when the call returns.  Cancelling only interrupts the call,
+		// which may well ignore it, so if we released here after a timeout, more calls could be in flight than the bulkhead allows
+		try {
+			future = getExecutorService().submit(() -> {
+				if (!claimed.compareAndSet(false, true))
+					return null;
+
+				try {
+					return getCreditCardProcessor().makePayment(idempotencyKey, creditCardNumber, amount, currency);
+				} finally {
+					getBulkhead().release();
+				}
+			});
+		} catch (RuntimeException e) {
+			getBulkhead().release();
+			releasePermission();
+			throw new CreditCardProcessorUnavailableException("Unable to start a credit card processor call", false, e);
+		}
+
+		try {
+			String creditCardTransactionId = future.get(getCallTimeout().toNanos(), TimeUnit.NANOSECONDS);
+			boolean slow = System.nanoTime() - startedAt >= getSlowCallThreshold().toNanos();
+
+			getSuccessCount().increment();
+
+			if (slow)
+				getSlowCallCount().increment();
+
+			recordOutcome(slow ? CallOutcome.SLOW_SUCCESS : CallOutcome.SUCCESS);
+			return creditCardTransactionId;
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			getTimeoutCount().increment();
+			recordOutcome(CallOutcome.FAILURE);
+
+			// If the task never started, the processor was never contacted.
+			// Otherwise it may still complete the charge, so the caller can't assume it didn't happen
+			boolean chargeAttempted = !claimed.compareAndSet(false, true);
+
+			if (!chargeAttempted)
+				getBulkhead().release();
+
+			throw new CreditCardProcessorUnavailableException(format("Credit card processor did not respond within %dms",
+					getCallTimeout().toMillis()), chargeAttempted, e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			releasePermission();
+
+			boolean chargeAttempted = !claimed.compareAndSet(false, true);
+
+			if (!chargeAttempted)
+				getBulkhead().release();
+
+			throw new CreditCardProcessorUnavailableException("Interrupted while waiting for the credit card processor", chargeAttempted, e);
+		} catch (ExecutionException e) {
+			// A decline means the processor is healthy and did its job
+			if (e.getCause() instanceof CreditCardPaymentException creditCardPaymentException) {
+				getDeclinedCount().increment();
+				recordOutcome(CallOutcome.SUCCESS);
+				throw creditCardPaymentException;
+			}
+
+			getFailureCount().increment();
+			recordOutcome(CallOutcome.FAILURE);
+
+			// Anything else (a dropped connection, a 5xx, a bug in the client) may have happened after the processor
+			// accepted the charge, so callers must treat it as uncertain rather than as a plain error
+			throw new CreditCardProcessorUnavailableException(format("Credit card processor call failed: %s",
+					e.getCause()), true, e.getCause());
+		}
+	}
+
+	// Whether a call may proceed.  When the open period has elapsed, exactly one caller is let through as a probe
+	protected boolean acquirePermission() {
+		getLock().lock();
+
+		try {
+			if (this.circuitState == CircuitState.OPEN && System.nanoTime() - this.openedAtNanos >= getOpenDuration().toNanos())
+				this.circuitState = CircuitState.HALF_OPEN;
+
+			if (this.circuitState == CircuitState.CLOSED)
+				return true;
+
+			if (this.circuitState == CircuitState.HALF_OPEN && !this.probeInFlight) {
+				this.probeInFlight = true;
+				return true;
+			}
+
+			return false;
+		} finally {
+			getLock().unlock();
+		}
+	}
+
+	// Gives back a probe permission when the call never reached the processor
+	protected void releasePermission() {
+		getLock().lock();
+
+		try {
+			if (this.circuitState == CircuitState.HALF_OPEN)
+				this.probeInFlight = false;
+		} finally {
+			getLock().unlock();
+		}
+	}
+
+	protected void recordOutcome(@Nonnull CallOutcome callOutcome) {
+		requireNonNull(callOutcome);
+
+		getLock().lock();
+
+		try {
+			if (this.circuitState == CircuitState.HALF_OPEN) {
+				this.probeInFlight = false;
+
+				// Slow probes don't close the circuit either; the processor hasn't recovered yet
+				if (callOutcome == CallOutcome.SUCCESS) {
+					this.circuitState = CircuitState.CLOSED;
+					resetSlidingWindow();
+				} else {
+					open();
+				}
+
+				return;
+			}
+
+			// Calls that were already in flight when the circuit opened don't count
+			if (this.circuitState == CircuitState.OPEN)
+				return;
+
+			CallOutcome evictedCallOutcome = getSlidingWindow()[this.slidingWindowIndex];
+
+			if (evictedCallOutcome == CallOutcome.FAILURE)
+				--this.slidingWindowFailureCount;
+			else if (evictedCallOutcome == CallOutcome.SLOW_SUCCESS)
+				--this.slidingWindowSlowCallCount;
+
+			getSlidingWindow()[this.slidingWindowIndex] = callOutcome;
+			this.slidingWindowIndex = (this.slidingWindowIndex + 1) % getSlidingWindow().length;
+
+			if (evictedCallOutcome == null)
+				++this.slidingWindowCount;
+
+			if (callOutcome == CallOutcome.FAILURE)
+				++this.slidingWindowFailureCount;
+			else if (callOutcome == CallOutcome.SLOW_SUCCESS)
+				++this.slidingWindowSlowCallCount;
+
+			if (this.slidingWindowCount < getMinimumCalls())
+				return;
+
+			double failureRate = this.slidingWindowFailureCount / (double) this.slidingWindowCount;
+			double slowCallRate = this.slidingWindowSlowCallCount / (double) this.slidingWindowCount;
+
+			if (failureRate >= getFailureRateThreshold() || slowCallRate >= getSlowCallRateThreshold())
+				open();
+		} finally {
+			getLock().unlock();
+		}
+	}
+
+	// Callers must hold the lock
+	protected void open() {
+		this.circuitState = CircuitState.OPEN;
+		this.openedAtNanos = System.nanoTime();
+		resetSlidingWindow();
+	}
+
+	// Callers must hold the lock
+	protected void resetSlidingWindow() {
+		for (int i = 0; i < getSlidingWindow().length; ++i)
+			getSlidingWindow()[i] = null;
+
+		this.slidingWindowIndex = 0;
+		this.slidingWindowCount = 0;
+		this.slidingWindowFailureCount = 0;
+		this.slidingWindowSlowCallCount = 0;
+	}
+
+	@Nonnull
+	public ResilientCreditCardProcessorMetrics getMetrics() {
+		CircuitState circuitState;
+
+		getLock().lock();
+
+		try {
+			circuitState = this.circuitState;
+		} finally {
+			getLock().unlock();
+		}
+
+		return new ResilientCreditCardProcessorMetrics(
+				circuitState,
+				getMaximumConcurrentCalls(),
+				getMaximumConcurrentCalls() - getBulkhead().availablePermits(),
+				getSuccessCount().sum(),
+				getDeclinedCount().sum(),
+				getFailureCount().sum(),
+				getTimeoutCount().sum(),
+				getSlowCallCount().sum(),
+				getBulkheadRejectedCount().sum(),
+				getShortCircuitedCount().sum()
+		);
+	}
+
+	public record ResilientCreditCardProcessorMetrics(
+			@Nonnull CircuitState circuitState,
+			@Nonnull Integer maximumConcurrentCalls,
+			@Nonnull Integer activeCallCount,
+			@Nonnull Long successCount,
+			@Nonnull Long declinedCount,
+			@Nonnull Long failureCount,
+			@Nonnull Long timeoutCount,
+			@Nonnull Long slowCallCount,
+			@Nonnull Long bulkheadRejectedCount,
+			@Nonnull Long shortCircuitedCount
+	) {
+		public ResilientCreditCardProcessorMetrics {
+			requireNonNull(circuitState);
+			requireNonNull(maximumConcurrentCalls);
+			requireNonNull(activeCallCount);
+			requireNonNull(successCount);
+			requireNonNull(declinedCount);
+			requireNonNull(failureCount);
+			requireNonNull(timeoutCount);
+			requireNonNull(slowCallCount);
+			requireNonNull(bulkheadRejectedCount);
+			requireNonNull(shortCircuitedCount);
+		}
+	}
+
+	/**
+	 * Thrown when the processor can't be reached in time, or we chose not to try.
+	 * <p>
+	 * If {@link #getChargeAttempted()} is {@code false}, the processor was never contacted and the card was definitely not charged.
+	 */
+	@NotThreadSafe
+	public static class CreditCardProcessorUnavailableException extends ServiceUnavailableException {
+		@Nonnull
+		private final Boolean chargeAttempted;
+
+		public CreditCardProcessorUnavailableException(@Nullable String message,
+																									 @Nonnull Boolean chargeAttempted,
+																									 @Nullable Throwable cause) {
+			super(message, cause);
+			requireNonNull(chargeAttempted);
+			this.chargeAttempted = chargeAttempted;
+		}
+
+		@Nonnull
+		public Boolean getChargeAttempted() {
+			return this.chargeAttempted;
+		}
+	}
+
+	@Nonnull
+	protected CreditCardProcessor getCreditCardProcessor() {
+		return this.creditCardProcessor;
+	}
+
+	@Nonnull
+	public Integer getMaximumConcurrentCalls() {
+		return this.maximumConcurrentCalls;
+	}
+
+	@Nonnull
+	public Duration getBulkheadTimeout() {
+		return this.bulkheadTimeout;
+	}
+
+	@Nonnull
+	public Duration getCallTimeout() {
+		return this.callTimeout;
+	}
+
+	@Nonnull
+	public Duration getSlowCallThreshold() {
+		return this.slowCallThreshold;
+	}
+
+	@Nonnull
+	public Integer getMinimumCalls() {
+		return this.minimumCalls;
+	}
+
+	@Nonnull
+	public Double getFailureRateThreshold() {
+		return this.failureRateThreshold;
+	}
+
+	@Nonnull
+	public Double getSlowCallRateThreshold() {
+		return this.slowCallRateThreshold;
+	}
+
+	@Nonnull
+	public Duration getOpenDuration() {
+		return this.openDuration;
+	}
+
+	@Nonnull
+	protected Semaphore getBulkhead() {
+		return this.bulkhead;
+	}
+
+	@Nonnull
+	protected ExecutorService getExecutorService() {
+		return this.executorService;
+	}
+
+	@Nonnull
+	protected ReentrantLock getLock() {
+		return this.lock;
+	}
+
+	@Nonnull
+	protected CallOutcome[] getSlidingWindow() {
+		return this.slidingWindow;
+	}
+
+	@Nonnull
+	protected LongAdder getSuccessCount() {
+		return this.successCount;
+	}
+
+	@Nonnull
+	protected LongAdder getDeclinedCount() {
+		return this.declinedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getFailureCount() {
+		return this.failureCount;
+	}
+
+	@Nonnull
+	protected LongAdder getTimeoutCount() {
+		return this.timeoutCount;
+	}
+
+	@Nonnull
+	protected LongAdder getSlowCallCount() {
+		return this.slowCallCount;
+	}
+
+	@Nonnull
+	protected LongAdder getBulkheadRejectedCount() {
+		return this.bulkheadRejectedCount;
+	}
+
+	@Nonnull
+	protected LongAdder getShortCircuitedCount() {
+		return this.shortCircuitedCount;
+	}
+}
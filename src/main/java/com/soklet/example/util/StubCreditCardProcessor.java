@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Currency;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A local stand-in for a real processor whose latency and failures can be dialed in, even while requests are in flight.
+ * <p>
+ * Useful for exercising timeouts, bulkheads and circuit breakers without a network.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class StubCreditCardProcessor implements CreditCardProcessor {
+	@Nonnull
+	private volatile Duration latency;
+	@Nonnull
+	private volatile FailureMode failureMode;
+	@Nonnull
+	private volatile Double failureRate;
+
+	public enum FailureMode {
+		// Always succeed
+		NONE,
+		// Decline the card, i.e. a healthy processor saying no
+		DECLINE,
+		// Blow up, like a 5xx from the processor
+		ERROR,
+		// Never respond (until interrupted), like a dead connection
+		HANG
+	}
+
+	public StubCreditCardProcessor() {
+		this(Duration.ZERO, FailureMode.NONE, 0D);
+	}
+
+	public StubCreditCardProcessor(@Nonnull Duration latency,
+																 @Nonnull FailureMode failureMode,
+																 @Nonnull Double failureRate) {
+		requireNonNull(latency);
+		requireNonNull(failureMode);
+		requireNonNull(failureRate);
+
+		if (failureRate < 0 || failureRate > 1)
+			throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+
+		this.latency = latency;
+		this.failureMode = failureMode;
+		this.failureRate = failureRate;
+	}
+
+	@Nonnull
+	@Override
+	public String makePayment(@Nonnull String idempotencyKey,
+														@Nonnull String creditCardNumber,
+														@Nonnull BigDecimal amount,
+														@Nonnull Currency currency) throws CreditCardPaymentException {
+		requireNonNull(idempotencyKey);
+		requireNonNull(creditCardNumber);
+		requireNonNull(amount);
+		requireNonNull(currency);
+
+		// Read once so a concurrent reconfiguration can't give us a mix of old and new settings
+		Duration latency = getLatency();
+		FailureMode failureMode = getFailureMode();
+		boolean fail = failureMode != FailureMode.NONE && ThreadLocalRandom.current().nextDouble() < getFailureRate();
+
+		try {
+			if (fail && failureMode == FailureMode.HANG)
+				Thread.sleep(Long.MAX_VALUE);
+
+			if (!latency.isZero())
+				Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while processing payment", e);
+		}
+
+		if (fail && failureMode == FailureMode.DECLINE)
+			throw new CreditCardPaymentException(CreditCardPaymentFailureReason.DECLINED);
+
+		if (fail && failureMode == FailureMode.ERROR)
+			throw new IllegalStateException(format("Simulated credit card processor failure for %s %s", amount, currency.getCurrencyCode()));
+
+		// Same key, same charge
+		return format("stub-%s", UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Nonnull
+	public Duration getLatency() {
+		return this.latency;
+	}
+
+	public void setLatency(@Nonnull Duration latency) {
+		requireNonNull(latency);
+		this.latency = latency;
+	}
+
+	@Nonnull
+	public FailureMode getFailureMode() {
+		return this.failureMode;
+	}
+
+	public void setFailureMode(@Nonnull FailureMode failureMode) {
+		requireNonNull(failureMode);
+		this.failureMode = failureMode;
+	}
+
+	@Nonnull
+	public Double getFailureRate() {
+		return this.failureRate;
+	}
+
+	// Fraction of calls, from 0 to 1, that experience the failure mode
+	public void setFailureRate(@Nonnull Double failureRate) {
+		requireNonNull(failureRate);
+
+		if (failureRate < 0 || failureRate > 1)
+			throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+
+		this.failureRate = failureRate;
+	}
+}
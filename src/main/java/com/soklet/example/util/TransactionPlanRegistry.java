@@ -0,0 +1,124 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.pyranid.TransactionIsolation;
+import com.soklet.example.annotation.TransactionPolicy;
+import com.soklet.example.annotation.TransactionPolicy.TransactionMode;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Holds a {@link TransactionPlan} for each resource method so {@link TransactionPolicy} is only reflected on once.
+ * <p>
+ * Works just like {@link AuthorizationPlanRegistry}: resource classes are compiled eagerly at startup and
+ * anything not registered is compiled the first time it's seen.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class TransactionPlanRegistry {
+	@Nonnull
+	private final ConcurrentHashMap<Method, TransactionPlan> transactionPlansByMethod;
+
+	public TransactionPlanRegistry() {
+		this.transactionPlansByMethod = new ConcurrentHashMap<>();
+	}
+
+	public void compile(@Nonnull Collection<Class<?>> resourceClasses) {
+		requireNonNull(resourceClasses);
+
+		for (Class<?> resourceClass : resourceClasses)
+			for (Method method : resourceClass.getDeclaredMethods())
+				if (Modifier.isPublic(method.getModifiers()) && !method.isSynthetic())
+					getTransactionPlansByMethod().computeIfAbsent(method, TransactionPlan::forMethod);
+	}
+
+	@Nonnull
+	public TransactionPlan transactionPlanFor(@Nonnull Method method) {
+		requireNonNull(method);
+
+		TransactionPlan transactionPlan = getTransactionPlansByMethod().get(method);
+
+		if (transactionPlan != null)
+			return transactionPlan;
+
+		return getTransactionPlansByMethod().computeIfAbsent(method, TransactionPlan::forMethod);
+	}
+
+	@Nonnull
+	public Map<Method, TransactionPlan> getTransactionPlans() {
+		return Collections.unmodifiableMap(getTransactionPlansByMethod());
+	}
+
+	public record TransactionPlan(
+			@Nonnull TransactionMode transactionMode,
+			@Nonnull TransactionIsolation transactionIsolation,
+			@Nullable Duration statementTimeout
+	) {
+		@Nonnull
+		public static final TransactionPlan DEFAULT;
+		@Nonnull
+		public static final TransactionPlan NONE;
+
+		static {
+			DEFAULT = new TransactionPlan(TransactionMode.READ_WRITE, TransactionIsolation.DEFAULT, null);
+			NONE = new TransactionPlan(TransactionMode.NONE, TransactionIsolation.DEFAULT, null);
+		}
+
+		public TransactionPlan {
+			requireNonNull(transactionMode);
+			requireNonNull(transactionIsolation);
+		}
+
+		@Nonnull
+		public static TransactionPlan forMethod(@Nonnull Method method) {
+			requireNonNull(method);
+
+			TransactionPolicy transactionPolicy = method.getAnnotation(TransactionPolicy.class);
+
+			if (transactionPolicy == null)
+				return DEFAULT;
+
+			if (transactionPolicy.statementTimeoutSeconds() < 0)
+				throw new IllegalStateException(format("Statement timeout for %s cannot be negative", method));
+
+			Duration statementTimeout = transactionPolicy.statementTimeoutSeconds() == 0
+					? null
+					: Duration.ofSeconds(transactionPolicy.statementTimeoutSeconds());
+
+			return new TransactionPlan(transactionPolicy.value(), transactionPolicy.isolation(), statementTimeout);
+		}
+	}
+
+	@Nonnull
+	protected ConcurrentHashMap<Method, TransactionPlan> getTransactionPlansByMethod() {
+		return this.transactionPlansByMethod;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,705 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Immutable trigram inverted index for typo-tolerant search over a fixed list of documents, identified by list position.
+ * A changed document list gets a new index derived from the old one with {@link #withChanges}.
+ * <p>
+ * Each word is padded as {@code "  word "} and split into overlapping three-character trigrams, the same scheme as
+ * PostgreSQL's {@code pg_trgm}.  A misspelling only disturbs the few trigrams around it, so similar strings still share
+ * most of theirs.  Results are ranked by Jaccard similarity of trigram sets, best first, ties in document order.
+ * <p>
+ * Everything is stored in primitive arrays so a million-document index is a handful of objects, not millions:
+ * trigrams are packed into {@code long}s, and each trigram's posting list is an ascending run of document IDs in one
+ * shared {@code int[]}.
+ * <p>
+ * Documents and queries are matched character for character; callers should fold case and accents first.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class TrigramIndex {
+	// Tallies are bytes, so a query can only be counted this way if it has no more trigrams than a byte can count
+	@Nonnull
+	private static final Integer MAXIMUM_TALLY;
+
+	static {
+		MAXIMUM_TALLY = 255;
+	}
+
+	@Nonnull
+	private final TrigramDictionary trigramDictionary;
+	// Posting list for trigram ordinal n is postings[postingOffsets[n]] up to (not including) postings[postingOffsets[n + 1]]
+	@Nonnull
+	private final int[] postingOffsets;
+	@Nonnull
+	private final int[] postings;
+	@Nonnull
+	private final int[] documentTrigramCounts;
+	// Per-document tally arrays are as big as the catalog, so reuse them rather than allocate one per search.
+	// As with HmacSigner, this is a small lock-free pool because requests run on short-lived virtual threads
+	@Nonnull
+	private final ConcurrentLinkedQueue<byte[]> tallyPool;
+	@Nonnull
+	private final AtomicInteger tallyPoolSize;
+	@Nonnull
+	private final Integer maximumTallyPoolSize;
+
+	@Nonnull
+	public static TrigramIndex forDocuments(@Nonnull List<String> documents) {
+		requireNonNull(documents);
+
+		TrigramDictionary trigramDictionary = new TrigramDictionary();
+		int[] documentTrigramCounts = new int[documents.size()];
+		int[] postingCounts = new int[64];
+
+		// First pass sizes every posting list, so the second can fill one exact-size array without any boxing or copying
+		for (int documentId = 0; documentId < documents.size(); ++documentId) {
+			long[] trigrams = trigramsOf(documents.get(documentId));
+			documentTrigramCounts[documentId] = trigrams.length;
+
+			for (long trigram : trigrams) {
+				int ordinal = trigramDictionary.ordinalFor(trigram);
+
+				if (ordinal == postingCounts.length)
+					postingCounts = Arrays.copyOf(postingCounts, postingCounts.length * 2);
+
+				++postingCounts[ordinal];
+			}
+		}
+
+		int[] postingOffsets = new int[trigramDictionary.size() + 1];
+
+		for (int ordinal = 0; ordinal < trigramDictionary.size(); ++ordinal)
+			postingOffsets[ordinal + 1] = postingOffsets[ordinal] + postingCounts[ordinal];
+
+		int[] postings = new int[postingOffsets[trigramDictionary.size()]];
+		int[] postingPositions = Arrays.copyOf(postingOffsets, trigramDictionary.size());
+
+		// Documents are visited in order, so every posting list comes out sorted
+		for (int documentId = 0; documentId < documents.size(); ++documentId)
+			for (long trigram : trigramsOf(documents.get(documentId)))
+				postings[postingPositions[trigramDictionary.ordinalFor(trigram)]++] = documentId;
+
+		return new TrigramIndex(trigramDictionary, postingOffsets, postings, documentTrigramCounts);
+	}
+
+	// The index for this one's documents after some are removed and others added, without re-tokenizing the rest.
+	// documentIdMapping gives each current document's new ID, or -1 if it was removed; survivors must keep their order.
+	// addedDocumentIds are the added documents' new IDs, ascending, and together with the survivors fill 0 to documentCount
+	@Nonnull
+	public TrigramIndex withChanges(@Nonnull int[] documentIdMapping,
+																	@Nonnull Integer documentCount,
+																	@Nonnull int[] addedDocumentIds,
+																	@Nonnull List<String> addedDocuments) {
+		requireNonNull(documentIdMapping);
+		requireNonNull(documentCount);
+		requireNonNull(addedDocumentIds);
+		requireNonNull(addedDocuments);
+
+		if (documentIdMapping.length != getDocumentCount())
+			throw new IllegalArgumentException("Document ID mapping must cover every document");
+
+		if (addedDocumentIds.length != addedDocuments.size())
+			throw new IllegalArgumentException("Every added document needs an ID");
+
+		// Trigrams are only ever added to the copy, so existing ordinals (and their posting offsets) stay valid
+		TrigramDictionary trigramDictionary = getTrigramDictionary().copy();
+		int[] documentTrigramCounts = new int[documentCount];
+		int previousDocumentId = -1;
+
+		for (int documentId = 0; documentId < documentIdMapping.length; ++documentId) {
+			int newDocumentId = documentIdMapping[documentId];
+
+			if (newDocumentId == -1)
+				continue;
+
+			// Remapped posting lists are only still sorted if the survivors keep their order
+			if (newDocumentId <= previousDocumentId || newDocumentId >= documentCount)
+				throw new IllegalArgumentException("Surviving documents must keep their relative order");
+
+			documentTrigramCounts[newDocumentId] = getDocumentTrigramCounts()[documentId];
+			previousDocumentId = newDocumentId;
+		}
+
+		long[][] addedTrigrams = new long[addedDocuments.size()][];
+		int[] addedPostingCounts = new int[Math.max(64, trigramDictionary.size())];
+
+		for (int i = 0; i < addedDocuments.size(); ++i) {
+			if (i > 0 && addedDocumentIds[i] <= addedDocumentIds[i - 1])
+				throw new IllegalArgumentException("Added document IDs must be ascending");
+
+			addedTrigrams[i] = trigramsOf(addedDocuments.get(i));
+			documentTrigramCounts[addedDocumentIds[i]] = addedTrigrams[i].length;
+
+			for (long trigram : addedTrigrams[i]) {
+				int ordinal = trigramDictionary.ordinalFor(trigram);
+
+				if (ordinal >= addedPostingCounts.length)
+					addedPostingCounts = Arrays.copyOf(addedPostingCounts, Math.max(addedPostingCounts.length * 2, ordinal + 1));
+
+				++addedPostingCounts[ordinal];
+			}
+		}
+
+		// The added documents' postings, grouped by trigram the same way as the main postings
+		int[] addedPostingOffsets = new int[trigramDictionary.size() + 1];
+
+		for (int ordinal = 0; ordinal < trigramDictionary.size(); ++ordinal)
+			addedPostingOffsets[ordinal + 1] = addedPostingOffsets[ordinal] + addedPostingCounts[ordinal];
+
+		int[] addedPostings = new int[addedPostingOffsets[trigramDictionary.size()]];
+		int[] addedPostingPositions = Arrays.copyOf(addedPostingOffsets, trigramDictionary.size());
+
+		for (int i = 0; i < addedTrigrams.length; ++i)
+			for (long trigram : addedTrigrams[i])
+				addedPostings[addedPostingPositions[trigramDictionary.ordinalOf(trigram)]++] = addedDocumentIds[i];
+
+		// Each list is the survivors of its old list, renumbered, merged with its added postings.
+		// Removed documents may leave a trigram with an empty list; searches skip those
+		int[] oldPostingOffsets = getPostingOffsets();
+		int[] oldPostings = getPostings();
+		int oldTrigramCount = oldPostingOffsets.length - 1;
+		int[] postingOffsets = new int[trigramDictionary.size() + 1];
+		int[] postings = new int[oldPostings.length + addedPostings.length];
+		int postingCount = 0;
+
+		for (int ordinal = 0; ordinal < trigramDictionary.size(); ++ordinal) {
+			int oldPosition = ordinal < oldTrigramCount ? oldPostingOffsets[ordinal] : 0;
+			int oldEnd = ordinal < oldTrigramCount ? oldPostingOffsets[ordinal + 1] : 0;
+			int addedPosition = addedPostingOffsets[ordinal];
+			int addedEnd = addedPostingOffsets[ordinal + 1];
+
+			while (oldPosition < oldEnd || addedPosition < addedEnd) {
+				int oldDocumentId = Integer.MAX_VALUE;
+
+				if (oldPosition < oldEnd) {
+					oldDocumentId = documentIdMapping[oldPostings[oldPosition]];
+
+					if (oldDocumentId == -1) {
+						++oldPosition;
+						continue;
+					}
+				}
+
+				if (addedPosition < addedEnd && addedPostings[addedPosition] < oldDocumentId) {
+					postings[postingCount++] = addedPostings[addedPosition++];
+				} else {
+					postings[postingCount++] = oldDocumentId;
+					++oldPosition;
+				}
+			}
+
+			postingOffsets[ordinal + 1] = postingCount;
+		}
+
+		return new TrigramIndex(trigramDictionary, postingOffsets, Arrays.copyOf(postings, postingCount), documentTrigramCounts);
+	}
+
+	protected TrigramIndex(@Nonnull TrigramDictionary trigramDictionary,
+												 @Nonnull int[] postingOffsets,
+												 @Nonnull int[] postings,
+												 @Nonnull int[] documentTrigramCounts) {
+		requireNonNull(trigramDictionary);
+		requireNonNull(postingOffsets);
+		requireNonNull(postings);
+		requireNonNull(documentTrigramCounts);
+
+		this.trigramDictionary = trigramDictionary;
+		this.postingOffsets = postingOffsets;
+		this.postings = postings;
+		this.documentTrigramCounts = documentTrigramCounts;
+		this.tallyPool = new ConcurrentLinkedQueue<>();
+		this.tallyPoolSize = new AtomicInteger(0);
+		this.maximumTallyPoolSize = Runtime.getRuntime().availableProcessors();
+	}
+
+	// IDs of up to limit documents at least minimumSimilarity (0-1] similar to the query, most similar first
+	@Nonnull
+	public int[] search(@Nonnull String query,
+											@Nonnull Double minimumSimilarity,
+											@Nonnull Integer limit) {
+		requireNonNull(query);
+		requireNonNull(minimumSimilarity);
+		requireNonNull(limit);
+
+		if (minimumSimilarity <= 0 || minimumSimilarity > 1)
+			throw new IllegalArgumentException("Minimum similarity must be greater than 0 and at most 1");
+
+		if (limit < 1)
+			throw new IllegalArgumentException("Limit must be at least 1");
+
+		long[] queryTrigrams = trigramsOf(query);
+
+		if (queryTrigrams.length == 0)
+			return new int[0];
+
+		// Similarity is at most matches / query trigrams, so anything sharing fewer than this can't qualify
+		int minimumMatches = Math.max(1, (int) Math.ceil(minimumSimilarity * queryTrigrams.length - 1e-9));
+		int[] listStarts = new int[queryTrigrams.length];
+		int[] listEnds = new int[queryTrigrams.length];
+		int listCount = 0;
+
+		for (long queryTrigram : queryTrigrams) {
+			int ordinal = getTrigramDictionary().ordinalOf(queryTrigram);
+
+			// Trigrams nobody has (any more) still count against similarity, but have no list to read
+			if (ordinal != -1 && getPostingOffsets()[ordinal + 1] > getPostingOffsets()[ordinal]) {
+				listStarts[listCount] = getPostingOffsets()[ordinal];
+				listEnds[listCount] = getPostingOffsets()[ordinal + 1];
+				++listCount;
+			}
+		}
+
+		if (listCount < minimumMatches)
+			return new int[0];
+
+		sortByLength(listStarts, listEnds, listCount);
+
+		// A qualifying document is missing from at most (minimumMatches - 1) lists, so it must appear in at least one
+		// of the shortest (listCount - minimumMatches + 1).  Only those are merged to find candidates;
+		// the long, common-trigram lists are only probed for each candidate
+		int candidateListCount = listCount - minimumMatches + 1;
+		long candidatePostingCount = 0;
+
+		for (int i = 0; i < candidateListCount; ++i)
+			candidatePostingCount += listEnds[i] - listStarts[i];
+
+		// Merging pays for every list on every candidate.  Once candidates are a sizable share of the catalog,
+		// it's cheaper to tally every posting per document and sweep the tallies once
+		if (listCount <= MAXIMUM_TALLY && candidatePostingCount * 8 > getDocumentCount())
+			return searchByTally(listStarts, listEnds, listCount, queryTrigrams.length, minimumMatches, minimumSimilarity, limit);
+
+		int[] positions = Arrays.copyOf(listStarts, listCount);
+		int[] postings = getPostings();
+		TopDocuments topDocuments = new TopDocuments(limit);
+
+		while (true) {
+			int documentId = Integer.MAX_VALUE;
+
+			for (int i = 0; i < candidateListCount; ++i)
+				if (positions[i] < listEnds[i] && postings[positions[i]] < documentId)
+					documentId = postings[positions[i]];
+
+			if (documentId == Integer.MAX_VALUE)
+				break;
+
+			int matches = 0;
+
+			for (int i = 0; i < candidateListCount; ++i) {
+				if (positions[i] < listEnds[i] && postings[positions[i]] == documentId) {
+					++matches;
+					++positions[i];
+				}
+			}
+
+			// Candidates arrive in ascending order, so probe positions only ever move forward.
+			// Lists left unprobed once a candidate is out of reach are caught up by the next candidate's search
+			for (int i = candidateListCount; i < listCount && matches + (listCount - i) >= minimumMatches; ++i) {
+				positions[i] = advanceTo(postings, positions[i], listEnds[i], documentId);
+
+				if (positions[i] < listEnds[i] && postings[positions[i]] == documentId) {
+					++matches;
+					++positions[i];
+				}
+			}
+
+			if (matches < minimumMatches)
+				continue;
+
+			double similarity = (double) matches / (queryTrigrams.length + getDocumentTrigramCounts()[documentId] - matches);
+
+			if (similarity < minimumSimilarity || !topDocuments.offer(documentId, similarity))
+				continue;
+
+			// Once we have a full set of results, only a strictly better match can get in, which demands more shared trigrams.
+			// That lets us merge fewer (and shorter) lists for the rest of the search
+			if (topDocuments.isFull()) {
+				int requiredMatches = (int) Math.floor(topDocuments.getWorstSimilarity() * queryTrigrams.length) + 1;
+
+				if (requiredMatches > listCount)
+					break;
+
+				if (requiredMatches > minimumMatches) {
+					minimumMatches = requiredMatches;
+					candidateListCount = listCount - minimumMatches + 1;
+				}
+			}
+		}
+
+		return topDocuments.toDocumentIds();
+	}
+
+	@Nonnull
+	protected int[] searchByTally(@Nonnull int[] listStarts,
+																@Nonnull int[] listEnds,
+																int listCount,
+																int queryTrigramCount,
+																int minimumMatches,
+																double minimumSimilarity,
+																int limit) {
+		requireNonNull(listStarts);
+		requireNonNull(listEnds);
+
+		int[] postings = getPostings();
+		int[] documentTrigramCounts = getDocumentTrigramCounts();
+		TopDocuments topDocuments = new TopDocuments(limit);
+		byte[] tallies = acquireTallies();
+
+		try {
+			for (int i = 0; i < listCount; ++i)
+				for (int position = listStarts[i]; position < listEnds[i]; ++position)
+					++tallies[postings[position]];
+
+			// Sweeping in document order keeps ties in document order, and leaves the tallies zeroed for the next search
+			for (int documentId = 0; documentId < tallies.length; ++documentId) {
+				int matches = tallies[documentId] & 0xFF;
+
+				if (matches == 0)
+					continue;
+
+				tallies[documentId] = 0;
+
+				if (matches < minimumMatches)
+					continue;
+
+				double similarity = (double) matches / (queryTrigramCount + documentTrigramCounts[documentId] - matches);
+
+				if (similarity >= minimumSimilarity)
+					topDocuments.offer(documentId, similarity);
+			}
+		} catch (RuntimeException e) {
+			// Don't return a half-counted array to the pool
+			Arrays.fill(tallies, (byte) 0);
+			throw e;
+		} finally {
+			releaseTallies(tallies);
+		}
+
+		return topDocuments.toDocumentIds();
+	}
+
+	@Nonnull
+	protected byte[] acquireTallies() {
+		byte[] tallies = getTallyPool().poll();
+
+		if (tallies == null)
+			return new byte[getDocumentCount()];
+
+		getTallyPoolSize().decrementAndGet();
+		return tallies;
+	}
+
+	protected void releaseTallies(@Nonnull byte[] tallies) {
+		requireNonNull(tallies);
+
+		// Let the garbage collector have any extras created during a burst
+		if (getTallyPoolSize().incrementAndGet() > getMaximumTallyPoolSize()) {
+			getTallyPoolSize().decrementAndGet();
+			return;
+		}
+
+		getTallyPool().offer(tallies);
+	}
+
+	@Nonnull
+	public Integer getDocumentCount() {
+		return getDocumentTrigramCounts().length;
+	}
+
+	// Distinct trigrams of the text, sorted
+	@Nonnull
+	protected static long[] trigramsOf(@Nonnull String text) {
+		requireNonNull(text);
+
+		// A word of n characters yields n + 1 trigrams, so this is always enough
+		long[] trigrams = new long[text.length() * 2];
+		int trigramCount = 0;
+		char previousPrevious = ' ';
+		char previous = ' ';
+		boolean inWord = false;
+
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+
+			if (Character.isLetterOrDigit(c)) {
+				trigrams[trigramCount++] = pack(previousPrevious, previous, c);
+				previousPrevious = previous;
+				previous = c;
+				inWord = true;
+			} else if (inWord) {
+				trigrams[trigramCount++] = pack(previousPrevious, previous, ' ');
+				previousPrevious = ' ';
+				previous = ' ';
+				inWord = false;
+			}
+		}
+
+		if (inWord)
+			trigrams[trigramCount++] = pack(previousPrevious, previous, ' ');
+
+		Arrays.sort(trigrams, 0, trigramCount);
+
+		int distinctCount = 0;
+
+		for (int i = 0; i < trigramCount; ++i)
+			if (distinctCount == 0 || trigrams[distinctCount - 1] != trigrams[i])
+				trigrams[distinctCount++] = trigrams[i];
+
+		return Arrays.copyOf(trigrams, distinctCount);
+	}
+
+	// First position at or after the given one whose document ID is at least the target.
+	// Gallops before binary searching: consecutive candidates tend to be close together in long lists
+	protected static int advanceTo(@Nonnull int[] postings,
+																 int position,
+																 int end,
+																 int documentId) {
+		requireNonNull(postings);
+
+		int step = 1;
+		int low = position;
+
+		while (position < end && postings[position] < documentId) {
+			low = position + 1;
+			position += step;
+			step <<= 1;
+		}
+
+		int index = Arrays.binarySearch(postings, low, Math.min(position, end), documentId);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	protected static long pack(char first,
+														 char second,
+														 char third) {
+		return ((long) first << 32) | ((long) second << 16) | third;
+	}
+
+	// Insertion sort: there's only ever a few dozen lists
+	protected static void sortByLength(@Nonnull int[] listStarts,
+																		 @Nonnull int[] listEnds,
+																		 int listCount) {
+		requireNonNull(listStarts);
+		requireNonNull(listEnds);
+
+		for (int i = 1; i < listCount; ++i) {
+			int start = listStarts[i];
+			int end = listEnds[i];
+			int j = i - 1;
+
+			while (j >= 0 && listEnds[j] - listStarts[j] > end - start) {
+				listStarts[j + 1] = listStarts[j];
+				listEnds[j + 1] = listEnds[j];
+				--j;
+			}
+
+			listStarts[j + 1] = start;
+			listEnds[j + 1] = end;
+		}
+	}
+
+	// Open-addressed trigram -> ordinal map.
+	// Written only while the index is built (a derived index writes to its own copy) and read-only afterwards,
+	// which is what makes the index threadsafe
+	@NotThreadSafe
+	protected static class TrigramDictionary {
+		// Packed trigrams are at most 48 bits, so this can never be a real key
+		private static final long EMPTY_KEY;
+
+		static {
+			EMPTY_KEY = -1L;
+		}
+
+		@Nonnull
+		private long[] keys;
+		@Nonnull
+		private int[] ordinals;
+		private int size;
+
+		public TrigramDictionary() {
+			this.keys = new long[1024];
+			this.ordinals = new int[1024];
+			Arrays.fill(this.keys, EMPTY_KEY);
+		}
+
+		// Assigns the next ordinal to trigrams we haven't seen before
+		public int ordinalFor(long trigram) {
+			int slot = slotFor(this.keys, trigram);
+
+			if (this.keys[slot] == trigram)
+				return this.ordinals[slot];
+
+			this.keys[slot] = trigram;
+			this.ordinals[slot] = this.size;
+			++this.size;
+
+			// Stay at most half full so probe sequences stay short
+			if (this.size * 2 > this.keys.length)
+				grow();
+
+			return this.size - 1;
+		}
+
+		// -1 if the trigram isn't present
+		public int ordinalOf(long trigram) {
+			int slot = slotFor(this.keys, trigram);
+			return this.keys[slot] == trigram ? this.ordinals[slot] : -1;
+		}
+
+		public int size() {
+			return this.size;
+		}
+
+		@Nonnull
+		public TrigramDictionary copy() {
+			TrigramDictionary trigramDictionary = new TrigramDictionary();
+			trigramDictionary.keys = this.keys.clone();
+			trigramDictionary.ordinals = this.ordinals.clone();
+			trigramDictionary.size = this.size;
+			return trigramDictionary;
+		}
+
+		protected void grow() {
+			long[] oldKeys = this.keys;
+			int[] oldOrdinals = this.ordinals;
+
+			this.keys = new long[oldKeys.length * 2];
+			this.ordinals = new int[oldOrdinals.length * 2];
+			Arrays.fill(this.keys, EMPTY_KEY);
+
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != EMPTY_KEY) {
+					int slot = slotFor(this.keys, oldKeys[i]);
+					this.keys[slot] = oldKeys[i];
+					this.ordinals[slot] = oldOrdinals[i];
+				}
+			}
+		}
+
+		// Linear probing from a well-mixed home slot; table length is always a power of two
+		protected static int slotFor(@Nonnull long[] keys,
+																 long trigram) {
+			int mask = keys.length - 1;
+			int slot = (int) ((trigram * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+			while (keys[slot] != EMPTY_KEY && keys[slot] != trigram)
+				slot = (slot + 1) & mask;
+
+			return slot;
+		}
+	}
+
+	// Best-so-far results, kept sorted by descending similarity.
+	// An earlier document wins a tie because it arrives first and later equal scores don't displace it
+	@NotThreadSafe
+	protected static class TopDocuments {
+		@Nonnull
+		private final int[] documentIds;
+		@Nonnull
+		private final double[] similarities;
+		private int size;
+
+		public TopDocuments(int limit) {
+			this.documentIds = new int[limit];
+			this.similarities = new double[limit];
+		}
+
+		// False if the document didn't make the cut
+		public boolean offer(int documentId,
+												 double similarity) {
+			if (isFull() && similarity <= getWorstSimilarity())
+				return false;
+
+			int index = Math.min(this.size, this.documentIds.length - 1);
+
+			while (index > 0 && this.similarities[index - 1] < similarity) {
+				this.documentIds[index] = this.documentIds[index - 1];
+				this.similarities[index] = this.similarities[index - 1];
+				--index;
+			}
+
+			this.documentIds[index] = documentId;
+			this.similarities[index] = similarity;
+
+			if (this.size < this.documentIds.length)
+				++this.size;
+
+			return true;
+		}
+
+		public boolean isFull() {
+			return this.size == this.documentIds.length;
+		}
+
+		public double getWorstSimilarity() {
+			return this.similarities[this.size - 1];
+		}
+
+		@Nonnull
+		public int[] toDocumentIds() {
+			return Arrays.copyOf(this.documentIds, this.size);
+		}
+	}
+
+	@Nonnull
+	protected TrigramDictionary getTrigramDictionary() {
+		return this.trigramDictionary;
+	}
+
+	@Nonnull
+	protected int[] getPostingOffsets() {
+		return this.postingOffsets;
+	}
+
+	@Nonnull
+	protected int[] getPostings() {
+		return this.postings;
+	}
+
+	@Nonnull
+	protected int[] getDocumentTrigramCounts() {
+		return this.documentTrigramCounts;
+	}
+
+	@Nonnull
+	protected ConcurrentLinkedQueue<byte[]> getTallyPool() {
+		return this.tallyPool;
+	}
+
+	@Nonnull
+	protected AtomicInteger getTallyPoolSize() {
+		return this.tallyPoolSize;
+	}
+
+	@Nonnull
+	protected Integer getMaximumTallyPoolSize() {
+		return this.maximumTallyPoolSize;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.soklet.example.model.auth.AccountJwt;
+import com.soklet.example.model.auth.AccountJwt.AccountJwtResult;
+import com.soklet.example.model.auth.AccountJwt.Claims;
+import com.soklet.example.model.auth.AccountJwtCodec;
+import com.soklet.example.model.db.Role.RoleId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Compares {@link AccountJwtCodec} against the original {@code split}/Gson/{@code Mac.getInstance}-per-call implementation.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@ThreadSafe
+public class AccountJwtCodecBenchmark {
+	private PrivateKey privateKey;
+	private AccountJwt accountJwt;
+	private String token;
+	private AccountJwtCodec accountJwtCodec;
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException {
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+
+		this.privateKey = keyPairGenerator.generateKeyPair().getPrivate();
+		this.accountJwt = new AccountJwt(UUID.randomUUID(), Instant.now().plus(1, ChronoUnit.DAYS),
+				new Claims(RoleId.CUSTOMER, "Example Customer", Locale.forLanguageTag("pt-BR"), ZoneId.of("America/Sao_Paulo")));
+		this.accountJwtCodec = AccountJwtCodec.forPrivateKey(this.privateKey);
+		this.token = this.accountJwtCodec.encode(this.accountJwt);
+
+		// Both implementations must accept each other's tokens for the comparison to mean anything
+		if (!(LegacyAccountJwtCodec.decode(this.token, this.privateKey) instanceof AccountJwtResult.Succeeded))
+			throw new IllegalStateException("Legacy implementation rejected a codec-encoded token");
+		if (!(this.accountJwtCodec.decode(LegacyAccountJwtCodec.encode(this.accountJwt, this.privateKey)) instanceof AccountJwtResult.Succeeded))
+			throw new IllegalStateException("Codec rejected a legacy-encoded token");
+	}
+
+	@Benchmark
+	public String encodeLegacy() {
+		return LegacyAccountJwtCodec.encode(this.accountJwt, this.privateKey);
+	}
+
+	@Benchmark
+	public String encodeCodec() {
+		return this.accountJwtCodec.encode(this.accountJwt);
+	}
+
+	@Benchmark
+	public AccountJwtResult decodeLegacy() {
+		return LegacyAccountJwtCodec.decode(this.token, this.privateKey);
+	}
+
+	@Benchmark
+	public AccountJwtResult decodeCodec() {
+		return this.accountJwtCodec.decode(this.token);
+	}
+
+	// The implementation AccountJwt used before AccountJwtCodec, kept here as a baseline
+	@ThreadSafe
+	protected static class LegacyAccountJwtCodec {
+		@Nonnull
+		private static final Gson GSON;
+
+		static {
+			GSON = new GsonBuilder().disableHtmlEscaping().create();
+		}
+
+		@Nonnull
+		public static String encode(@Nonnull AccountJwt accountJwt,
+																@Nonnull PrivateKey privateKey) {
+			requireNonNull(accountJwt);
+			requireNonNull(privateKey);
+
+			String header = GSON.toJson(Map.of(
+					"alg", "HS256",
+					"typ", "JWT"
+			));
+
+			Map<String, Object> payloadAsMap = new LinkedHashMap<>();
+			payloadAsMap.put("sub", accountJwt.accountId());
+			payloadAsMap.put("iat", accountJwt.expiration().toEpochMilli());
+
+			Claims claims = accountJwt.claims();
+
+			if (claims != null) {
+				payloadAsMap.put("ver", AccountJwt.CLAIMS_VERSION);
+				payloadAsMap.put("role", claims.roleId().name());
+				payloadAsMap.put("name", claims.name());
+				payloadAsMap.put("locale", claims.locale().toLanguageTag());
+				payloadAsMap.put("tz", claims.timeZone().getId());
+			}
+
+			String payload = GSON.toJson(payloadAsMap);
+
+			String encodedHeader = base64Encode(header.getBytes(StandardCharsets.UTF_8));
+			String encodedPayload = base64Encode(payload.getBytes(StandardCharsets.UTF_8));
+
+			byte[] signature = hmacSha256(format("%s.%s", encodedHeader, encodedPayload), privateKey);
+			String encodedSignature = base64Encode(signature);
+
+			return format("%s.%s.%s", encodedHeader, encodedPayload, encodedSignature);
+		}
+
+		@Nonnull
+		public static AccountJwtResult decode(@Nonnull String string,
+																					@Nonnull PrivateKey privateKey) {
+			requireNonNull(string);
+			requireNonNull(privateKey);
+
+			String[] components = string.trim().split("\\.");
+
+			if (components.length != 3)
+				return new AccountJwtResult.InvalidStructure();
+
+			String decodedPayload = new String(base64Decode(components[1]), StandardCharsets.UTF_8);
+			byte[] decodedSignature = base64Decode(components[2]);
+			byte[] expectedSignature = hmacSha256(format("%s.%s", components[0], components[1]), privateKey);
+
+			if (!Arrays.equals(expectedSignature, decodedSignature))
+				return new AccountJwtResult.SignatureMismatch();
+
+			Map<String, Object> decodedPayloadAsMap = GSON.fromJson(decodedPayload, Map.class);
+			String subAsString = (String) decodedPayloadAsMap.get("sub");
+			Number iatAsNumber = (Number) decodedPayloadAsMap.get("iat");
+			Number verAsNumber = (Number) decodedPayloadAsMap.get("ver");
+
+			if (subAsString == null || iatAsNumber == null)
+				return new AccountJwtResult.MissingClaims(Set.of("sub", "iat"));
+
+			Claims claims = null;
+
+			if (verAsNumber != null && verAsNumber.intValue() == AccountJwt.CLAIMS_VERSION)
+				claims = new Claims(RoleId.valueOf((String) decodedPayloadAsMap.get("role")),
+						(String) decodedPayloadAsMap.get("name"),
+						Locale.forLanguageTag((String) decodedPayloadAsMap.get("locale")),
+						ZoneId.of((String) decodedPayloadAsMap.get("tz")));
+
+			Instant expiration = Instant.ofEpochMilli(iatAsNumber.longValue());
+			AccountJwt accountJwt = new AccountJwt(UUID.fromString(subAsString), expiration, claims);
+
+			if (expiration.isBefore(Instant.now()))
+				return new AccountJwtResult.Expired(accountJwt, expiration);
+
+			return new AccountJwtResult.Succeeded(accountJwt);
+		}
+
+		@Nonnull
+		private static byte[] hmacSha256(@Nonnull String string,
+																		 @Nonnull PrivateKey privateKey) {
+			try {
+				Mac hmacSha256 = Mac.getInstance("HmacSHA256");
+				SecretKeySpec secretKeySpec = new SecretKeySpec(privateKey.getEncoded(), privateKey.getAlgorithm());
+				hmacSha256.init(secretKeySpec);
+				return hmacSha256.doFinal(string.getBytes(StandardCharsets.UTF_8));
+			} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@Nonnull
+		private static String base64Encode(@Nonnull byte[] bytes) {
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		}
+
+		@Nonnull
+		private static byte[] base64Decode(@Nonnull String string) {
+			return Base64.getUrlDecoder().decode(string);
+		}
+	}
+}
\ No newline at end of file
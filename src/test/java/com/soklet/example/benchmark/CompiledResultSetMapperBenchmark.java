@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.benchmark;
+
+import com.pyranid.Database;
+import com.pyranid.DefaultResultSetMapper;
+import com.soklet.example.model.db.Toy;
+import com.soklet.example.util.CompiledResultSetMapper;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Compares mapping {@code SELECT * FROM toy} into {@link Toy} records with Pyranid's reflective mapper against
+ * {@link CompiledResultSetMapper}.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@ThreadSafe
+public class CompiledResultSetMapperBenchmark {
+	@Param({"10", "1000"})
+	private int toyCount;
+
+	private Database defaultDatabase;
+	private Database compiledDatabase;
+
+	@Setup
+	public void setup() {
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl(format("jdbc:hsqldb:mem:row-mapper-benchmark-%s", UUID.randomUUID()));
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+
+		this.defaultDatabase = Database.forDataSource(dataSource).resultSetMapper(new DefaultResultSetMapper()).build();
+		this.compiledDatabase = Database.forDataSource(dataSource)
+				.resultSetMapper(new CompiledResultSetMapper(new DefaultResultSetMapper()))
+				.build();
+
+		this.defaultDatabase.execute("""
+				CREATE TABLE toy (
+					toy_id UUID PRIMARY KEY,
+					name VARCHAR(255) NOT NULL,
+					price DECIMAL(10,2) NOT NULL,
+					currency VARCHAR(8) NOT NULL,
+					stock_quantity INTEGER,
+					created_at TIMESTAMP DEFAULT NOW() NOT NULL
+				)
+				""");
+
+		List<List<Object>> parameterGroups = new ArrayList<>(this.toyCount);
+
+		for (int i = 0; i < this.toyCount; ++i)
+			parameterGroups.add(Arrays.asList(UUID.randomUUID(), format("Toy %d", i), BigDecimal.valueOf(i, 2),
+					Currency.getInstance("USD"), i % 2 == 0 ? null : i));
+
+		this.defaultDatabase.executeBatch("INSERT INTO toy (toy_id, name, price, currency, stock_quantity) VALUES (?,?,?,?,?)",
+				parameterGroups);
+
+		// Both mappers must agree for the comparison to mean anything
+		if (!findToys(this.defaultDatabase).equals(findToys(this.compiledDatabase)))
+			throw new IllegalStateException("Mappers disagree");
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.defaultDatabase.execute("SHUTDOWN");
+	}
+
+	@Benchmark
+	public List<Toy> mapDefault() {
+		return findToys(this.defaultDatabase);
+	}
+
+	@Benchmark
+	public List<Toy> mapCompiled() {
+		return findToys(this.compiledDatabase);
+	}
+
+	private List<Toy> findToys(Database database) {
+		return database.queryForList("SELECT * FROM toy ORDER BY name", Toy.class);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.benchmark;
+
+import com.soklet.example.service.ToyCatalog;
+import com.soklet.example.util.TrigramIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Fuzzy search latency of {@link TrigramIndex} over a synthetic catalog of made-up toy names.
+ * <p>
+ * Queries are existing names with a typo (two adjacent letters swapped), or a short misspelled word,
+ * so every search does real work rather than missing the index outright.
+ *
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "-Xmx4g"})
+@NotThreadSafe
+public class TrigramIndexBenchmark {
+	private static final String[] SYLLABLES = {"ba", "bo", "ki", "ra", "to", "zu", "me", "lo", "pi", "da", "ne", "su",
+			"ga", "ro", "vi", "ta", "mo", "ku", "li", "fe", "do", "sa", "ni", "po"};
+
+	@Param({"1000000"})
+	private int toyCount;
+
+	private TrigramIndex trigramIndex;
+	private String[] misspelledNames;
+	private String[] misspelledWords;
+	private int queryIndex;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+
+		// A vocabulary of a few thousand pseudo-words, so names share words the way real catalogs do
+		String[] words = new String[5_000];
+
+		for (int i = 0; i < words.length; ++i)
+			words[i] = word(random);
+
+		List<String> names = new ArrayList<>(this.toyCount);
+
+		for (int i = 0; i < this.toyCount; ++i)
+			names.add(ToyCatalog.fold(format("%s %s %s %d", words[random.nextInt(words.length)],
+					words[random.nextInt(words.length)], words[random.nextInt(words.length)], random.nextInt(10_000))));
+
+		this.trigramIndex = TrigramIndex.forDocuments(names);
+		this.misspelledNames = new String[1_024];
+		this.misspelledWords = new String[1_024];
+
+		for (int i = 0; i < this.misspelledNames.length; ++i) {
+			this.misspelledNames[i] = swapAdjacentLetters(names.get(random.nextInt(names.size())), random);
+			this.misspelledWords[i] = swapAdjacentLetters(words[random.nextInt(words.length)], random);
+		}
+	}
+
+	@Benchmark
+	public int[] searchMisspelledName() {
+		return this.trigramIndex.search(this.misspelledNames[nextQueryIndex()], 0.3, 50);
+	}
+
+	@Benchmark
+	public int[] searchMisspelledWord() {
+		return this.trigramIndex.search(this.misspelledWords[nextQueryIndex()], 0.3, 50);
+	}
+
+	private int nextQueryIndex() {
+		this.queryIndex = (this.queryIndex + 1) & (this.misspelledNames.length - 1);
+		return this.queryIndex;
+	}
+
+	private static String word(Random random) {
+		StringBuilder word = new StringBuilder();
+		int syllableCount = 2 + random.nextInt(3);
+
+		for (int i = 0; i < syllableCount; ++i)
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+
+		return word.toString();
+	}
+
+	private static String swapAdjacentLetters(String string, Random random) {
+		char[] characters = string.toCharArray();
+		int index = random.nextInt(Math.max(1, characters.length - 1));
+
+		// Swapping a letter with a space or digit would be a different kind of typo
+		while (index < characters.length - 1 && !(Character.isLetter(characters[index]) && Character.isLetter(characters[index + 1])))
+			index = (index + 1) % (characters.length - 1);
+
+		char character = characters[index];
+		characters[index] = characters[index + 1];
+		characters[index + 1] = character;
+
+		return new String(characters);
+	}
+}
\ No newline at end of file
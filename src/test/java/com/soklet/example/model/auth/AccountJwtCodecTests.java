@@ -0,0 +1,157 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.model.auth;
+
+import com.soklet.example.model.auth.AccountJwt.AccountJwtResult;
+import com.soklet.example.model.auth.AccountJwt.Claims;
+import com.soklet.example.model.auth.AccountJwtCodec.Payload;
+import com.soklet.example.model.auth.AccountJwtCodec.PayloadReader;
+import com.soklet.example.model.db.Role.RoleId;
+import com.soklet.example.util.HmacSigner;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class AccountJwtCodecTests {
+	@Test
+	public void testReadsEscapes() {
+		Payload payload = read("{\"name\":\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"}");
+		Assert.assertEquals("Escapes were not decoded", "a\"b\\c/d\b\f\n\r\t", payload.name);
+
+		// Unicode escapes, including a surrogate pair, mixed with raw multibyte UTF-8
+		payload = read("{\"name\":\"\\u00e9t\\u00E9 \\ud83d\\ude00 日本\"}");
+		Assert.assertEquals("Unicode escapes were not decoded", "été 😀 日本", payload.name);
+
+		for (String json : List.of(
+				"{\"name\":\"\\u00e\"}",
+				"{\"name\":\"\\u00zz\"}",
+				"{\"name\":\"\\x\"}"))
+			assertRejected(json);
+	}
+
+	@Test
+	public void testSkipsNestedAndUnknownValues() {
+		Payload payload = read("""
+				{
+					"extra": {"a": [1, {"b": "}]"}], "c": null},
+					"list": [],
+					"flag": true,
+					"nothing": null,
+					"sub": "5f1c2a5e-1a4b-4b7e-9b0e-2d6f1d8f7c3a",
+					"iat": 1.7e12,
+					"ver": 1.5,
+					"role": {"nested": "ADMINISTRATOR"},
+					"name": null
+				}
+				""");
+
+		Assert.assertEquals("Known claim was lost after nested values", "5f1c2a5e-1a4b-4b7e-9b0e-2d6f1d8f7c3a", payload.sub);
+		Assert.assertEquals("Integral exponent number was not read as a long", 1_700_000_000_000L, payload.iat);
+		Assert.assertFalse("Fractional number was read as a long", payload.ver instanceof Long);
+		Assert.assertFalse("Nested object was read as a string", payload.role instanceof String);
+		Assert.assertNull("JSON null was not read as null", payload.name);
+	}
+
+	@Test
+	public void testRejectsTruncatedInput() {
+		for (String json : List.of(
+				"",
+				"{",
+				"{\"sub\"",
+				"{\"sub\":",
+				"{\"sub\":\"abc",
+				"{\"sub\":\"abc\\",
+				"{\"sub\":\"abc\"",
+				"{\"sub\":\"abc\",",
+				"{\"extra\":{\"a\":[1",
+				"{\"flag\":tru"))
+			assertRejected(json);
+	}
+
+	@Test
+	public void testRejectsTrailingContent() {
+		for (String json : List.of(
+				"{} x",
+				"{}}",
+				"{}{}",
+				"{\"sub\":\"abc\"}x",
+				"{\"sub\":\"abc\"},"))
+			assertRejected(json);
+
+		// Surrounding whitespace is fine
+		read(" {} \n");
+		read("\t{\"sub\":\"abc\"}\r\n");
+	}
+
+	@Test
+	public void testRoundTrip() {
+		AccountJwtCodec accountJwtCodec = new AccountJwtCodec(new HmacSigner(
+				new SecretKeySpec("account-jwt-codec-tests".getBytes(StandardCharsets.UTF_8), "HmacSHA256")));
+
+		// Expiration only survives at millisecond precision
+		Instant expiration = Instant.ofEpochMilli(Instant.now().plus(Duration.ofHours(1)).toEpochMilli());
+
+		// Names are free text, so make the encoder escape everything it has to
+		Claims claims = new Claims(RoleId.ADMINISTRATOR, "Zoë \"Q\" O'Brien\\\n\t\u0001 😀",
+				Locale.forLanguageTag("pt-BR"), ZoneId.of("America/Sao_Paulo"));
+
+		for (AccountJwt accountJwt : List.of(
+				new AccountJwt(UUID.randomUUID(), expiration, claims),
+				new AccountJwt(UUID.randomUUID(), expiration, null))) {
+			AccountJwtResult accountJwtResult = accountJwtCodec.decode(accountJwtCodec.encode(accountJwt));
+
+			Assert.assertEquals("Token did not survive a round trip", new AccountJwtResult.Succeeded(accountJwt), accountJwtResult);
+		}
+	}
+
+	@Nonnull
+	protected Payload read(@Nonnull String json) {
+		requireNonNull(json);
+
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		return new PayloadReader(bytes, 0, bytes.length).read();
+	}
+
+	protected void assertRejected(@Nonnull String json) {
+		requireNonNull(json);
+
+		try {
+			read(json);
+			Assert.fail(format("Malformed payload was accepted: %s", json));
+		} catch (IllegalArgumentException expected) {
+			// Malformed input is always reported this way, so decode() can turn it into InvalidStructure
+		}
+	}
+}
\ No newline at end of file
@@ -71,4 +71,38 @@ public class AccountResourceTests {
 			Assert.assertEquals("Bad status code", 401, marshaledResponse.getStatusCode().intValue());
 		}));
 	}
+
+	@Test
+	public void testAuthenticateThrottling() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		int freeFailures = app.getConfiguration().getLoginThrottleEmailAddressFreeFailures();
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Use up all the "free" failures for this email address
+			String requestBodyJson = gson.toJson(new AccountAuthenticateRequest("admin@soklet.com", "wrong"));
+
+			for (int i = 0; i < freeFailures; i++) {
+				Request request = Request.with(HttpMethod.POST, "/accounts/authenticate")
+						.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+						.build();
+
+				MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+				Assert.assertEquals("Bad status code", 401, marshaledResponse.getStatusCode().intValue());
+			}
+
+			// Even the correct password is turned away until the backoff window passes
+			requestBodyJson = gson.toJson(new AccountAuthenticateRequest("admin@soklet.com", "test123"));
+
+			Request request = Request.with(HttpMethod.POST, "/accounts/authenticate")
+					.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Bad status code", 429, marshaledResponse.getStatusCode().intValue());
+		}));
+	}
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import com.google.gson.Gson;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.pyranid.Database;
 import com.soklet.Soklet;
 import com.soklet.SokletConfiguration;
 import com.soklet.core.HttpMethod;
@@ -30,28 +31,52 @@ import com.soklet.example.Configuration;
 import com.soklet.example.CurrentContext;
 import com.soklet.example.model.api.request.AccountAuthenticateRequest;
 import com.soklet.example.model.api.request.ToyCreateRequest;
+import com.soklet.example.model.api.request.ToyUpdateRequest;
 import com.soklet.example.model.api.response.ErrorResponse;
 import com.soklet.example.model.auth.AccountJwt;
+import com.soklet.example.model.db.Purchase;
+import com.soklet.example.model.db.PurchaseOutbox;
+import com.soklet.example.model.db.PurchaseStatus.PurchaseStatusId;
 import com.soklet.example.resource.ToyResource.PurchaseResponseHolder;
+import com.soklet.example.resource.ToyResource.PurchasesResponseHolder;
 import com.soklet.example.resource.ToyResource.ToyResponseHolder;
+import com.soklet.example.resource.ToyResource.ToysResponseHolder;
 import com.soklet.example.service.AccountService;
+import com.soklet.example.service.PurchaseOutboxProcessor;
+import com.soklet.example.service.PurchaseWriter;
+import com.soklet.example.service.PurchaseWriter.PurchaseWriterMetrics;
 import com.soklet.example.util.CreditCardProcessor;
 import com.soklet.example.util.CreditCardProcessor.CreditCardPaymentFailureReason;
+import com.soklet.example.util.ResilientCreditCardProcessor;
+import com.soklet.example.util.ResilientCreditCardProcessor.CircuitState;
+import com.soklet.example.util.StubCreditCardProcessor;
+import com.soklet.example.util.StubCreditCardProcessor.FailureMode;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.ThreadSafe;
 import java.math.BigDecimal;
+import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Currency;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
@@ -127,7 +152,8 @@ public class ToyResourceTests {
 				return new CreditCardProcessor() {
 					@Nonnull
 					@Override
-					public String makePayment(@Nonnull String creditCardNumber,
+					public String makePayment(@Nonnull String idempotencyKey,
+																		@Nonnull String creditCardNumber,
 																		@Nonnull BigDecimal amount,
 																		@Nonnull Currency currency) throws CreditCardPaymentException {
 						// Anything over USD$100 exceeds this card's limit
@@ -238,6 +264,813 @@ public class ToyResourceTests {
 		}));
 	}
 
+	@Test
+	public void testPurchaseToyAsynchronously() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		PurchaseOutboxProcessor purchaseOutboxProcessor = app.getInjector().getInstance(PurchaseOutboxProcessor.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			// Create a toy by calling the API
+			String requestBodyJson = gson.toJson(new ToyCreateRequest("Async Toy", BigDecimal.valueOf(9.99), Currency.getInstance("USD")));
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+			String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			UUID toyId = gson.fromJson(responseBody, ToyResponseHolder.class).toy().getToyId();
+
+			// Ask for asynchronous processing and verify the purchase is accepted but still pending
+			request = Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+					.headers(Map.of(
+							"X-Authentication-Token", Set.of(authenticationToken),
+							"Prefer", Set.of("respond-async")
+					))
+					.body(gson.toJson(Map.of(
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Async purchase was not accepted", 202, marshaledResponse.getStatusCode().intValue());
+
+			responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			PurchaseResponseHolder purchaseResponseHolder = gson.fromJson(responseBody, PurchaseResponseHolder.class);
+			UUID purchaseId = purchaseResponseHolder.purchase().getPurchaseId();
+
+			Assert.assertEquals("Async purchase should start out pending", PurchaseStatusId.PENDING, purchaseResponseHolder.purchase().getPurchaseStatusId());
+
+			// The background poller isn't running in tests, so drain the outbox ourselves
+			purchaseOutboxProcessor.processDuePurchaseOutboxes();
+
+			// Poll for the outcome and verify the charge went through
+			request = Request.with(HttpMethod.GET, format("/purchases/%s", purchaseId))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Unable to fetch async purchase", 200, marshaledResponse.getStatusCode().intValue());
+
+			responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			purchaseResponseHolder = gson.fromJson(responseBody, PurchaseResponseHolder.class);
+
+			Assert.assertEquals("Async purchase was not completed", PurchaseStatusId.COMPLETED, purchaseResponseHolder.purchase().getPurchaseStatusId());
+		}));
+	}
+
+	@Test
+	public void testPurchaseToyIdempotently() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			// Create a toy by calling the API
+			String requestBodyJson = gson.toJson(new ToyCreateRequest("Idempotent Toy", BigDecimal.valueOf(4.99), Currency.getInstance("USD")));
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+			String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			UUID toyId = gson.fromJson(responseBody, ToyResponseHolder.class).toy().getToyId();
+
+			// Purchase the toy, then "retry" the exact same request
+			request = Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+					.headers(Map.of(
+							"X-Authentication-Token", Set.of(authenticationToken),
+							"Idempotency-Key", Set.of("b0c7a8e2-idempotency-test")
+					))
+					.body(gson.toJson(Map.of(
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Purchase failed", 200, marshaledResponse.getStatusCode().intValue());
+
+			responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			UUID purchaseId = gson.fromJson(responseBody, PurchaseResponseHolder.class).purchase().getPurchaseId();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Retried purchase failed", 200, marshaledResponse.getStatusCode().intValue());
+			Assert.assertEquals("Retried purchase was not marked as a replay", Set.of("true"),
+					marshaledResponse.getHeaders().get("Idempotent-Replayed"));
+
+			responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+
+			Assert.assertEquals("Retried purchase created a new purchase", purchaseId,
+					gson.fromJson(responseBody, PurchaseResponseHolder.class).purchase().getPurchaseId());
+
+			// Reusing the key for a different card is rejected
+			request = Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+					.headers(Map.of(
+							"X-Authentication-Token", Set.of(authenticationToken),
+							"Idempotency-Key", Set.of("b0c7a8e2-idempotency-test")
+					))
+					.body(gson.toJson(Map.of(
+							"creditCardNumber", "5555555555554444",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Idempotency key reuse was not rejected", 422, marshaledResponse.getStatusCode().intValue());
+		}));
+	}
+
+	@Test
+	public void testPurchaseToyIdempotentlyWhenChargeOutcomeIsUnknown() {
+		// The stub processor blows up after taking the charge; a large window keeps the circuit closed throughout
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor();
+
+		App app = new App(new Configuration(), new AbstractModule() {
+			@Nonnull
+			@Provides
+			@Singleton
+			public ResilientCreditCardProcessor provideResilientCreditCardProcessor() {
+				return ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+						.slidingWindowSize(100)
+						.minimumCalls(100)
+						.build();
+			}
+
+			@Override
+			protected void configure() {
+				// Guice module configuration; nothing to do
+			}
+		});
+
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		Database database = app.getInjector().getInstance(Database.class);
+		PurchaseOutboxProcessor purchaseOutboxProcessor = app.getInjector().getInstance(PurchaseOutboxProcessor.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			UUID toyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Uncertain Toy", 2);
+
+			Request request = Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+					.headers(Map.of(
+							"X-Authentication-Token", Set.of(authenticationToken),
+							"Idempotency-Key", Set.of("5d0f3c1a-uncertain-test")
+					))
+					.body(gson.toJson(Map.of(
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			stubCreditCardProcessor.setFailureMode(FailureMode.ERROR);
+			stubCreditCardProcessor.setFailureRate(1D);
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Processor failure was not reported as unavailable", 503, marshaledResponse.getStatusCode().intValue());
+
+			// The retry must not charge again: it's pointed at the pending purchase instead
+			stubCreditCardProcessor.setFailureMode(FailureMode.NONE);
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Retry of an uncertain purchase was not accepted", 202, marshaledResponse.getStatusCode().intValue());
+			Assert.assertEquals("Retried purchase was not marked as a replay", Set.of("true"),
+					marshaledResponse.getHeaders().get("Idempotent-Replayed"));
+
+			String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			PurchaseResponseHolder purchaseResponseHolder = gson.fromJson(responseBody, PurchaseResponseHolder.class);
+			UUID purchaseId = purchaseResponseHolder.purchase().getPurchaseId();
+
+			Assert.assertEquals("Uncertain purchase should still be pending", PurchaseStatusId.PENDING, purchaseResponseHolder.purchase().getPurchaseStatusId());
+			Assert.assertEquals("Replay does not point at the pending purchase", Set.of(format("/purchases/%s", purchaseId)),
+					marshaledResponse.getHeaders().get("Location"));
+			Assert.assertEquals("Retry created a second purchase", 1L, database.queryForObject(
+					"SELECT COUNT(*) FROM purchase WHERE toy_id=?", Long.class, toyId).get().longValue());
+
+			// Once the worker's retry is due, it settles the purchase, reusing the purchase ID as the processor's idempotency key
+			database.execute("UPDATE purchase_outbox SET next_attempt_at=? WHERE charge_id=?", Instant.now().minusSeconds(1), purchaseId);
+			purchaseOutboxProcessor.processDuePurchaseOutboxes();
+
+			marshaledResponse = simulator.performRequest(request);
+			responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+
+			Assert.assertEquals("Replay status changed", 202, marshaledResponse.getStatusCode().intValue());
+			Assert.assertEquals("Uncertain purchase was not completed", PurchaseStatusId.COMPLETED,
+					gson.fromJson(responseBody, PurchaseResponseHolder.class).purchase().getPurchaseStatusId());
+		}));
+	}
+
+	@Test
+	public void testCheckout() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			// Create a couple of toys to put in our cart
+			UUID firstToyId = null;
+			UUID secondToyId = null;
+
+			for (String name : List.of("Checkout Toy 1", "Checkout Toy 2")) {
+				Request request = Request.with(HttpMethod.POST, "/toys")
+						.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+						.body(gson.toJson(new ToyCreateRequest(name, BigDecimal.valueOf(2.50), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+						.build();
+
+				MarshaledResponse marshaledResponse = simulator.performRequest(request);
+				String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+				UUID toyId = gson.fromJson(responseBody, ToyResponseHolder.class).toy().getToyId();
+
+				if (firstToyId == null)
+					firstToyId = toyId;
+				else
+					secondToyId = toyId;
+			}
+
+			// Buy 2 of the first toy and 3 of the second
+			Request request = Request.with(HttpMethod.POST, "/toys/checkout")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(Map.of(
+							"items", List.of(
+									Map.of("toyId", firstToyId, "quantity", 2),
+									Map.of("toyId", secondToyId, "quantity", 3)
+							),
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Checkout failed", 200, marshaledResponse.getStatusCode().intValue());
+
+			String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			PurchasesResponseHolder purchasesResponseHolder = gson.fromJson(responseBody, PurchasesResponseHolder.class);
+
+			Assert.assertEquals("Wrong number of purchases", 5, purchasesResponseHolder.purchases().size());
+
+			// Everything was paid for with a single charge
+			Set<String> creditCardTransactionIds = purchasesResponseHolder.purchases().stream()
+					.map(purchase -> purchase.getCreditCardTransactionId().orElse(null))
+					.collect(Collectors.toSet());
+
+			Assert.assertEquals("Checkout should make exactly one charge", 1, creditCardTransactionIds.size());
+			Assert.assertFalse("Checkout purchases are missing their charge", creditCardTransactionIds.contains(null));
+
+			// Quantities that would overflow an int when added up must not sneak past the cart limit
+			request = Request.with(HttpMethod.POST, "/toys/checkout")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(Map.of(
+							"items", List.of(
+									Map.of("toyId", firstToyId, "quantity", Integer.MAX_VALUE),
+									Map.of("toyId", secondToyId, "quantity", Integer.MAX_VALUE),
+									Map.of("toyId", firstToyId, "quantity", 3)
+							),
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+
+			Assert.assertEquals("Oversized cart was not rejected", 422, marshaledResponse.getStatusCode().intValue());
+		}));
+	}
+
+	@Test
+	public void testCheckoutWhenChargeOutcomeIsUnknown() {
+		// The stub processor blows up after taking the charge; a large window keeps the circuit closed throughout
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor();
+
+		App app = new App(new Configuration(), new AbstractModule() {
+			@Nonnull
+			@Provides
+			@Singleton
+			public ResilientCreditCardProcessor provideResilientCreditCardProcessor() {
+				return ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+						.slidingWindowSize(100)
+						.minimumCalls(100)
+						.build();
+			}
+
+			@Override
+			protected void configure() {
+				// Guice module configuration; nothing to do
+			}
+		});
+
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		Database database = app.getInjector().getInstance(Database.class);
+		PurchaseOutboxProcessor purchaseOutboxProcessor = app.getInjector().getInstance(PurchaseOutboxProcessor.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			UUID firstToyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Uncertain Checkout Toy 1", 2);
+			UUID secondToyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Uncertain Checkout Toy 2", 3);
+
+			stubCreditCardProcessor.setFailureMode(FailureMode.ERROR);
+			stubCreditCardProcessor.setFailureRate(1D);
+
+			Request request = Request.with(HttpMethod.POST, "/toys/checkout")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(Map.of(
+							"items", List.of(
+									Map.of("toyId", firstToyId, "quantity", 2),
+									Map.of("toyId", secondToyId, "quantity", 3)
+							),
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Processor failure was not reported as unavailable", 503, marshaledResponse.getStatusCode().intValue());
+
+			// Every row stays pending, and the cart's one charge is queued once for reconciliation
+			List<Purchase> purchases = database.queryForList("SELECT * FROM purchase WHERE toy_id IN (?,?)", Purchase.class, firstToyId, secondToyId);
+
+			Assert.assertEquals("Wrong number of purchases", 5, purchases.size());
+			Assert.assertTrue("Uncertain checkout purchases should stay pending",
+					purchases.stream().allMatch(purchase -> purchase.purchaseStatusId() == PurchaseStatusId.PENDING));
+
+			Set<UUID> chargeIds = purchases.stream().map(Purchase::chargeId).collect(Collectors.toSet());
+			Assert.assertEquals("Checkout purchases should share one charge", 1, chargeIds.size());
+
+			UUID chargeId = chargeIds.iterator().next();
+			List<PurchaseOutbox> purchaseOutboxes = database.queryForList("SELECT * FROM purchase_outbox", PurchaseOutbox.class);
+
+			Assert.assertEquals("Uncertain checkout should be queued as exactly one charge", 1, purchaseOutboxes.size());
+			Assert.assertEquals("Queued the wrong charge", chargeId, purchaseOutboxes.get(0).chargeId());
+			Assert.assertTrue("Uncertain checkout must never be voided by the worker", purchaseOutboxes.get(0).chargeAttempted());
+			Assert.assertEquals("Queued charge is not for the cart total", 0,
+					BigDecimal.valueOf(49.95).compareTo(purchaseOutboxes.get(0).amount()));
+
+			// The stock is still held, so nobody else can buy it while we find out what happened
+			marshaledResponse = simulator.performRequest(purchaseRequest(gson, authenticationToken, firstToyId));
+			Assert.assertEquals("Uncertain checkout gave up its stock", 422, marshaledResponse.getStatusCode().intValue());
+
+			// Once the worker's retry is due, one charge settles every row
+			stubCreditCardProcessor.setFailureMode(FailureMode.NONE);
+
+			database.execute("UPDATE purchase_outbox SET next_attempt_at=? WHERE charge_id=?", Instant.now().minusSeconds(1), chargeId);
+			purchaseOutboxProcessor.processDuePurchaseOutboxes();
+
+			purchases = database.queryForList("SELECT * FROM purchase WHERE charge_id=?", Purchase.class, chargeId);
+
+			Assert.assertTrue("Uncertain checkout purchases were not completed",
+					purchases.stream().allMatch(purchase -> purchase.purchaseStatusId() == PurchaseStatusId.COMPLETED));
+			Assert.assertEquals("Checkout purchases should share one credit card transaction", 1,
+					purchases.stream().map(Purchase::creditCardTransactionId).collect(Collectors.toSet()).size());
+			Assert.assertEquals("Settled charge is still queued", 0,
+					database.queryForList("SELECT * FROM purchase_outbox", PurchaseOutbox.class).size());
+		}));
+	}
+
+	@Test
+	public void testPurchaseToyOutOfStock() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			// Create a toy with only one unit in stock
+			String requestBodyJson = gson.toJson(new ToyCreateRequest("Limited Edition Toy", BigDecimal.valueOf(19.99), Currency.getInstance("USD"), 1));
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+
+			String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+			UUID toyId = gson.fromJson(responseBody, ToyResponseHolder.class).toy().getToyId();
+
+			request = Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(Map.of(
+							"creditCardNumber", "4111111111111111",
+							"creditCardExpiration", "2030-01"
+					)).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			// The first buyer gets the last unit...
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Purchase of in-stock toy failed", 200, marshaledResponse.getStatusCode().intValue());
+
+			// ...and the second is turned away
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Purchase of sold-out toy was not rejected", 422, marshaledResponse.getStatusCode().intValue());
+		}));
+	}
+
+	@Test
+	public void testToyCatalogReflectsUpdates() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+			String originalName = format("Catalog Toy %s", UUID.randomUUID());
+			String updatedName = format("Renamed %s", originalName);
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(new ToyCreateRequest(originalName, BigDecimal.valueOf(5), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			UUID toyId = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToyResponseHolder.class).toy().getToyId();
+
+			// The update's own transaction must see its change, even though the in-memory catalog can't yet
+			request = Request.with(HttpMethod.PUT, format("/toys/%s", toyId))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(new ToyUpdateRequest(null, updatedName, BigDecimal.valueOf(6), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			ToyResponseHolder toyResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToyResponseHolder.class);
+			Assert.assertEquals("Update response didn't reflect the update", updatedName, toyResponseHolder.toy().getName());
+
+			// Once committed, catalog reads see the new name and not the old one
+			request = Request.with(HttpMethod.GET, format("/toys?query=%s", URLEncoder.encode(updatedName, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			ToysResponseHolder toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+
+			Assert.assertEquals("Updated toy wasn't found by its new name", List.of(toyId),
+					toysResponseHolder.toys().stream().map(toy -> toy.getToyId()).collect(Collectors.toList()));
+
+			request = Request.with(HttpMethod.GET, format("/toys?query=%s", URLEncoder.encode(originalName, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+
+			Assert.assertEquals("Updated toy was still found by its old name", 0, toysResponseHolder.toys().size());
+		}));
+	}
+
+	@Test
+	public void testToyPagination() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+			String prefix = format("Paged Toy %s", UUID.randomUUID());
+			List<String> names = List.of(format("%s A", prefix), format("%s B", prefix), format("%s C", prefix));
+
+			for (String name : names) {
+				Request request = Request.with(HttpMethod.POST, "/toys")
+						.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+						.body(gson.toJson(new ToyCreateRequest(name, BigDecimal.valueOf(5), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+						.build();
+
+				MarshaledResponse marshaledResponse = simulator.performRequest(request);
+				Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+			}
+
+			// First page is full and points at the next one
+			Request request = Request.with(HttpMethod.GET, format("/toys?query=%s&limit=2", URLEncoder.encode(prefix, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			ToysResponseHolder toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+			Assert.assertEquals("Wrong first page", names.subList(0, 2),
+					toysResponseHolder.toys().stream().map(toy -> toy.getName()).collect(Collectors.toList()));
+			Assert.assertNotNull("First page is missing a cursor", toysResponseHolder.nextCursor());
+
+			String nextCursor = toysResponseHolder.nextCursor();
+
+			// Second page picks up where the first left off and is the last
+			request = Request.with(HttpMethod.GET, format("/toys?query=%s&limit=2&cursor=%s",
+							URLEncoder.encode(prefix, StandardCharsets.UTF_8), URLEncoder.encode(nextCursor, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+			Assert.assertEquals("Wrong second page", names.subList(2, 3),
+					toysResponseHolder.toys().stream().map(toy -> toy.getName()).collect(Collectors.toList()));
+			Assert.assertNull("Last page has a cursor", toysResponseHolder.nextCursor());
+
+			// A cursor that's been tampered with is rejected
+			String tamperedCursor = format("%s%s", nextCursor.substring(0, nextCursor.length() - 1), nextCursor.endsWith("A") ? "B" : "A");
+
+			request = Request.with(HttpMethod.GET, format("/toys?cursor=%s", URLEncoder.encode(tamperedCursor, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Tampered cursor was not rejected", 400, marshaledResponse.getStatusCode().intValue());
+		}));
+	}
+
+	@Test
+	public void testToySearchIgnoresCaseAndAccents() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+			UUID suffix = UUID.randomUUID();
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(new ToyCreateRequest(format("Über Bär %s", suffix), BigDecimal.valueOf(5), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			UUID toyId = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToyResponseHolder.class).toy().getToyId();
+
+			// Neither case nor accents need to match
+			request = Request.with(HttpMethod.GET, format("/toys?query=%s", URLEncoder.encode(format("UBER BAR %s", suffix), StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			ToysResponseHolder toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+			Assert.assertEquals("Folded search didn't find the toy", List.of(toyId),
+					toysResponseHolder.toys().stream().map(toy -> toy.getToyId()).collect(Collectors.toList()));
+		}));
+	}
+
+	@Test
+	public void testFuzzyToySearchToleratesTypos() {
+		App app = new App(new Configuration());
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+			UUID suffix = UUID.randomUUID();
+
+			Request request = Request.with(HttpMethod.POST, "/toys")
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.body(gson.toJson(new ToyCreateRequest(format("Velociraptor Puzzle %s", suffix), BigDecimal.valueOf(5), Currency.getInstance("USD"))).getBytes(StandardCharsets.UTF_8))
+					.build();
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			UUID toyId = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToyResponseHolder.class).toy().getToyId();
+			String misspelledName = format("velocirapter puzle %s", suffix);
+
+			// A prefix search can't see past the typo...
+			request = Request.with(HttpMethod.GET, format("/toys?query=%s", URLEncoder.encode(misspelledName, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			ToysResponseHolder toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+
+			Assert.assertEquals("Prefix search matched a misspelling", 0, toysResponseHolder.toys().size());
+
+			// ...but a fuzzy one ranks the intended toy first
+			request = Request.with(HttpMethod.GET, format("/toys?searchMode=FUZZY&query=%s", URLEncoder.encode(misspelledName, StandardCharsets.UTF_8)))
+					.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+					.build();
+
+			marshaledResponse = simulator.performRequest(request);
+			Assert.assertEquals("Bad status code", 200, marshaledResponse.getStatusCode().intValue());
+
+			toysResponseHolder = gson.fromJson(new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8), ToysResponseHolder.class);
+			Assert.assertTrue("Fuzzy search found nothing", toysResponseHolder.toys().size() > 0);
+			Assert.assertEquals("Fuzzy search didn't rank the intended toy first", toyId, toysResponseHolder.toys().get(0).getToyId());
+			Assert.assertNull("Fuzzy search results have a cursor", toysResponseHolder.nextCursor());
+		}));
+	}
+
+	@Test
+	public void testPurchaseToyWhenCreditCardProcessorFails() {
+		// Put a stub processor behind the real resilience wrapper, so we can make it fail on demand.
+		// Two failures in a row are enough to open the circuit, which then stays open for the rest of the test
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor();
+
+		App app = new App(new Configuration(), new AbstractModule() {
+			@Nonnull
+			@Provides
+			@Singleton
+			public ResilientCreditCardProcessor provideResilientCreditCardProcessor() {
+				return ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+						.slidingWindowSize(2)
+						.minimumCalls(2)
+						.openDuration(Duration.ofMinutes(5))
+						.build();
+			}
+
+			@Override
+			protected void configure() {
+				// Guice module configuration; nothing to do
+			}
+		});
+
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		Database database = app.getInjector().getInstance(Database.class);
+		ResilientCreditCardProcessor resilientCreditCardProcessor = app.getInjector().getInstance(ResilientCreditCardProcessor.class);
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			UUID firstToyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Unlucky Toy", 1);
+			UUID secondToyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Unluckier Toy", 1);
+			UUID thirdToyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Short-Circuited Toy", 1);
+
+			// The processor blows up after we've sent it the charge, so we can't know whether the card was charged
+			stubCreditCardProcessor.setFailureMode(FailureMode.ERROR);
+			stubCreditCardProcessor.setFailureRate(1D);
+
+			MarshaledResponse marshaledResponse = simulator.performRequest(purchaseRequest(gson, authenticationToken, firstToyId));
+			Assert.assertEquals("Processor failure was not reported as unavailable", 503, marshaledResponse.getStatusCode().intValue());
+
+			// The purchase is left pending and queued for the outbox worker to settle, and keeps holding its stock
+			Purchase firstPurchase = database.queryForObject("SELECT * FROM purchase WHERE toy_id=?", Purchase.class, firstToyId).get();
+
+			Assert.assertEquals("Uncertain purchase should stay pending", PurchaseStatusId.PENDING, firstPurchase.purchaseStatusId());
+			PurchaseOutbox firstPurchaseOutbox = database.queryForObject("SELECT * FROM purchase_outbox WHERE charge_id=?",
+					PurchaseOutbox.class, firstPurchase.chargeId()).orElse(null);
+
+			Assert.assertNotNull("Uncertain purchase was not queued for reconciliation", firstPurchaseOutbox);
+			Assert.assertTrue("Uncertain purchase must never be voided by the worker", firstPurchaseOutbox.chargeAttempted());
+			Assert.assertFalse("Card number was stored in plaintext", firstPurchaseOutbox.encryptedCreditCardNumber().contains("4111111111111111"));
+
+			marshaledResponse = simulator.performRequest(purchaseRequest(gson, authenticationToken, firstToyId));
+			Assert.assertEquals("Uncertain purchase gave up its stock", 422, marshaledResponse.getStatusCode().intValue());
+
+			// A second failure opens the circuit...
+			marshaledResponse = simulator.performRequest(purchaseRequest(gson, authenticationToken, secondToyId));
+			Assert.assertEquals("Processor failure was not reported as unavailable", 503, marshaledResponse.getStatusCode().intValue());
+			Assert.assertEquals("Circuit did not open", CircuitState.OPEN, resilientCreditCardProcessor.getMetrics().circuitState());
+
+			// ...after which we fail fast without calling the processor, even though it has recovered.
+			// The card definitely wasn't charged, so the purchase is voided and its stock given back
+			stubCreditCardProcessor.setFailureMode(FailureMode.NONE);
+
+			marshaledResponse = simulator.performRequest(purchaseRequest(gson, authenticationToken, thirdToyId));
+			Assert.assertEquals("Open circuit was not reported as unavailable", 503, marshaledResponse.getStatusCode().intValue());
+
+			Purchase thirdPurchase = database.queryForObject("SELECT * FROM purchase WHERE toy_id=?", Purchase.class, thirdToyId).get();
+
+			Assert.assertEquals("Short-circuited purchase should be voided", PurchaseStatusId.VOIDED, thirdPurchase.purchaseStatusId());
+			Assert.assertFalse("Short-circuited purchase was queued for reconciliation", database.queryForObject(
+					"SELECT * FROM purchase_outbox WHERE charge_id=?", PurchaseOutbox.class, thirdPurchase.chargeId()).isPresent());
+			Assert.assertEquals("Purchase was not short-circuited", 1L,
+					resilientCreditCardProcessor.getMetrics().shortCircuitedCount().longValue());
+		}));
+	}
+
+	@Test
+	public void testPurchaseToyWithGroupCommit() {
+		// Turn on group commit, and hold batches open long enough that concurrent purchases reliably share them
+		Configuration configuration = new Configuration() {
+			@Nonnull
+			@Override
+			public Boolean getPurchaseGroupCommitEnabled() {
+				return true;
+			}
+
+			@Nonnull
+			@Override
+			public Duration getPurchaseGroupCommitMaximumDelay() {
+				return Duration.ofMillis(50);
+			}
+		};
+
+		App app = new App(configuration);
+		Gson gson = app.getInjector().getInstance(Gson.class);
+		SokletConfiguration config = app.getInjector().getInstance(SokletConfiguration.class);
+		PurchaseWriter purchaseWriter = app.getInjector().getInstance(PurchaseWriter.class);
+		int purchaseCount = 16;
+
+		Soklet.runSimulator(config, (simulator -> {
+			// Get an auth token so we can provide to API calls
+			String authenticationToken = acquireAuthenticationToken(app, "admin@soklet.com", "test123");
+
+			UUID toyId = createToyWithStock(simulator::performRequest, gson, authenticationToken, "Popular Toy", purchaseCount);
+
+			// Everyone buys at once
+			List<Future<MarshaledResponse>> marshaledResponseFutures = new ArrayList<>(purchaseCount);
+
+			try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (int i = 0; i < purchaseCount; ++i)
+					marshaledResponseFutures.add(executorService.submit(() -> simulator.performRequest(purchaseRequest(gson, authenticationToken, toyId))));
+			}
+
+			for (Future<MarshaledResponse> marshaledResponseFuture : marshaledResponseFutures) {
+				try {
+					Assert.assertEquals("Group-committed purchase failed", 200, marshaledResponseFuture.get().getStatusCode().intValue());
+				} catch (InterruptedException | ExecutionException e) {
+					throw new AssertionError(e);
+				}
+			}
+		}));
+
+		PurchaseWriterMetrics metrics = purchaseWriter.getMetrics();
+
+		Assert.assertTrue("Group commit was not enabled", metrics.groupCommitEnabled());
+		Assert.assertEquals("Wrong number of pending purchase writes", purchaseCount, metrics.insert().writeCount().intValue());
+		Assert.assertEquals("Wrong number of status writes", purchaseCount, metrics.update().writeCount().intValue());
+		Assert.assertTrue("Concurrent purchases were not batched", metrics.insert().commitCount() < purchaseCount);
+		Assert.assertEquals("Group commit should not have failed", 0L, metrics.insert().failedBatchCount().longValue());
+	}
+
+	@Nonnull
+	protected UUID createToyWithStock(@Nonnull Function<Request, MarshaledResponse> requestPerformer,
+																		@Nonnull Gson gson,
+																		@Nonnull String authenticationToken,
+																		@Nonnull String name,
+																		@Nonnull Integer stock) {
+		requireNonNull(requestPerformer);
+		requireNonNull(gson);
+		requireNonNull(authenticationToken);
+		requireNonNull(name);
+		requireNonNull(stock);
+
+		String requestBodyJson = gson.toJson(new ToyCreateRequest(name, BigDecimal.valueOf(9.99), Currency.getInstance("USD"), stock));
+
+		Request request = Request.with(HttpMethod.POST, "/toys")
+				.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+				.body(requestBodyJson.getBytes(StandardCharsets.UTF_8))
+				.build();
+
+		MarshaledResponse marshaledResponse = requestPerformer.apply(request);
+
+		Assert.assertEquals("Toy creation failed", 200, marshaledResponse.getStatusCode().intValue());
+
+		String responseBody = new String(marshaledResponse.getBody().get(), StandardCharsets.UTF_8);
+		return gson.fromJson(responseBody, ToyResponseHolder.class).toy().getToyId();
+	}
+
+	@Nonnull
+	protected Request purchaseRequest(@Nonnull Gson gson,
+																		@Nonnull String authenticationToken,
+																		@Nonnull UUID toyId) {
+		requireNonNull(gson);
+		requireNonNull(authenticationToken);
+		requireNonNull(toyId);
+
+		return Request.with(HttpMethod.POST, format("/toys/%s/purchase", toyId))
+				.headers(Map.of("X-Authentication-Token", Set.of(authenticationToken)))
+				.body(gson.toJson(Map.of(
+						"creditCardNumber", "4111111111111111",
+						"creditCardExpiration", "2030-01"
+				)).getBytes(StandardCharsets.UTF_8))
+				.build();
+	}
+
 	@Nonnull
 	protected String acquireAuthenticationToken(@Nonnull App app,
 																							@Nonnull String emailAddress,
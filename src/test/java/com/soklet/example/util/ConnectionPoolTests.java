@@ -0,0 +1,333 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.soklet.example.util.ConnectionPool.ConnectionPoolMetrics;
+import com.soklet.example.util.ConnectionPool.ConnectionPoolTimeoutException;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ConnectionPoolTests {
+	@Test
+	public void testTimesOutWhenExhausted() throws Exception {
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.maximumSize(2)
+				.acquisitionTimeout(Duration.ofMillis(100))
+				.build()) {
+			Connection firstConnection = connectionPool.getConnection();
+			Connection secondConnection = connectionPool.getConnection();
+
+			try {
+				connectionPool.getConnection();
+				Assert.fail("Pool lent out more connections than its maximum");
+			} catch (ConnectionPoolTimeoutException expected) {
+				// Nobody gave one back in time
+			}
+
+			Assert.assertEquals("Wrong timeout count", 1L, connectionPool.getMetrics().timeoutCount().longValue());
+
+			// Once one comes back, the next caller gets it
+			firstConnection.close();
+
+			try (Connection thirdConnection = connectionPool.getConnection()) {
+				Assert.assertFalse("Returned connection was not lent out again", thirdConnection.isClosed());
+			}
+
+			secondConnection.close();
+
+			ConnectionPoolMetrics metrics = connectionPool.getMetrics();
+
+			Assert.assertEquals("Connections are still lent out", 0, metrics.activeCount().intValue());
+			Assert.assertEquals("Physical connections were not reused", 2L, metrics.createdCount().longValue());
+		}
+	}
+
+	@Test
+	public void testConcurrentBorrowersNeverExceedMaximum() throws Exception {
+		int maximumSize = 3;
+
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.maximumSize(maximumSize)
+				.acquisitionTimeout(Duration.ofSeconds(10))
+				.build()) {
+			AtomicInteger borrowedCount = new AtomicInteger(0);
+			AtomicInteger maximumBorrowedCount = new AtomicInteger(0);
+			List<Future<?>> futures = new ArrayList<>();
+
+			try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (int i = 0; i < 64; ++i) {
+					futures.add(executorService.submit(() -> {
+						try (Connection connection = connectionPool.getConnection()) {
+							maximumBorrowedCount.accumulateAndGet(borrowedCount.incrementAndGet(), Math::max);
+
+							try (PreparedStatement preparedStatement = connection.prepareStatement("SELECT COUNT(*) FROM pool_row");
+									 ResultSet resultSet = preparedStatement.executeQuery()) {
+								resultSet.next();
+							}
+
+							Thread.sleep(2);
+							borrowedCount.decrementAndGet();
+						}
+
+						return null;
+					}));
+				}
+			}
+
+			for (Future<?> future : futures)
+				future.get();
+
+			ConnectionPoolMetrics metrics = connectionPool.getMetrics();
+
+			Assert.assertTrue("More borrowers than the maximum held connections at once", maximumBorrowedCount.get() <= maximumSize);
+			Assert.assertTrue("More physical connections than the maximum were opened", metrics.createdCount() <= maximumSize);
+			Assert.assertEquals("Wrong acquired count", 64L, metrics.acquiredCount().longValue());
+			Assert.assertEquals("Connections are still lent out", 0, metrics.activeCount().intValue());
+		}
+	}
+
+	@Test
+	public void testReturnedConnectionsAreReset() throws Exception {
+		// A single connection, so the second borrower is guaranteed to get the same physical one back
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.maximumSize(1)
+				.build()) {
+			int defaultTransactionIsolation;
+
+			try (Connection connection = connectionPool.getConnection()) {
+				defaultTransactionIsolation = connection.getTransactionIsolation();
+
+				// Leave behind an uncommitted write and every setting we can think of
+				connection.setAutoCommit(false);
+				connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+				try (Statement statement = connection.createStatement()) {
+					statement.execute("INSERT INTO pool_row (name) VALUES ('uncommitted')");
+				}
+
+				connection.setReadOnly(true);
+			}
+
+			try (Connection connection = connectionPool.getConnection()) {
+				Assert.assertTrue("Auto-commit was not restored", connection.getAutoCommit());
+				Assert.assertFalse("Read-only was not cleared", connection.isReadOnly());
+				Assert.assertEquals("Isolation was not restored", defaultTransactionIsolation, connection.getTransactionIsolation());
+				Assert.assertEquals("Uncommitted write was not rolled back", 0, countRows(connection));
+			}
+
+			Assert.assertEquals("Connection was not reused", 1L, connectionPool.getMetrics().createdCount().longValue());
+		}
+	}
+
+	@Test
+	public void testLeakDetection() throws Exception {
+		// Off unless asked for, since it costs a stack trace per acquisition
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource()).build()) {
+			Assert.assertNull("Leak detection should be off by default", connectionPool.getLeakDetectionThreshold());
+		}
+
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.leakDetectionThreshold(Duration.ofMillis(10))
+				.build()) {
+			Connection leakedConnection = connectionPool.getConnection();
+
+			try (Connection promptlyReturnedConnection = connectionPool.getConnection()) {
+				Thread.sleep(20);
+
+				// Normally run by the maintenance task every second
+				connectionPool.detectLeaks();
+				Assert.assertEquals("Connections held past the threshold were not reported", 2L, connectionPool.getMetrics().leakCount().longValue());
+			}
+
+			// Each lease is only reported once, and returned connections are forgotten
+			connectionPool.detectLeaks();
+			Assert.assertEquals("Leak was reported twice", 2L, connectionPool.getMetrics().leakCount().longValue());
+
+			leakedConnection.close();
+		}
+	}
+
+	@Test
+	public void testStatementCache() throws Exception {
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.maximumSize(1)
+				.statementCacheSize(1)
+				.build()) {
+			String countSql = "SELECT COUNT(*) FROM pool_row";
+			String nameSql = "SELECT name FROM pool_row";
+
+			// Same connection, same SQL: the second prepare is served from the cache
+			for (int i = 0; i < 2; ++i) {
+				try (Connection connection = connectionPool.getConnection();
+						 PreparedStatement preparedStatement = connection.prepareStatement(countSql);
+						 ResultSet resultSet = preparedStatement.executeQuery()) {
+					Assert.assertTrue("Cached statement returned no rows", resultSet.next());
+					Assert.assertSame("Statement is not tied to its borrower's connection", connection, preparedStatement.getConnection());
+				}
+			}
+
+			ConnectionPoolMetrics metrics = connectionPool.getMetrics();
+
+			Assert.assertEquals("Wrong statement cache hit count", 1L, metrics.statementCacheHitCount().longValue());
+			Assert.assertEquals("Wrong statement cache miss count", 1L, metrics.statementCacheMissCount().longValue());
+
+			try (Connection connection = connectionPool.getConnection()) {
+				// A second statement pushes the first out of a cache of one...
+				try (PreparedStatement preparedStatement = connection.prepareStatement(nameSql)) {
+					preparedStatement.executeQuery().close();
+				}
+
+				// ...and a statement prepared while the cached one is in use is a one-off, but still works
+				try (PreparedStatement firstPreparedStatement = connection.prepareStatement(nameSql);
+						 PreparedStatement secondPreparedStatement = connection.prepareStatement(nameSql)) {
+					Assert.assertNotSame("Two borrowers got the same statement", firstPreparedStatement, secondPreparedStatement);
+					secondPreparedStatement.executeQuery().close();
+				}
+
+				// Closing a borrowed statement only closes our handle to it
+				PreparedStatement preparedStatement = connection.prepareStatement(nameSql);
+				preparedStatement.close();
+
+				Assert.assertTrue("Closed statement handle is still open", preparedStatement.isClosed());
+
+				try {
+					preparedStatement.executeQuery();
+					Assert.fail("Closed statement handle could still be used");
+				} catch (SQLException expected) {
+					// The next borrower owns it now
+				}
+			}
+
+			Assert.assertEquals("Wrong statement cache eviction count", 1L, connectionPool.getMetrics().statementCacheEvictionCount().longValue());
+		}
+	}
+
+	@Test
+	public void testReturnedStatementsAreReset() throws Exception {
+		try (ConnectionPool connectionPool = ConnectionPool.withDataSource(createDataSource())
+				.minimumSize(0)
+				.maximumSize(1)
+				.build()) {
+			String insertSql = "INSERT INTO pool_row (name) VALUES (?)";
+			String selectSql = "SELECT name FROM pool_row";
+
+			try (Connection connection = connectionPool.getConnection()) {
+				for (String name : List.of("one", "two", "three")) {
+					try (PreparedStatement preparedStatement = connection.prepareStatement(insertSql)) {
+						preparedStatement.setString(1, name);
+						preparedStatement.executeUpdate();
+					}
+				}
+
+				// Leave a batch queued and the result limits changed
+				try (PreparedStatement preparedStatement = connection.prepareStatement(insertSql)) {
+					preparedStatement.setString(1, "abandoned");
+					preparedStatement.addBatch();
+				}
+
+				try (PreparedStatement preparedStatement = connection.prepareStatement(selectSql)) {
+					preparedStatement.setMaxRows(1);
+					preparedStatement.setFetchSize(1);
+					preparedStatement.setQueryTimeout(5);
+					preparedStatement.executeQuery();
+				}
+			}
+
+			long statementCacheHitCount = connectionPool.getMetrics().statementCacheHitCount();
+
+			try (Connection connection = connectionPool.getConnection()) {
+				try (PreparedStatement preparedStatement = connection.prepareStatement(insertSql)) {
+					preparedStatement.setString(1, "four");
+					preparedStatement.addBatch();
+
+					Assert.assertArrayEquals("Previous borrower's batch was not cleared", new int[]{1}, preparedStatement.executeBatch());
+				}
+
+				try (PreparedStatement preparedStatement = connection.prepareStatement(selectSql)) {
+					Assert.assertEquals("Max rows was not reset", 0, preparedStatement.getMaxRows());
+					Assert.assertEquals("Query timeout was not reset", 0, preparedStatement.getQueryTimeout());
+
+					int rowCount = 0;
+
+					try (ResultSet resultSet = preparedStatement.executeQuery()) {
+						while (resultSet.next())
+							++rowCount;
+					}
+
+					Assert.assertEquals("Previous borrower's max rows still applied", 4, rowCount);
+				}
+			}
+
+			Assert.assertEquals("Statements were not reused", statementCacheHitCount + 2, connectionPool.getMetrics().statementCacheHitCount().longValue());
+		}
+	}
+
+	@Nonnull
+	protected JDBCDataSource createDataSource() throws SQLException {
+		// Every test gets its own in-memory database
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl(format("jdbc:hsqldb:mem:connection-pool-%s", UUID.randomUUID()));
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+
+		try (Connection connection = dataSource.getConnection();
+				 Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE pool_row (name VARCHAR(255) NOT NULL)");
+		}
+
+		return dataSource;
+	}
+
+	protected int countRows(@Nonnull Connection connection) throws SQLException {
+		requireNonNull(connection);
+
+		try (Statement statement = connection.createStatement();
+				 ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM pool_row")) {
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.Base64;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class CreditCardNumberCipherTests {
+	@Test
+	public void testRoundTrip() throws Exception {
+		CreditCardNumberCipher creditCardNumberCipher = CreditCardNumberCipher.forPrivateKey(generatePrivateKey());
+
+		String encryptedCreditCardNumber = creditCardNumberCipher.encrypt("4111111111111111");
+
+		Assert.assertFalse("Card number was not encrypted", encryptedCreditCardNumber.contains("4111111111111111"));
+		Assert.assertEquals("Card number did not survive a round trip", "4111111111111111", creditCardNumberCipher.decrypt(encryptedCreditCardNumber));
+
+		// Every value gets its own IV, so equal card numbers can't be spotted in the table
+		Assert.assertNotEquals("Equal card numbers encrypted identically", encryptedCreditCardNumber, creditCardNumberCipher.encrypt("4111111111111111"));
+	}
+
+	@Test
+	public void testRejectsTamperedValues() throws Exception {
+		CreditCardNumberCipher creditCardNumberCipher = CreditCardNumberCipher.forPrivateKey(generatePrivateKey());
+
+		byte[] bytes = Base64.getDecoder().decode(creditCardNumberCipher.encrypt("4111111111111111"));
+		bytes[bytes.length - 1] ^= 1;
+
+		try {
+			creditCardNumberCipher.decrypt(Base64.getEncoder().encodeToString(bytes));
+			Assert.fail("Tampered-with value was decrypted");
+		} catch (IllegalArgumentException expected) {
+			// Authentication tag didn't match
+		}
+	}
+
+	@Test
+	public void testRejectsValuesFromAnotherKey() throws Exception {
+		String encryptedCreditCardNumber = CreditCardNumberCipher.forPrivateKey(generatePrivateKey()).encrypt("4111111111111111");
+
+		try {
+			CreditCardNumberCipher.forPrivateKey(generatePrivateKey()).decrypt(encryptedCreditCardNumber);
+			Assert.fail("Value encrypted with another key was decrypted");
+		} catch (IllegalArgumentException expected) {
+			// Authentication tag didn't match
+		}
+	}
+
+	private PrivateKey generatePrivateKey() throws Exception {
+		KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+		keyPairGenerator.initialize(2048);
+		return keyPairGenerator.generateKeyPair().getPrivate();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soklet.example.util;
+
+import com.soklet.example.util.ExpiringCache.ExpiringCacheMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ExpiringCacheTests {
+	@Test
+	public void testHitsMissesAndExpiration() throws InterruptedException {
+		ExpiringCache<String, String> cache = new ExpiringCache<>(10);
+
+		cache.put("live", "value", Instant.now().plus(Duration.ofMinutes(1)));
+		cache.put("short-lived", "value", Instant.now().plusMillis(20));
+		// Already dead, so never stored
+		cache.put("dead", "value", Instant.now().minusSeconds(1));
+
+		Assert.assertEquals("Wrong size", 2, cache.size().intValue());
+		Assert.assertEquals("Live entry missing", "value", cache.get("live").orElse(null));
+
+		Thread.sleep(50);
+
+		Assert.assertTrue("Expired entry was returned", cache.get("short-lived").isEmpty());
+		Assert.assertTrue("Missing entry was returned", cache.get("missing").isEmpty());
+
+		ExpiringCacheMetrics metrics = cache.getMetrics();
+
+		Assert.assertEquals("Wrong hit count", 1, metrics.hitCount().longValue());
+		Assert.assertEquals("Wrong miss count", 2, metrics.missCount().longValue());
+		Assert.assertEquals("Wrong eviction count", 1, metrics.evictionCount().longValue());
+		Assert.assertEquals("Wrong hit rate", 1D / 3D, metrics.hitRate(), 0.0001);
+	}
+
+	@Test
+	public void testStaysBoundedWhenFull() {
+		ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(100);
+		Instant expiration = Instant.now().plus(Duration.ofMinutes(1));
+
+		for (int i = 0; i < 10_000; ++i)
+			cache.put(i, i, expiration);
+
+		Assert.assertEquals("Cache grew past its maximum size", 100, cache.size().intValue());
+		Assert.assertEquals("Wrong eviction count", 9_900, cache.getMetrics().evictionCount().longValue());
+		Assert.assertEquals("Newest entry was evicted", 9_999, cache.get(9_999).orElse(-1).intValue());
+	}
+
+	@Test
+	public void testPrefersExpiredEntriesWhenMakingRoom() throws InterruptedException {
+		ExpiringCache<String, String> cache = new ExpiringCache<>(2);
+
+		cache.put("short-lived", "value", Instant.now().plusMillis(20));
+		cache.put("long-lived", "value", Instant.now().plus(Duration.ofMinutes(1)));
+
+		Thread.sleep(50);
+
+		cache.put("new", "value", Instant.now().plus(Duration.ofMinutes(1)));
+
+		Assert.assertTrue("Long-lived entry was evicted instead of the expired one", cache.get("long-lived").isPresent());
+		Assert.assertTrue("New entry is missing", cache.get("new").isPresent());
+	}
+
+	@Test
+	public void testMakingRoomSweepsTheWholeCache() {
+		ExpiringCache<Integer, String> cache = new ExpiringCache<>(64);
+		Instant now = Instant.now();
+
+		// Even keys expire well before odd ones, and they are spread evenly through the map
+		for (int i = 0; i < 64; ++i)
+			cache.put(i, "value", now.plus(i % 2 == 0 ? Duration.ofMinutes(1) : Duration.ofHours(1)));
+
+		// Eight samples of eight entries is exactly one trip around the cache.
+		// If every sample started at the front, most of the expired entries further back would never be seen
+		for (int i = 0; i < 8; ++i)
+			cache.makeRoom(now.plus(Duration.ofMinutes(30)));
+
+		Assert.assertEquals("Not every expired entry was reclaimed", 32, cache.size().intValue());
+
+		for (int i = 1; i < 64; i += 2)
+			Assert.assertTrue("Unexpired entry was evicted", cache.get(i).isPresent());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.pyranid.Database;
+import com.soklet.example.util.GroupCommitBuffer.GroupCommitBufferMetrics;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class GroupCommitBufferTests {
+	private static final String INSERT_SQL = "INSERT INTO group_commit_row (row_id, name) VALUES (?,?)";
+
+	@Test
+	public void testConcurrentWritesShareCommits() throws Exception {
+		Database database = createDatabase();
+		int writeCount = 32;
+
+		// A generous delay, so writers that arrive together reliably end up in the same batch
+		try (GroupCommitBuffer groupCommitBuffer = new GroupCommitBuffer(database, INSERT_SQL, 64, Duration.ofMillis(50))) {
+			List<Future<?>> futures = new ArrayList<>(writeCount);
+
+			try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (int i = 0; i < writeCount; ++i) {
+					String name = format("row-%d", i);
+					futures.add(executorService.submit(() -> groupCommitBuffer.write(List.of(UUID.randomUUID(), name))));
+				}
+			}
+
+			for (Future<?> future : futures)
+				future.get();
+
+			GroupCommitBufferMetrics metrics = groupCommitBuffer.getMetrics();
+
+			Assert.assertEquals("Wrong write count", writeCount, metrics.writeCount().intValue());
+			Assert.assertTrue("Writes were not batched", metrics.commitCount() < writeCount);
+			Assert.assertEquals("Not every row was committed", writeCount, countRows(database));
+		}
+	}
+
+	@Test
+	public void testBadRowOnlyFailsItsOwnWrite() throws Exception {
+		Database database = createDatabase();
+		UUID duplicateRowId = UUID.randomUUID();
+
+		database.execute(INSERT_SQL, duplicateRowId, "existing");
+
+		try (GroupCommitBuffer groupCommitBuffer = new GroupCommitBuffer(database, INSERT_SQL, 64, Duration.ofMillis(50))) {
+			List<Future<?>> goodFutures = new ArrayList<>();
+			Future<?> badFuture;
+
+			// The duplicate key sinks the batch it lands in; everyone else in that batch is retried one by one
+			try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+				for (int i = 0; i < 8; ++i)
+					goodFutures.add(executorService.submit(() -> groupCommitBuffer.write(List.of(UUID.randomUUID(), "good"))));
+
+				badFuture = executorService.submit(() -> groupCommitBuffer.write(List.of(duplicateRowId, "duplicate")));
+			}
+
+			for (Future<?> goodFuture : goodFutures)
+				goodFuture.get();
+
+			try {
+				badFuture.get();
+				Assert.fail("Duplicate row was written");
+			} catch (ExecutionException expected) {
+				// Only the bad row's caller hears about it
+			}
+
+			Assert.assertTrue("Failed batch was not recorded", groupCommitBuffer.getMetrics().failedBatchCount() > 0);
+			Assert.assertEquals("Good rows were lost along with the bad one", 9, countRows(database));
+		}
+	}
+
+	@Test
+	public void testCloseDrainsQueuedWrites() throws Exception {
+		Database database = createDatabase();
+		int writeCount = 8;
+
+		// A delay far longer than the test, so the writes are still queued when we close
+		GroupCommitBuffer groupCommitBuffer = new GroupCommitBuffer(database, INSERT_SQL, 64, Duration.ofMinutes(1));
+		List<Future<?>> futures = new ArrayList<>(writeCount);
+
+		try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < writeCount; ++i)
+				futures.add(executorService.submit(() -> groupCommitBuffer.write(List.of(UUID.randomUUID(), "queued"))));
+
+			// Wait until everyone is parked on the buffer, then shut it down underneath them
+			while (groupCommitBuffer.getMetrics().writeCount() < writeCount)
+				Thread.sleep(5);
+
+			groupCommitBuffer.close();
+		}
+
+		for (Future<?> future : futures)
+			future.get();
+
+		Assert.assertEquals("Queued writes were not flushed on close", writeCount, countRows(database));
+
+		// Writes that arrive after closing still go through, just on their own
+		groupCommitBuffer.write(List.of(UUID.randomUUID(), "late"));
+
+		Assert.assertEquals("Write after close was lost", writeCount + 1, countRows(database));
+	}
+
+	@Test
+	public void testWriteRacingCloseStillCommits() throws Exception {
+		Database database = createDatabase();
+		CountDownLatch enqueueing = new CountDownLatch(1);
+		CountDownLatch closed = new CountDownLatch(1);
+
+		// Hold the write between its closed() check and its enqueue until close() has drained the queue for good,
+		// which is the interleaving that used to leave the writer waiting on a flush that would never come
+		GroupCommitBuffer groupCommitBuffer = new GroupCommitBuffer(database, INSERT_SQL, 64, Duration.ofMillis(50)) {
+			@Nonnull
+			private final LinkedBlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>() {
+				@Override
+				public boolean add(@Nonnull PendingWrite pendingWrite) {
+					enqueueing.countDown();
+
+					try {
+						closed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+
+					return super.add(pendingWrite);
+				}
+			};
+
+			@Nonnull
+			@Override
+			protected LinkedBlockingQueue<PendingWrite> getPendingWrites() {
+				return this.pendingWrites;
+			}
+		};
+
+		// Not try-with-resources: if the write does hang, we want a timeout, not a test that never finishes
+		ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+
+		try {
+			Future<?> future = executorService.submit(() -> groupCommitBuffer.write(List.of(UUID.randomUUID(), "racing")));
+
+			enqueueing.await();
+			groupCommitBuffer.close();
+			closed.countDown();
+
+			future.get(10, TimeUnit.SECONDS);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		Assert.assertEquals("Write racing close was lost", 1, countRows(database));
+	}
+
+	@Nonnull
+	protected Database createDatabase() {
+		// Every test gets its own in-memory database
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl(format("jdbc:hsqldb:mem:group-commit-%s", UUID.randomUUID()));
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+
+		Database database = Database.forDataSource(dataSource).build();
+
+		database.execute("""
+				CREATE TABLE group_commit_row (
+					row_id UUID PRIMARY KEY,
+					name VARCHAR(255) NOT NULL
+				)
+				""");
+
+		return database;
+	}
+
+	protected int countRows(@Nonnull Database database) {
+		return database.queryForObject("SELECT COUNT(*) FROM group_commit_row", Long.class).get().intValue();
+	}
+}
\ No newline at end of file
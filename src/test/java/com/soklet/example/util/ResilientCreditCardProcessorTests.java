@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import com.soklet.example.util.CreditCardProcessor.CreditCardPaymentException;
+import com.soklet.example.util.ResilientCreditCardProcessor.CircuitState;
+import com.soklet.example.util.ResilientCreditCardProcessor.CreditCardProcessorUnavailableException;
+import com.soklet.example.util.StubCreditCardProcessor.FailureMode;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Currency;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class ResilientCreditCardProcessorTests {
+	@Test
+	public void testCircuitOpensHalfOpensAndCloses() throws Exception {
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor(Duration.ZERO, FailureMode.ERROR, 1D);
+		ResilientCreditCardProcessor resilientCreditCardProcessor = ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+				.slidingWindowSize(2)
+				.minimumCalls(2)
+				.openDuration(Duration.ofMillis(100))
+				.build();
+
+		// Processor errors are uncertain: the charge may have gone through before it blew up
+		for (int i = 0; i < 2; ++i) {
+			CreditCardProcessorUnavailableException e = assertUnavailable(resilientCreditCardProcessor);
+			Assert.assertTrue("Processor error should count as an attempted charge", e.getChargeAttempted());
+		}
+
+		Assert.assertEquals("Circuit did not open", CircuitState.OPEN, resilientCreditCardProcessor.getMetrics().circuitState());
+
+		// While open, we fail fast without touching the processor, even if it has recovered
+		stubCreditCardProcessor.setFailureMode(FailureMode.NONE);
+
+		CreditCardProcessorUnavailableException e = assertUnavailable(resilientCreditCardProcessor);
+		Assert.assertFalse("Short-circuited call should not count as an attempted charge", e.getChargeAttempted());
+		Assert.assertEquals("Wrong short-circuited count", 1L, resilientCreditCardProcessor.getMetrics().shortCircuitedCount().longValue());
+
+		// Once the open period is over, a successful probe closes the circuit again
+		Thread.sleep(150);
+
+		Assert.assertNotNull("Probe call failed", makePayment(resilientCreditCardProcessor));
+		Assert.assertEquals("Circuit did not close", CircuitState.CLOSED, resilientCreditCardProcessor.getMetrics().circuitState());
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuit() throws Exception {
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor(Duration.ZERO, FailureMode.ERROR, 1D);
+		ResilientCreditCardProcessor resilientCreditCardProcessor = ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+				.slidingWindowSize(1)
+				.minimumCalls(1)
+				.openDuration(Duration.ofMillis(100))
+				.build();
+
+		assertUnavailable(resilientCreditCardProcessor);
+		Assert.assertEquals("Circuit did not open", CircuitState.OPEN, resilientCreditCardProcessor.getMetrics().circuitState());
+
+		Thread.sleep(150);
+
+		// The probe reaches the processor, fails, and the circuit goes straight back to open
+		Assert.assertTrue("Probe should have reached the processor", assertUnavailable(resilientCreditCardProcessor).getChargeAttempted());
+		Assert.assertEquals("Circuit did not reopen", CircuitState.OPEN, resilientCreditCardProcessor.getMetrics().circuitState());
+		Assert.assertFalse("Call after a failed probe was not short-circuited", assertUnavailable(resilientCreditCardProcessor).getChargeAttempted());
+	}
+
+	@Test
+	public void testDeclinesDoNotOpenCircuit() {
+		StubCreditCardProcessor stubCreditCardProcessor = new StubCreditCardProcessor(Duration.ZERO, FailureMode.DECLINE, 1D);
+		ResilientCreditCardProcessor resilientCreditCardProcessor = ResilientCreditCardProcessor.withCreditCardProcessor(stubCreditCardProcessor)
+				.slidingWindowSize(2)
+				.minimumCalls(2)
+				.build();
+
+		for (int i = 0; i < 5; ++i) {
+			try {
+				makePayment(resilientCreditCardProcessor);
+				Assert.fail("Card was not declined");
+			} catch (CreditCardPaymentException expected) {
+				// A healthy processor said no
+			}
+		}
+
+		Assert.assertEquals("Declines opened the circuit", CircuitState.CLOSED, resilientCreditCardProcessor.getMetrics().circuitState());
+		Assert.assertEquals("Wrong declined count", 5L, resilientCreditCardProcessor.getMetrics().declinedCount().longValue());
+	}
+
+	@Test
+	public void testTimedOutCallKeepsBulkheadPermitUntilItReturns() throws Exception {
+		CountDownLatch callStarted = new CountDownLatch(1);
+		CountDownLatch callMayReturn = new CountDownLatch(1);
+
+		// Like a blocking client that doesn't respond to interruption, so the call outlives its deadline
+		CreditCardProcessor stubbornCreditCardProcessor = (idempotencyKey, creditCardNumber, amount, currency) -> {
+			callStarted.countDown();
+
+			while (true) {
+				try {
+					callMayReturn.await();
+					return "stubborn";
+				} catch (InterruptedException ignored) {
+					// Keep waiting
+				}
+			}
+		};
+
+		ResilientCreditCardProcessor resilientCreditCardProcessor = ResilientCreditCardProcessor.withCreditCardProcessor(stubbornCreditCardProcessor)
+				.maximumConcurrentCalls(1)
+				.bulkheadTimeout(Duration.ofMillis(10))
+				.callTimeout(Duration.ofMillis(50))
+				.build();
+
+		CreditCardProcessorUnavailableException e = assertUnavailable(resilientCreditCardProcessor);
+
+		Assert.assertTrue("Call never started", callStarted.await(1, TimeUnit.SECONDS));
+		Assert.assertTrue("Timed-out call should count as an attempted charge", e.getChargeAttempted());
+		Assert.assertEquals("Timed-out call gave up its permit while still running", 1,
+				resilientCreditCardProcessor.getMetrics().activeCallCount().intValue());
+
+		// The bulkhead is still full, so the next caller is turned away before reaching the processor
+		Assert.assertFalse("Call was let past a full bulkhead", assertUnavailable(resilientCreditCardProcessor).getChargeAttempted());
+		Assert.assertEquals("Wrong bulkhead rejected count", 1L, resilientCreditCardProcessor.getMetrics().bulkheadRejectedCount().longValue());
+
+		// Once the call really returns, its permit comes back
+		callMayReturn.countDown();
+
+		long deadline = System.currentTimeMillis() + 1_000;
+
+		while (resilientCreditCardProcessor.getMetrics().activeCallCount() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+
+		Assert.assertEquals("Permit was not returned", 0, resilientCreditCardProcessor.getMetrics().activeCallCount().intValue());
+	}
+
+	@Nonnull
+	protected String makePayment(@Nonnull CreditCardProcessor creditCardProcessor) throws CreditCardPaymentException {
+		requireNonNull(creditCardProcessor);
+		return creditCardProcessor.makePayment(UUID.randomUUID().toString(), "4111111111111111", BigDecimal.valueOf(9.99), Currency.getInstance("USD"));
+	}
+
+	@Nonnull
+	protected CreditCardProcessorUnavailableException assertUnavailable(@Nonnull CreditCardProcessor creditCardProcessor) {
+		requireNonNull(creditCardProcessor);
+
+		try {
+			makePayment(creditCardProcessor);
+		} catch (CreditCardProcessorUnavailableException e) {
+			return e;
+		} catch (CreditCardPaymentException e) {
+			throw new AssertionError("Card was declined instead", e);
+		}
+
+		throw new AssertionError("Credit card processor call did not fail");
+	}
+}
\ No newline at end of file
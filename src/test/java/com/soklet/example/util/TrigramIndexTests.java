@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022-2024 Revetware LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soklet.example.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * @author <a href="https://www.revetkn.com">Mark Allen</a>
+ */
+@ThreadSafe
+public class TrigramIndexTests {
+	@Test
+	public void testFindsMisspellings() {
+		TrigramIndex trigramIndex = TrigramIndex.forDocuments(List.of("lego castle", "rubber duck", "teddy bear", "yo-yo"));
+
+		Assert.assertArrayEquals("Misspelling not found", new int[]{2}, trigramIndex.search("tedy bare", 0.3, 10));
+		Assert.assertArrayEquals("Unrelated query matched", new int[0], trigramIndex.search("xylophone", 0.3, 10));
+	}
+
+	@Test
+	public void testDerivedIndexMatchesRebuiltIndex() {
+		// Seeded, so a failure reproduces
+		Random random = new Random(42);
+		List<String> documents = new ArrayList<>();
+
+		for (int i = 0; i < 200; ++i)
+			documents.add(randomDocument(random));
+
+		documents.sort(null);
+
+		TrigramIndex trigramIndex = TrigramIndex.forDocuments(documents);
+
+		for (int round = 0; round < 50; ++round) {
+			// Drop some documents, add others, and keep the list sorted, the way the toy catalog does
+			List<String> survivingDocuments = new ArrayList<>();
+			int[] survivingDocumentIds = new int[documents.size()];
+			int survivingCount = 0;
+
+			for (int documentId = 0; documentId < documents.size(); ++documentId) {
+				if (random.nextInt(10) != 0) {
+					survivingDocuments.add(documents.get(documentId));
+					survivingDocumentIds[survivingCount++] = documentId;
+				}
+			}
+
+			List<String> addedDocuments = new ArrayList<>();
+
+			for (int i = random.nextInt(10); i > 0; --i)
+				addedDocuments.add(randomDocument(random));
+
+			addedDocuments.sort(null);
+
+			List<String> changedDocuments = new ArrayList<>(survivingDocuments.size() + addedDocuments.size());
+			int[] documentIdMapping = new int[documents.size()];
+			int[] addedDocumentIds = new int[addedDocuments.size()];
+			int survivingIndex = 0;
+			int addedIndex = 0;
+
+			Arrays.fill(documentIdMapping, -1);
+
+			while (survivingIndex < survivingDocuments.size() || addedIndex < addedDocuments.size()) {
+				if (addedIndex < addedDocuments.size() && (survivingIndex == survivingDocuments.size()
+						|| addedDocuments.get(addedIndex).compareTo(survivingDocuments.get(survivingIndex)) < 0)) {
+					addedDocumentIds[addedIndex] = changedDocuments.size();
+					changedDocuments.add(addedDocuments.get(addedIndex++));
+				} else {
+					documentIdMapping[survivingDocumentIds[survivingIndex]] = changedDocuments.size();
+					changedDocuments.add(survivingDocuments.get(survivingIndex++));
+				}
+			}
+
+			trigramIndex = trigramIndex.withChanges(documentIdMapping, changedDocuments.size(), addedDocumentIds, addedDocuments);
+			documents = changedDocuments;
+
+			TrigramIndex rebuiltTrigramIndex = TrigramIndex.forDocuments(documents);
+
+			Assert.assertEquals("Wrong document count", rebuiltTrigramIndex.getDocumentCount(), trigramIndex.getDocumentCount());
+
+			for (int i = 0; i < 20; ++i) {
+				String query = randomDocument(random);
+				double minimumSimilarity = 0.1 + random.nextInt(8) / 10D;
+
+				Assert.assertArrayEquals(format("Derived index disagrees on '%s'", query),
+						rebuiltTrigramIndex.search(query, minimumSimilarity, 10), trigramIndex.search(query, minimumSimilarity, 10));
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesBruteForceSearch() {
+		// Seeded, so a failure reproduces
+		Random random = new Random(7);
+
+		// A large catalog over a wide alphabet keeps candidates rare, so searches merge posting lists.
+		// A small catalog over a narrow one makes nearly every document a candidate, so searches tally instead
+		assertMatchesBruteForceSearch(random, 5_000, "abcdefghijklmnopqrstuvwxyz ");
+		assertMatchesBruteForceSearch(random, 300, "abcd ");
+	}
+
+	@Test
+	public void testRejectsReorderedDocuments() {
+		TrigramIndex trigramIndex = TrigramIndex.forDocuments(List.of("ball", "kite"));
+
+		try {
+			trigramIndex.withChanges(new int[]{1, 0}, 2, new int[0], List.of());
+			Assert.fail("Surviving documents were allowed to swap places");
+		} catch (IllegalArgumentException expected) {
+			// Their posting lists would no longer be sorted
+		}
+	}
+
+	protected void assertMatchesBruteForceSearch(@Nonnull Random random,
+																							 int documentCount,
+																							 @Nonnull String alphabet) {
+		requireNonNull(random);
+		requireNonNull(alphabet);
+
+		List<String> documents = new ArrayList<>(documentCount);
+
+		for (int i = 0; i < documentCount; ++i)
+			documents.add(randomDocument(random, alphabet));
+
+		TrigramIndex trigramIndex = TrigramIndex.forDocuments(documents);
+
+		for (int i = 0; i < 200; ++i) {
+			String query = randomDocument(random, alphabet);
+			double minimumSimilarity = 0.1 + random.nextInt(8) / 10D;
+			// Small limits fill up early, which is when the search starts raising its bar
+			int limit = List.of(1, 2, 3, 10, documentCount).get(random.nextInt(5));
+
+			Assert.assertArrayEquals(format("Wrong results for '%s' at %s similarity, limit %d", query, minimumSimilarity, limit),
+					bruteForceSearch(documents, query, minimumSimilarity, limit), trigramIndex.search(query, minimumSimilarity, limit));
+		}
+	}
+
+	// Scores every document with the same Jaccard formula as the index, best first, ties in document order
+	@Nonnull
+	protected int[] bruteForceSearch(@Nonnull List<String> documents,
+																	 @Nonnull String query,
+																	 double minimumSimilarity,
+																	 int limit) {
+		requireNonNull(documents);
+		requireNonNull(query);
+
+		long[] queryTrigrams = TrigramIndex.trigramsOf(query);
+		double[] similarities = new double[documents.size()];
+		List<Integer> documentIds = new ArrayList<>();
+
+		if (queryTrigrams.length == 0)
+			return new int[0];
+
+		for (int documentId = 0; documentId < documents.size(); ++documentId) {
+			long[] documentTrigrams = TrigramIndex.trigramsOf(documents.get(documentId));
+			int matches = 0;
+
+			for (long queryTrigram : queryTrigrams)
+				if (Arrays.binarySearch(documentTrigrams, queryTrigram) >= 0)
+					++matches;
+
+			similarities[documentId] = (double) matches / (queryTrigrams.length + documentTrigrams.length - matches);
+
+			if (matches > 0 && similarities[documentId] >= minimumSimilarity)
+				documentIds.add(documentId);
+		}
+
+		// Stable, so equally similar documents stay in document order
+		documentIds.sort((documentId1, documentId2) -> Double.compare(similarities[documentId2], similarities[documentId1]));
+
+		return documentIds.stream()
+				.limit(limit)
+				.mapToInt(Integer::intValue)
+				.toArray();
+	}
+
+	@Nonnull
+	protected String randomDocument(@Nonnull Random random) {
+		requireNonNull(random);
+
+		// A small alphabet, so documents share plenty of trigrams
+		return randomDocument(random, "abcdefg ");
+	}
+
+	@Nonnull
+	protected String randomDocument(@Nonnull Random random,
+																	@Nonnull String alphabet) {
+		requireNonNull(random);
+		requireNonNull(alphabet);
+
+		StringBuilder document = new StringBuilder();
+
+		for (int i = random.nextInt(12) + 1; i > 0; --i)
+			document.append(alphabet.charAt(random.nextInt(alphabet.length())));
+
+		return document.toString();
+	}
+}
\ No newline at end of file